@@ -14,6 +14,7 @@ import com.github.teocci.videohacks.ui.CameraCaptureActivity;
 import com.github.teocci.videohacks.ui.MainActivity;
 
 import java.io.File;
+import java.net.InetSocketAddress;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -40,6 +41,8 @@ public class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
     private CameraHandler cameraHandler;
     private TextureMovieEncoder videoEncoder;
     private File outputFile;
+    private InetSocketAddress streamDestination;
+    private boolean fragmented;
 
     private FullFrameRect fullFrameScreen;
 
@@ -69,9 +72,40 @@ public class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
      */
     public CameraSurfaceRenderer(CameraHandler cameraHandler,
                                  TextureMovieEncoder movieEncoder, File outputFile) {
+        this(cameraHandler, movieEncoder, outputFile, null);
+    }
+
+    /**
+     * Constructs CameraSurfaceRenderer that also streams what it records.
+     * <p>
+     * @param cameraHandler Handler for communicating with UI thread
+     * @param movieEncoder video encoder object
+     * @param outputFile output file for encoded video; forwarded to movieEncoder
+     * @param streamDestination where to send the video as RTP, or null for no streaming
+     */
+    public CameraSurfaceRenderer(CameraHandler cameraHandler,
+                                 TextureMovieEncoder movieEncoder, File outputFile,
+                                 InetSocketAddress streamDestination) {
+        this(cameraHandler, movieEncoder, outputFile, streamDestination, false);
+    }
+
+    /**
+     * Constructs CameraSurfaceRenderer, choosing how the recording is written.
+     * <p>
+     * @param cameraHandler Handler for communicating with UI thread
+     * @param movieEncoder video encoder object
+     * @param outputFile output file for encoded video; forwarded to movieEncoder
+     * @param streamDestination where to send the video as RTP, or null for no streaming
+     * @param fragmented write a fragmented .mp4 instead of using MediaMuxer
+     */
+    public CameraSurfaceRenderer(CameraHandler cameraHandler,
+                                 TextureMovieEncoder movieEncoder, File outputFile,
+                                 InetSocketAddress streamDestination, boolean fragmented) {
         this.cameraHandler = cameraHandler;
         videoEncoder = movieEncoder;
         this.outputFile = outputFile;
+        this.streamDestination = streamDestination;
+        this.fragmented = fragmented;
 
         textureId = -1;
 
@@ -256,7 +290,8 @@ public class CameraSurfaceRenderer implements GLSurfaceView.Renderer {
                     Log.d(TAG, "START recording");
                     // start recording
                     videoEncoder.startRecording(new TextureMovieEncoder.EncoderConfig(
-                            outputFile, 640, 480, 1000000, EGL14.eglGetCurrentContext()));
+                            outputFile, 640, 480, 1000000, EGL14.eglGetCurrentContext(),
+                            streamDestination, fragmented));
                     recordingStatus = RECORDING_ON;
                     break;
                 case RECORDING_RESUMED:
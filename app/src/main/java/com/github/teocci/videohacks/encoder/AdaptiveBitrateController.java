@@ -0,0 +1,260 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+/**
+ * Turns the encoder's knobs in response to how well a sink is keeping up.
+ * <p>
+ * We're told the size of every packet the encoder produces, and, periodically, how much
+ * data is waiting for the sink and how many packets it has dropped -- both in the fan-out's
+ * queue and, for a {@link CongestionReporter}, inside the sink itself.  From that:
+ * <ul>
+ * <li>If the sink dropped something, halve the bit rate, and ask for a sync frame so the
+ *     sink (which is waiting for one) can pick up again without waiting out the GOP.
+ * <li>If the queue holds more than CONGESTED_DELAY_USEC of video and is still growing, cut
+ *     the bit rate a bit.
+ * <li>Once the queue has stayed nearly empty for a while, raise the bit rate a step at a
+ *     time -- but only if the encoder is actually using most of what it has.  A static
+ *     scene comes in well under the target, and raising it then just sets up a burst later.
+ * </ul>
+ * When the bit rate is already at the floor, the frame rate hint is lowered instead, and
+ * it's restored first on the way back up.
+ * <p>
+ * Nothing here touches MediaCodec or the clock; time stamps are passed in.  That way the
+ * logic can be exercised on the desktop by replaying a recorded packet trace into it with
+ * a fake EncoderControl.
+ * <p>
+ * onPacket() and update() should be called from the encoder's drain thread.  The getters
+ * may be called from any thread.
+ */
+public class AdaptiveBitrateController {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    /** How often we reconsider the rate. */
+    public static final long UPDATE_INTERVAL_USEC = 250000;
+
+    // Queue thresholds, in microseconds of video at the current bit rate.
+    private static final long CONGESTED_DELAY_USEC = 400000;
+    private static final long CLEAR_DELAY_USEC = 100000;
+
+    // After a cut, the queue has to stay clear this long before we try going up again.
+    private static final long HOLD_AFTER_DECREASE_USEC = 2000000;
+
+    // Give a cut this long to take effect before cutting again for the same outage.
+    private static final long DECREASE_SETTLE_USEC = 1000000;
+
+    // Don't ask for sync frames more often than this; each one is expensive.
+    private static final long MIN_SYNC_REQUEST_INTERVAL_USEC = 1000000;
+
+    private static final float DECREASE_FACTOR = 0.85f;
+    private static final float DROP_DECREASE_FACTOR = 0.5f;
+    private static final float FRAME_RATE_DECREASE_FACTOR = 2f / 3f;
+    private static final float MIN_USED_FRACTION = 0.75f;
+    private static final int INCREASE_STEPS = 20;
+
+    private final EncoderControl mControl;
+    private final int mMinBitRate;
+    private final int mMaxBitRate;
+    private final int mMinFrameRate;
+    private final int mMaxFrameRate;
+    private final int mIncreaseStep;
+
+    // Measurement window.
+    private long mWindowStartUsec = -1;
+    private long mWindowBytes;
+    private int mMeasuredBitRate = -1;
+
+    // What we saw last time.
+    private int mLastQueuedBytes;
+    private long mLastDroppedPackets;
+    private long mLastDecreaseUsec;
+    private long mLastSyncRequestUsec;
+
+    // Statistics.
+    private long mDecreaseCount;
+    private long mIncreaseCount;
+    private long mSyncRequestCount;
+
+    /**
+     * Creates a controller.  The control's current bit rate and frame rate are taken as the
+     * ceilings.
+     *
+     * @param minBitRate Lowest bit rate we'll ask for.
+     * @param minFrameRate Lowest frame rate we'll ask for, once the bit rate is at the floor.
+     */
+    public AdaptiveBitrateController(EncoderControl control, int minBitRate,
+            int minFrameRate) {
+        mControl = control;
+        mMaxBitRate = control.getBitRate();
+        mMaxFrameRate = control.getFrameRateHint();
+        mMinBitRate = Math.min(minBitRate, mMaxBitRate);
+        mMinFrameRate = Math.min(minFrameRate, mMaxFrameRate);
+        mIncreaseStep = Math.max(1, (mMaxBitRate - mMinBitRate) / INCREASE_STEPS);
+    }
+
+    /**
+     * Notes a packet produced by the encoder.
+     *
+     * @param size Size of the packet, in bytes.
+     * @param flags MediaCodec.BufferInfo flags.
+     * @param ptsUsec Presentation time stamp, in microseconds.
+     */
+    public synchronized void onPacket(int size, int flags, long ptsUsec) {
+        if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        mWindowBytes += size;
+    }
+
+    /**
+     * Feeds in the sink's state, and adjusts the encoder if it's time to.  Cheap enough to
+     * call after every packet; it only acts every UPDATE_INTERVAL_USEC.
+     *
+     * @param nowUsec Current time, in microseconds, from a monotonic clock.
+     * @param queuedBytes Data waiting in the sink's queue.
+     * @param droppedPackets Total packets the sink has dropped so far.
+     */
+    public synchronized void update(long nowUsec, int queuedBytes, long droppedPackets) {
+        if (mWindowStartUsec < 0) {
+            mWindowStartUsec = nowUsec;
+            mLastDecreaseUsec = nowUsec - HOLD_AFTER_DECREASE_USEC;
+            mLastSyncRequestUsec = nowUsec - MIN_SYNC_REQUEST_INTERVAL_USEC;
+            mLastDroppedPackets = droppedPackets;
+            mLastQueuedBytes = queuedBytes;
+            return;
+        }
+        long elapsedUsec = nowUsec - mWindowStartUsec;
+        if (elapsedUsec < UPDATE_INTERVAL_USEC) {
+            return;
+        }
+
+        int windowBitRate = (int) (mWindowBytes * 8 * 1000000 / elapsedUsec);
+        if (mMeasuredBitRate < 0) {
+            mMeasuredBitRate = windowBitRate;
+        } else {
+            mMeasuredBitRate = (mMeasuredBitRate + windowBitRate) / 2;
+        }
+        mWindowStartUsec = nowUsec;
+        mWindowBytes = 0;
+
+        int bitRate = mControl.getBitRate();
+        long delayUsec = queuedBytes * 8L * 1000000 / bitRate;
+        long newDrops = droppedPackets - mLastDroppedPackets;
+        boolean growing = queuedBytes > mLastQueuedBytes;
+        mLastDroppedPackets = droppedPackets;
+        mLastQueuedBytes = queuedBytes;
+
+        if (newDrops > 0) {
+            // The sink keeps dropping until the next sync frame, so one outage shows up
+            // in several windows.  Only cut once for it.
+            if (nowUsec - mLastDecreaseUsec >= DECREASE_SETTLE_USEC) {
+                if (VERBOSE) Log.d(TAG, "sink dropped " + newDrops + " packets, backing off");
+                decrease(nowUsec, DROP_DECREASE_FACTOR);
+            }
+            if (nowUsec - mLastSyncRequestUsec >= MIN_SYNC_REQUEST_INTERVAL_USEC) {
+                mControl.requestSyncFrame();
+                mLastSyncRequestUsec = nowUsec;
+                mSyncRequestCount++;
+            }
+        } else if (delayUsec > CONGESTED_DELAY_USEC && growing) {
+            if (VERBOSE) Log.d(TAG, "sink queue at " + (delayUsec / 1000) + "ms, backing off");
+            decrease(nowUsec, DECREASE_FACTOR);
+        } else if (delayUsec < CLEAR_DELAY_USEC &&
+                nowUsec - mLastDecreaseUsec >= HOLD_AFTER_DECREASE_USEC) {
+            increase();
+        }
+    }
+
+    /**
+     * Cuts the bit rate by the given factor, or the frame rate if the bit rate is as low as
+     * it goes.
+     */
+    private void decrease(long nowUsec, float factor) {
+        int bitRate = mControl.getBitRate();
+        int frameRate = mControl.getFrameRateHint();
+        if (bitRate > mMinBitRate) {
+            mControl.setBitRate(Math.max(mMinBitRate, (int) (bitRate * factor)));
+        } else if (frameRate > mMinFrameRate) {
+            mControl.setFrameRateHint(Math.max(mMinFrameRate,
+                    (int) (frameRate * FRAME_RATE_DECREASE_FACTOR)));
+        }
+        mLastDecreaseUsec = nowUsec;
+        mDecreaseCount++;
+    }
+
+    /**
+     * Gives back the frame rate if we took any, then raises the bit rate a step.
+     */
+    private void increase() {
+        int bitRate = mControl.getBitRate();
+        int frameRate = mControl.getFrameRateHint();
+        if (frameRate < mMaxFrameRate) {
+            mControl.setFrameRateHint(mMaxFrameRate);
+        } else if (bitRate < mMaxBitRate && mMeasuredBitRate >= bitRate * MIN_USED_FRACTION) {
+            mControl.setBitRate(Math.min(mMaxBitRate, bitRate + mIncreaseStep));
+        } else {
+            return;
+        }
+        if (VERBOSE) {
+            Log.d(TAG, "raised to " + mControl.getBitRate() + "bps " +
+                    mControl.getFrameRateHint() + "fps");
+        }
+        mIncreaseCount++;
+    }
+
+    /**
+     * Returns the recent output bit rate of the encoder, or -1 if we don't know yet.
+     */
+    public synchronized int getMeasuredBitRate() {
+        return mMeasuredBitRate;
+    }
+
+    /**
+     * Returns the number of times we've backed off.
+     */
+    public synchronized long getDecreaseCount() {
+        return mDecreaseCount;
+    }
+
+    /**
+     * Returns the number of times we've stepped up.
+     */
+    public synchronized long getIncreaseCount() {
+        return mIncreaseCount;
+    }
+
+    /**
+     * Returns the number of sync frames we've asked for.
+     */
+    public synchronized long getSyncRequestCount() {
+        return mSyncRequestCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AdaptiveBitrateController[target=" + mControl.getBitRate() + "bps/" +
+                mControl.getFrameRateHint() + "fps measured=" + mMeasuredBitRate +
+                "bps down=" + mDecreaseCount + " up=" + mIncreaseCount + " sync=" +
+                mSyncRequestCount + "]";
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+/**
+ * Decides when CircularEncoder should report buffer status.
+ * <p>
+ * We report when something has changed by at least a threshold amount, but no more often
+ * than the minimum interval.  A change that arrives too soon isn't lost: the caller is told
+ * how long to wait, and when it checks again it reports whatever the state is by then, so
+ * a burst of changes is coalesced into a single report.  If nothing changes, we still
+ * report once per maximum interval, so listeners know we're alive.
+ * <p>
+ * Not thread-safe; used on the encoder thread.
+ */
+class BufferStatusScheduler {
+    /** Returned by check() when there's nothing to report. */
+    public static final long NOTHING = -1;
+    /** Returned by check() when a report should be sent now. */
+    public static final long NOW = 0;
+
+    private int mMinIntervalMsec;
+    private int mMaxIntervalMsec;
+    private long mSpanThresholdUsec;
+    private int mPinnedThresholdPercent;
+
+    private long mLastReportMsec = Long.MIN_VALUE / 2;
+    private long mLastSpanUsec = -1;
+    private int mLastPinnedPercent = -1;
+    private int mLastDroppedPackets = -1;
+
+    /**
+     * @param minIntervalMsec Never report more often than this.
+     * @param maxIntervalMsec Report at least this often, even if nothing has changed.  Zero
+     *     disables this.
+     * @param spanThresholdUsec Report when the buffered time span has changed by this much.
+     * @param pinnedThresholdPercent Report when the pinned percentage has changed by this
+     *     much.
+     */
+    public BufferStatusScheduler(int minIntervalMsec, int maxIntervalMsec,
+            long spanThresholdUsec, int pinnedThresholdPercent) {
+        configure(minIntervalMsec, maxIntervalMsec, spanThresholdUsec, pinnedThresholdPercent);
+    }
+
+    /**
+     * Changes the settings.  See the constructor.
+     */
+    public void configure(int minIntervalMsec, int maxIntervalMsec, long spanThresholdUsec,
+            int pinnedThresholdPercent) {
+        mMinIntervalMsec = minIntervalMsec;
+        mMaxIntervalMsec = maxIntervalMsec;
+        mSpanThresholdUsec = spanThresholdUsec;
+        mPinnedThresholdPercent = pinnedThresholdPercent;
+    }
+
+    /**
+     * Checks whether the current state should be reported.  Any change in the number of
+     * dropped packets is always worth reporting.
+     *
+     * @return NOW, NOTHING, or the number of milliseconds to wait before checking again.
+     */
+    public long check(long nowMsec, long spanUsec, int pinnedPercent, int droppedPackets) {
+        long elapsed = nowMsec - mLastReportMsec;
+        if (mMaxIntervalMsec > 0 && elapsed >= mMaxIntervalMsec) {
+            return NOW;
+        }
+        boolean changed = Math.abs(spanUsec - mLastSpanUsec) >= mSpanThresholdUsec ||
+                Math.abs(pinnedPercent - mLastPinnedPercent) >= mPinnedThresholdPercent ||
+                droppedPackets != mLastDroppedPackets;
+        if (!changed) {
+            return NOTHING;
+        }
+        return (elapsed >= mMinIntervalMsec) ? NOW : mMinIntervalMsec - elapsed;
+    }
+
+    /**
+     * Records that a report was sent.
+     */
+    public void reported(long nowMsec, long spanUsec, int pinnedPercent, int droppedPackets) {
+        mLastReportMsec = nowMsec;
+        mLastSpanUsec = spanUsec;
+        mLastPinnedPercent = pinnedPercent;
+        mLastDroppedPackets = droppedPackets;
+    }
+}
@@ -23,6 +23,7 @@ import android.media.MediaMuxer;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
@@ -47,38 +48,190 @@ import java.nio.ByteBuffer;
  * the head of the list and the next sync frame, or have the file save function know that
  * it needs to scan forward for a sync frame before it can start saving data.
  * <p>
- * When we're told to save a snapshot, we create a MediaMuxer, write all the frames out,
- * and then go back to what we were doing.
+ * When we're told to save a snapshot, we pin the buffered frames so they can't be
+ * overwritten, and hand them to a separate thread that creates a MediaMuxer and writes them
+ * out.  The encoder thread keeps draining the encoder into the rest of the buffer while that
+ * happens.
  */
-public class CircularEncoder {
+public class CircularEncoder implements EncoderControl {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = false;
 
     private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
     private static final int IFRAME_INTERVAL = 1;           // sync frame every second
 
+    // Default bufferStatus() reporting: at most 10/sec, at least 1/sec, or when the span
+    // changes by a tenth of a second.
+    private static final int DEFAULT_STATUS_MIN_MSEC = 100;
+    private static final int DEFAULT_STATUS_MAX_MSEC = 1000;
+    private static final long DEFAULT_STATUS_SPAN_USEC = 100000;
+    private static final int DEFAULT_STATUS_PINNED_PERCENT = 1;
+
     private EncoderThread mEncoderThread;
     private Surface mInputSurface;
     private MediaCodec mEncoder;
+    private MediaCodecControl mControl;
 
     /**
      * Callback function definitions.  CircularEncoder caller must provide one.
      */
     public interface Callback {
         /**
-         * Called some time after saveVideo(), when all data has been written to the
-         * output file.
+         * Called some time after saveVideo() or saveClips(), when all data has been
+         * written to the output files.
          *
          * @param status Zero means success, nonzero indicates failure.
          */
         void fileSaveComplete(int status);
 
         /**
-         * Called occasionally.
+         * Called after saveVideo() or saveClips(), as each clip is finished.  For saveClips()
+         * this may happen well before fileSaveComplete(), since a short clip is done as soon
+         * as we've passed its end time.
          *
-         * @param totalTimeMsec Total length, in milliseconds, of buffered video.
+         * @param status Zero means success, nonzero indicates failure.
+         */
+        void clipSaveComplete(Clip clip, int status);
+
+        /**
+         * Called when the buffer state changes noticeably, subject to the limits set with
+         * setStatusReporting().  Called on the encoder thread.
+         */
+        void bufferStatus(BufferStats stats);
+    }
+
+    /**
+     * A snapshot of the circular buffer's state.
+     * <p>
+     * Object is immutable, so it can be passed between threads without synchronization.
+     */
+    public static class BufferStats {
+        final long mRetainedUsec;
+        final long mRetainedBytes;
+        final int mGopCount;
+        final int mPacketCount;
+        final int mDroppedPackets;
+        final int mPinnedPercent;
+
+        BufferStats(CircularEncoderBuffer encBuffer) {
+            mRetainedUsec = encBuffer.computeTimeSpanUsec();
+            mRetainedBytes = encBuffer.getRetainedBytes();
+            mGopCount = encBuffer.getGopCount();
+            mPacketCount = encBuffer.getPacketCount();
+            mDroppedPackets = encBuffer.getDroppedPackets();
+            mPinnedPercent = encBuffer.getPinnedPercent();
+        }
+
+        /**
+         * Returns the length of buffered video, in microseconds, including anything that
+         * has been spilled.
+         */
+        public long getRetainedUsec() {
+            return mRetainedUsec;
+        }
+
+        /**
+         * Returns the bytes of video held in memory.
+         */
+        public long getRetainedBytes() {
+            return mRetainedBytes;
+        }
+
+        /**
+         * Returns the number of GOPs held in memory.
+         */
+        public int getGopCount() {
+            return mGopCount;
+        }
+
+        /**
+         * Returns the number of packets dropped because a file save was holding the space.
+         */
+        public int getDroppedPackets() {
+            return mDroppedPackets;
+        }
+
+        /**
+         * Returns the average size of the packets held in memory, in bytes.
+         */
+        public int getAveragePacketBytes() {
+            return (mPacketCount == 0) ? 0 : (int) (mRetainedBytes / mPacketCount);
+        }
+
+        /**
+         * Returns the percentage of the buffer held by a file save in progress.  As this
+         * approaches 100, new frames will start being dropped.
          */
-        void bufferStatus(long totalTimeMsec);
+        public int getPinnedPercent() {
+            return mPinnedPercent;
+        }
+
+        @Override
+        public String toString() {
+            return "BufferStats[retainedUsec=" + mRetainedUsec + " bytes=" + mRetainedBytes +
+                    " gops=" + mGopCount + " dropped=" + mDroppedPackets + " avgPacket=" +
+                    getAveragePacketBytes() + " pinned=" + mPinnedPercent + "%]";
+        }
+    }
+
+    /**
+     * A section of the buffered video to save to a file.
+     * <p>
+     * Object is immutable, so it can be passed between threads without synchronization.
+     */
+    public static class Clip {
+        final File mOutputFile;
+        final long mStartPtsUsec;
+        final long mEndPtsUsec;
+        final long mSpanUsec;
+
+        /**
+         * Saves the frames with presentation times from startPtsUsec to endPtsUsec.  The
+         * output starts at the sync frame at or before startPtsUsec, or the oldest sync
+         * frame if startPtsUsec is no longer in the buffer.
+         */
+        public Clip(File outputFile, long startPtsUsec, long endPtsUsec) {
+            mOutputFile = outputFile;
+            mStartPtsUsec = startPtsUsec;
+            mEndPtsUsec = endPtsUsec;
+            mSpanUsec = 0;
+        }
+
+        /**
+         * Saves the last spanUsec microseconds of buffered video, measured back from the
+         * most recent frame at the time the save starts.
+         */
+        public Clip(File outputFile, long spanUsec) {
+            mOutputFile = outputFile;
+            mStartPtsUsec = Long.MIN_VALUE;
+            mEndPtsUsec = Long.MAX_VALUE;
+            mSpanUsec = spanUsec;
+        }
+
+        public File getOutputFile() {
+            return mOutputFile;
+        }
+
+        @Override
+        public String toString() {
+            return "Clip: '" + mOutputFile + "' " + (mSpanUsec != 0 ? ("last " + mSpanUsec) :
+                    (mStartPtsUsec + "-" + mEndPtsUsec));
+        }
+    }
+
+    /**
+     * Configures encoder, and prepares the input Surface.
+     *
+     * @param width Width of encoded video, in pixels.  Should be a multiple of 16.
+     * @param height Height of encoded video, in pixels.  Usually a multiple of 16 (1080 is ok).
+     * @param bitRate Target bit rate, in bits.
+     * @param frameRate Expected frame rate.
+     * @param desiredSpanSec How many seconds of video we want to have in our buffer at any time.
+     */
+    public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
+            Callback cb) throws IOException {
+        this(width, height, bitRate, frameRate, desiredSpanSec,
+                CircularEncoderBuffer.EvictionPolicy.BYTES, cb);
     }
 
     /**
@@ -89,8 +242,31 @@ public class CircularEncoder {
      * @param bitRate Target bit rate, in bits.
      * @param frameRate Expected frame rate.
      * @param desiredSpanSec How many seconds of video we want to have in our buffer at any time.
+     * @param evictionPolicy Whether to limit the buffer by size (BYTES), by desiredSpanSec
+     *     (TIME), or both (HYBRID).
      */
     public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
+            CircularEncoderBuffer.EvictionPolicy evictionPolicy, Callback cb)
+            throws IOException {
+        this(width, height, bitRate, frameRate, desiredSpanSec, evictionPolicy, null, cb);
+    }
+
+    /**
+     * Configures encoder, and prepares the input Surface.
+     *
+     * @param width Width of encoded video, in pixels.  Should be a multiple of 16.
+     * @param height Height of encoded video, in pixels.  Usually a multiple of 16 (1080 is ok).
+     * @param bitRate Target bit rate, in bits.
+     * @param frameRate Expected frame rate.
+     * @param desiredSpanSec How many seconds of video we want to have in memory at any time.
+     * @param evictionPolicy Whether to limit the buffer by size (BYTES), by desiredSpanSec
+     *     (TIME), or both (HYBRID).
+     * @param spill If non-null, video evicted from memory is moved here instead of being
+     *     discarded, and is included when saving.  The caller should release() it after
+     *     shutdown().
+     */
+    public CircularEncoder(int width, int height, int bitRate, int frameRate, int desiredSpanSec,
+            CircularEncoderBuffer.EvictionPolicy evictionPolicy, CircularEncoderSpill spill,
             Callback cb) throws IOException {
         // The goal is to size the buffer so that we can accumulate N seconds worth of video,
         // where N is passed in as "desiredSpanSec".  If the codec generates data at roughly
@@ -101,12 +277,19 @@ public class CircularEncoder {
         //
         // Since we have to start muxing from a sync frame, we want to ensure that there's
         // room for at least one full GOP in the buffer, preferrably two.
+        //
+        // If the actual bit rate drifts, the BYTES policy will hold more or less than
+        // desiredSpanSec.  TIME and HYBRID trim whole GOPs that fall outside the span.
         if (desiredSpanSec < IFRAME_INTERVAL * 2) {
             throw new RuntimeException("Requested time span is too short: " + desiredSpanSec +
                     " vs. " + (IFRAME_INTERVAL * 2));
         }
         CircularEncoderBuffer encBuffer = new CircularEncoderBuffer(bitRate, frameRate,
                 desiredSpanSec);
+        encBuffer.setEvictionPolicy(evictionPolicy, desiredSpanSec * 1000000L);
+        if (spill != null) {
+            encBuffer.setSpill(spill);
+        }
 
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
 
@@ -125,6 +308,7 @@ public class CircularEncoder {
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mInputSurface = mEncoder.createInputSurface();
         mEncoder.start();
+        mControl = new MediaCodecControl(mEncoder, bitRate, frameRate);
 
         // Start the encoder thread last.  That way we're sure it can see all of the state
         // we've initialized.
@@ -157,6 +341,7 @@ public class CircularEncoder {
         }
 
         if (mEncoder != null) {
+            mControl.release();
             mEncoder.stop();
             mEncoder.release();
             mEncoder = null;
@@ -188,9 +373,10 @@ public class CircularEncoder {
      * data will be written as a .mp4 file.  The call returns immediately.  When the file
      * save completes, the callback will be notified.
      * <p>
-     * The file generation is performed on the encoder thread, which means we won't be
-     * draining the output buffers while this runs.  It would be wise to stop submitting
-     * frames during this time.
+     * The file generation is performed on a separate thread, so the encoder output will
+     * continue to be drained while this runs.  The frames being saved are pinned in the
+     * buffer until the save completes; if the save takes long enough for new frames to
+     * need that space, they will be dropped.
      */
     public void saveVideo(File outputFile) {
         Handler handler = mEncoderThread.getHandler();
@@ -198,6 +384,98 @@ public class CircularEncoder {
                 EncoderThread.EncoderHandler.MSG_SAVE_VIDEO, outputFile));
     }
 
+    /**
+     * Initiates saving several clips from the currently-buffered frames, each to its own
+     * .mp4 file.  The clips may overlap.  The call returns immediately.
+     * <p>
+     * All of the clips are written in a single pass over the buffer, so each packet is only
+     * read once no matter how many clips it appears in.  The callback's clipSaveComplete()
+     * is called as each clip finishes, and fileSaveComplete() is called when they're all
+     * done, with the first nonzero status (if any).  If writing fails partway through
+     * (e.g. the disk fills up), the overall status is 2.
+     */
+    public void saveClips(Clip[] clips) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_SAVE_CLIPS, clips.clone()));
+    }
+
+    /**
+     * Configures how often bufferStatus() is called.  The call returns immediately.
+     * <p>
+     * A report is sent when the buffered time span or pinned percentage changes by at least
+     * the threshold, or packets are dropped, but never more often than minIntervalMsec;
+     * changes in between are coalesced into the next report.  If nothing changes, a report
+     * is still sent every maxIntervalMsec (zero disables this).
+     */
+    public void setStatusReporting(int minIntervalMsec, int maxIntervalMsec,
+            long spanThresholdUsec, int pinnedThresholdPercent) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_SET_STATUS_REPORTING,
+                new BufferStatusScheduler(minIntervalMsec, maxIntervalMsec, spanThresholdUsec,
+                        pinnedThresholdPercent)));
+    }
+
+    /**
+     * Starts mirroring encoder output into a crash-durable journal, or stops if "journal"
+     * is null.  The call returns immediately.
+     * <p>
+     * The journal keeps its own window of recent video in a memory-mapped file, so if the
+     * process dies the video can be retrieved with {@link CircularEncoderJournal#recover}.
+     * The caller should release() it after shutdown().
+     */
+    public void setJournal(CircularEncoderJournal journal) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_SET_JOURNAL, journal));
+    }
+
+    /**
+     * Starts handing encoder output to a consumer on another thread, or stops if "queue" is
+     * null.  The call returns immediately.
+     * <p>
+     * Packets are offered to the queue as they're drained from the encoder, in addition to
+     * going into the circular buffer.  What happens when the consumer falls behind is up to
+     * the queue's SlowConsumerPolicy; note that BLOCK will stall the encoder thread.
+     */
+    public void setQueue(CircularEncoderQueue queue) {
+        Handler handler = mEncoderThread.getHandler();
+        handler.sendMessage(handler.obtainMessage(
+                EncoderThread.EncoderHandler.MSG_SET_QUEUE, queue));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The buffer was sized for the bit rate we started with, so at a higher rate it will
+     * hold less than desiredSpanSec (unless the eviction policy is TIME).
+     */
+    @Override
+    public void setBitRate(int bitRate) {
+        mControl.setBitRate(bitRate);
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        mControl.requestSyncFrame();
+    }
+
+    @Override
+    public void setFrameRateHint(int frameRate) {
+        mControl.setFrameRateHint(frameRate);
+    }
+
+    @Override
+    public int getBitRate() {
+        return mControl.getBitRate();
+    }
+
+    @Override
+    public int getFrameRateHint() {
+        return mControl.getFrameRateHint();
+    }
+
     /**
      * Object that encapsulates the encoder thread.
      * <p>
@@ -206,8 +484,9 @@ public class CircularEncoder {
      * input surface.  We will see data appear at the decoder output, so we can either use
      * an infinite timeout on dequeueOutputBuffer() or wait() on an object and require the
      * calling app wake us.  It's very useful to have all of the buffer management local to
-     * this thread -- avoids synchronization -- so we want to do the file muxing in here.
-     * So, it's best to sleep on an object and do something appropriate when awakened.
+     * this thread -- avoids synchronization -- so the only thing we let another thread do
+     * is read a pinned snapshot while muxing it to a file.  So, it's best to sleep on an
+     * object and do something appropriate when awakened.
      * <p>
      * This class does not manage the MediaCodec encoder startup/shutdown.  The encoder
      * should be fully started before the thread is created, and not shut down until this
@@ -221,7 +500,13 @@ public class CircularEncoder {
         private EncoderHandler mHandler;
         private CircularEncoderBuffer mEncBuffer;
         private CircularEncoder.Callback mCallback;
-        private int mFrameNum;
+        private BufferStatusScheduler mStatusScheduler = new BufferStatusScheduler(
+                DEFAULT_STATUS_MIN_MSEC, DEFAULT_STATUS_MAX_MSEC, DEFAULT_STATUS_SPAN_USEC,
+                DEFAULT_STATUS_PINNED_PERCENT);
+        private boolean mStatusCheckPending;    // MSG_REPORT_STATUS is in the queue
+        private SaveThread mSaveThread;     // non-null while a file save is in progress
+        private CircularEncoderJournal mJournal;
+        private CircularEncoderQueue mQueue;
 
         private final Object mLock = new Object();
         private volatile boolean mReady = false;
@@ -310,6 +595,12 @@ public class CircularEncoder {
                     // MediaFormat later, we just grab it here and keep it around.
                     mEncodedFormat = mEncoder.getOutputFormat();
                     Log.d(TAG, "encoder output format changed: " + mEncodedFormat);
+                    if (mJournal != null) {
+                        mJournal.setFormat(mEncodedFormat);
+                    }
+                    if (mQueue != null) {
+                        mQueue.setFormat(mEncodedFormat);
+                    }
                 } else if (encoderStatus < 0) {
                     Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                             encoderStatus);
@@ -337,6 +628,16 @@ public class CircularEncoder {
 
                         mEncBuffer.add(encodedData, mBufferInfo.flags,
                                 mBufferInfo.presentationTimeUs);
+                        if (mJournal != null) {
+                            encodedData.position(mBufferInfo.offset);
+                            mJournal.add(encodedData, mBufferInfo.flags,
+                                    mBufferInfo.presentationTimeUs);
+                        }
+                        if (mQueue != null) {
+                            encodedData.position(mBufferInfo.offset);
+                            mQueue.offer(encodedData, mBufferInfo.flags,
+                                    mBufferInfo.presentationTimeUs);
+                        }
 
                         if (VERBOSE) {
                             Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
@@ -363,75 +664,330 @@ public class CircularEncoder {
             if (VERBOSE) Log.d(TAG, "frameAvailableSoon");
             drainEncoder();
 
-            mFrameNum++;
-            if ((mFrameNum % 10) == 0) {        // TODO: should base off frame rate or clock?
-                mCallback.bufferStatus(mEncBuffer.computeTimeSpanUsec());
+            reportStatus();
+        }
+
+        /**
+         * Sends a bufferStatus() report if the scheduler says it's time.  If a report is due
+         * but we sent one too recently, we check again after a delay.
+         */
+        void reportStatus() {
+            long nowMsec = SystemClock.uptimeMillis();
+            long spanUsec = mEncBuffer.computeTimeSpanUsec();
+            int pinnedPercent = mEncBuffer.getPinnedPercent();
+            int dropped = mEncBuffer.getDroppedPackets();
+            long delay = mStatusScheduler.check(nowMsec, spanUsec, pinnedPercent, dropped);
+            if (delay == BufferStatusScheduler.NOW) {
+                mStatusScheduler.reported(nowMsec, spanUsec, pinnedPercent, dropped);
+                mCallback.bufferStatus(new BufferStats(mEncBuffer));
+            } else if (delay > 0 && !mStatusCheckPending) {
+                mStatusCheckPending = true;
+                mHandler.sendMessageDelayed(
+                        mHandler.obtainMessage(EncoderHandler.MSG_REPORT_STATUS), delay);
             }
         }
 
         /**
-         * Saves the encoder output to a .mp4 file.
+         * Handles a delayed status check.
+         */
+        void statusCheckDue() {
+            mStatusCheckPending = false;
+            reportStatus();
+        }
+
+        /**
+         * Replaces the status scheduler.  The new one hasn't reported anything yet, so
+         * the next check will send a report.
+         */
+        void setStatusScheduler(BufferStatusScheduler scheduler) {
+            mStatusScheduler = scheduler;
+        }
+
+        /**
+         * Starts saving the encoder output to a .mp4 file.
          * <p>
          * We'll drain the encoder to get any lingering data, but we're not going to shut
          * the encoder down or use other tricks to try to "flush" the encoder.  This may
          * mean we miss the last couple of submitted frames if they're still working their
          * way through.
          * <p>
-         * We may want to reset the buffer after this -- if they hit "capture" again right
-         * away they'll end up saving video with a gap where we paused to write the file.
+         * The buffered frames are pinned and written by a SaveThread.  We get
+         * MSG_SAVE_COMPLETE when it's done.
          */
         void saveVideo(File outputFile) {
             if (VERBOSE) Log.d(TAG, "saveVideo " + outputFile);
+            saveClips(new Clip[] { new Clip(outputFile, Long.MIN_VALUE, Long.MAX_VALUE) });
+        }
+
+        /**
+         * Starts saving a set of clips.
+         * <p>
+         * We work out where each clip starts, then pin everything from the oldest of those
+         * and hand it to a SaveThread.
+         */
+        void saveClips(Clip[] clips) {
+            if (VERBOSE) Log.d(TAG, "saveClips " + clips.length);
+
+            if (mSaveThread != null) {
+                Log.w(TAG, "File save already in progress");
+                mCallback.fileSaveComplete(3);
+                return;
+            }
 
-            int index = mEncBuffer.getFirstIndex();
-            if (index < 0) {
+            int firstIndex = mEncBuffer.getFirstIndex();
+            if (firstIndex < 0) {
                 Log.w(TAG, "Unable to get first index");
                 mCallback.fileSaveComplete(1);
                 return;
             }
 
+            long newestPtsUsec = mEncBuffer.getNewestPtsUsec();
             MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-            MediaMuxer muxer = null;
-            int result = -1;
-            try {
-                muxer = new MediaMuxer(outputFile.getPath(),
-                        MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-                int videoTrack = muxer.addTrack(mEncodedFormat);
-                muxer.start();
+            int[] startIndex = new int[clips.length];
+            long[] endPtsUsec = new long[clips.length];
+            int pinIndex = -1;
+            long pinPtsUsec = Long.MAX_VALUE;
+            for (int i = 0; i < clips.length; i++) {
+                Clip clip = clips[i];
+                long startPtsUsec = clip.mStartPtsUsec;
+                if (clip.mSpanUsec != 0) {
+                    startPtsUsec = newestPtsUsec - clip.mSpanUsec;
+                }
+                int index = mEncBuffer.getSyncIndexAtOrBefore(startPtsUsec);
+                if (index < 0) {
+                    index = firstIndex;
+                }
+                startIndex[i] = index;
+                endPtsUsec[i] = clip.mEndPtsUsec;
 
-                do {
-                    ByteBuffer buf = mEncBuffer.getChunk(index, info);
-                    if (VERBOSE) {
-                        Log.d(TAG, "SAVE " + index + " flags=0x" + Integer.toHexString(info.flags));
-                    }
-                    muxer.writeSampleData(videoTrack, buf, info);
-                    index = mEncBuffer.getNextIndex(index);
-                } while (index >= 0);
-                result = 0;
-            } catch (IOException ioe) {
-                Log.w(TAG, "muxer failed", ioe);
-                result = 2;
-            } finally {
-                if (muxer != null) {
-                    muxer.stop();
-                    muxer.release();
+                // Sync frame time stamps are increasing, so the earliest one is the oldest.
+                mEncBuffer.getChunk(index, info);
+                if (info.presentationTimeUs < pinPtsUsec) {
+                    pinPtsUsec = info.presentationTimeUs;
+                    pinIndex = index;
                 }
             }
 
+            mSaveThread = new SaveThread(mEncBuffer.pin(pinIndex), mEncodedFormat, clips,
+                    startIndex, endPtsUsec, mHandler);
+            mSaveThread.start();
+        }
+
+        /**
+         * Reports completion of a single clip.
+         */
+        void clipSaveComplete(Clip clip, int status) {
+            if (VERBOSE) Log.d(TAG, "clip save complete: " + clip + " status=" + status);
+            mCallback.clipSaveComplete(clip, status);
+        }
+
+        /**
+         * Finishes up after the SaveThread is done.  Releases the pinned data and notifies
+         * the callback.
+         */
+        void saveComplete() {
+            if (mSaveThread == null) {
+                return;
+            }
+            try {
+                mSaveThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "Save thread join() was interrupted", ie);
+            }
+            int result = mSaveThread.mResult;
+            mSaveThread = null;
+            mEncBuffer.unpin();
+
             if (VERBOSE) {
-                Log.d(TAG, "muxer stopped, result=" + result);
+                Log.d(TAG, "save complete, result=" + result + " dropped=" +
+                        mEncBuffer.getDroppedPackets());
             }
             mCallback.fileSaveComplete(result);
+            reportStatus();
+        }
+
+        /**
+         * Switches journals.  If we already know the output format, the new journal gets it
+         * right away.
+         */
+        void setJournal(CircularEncoderJournal journal) {
+            mJournal = journal;
+            if (journal != null && mEncodedFormat != null) {
+                journal.setFormat(mEncodedFormat);
+            }
         }
 
         /**
-         * Tells the Looper to quit.
+         * Switches consumer queues.
+         */
+        void setQueue(CircularEncoderQueue queue) {
+            mQueue = queue;
+            if (queue != null && mEncodedFormat != null) {
+                queue.setFormat(mEncodedFormat);
+            }
+        }
+
+        /**
+         * Tells the Looper to quit.  If a file save is in progress, waits for it to finish
+         * first, since the message it sends us will never be handled.
          */
         void shutdown() {
             if (VERBOSE) Log.d(TAG, "shutdown");
+            saveComplete();
             Looper.myLooper().quit();
         }
 
+        /**
+         * Writes clips from a pinned snapshot to .mp4 files, then tells the encoder thread
+         * it's done.
+         * <p>
+         * We walk through the snapshot once.  Each clip's muxer is fed from the clip's start
+         * index until we see a frame past its end time, at which point that clip is finished
+         * and reported.
+         */
+        private static class SaveThread extends Thread {
+            private final CircularEncoderBuffer.Snapshot mSnapshot;
+            private final MediaFormat mFormat;
+            private final Clip[] mClips;
+            private final int[] mStartIndex;
+            private final long[] mEndPtsUsec;
+            private final EncoderHandler mHandler;
+
+            private final MediaMuxer[] mMuxers;
+            private final int[] mTracks;
+            private final int[] mSampleCount;
+            private final boolean[] mActive;
+            private final boolean[] mDone;
+
+            // Written by this thread, read by the encoder thread after join().
+            int mResult = -1;
+
+            SaveThread(CircularEncoderBuffer.Snapshot snapshot, MediaFormat format, Clip[] clips,
+                    int[] startIndex, long[] endPtsUsec, EncoderHandler handler) {
+                super("CircularEncoder save");
+                mSnapshot = snapshot;
+                mFormat = format;
+                mClips = clips;
+                mStartIndex = startIndex;
+                mEndPtsUsec = endPtsUsec;
+                mHandler = handler;
+
+                mMuxers = new MediaMuxer[clips.length];
+                mTracks = new int[clips.length];
+                mSampleCount = new int[clips.length];
+                mActive = new boolean[clips.length];
+                mDone = new boolean[clips.length];
+            }
+
+            @Override
+            public void run() {
+                int remaining = mClips.length;
+                boolean failed = false;
+                mResult = 0;
+                try {
+                    for (int i = 0; i < mClips.length; i++) {
+                        try {
+                            MediaMuxer muxer = new MediaMuxer(mClips[i].mOutputFile.getPath(),
+                                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                            mMuxers[i] = muxer;
+                            mTracks[i] = muxer.addTrack(mFormat);
+                            muxer.start();
+                        } catch (IOException ioe) {
+                            Log.w(TAG, "muxer failed", ioe);
+                            finishClip(i, 2);
+                            remaining--;
+                        } catch (RuntimeException re) {
+                            Log.w(TAG, "muxer failed", re);
+                            finishClip(i, 2);
+                            remaining--;
+                        }
+                    }
+
+                    MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                    int index = mSnapshot.getFirstIndex();
+                    while (index >= 0 && remaining > 0) {
+                        ByteBuffer buf = mSnapshot.getChunk(index, info);
+                        if (VERBOSE) {
+                            Log.d(TAG, "SAVE " + index + " flags=0x" +
+                                    Integer.toHexString(info.flags));
+                        }
+                        for (int i = 0; i < mClips.length; i++) {
+                            if (mDone[i]) {
+                                continue;
+                            }
+                            if (index == mStartIndex[i]) {
+                                mActive[i] = true;
+                            }
+                            if (!mActive[i]) {
+                                continue;
+                            }
+                            if (info.presentationTimeUs > mEndPtsUsec[i]) {
+                                finishClip(i, 0);
+                                remaining--;
+                            } else {
+                                mMuxers[i].writeSampleData(mTracks[i], buf, info);
+                                mSampleCount[i]++;
+                            }
+                        }
+                        index = mSnapshot.getNextIndex(index);
+                    }
+                } catch (RuntimeException re) {
+                    // Most likely an IllegalStateException from writeSampleData() because
+                    // the disk filled up.  Don't let it take the process down; the encoder
+                    // thread still needs to hear from us so it can unpin the snapshot.
+                    Log.e(TAG, "save failed", re);
+                    failed = true;
+                } finally {
+                    // Anything still open ran to the end of the snapshot, or was cut short.
+                    for (int i = 0; i < mClips.length; i++) {
+                        if (!mDone[i]) {
+                            finishClip(i, failed ? 2 : 0);
+                        }
+                    }
+                    if (failed) {
+                        mResult = 2;
+                    }
+
+                    if (VERBOSE) {
+                        Log.d(TAG, "muxers stopped, result=" + mResult);
+                    }
+                    mHandler.sendMessage(
+                            mHandler.obtainMessage(EncoderHandler.MSG_SAVE_COMPLETE));
+                }
+            }
+
+            /**
+             * Stops and releases the clip's muxer, and reports the result.
+             */
+            private void finishClip(int i, int status) {
+                MediaMuxer muxer = mMuxers[i];
+                if (muxer != null) {
+                    try {
+                        // MediaMuxer#stop() throws if nothing was written.
+                        if (mSampleCount[i] != 0) {
+                            muxer.stop();
+                        } else if (status == 0) {
+                            Log.w(TAG, "Nothing to save for " + mClips[i]);
+                            status = 1;
+                        }
+                    } catch (RuntimeException re) {
+                        // stop() writes the index, so it can fail the same way writes do.
+                        Log.w(TAG, "muxer stop failed for " + mClips[i], re);
+                        status = 2;
+                    } finally {
+                        muxer.release();
+                        mMuxers[i] = null;
+                    }
+                }
+                mDone[i] = true;
+                if (mResult == 0) {
+                    mResult = status;
+                }
+                mHandler.sendMessage(mHandler.obtainMessage(EncoderHandler.MSG_CLIP_COMPLETE,
+                        status, 0, mClips[i]));
+            }
+        }
+
         /**
          * Handler for EncoderThread.  Used for messages sent from the UI thread (or whatever
          * is driving the encoder) to the encoder thread.
@@ -442,6 +998,13 @@ public class CircularEncoder {
             public static final int MSG_FRAME_AVAILABLE_SOON = 1;
             public static final int MSG_SAVE_VIDEO = 2;
             public static final int MSG_SHUTDOWN = 3;
+            public static final int MSG_SAVE_COMPLETE = 4;
+            public static final int MSG_SAVE_CLIPS = 5;
+            public static final int MSG_CLIP_COMPLETE = 6;
+            public static final int MSG_SET_JOURNAL = 7;
+            public static final int MSG_SET_QUEUE = 8;
+            public static final int MSG_REPORT_STATUS = 9;
+            public static final int MSG_SET_STATUS_REPORTING = 10;
 
             // This shouldn't need to be a weak ref, since we'll go away when the Looper quits,
             // but no real harm in it.
@@ -477,6 +1040,27 @@ public class CircularEncoder {
                     case MSG_SHUTDOWN:
                         encoderThread.shutdown();
                         break;
+                    case MSG_SAVE_COMPLETE:
+                        encoderThread.saveComplete();
+                        break;
+                    case MSG_SAVE_CLIPS:
+                        encoderThread.saveClips((Clip[]) msg.obj);
+                        break;
+                    case MSG_CLIP_COMPLETE:
+                        encoderThread.clipSaveComplete((Clip) msg.obj, msg.arg1);
+                        break;
+                    case MSG_SET_JOURNAL:
+                        encoderThread.setJournal((CircularEncoderJournal) msg.obj);
+                        break;
+                    case MSG_SET_QUEUE:
+                        encoderThread.setQueue((CircularEncoderQueue) msg.obj);
+                        break;
+                    case MSG_REPORT_STATUS:
+                        encoderThread.statusCheckDue();
+                        break;
+                    case MSG_SET_STATUS_REPORTING:
+                        encoderThread.setStatusScheduler((BufferStatusScheduler) msg.obj);
+                        break;
                     default:
                         throw new RuntimeException("unknown message " + what);
                 }
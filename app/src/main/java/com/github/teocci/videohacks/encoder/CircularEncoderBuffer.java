@@ -17,6 +17,7 @@
 package com.github.teocci.videohacks.encoder;
 
 import android.media.MediaCodec;
+import android.media.MediaFormat;
 import android.util.Log;
 
 import com.github.teocci.videohacks.ui.MainActivity;
@@ -27,57 +28,133 @@ import java.nio.ByteBuffer;
  * Holds encoded video data in a circular buffer.
  * <p>
  * This is actually a pair of circular buffers, one for the raw data and one for the meta-data
- * (flags and PTS).
+ * (flags and PTS).  Both are sized to a power of two, and the raw data lives outside the
+ * managed heap in a direct ByteBuffer.
  * <p>
- * Not thread-safe.
+ * Not thread-safe, with one exception: a {@link Snapshot} may be read on a different thread
+ * while this thread keeps adding data.  The snapshot's packets are pinned, so the tail can't
+ * be advanced past them until {@link #unpin()} is called.  If the buffer fills up while a
+ * snapshot is pinned, new packets are dropped until the next sync frame.
+ * <p>
+ * Old data is always discarded a GOP at a time, so the buffer always starts with a sync frame
+ * (once one has arrived).  When that happens depends on the {@link EvictionPolicy}.
+ * <p>
+ * Optionally, discarded GOPs can be moved to a {@link CircularEncoderSpill} instead of being
+ * thrown away.  The spilled packets come before the in-memory packets, and the index-based
+ * accessors (getFirstIndex(), getNextIndex(), getChunk(), and the sync frame queries) cover
+ * both.  Spilled packets have indices with SPILL_INDEX_FLAG set.
+ * <p>
+ * It can also be attached to an {@link EncodedPacketFanout} as a DIRECT sink, so it's filled
+ * on the drain thread, as if add() were called there.
  */
-public class CircularEncoderBuffer {
+public class CircularEncoderBuffer implements EncodedPacketSink {
     private static final String TAG = MainActivity.TAG;
     private static final boolean EXTRA_DEBUG = true;
     private static final boolean VERBOSE = false;
 
+    // Largest data buffer we're willing to allocate.  Rounding up to a power of two could
+    // otherwise push us past what a ByteBuffer can index.
+    private static final int MAX_DATA_BUFFER_SIZE = 1 << 30;
+
+    // Set in indices that refer to a CircularEncoderSpill entry.
+    private static final int SPILL_INDEX_FLAG = 0x40000000;
+
+    /**
+     * Determines when old GOPs are discarded.  In all cases, data is discarded if the buffer
+     * runs out of space.
+     */
+    public enum EvictionPolicy {
+        /** Keep up to bitRate * desiredSpanSec / 8 bytes, however much time that is. */
+        BYTES,
+        /** Discard GOPs that start more than maxSpanUsec before the newest packet. */
+        TIME,
+        /** Discard on whichever of BYTES or TIME kicks in first. */
+        HYBRID
+    }
+
     // Raw data (e.g. AVC NAL units) held here.
     //
     // The MediaMuxer writeSampleData() function takes a ByteBuffer.  If it's a "direct"
     // ByteBuffer it'll access the data directly, if it's a regular ByteBuffer it'll use
-    // JNI functions to access the backing byte[] (which, in the current VM, is done without
-    // copying the data).
+    // JNI functions to access the backing byte[].
+    //
+    // At high bit rates and long spans the buffer can get very large (20Mbps for 60 seconds
+    // is 150MB), which is more than we want to put on the managed heap.  So we allocate it
+    // "direct", outside the heap, and hand it to the muxer as-is.  We keep a second view
+    // of the same memory for the reader so that add() and getChunk() don't trip over
+    // each other's position and limit.
     //
-    // It's much more convenient to work with a byte[], so we just wrap it with a ByteBuffer
-    // as needed.  This is a bit awkward when we hit the edge of the buffer, but for that
-    // we can just do an allocation and data copy (we know it happens at most once per file
-    // save operation).
-    private ByteBuffer mDataBufferWrapper;
-    private byte[] mDataBuffer;
+    // Packets are never split across the end of the buffer.  If a packet won't fit in the
+    // space left before the end, we skip the remainder and start it at offset zero.  That
+    // wastes at most one packet's worth of space, but it means every packet is contiguous,
+    // so getChunk() never has to allocate and copy.
+    private ByteBuffer mDataBuffer;
+    private ByteBuffer mDataBufferReader;
 
     // Meta-data held here.  We're using a collection of arrays, rather than an array of
     // objects with multiple fields, to minimize allocations and heap footprint.
-    private int[] mPacketFlags;
-    private long[] mPacketPtsUsec;
-    private int[] mPacketStart;
-    private int[] mPacketLength;
+    private final int[] mPacketFlags;
+    private final long[] mPacketPtsUsec;
+    private final int[] mPacketStart;
+    private final int[] mPacketLength;
+    private final int mMetaMask;
 
     // Data is added at head and removed from tail.  Head points to an empty node, so if
     // head==tail the list is empty.
     private int mMetaHead;
     private int mMetaTail;
 
+    // Meta-data indices of the sync frames, oldest first.  Same size and head/tail rules as
+    // the meta-data arrays (every packet could be a sync frame).  Kept up to date by add()
+    // and removeTail(), so finding a place to start muxing doesn't require a scan.
+    private int[] mSyncIndex;
+    private int mSyncHead;
+    private int mSyncTail;
+
+    // Index of the first pinned packet, or -1 if nothing is pinned.  Everything from here to
+    // the head at the time of the pin belongs to a Snapshot.
+    private int mPinIndex = -1;
+    private long mPinnedBytes;
+
+    // Eviction policy, and the limits it works with.  The byte limit is what the caller asked
+    // for, not the (larger) power-of-two size we actually allocated.
+    private EvictionPolicy mEvictionPolicy = EvictionPolicy.BYTES;
+    private long mMaxSpanUsec;
+    private final int mMaxBytes;
+    private long mRetainedBytes;
+
+    // Optional second tier, and a view of our data for copying into it.
+    private CircularEncoderSpill mSpill;
+    private ByteBuffer mSpillReader;
+
+    // If we had to drop a packet, we have to keep dropping until the next sync frame.
+    private boolean mDropUntilSync;
+    private int mDroppedPackets;
+
     /**
      * Allocates the circular buffers we use for encoded data and meta-data.
      */
     public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec) {
         // For the encoded data, we assume the encoded bit rate is close to what we request.
-        //
-        // There would be a minor performance advantage to using a power of two here, because
-        // not all ARM CPUs support integer modulus.
-        int dataBufferSize = bitRate * desiredSpanSec / 8;
-        mDataBuffer = new byte[dataBufferSize];
-        mDataBufferWrapper = ByteBuffer.wrap(mDataBuffer);
+        // Do the math in 64 bits; bitRate * desiredSpanSec overflows an int past ~35 seconds
+        // at 60Mbps.
+        long requestedSize = (long) bitRate * desiredSpanSec / 8;
+        if (requestedSize > MAX_DATA_BUFFER_SIZE) {
+            throw new RuntimeException("Buffer too large: " + requestedSize + " vs. " +
+                    MAX_DATA_BUFFER_SIZE);
+        }
+        mMaxBytes = (int) requestedSize;
+        mMaxSpanUsec = desiredSpanSec * 1000000L;
+        int dataBufferSize = roundUpPowerOfTwo((int) requestedSize);
+        mDataBuffer = ByteBuffer.allocateDirect(dataBufferSize);
+        mDataBufferReader = mDataBuffer.duplicate();
 
         // Meta-data is smaller than encoded data for non-trivial frames, so we over-allocate
         // a bit.  This should ensure that we drop packets because we ran out of (expensive)
         // data storage rather than (inexpensive) metadata storage.
-        int metaBufferCount = frameRate * desiredSpanSec * 2;
+        int metaBufferCount = roundUpPowerOfTwo(frameRate * desiredSpanSec * 2);
+        mMetaMask = metaBufferCount - 1;
+        mSyncIndex = new int[metaBufferCount];
         mPacketFlags = new int[metaBufferCount];
         mPacketPtsUsec = new long[metaBufferCount];
         mPacketStart = new int[metaBufferCount];
@@ -90,21 +167,88 @@ public class CircularEncoderBuffer {
         }
     }
 
+    /**
+     * Returns the smallest power of two that is greater than or equal to the argument.
+     */
+    private static int roundUpPowerOfTwo(int value) {
+        if (value <= 1) {
+            return 1;
+        }
+        return Integer.highestOneBit(value - 1) << 1;
+    }
+
+    /**
+     * Sets the eviction policy.  The default is BYTES, with a time span equal to the
+     * constructor's desiredSpanSec.
+     *
+     * @param policy When to discard old GOPs.
+     * @param maxSpanUsec Time span limit, used by TIME and HYBRID.
+     */
+    public void setEvictionPolicy(EvictionPolicy policy, long maxSpanUsec) {
+        mEvictionPolicy = policy;
+        mMaxSpanUsec = maxSpanUsec;
+    }
+
+    /**
+     * Sets the spill tier.  GOPs evicted from memory will be added to it.  Must be called
+     * before any data is added.
+     */
+    public void setSpill(CircularEncoderSpill spill) {
+        mSpill = spill;
+        mSpillReader = mDataBuffer.duplicate();
+    }
+
+    private boolean hasSpilledData() {
+        return mSpill != null && !mSpill.isEmpty();
+    }
+
+    /**
+     * Returns the number of bytes of packet data in memory.
+     */
+    public long getRetainedBytes() {
+        return mRetainedBytes;
+    }
+
+    /**
+     * Returns the number of packets in memory.
+     */
+    public int getPacketCount() {
+        return (mMetaHead - mMetaTail) & mMetaMask;
+    }
+
+    /**
+     * Returns the number of GOPs in memory.  Same as {@link #getSyncCount()}.
+     */
+    public int getGopCount() {
+        return getSyncCount();
+    }
+
+    /**
+     * Returns the presentation time stamp of the most recent packet, or -1 if the buffer
+     * is empty.
+     */
+    public long getNewestPtsUsec() {
+        if (mMetaHead == mMetaTail) {
+            return -1;
+        }
+        return mPacketPtsUsec[(mMetaHead - 1) & mMetaMask];
+    }
+
     /**
      * Computes the amount of time spanned by the buffered data, based on the presentation
      * time stamps.
      */
     public long computeTimeSpanUsec() {
-        final int metaLen = mPacketStart.length;
-
         if (mMetaHead == mMetaTail) {
             // empty list
             return 0;
         }
 
         // head points to the next available node, so grab the previous one
-        int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
-        return mPacketPtsUsec[beforeHead] - mPacketPtsUsec[mMetaTail];
+        int beforeHead = (mMetaHead - 1) & mMetaMask;
+        long oldestUsec = hasSpilledData() ? mSpill.getOldestPtsUsec() :
+                mPacketPtsUsec[mMetaTail];
+        return mPacketPtsUsec[beforeHead] - oldestUsec;
     }
 
     /**
@@ -115,38 +259,54 @@ public class CircularEncoderBuffer {
      * @param size Number of bytes in the packet.
      * @param flags MediaCodec.BufferInfo flags.
      * @param ptsUsec Presentation time stamp, in microseconds.
+     * @return False if the packet was dropped because a snapshot is holding the space.
      */
-    public void add(ByteBuffer buf, int flags, long ptsUsec) {
+    public boolean add(ByteBuffer buf, int flags, long ptsUsec) {
         int size = buf.limit() - buf.position();
         if (VERBOSE) {
             Log.d(TAG, "add size=" + size + " flags=0x" + Integer.toHexString(flags) +
                     " pts=" + ptsUsec);
         }
-        while (!canAdd(size)) {
-            removeTail();
+        if (mDropUntilSync) {
+            if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+                mDroppedPackets++;
+                return false;
+            }
+            mDropUntilSync = false;
+        }
+        boolean fits = true;
+        if (mEvictionPolicy != EvictionPolicy.TIME) {
+            while (fits && mMetaHead != mMetaTail && mRetainedBytes + size > mMaxBytes) {
+                fits = removeGop();
+            }
+        }
+        int packetStart = -1;
+        while (fits && (packetStart = getHeadStart(size)) < 0) {
+            fits = removeGop();
+        }
+        if (!fits) {
+            if (VERBOSE) Log.v(TAG, "buffer full of pinned data, dropping");
+            mDropUntilSync = true;
+            mDroppedPackets++;
+            return false;
         }
 
-        final int dataLen = mDataBuffer.length;
-        final int metaLen = mPacketStart.length;
-        int packetStart = getHeadStart();
         mPacketFlags[mMetaHead] = flags;
         mPacketPtsUsec[mMetaHead] = ptsUsec;
         mPacketStart[mMetaHead] = packetStart;
         mPacketLength[mMetaHead] = size;
-
-        // Copy the data in.  Take care if it gets split in half.
-        if (packetStart + size < dataLen) {
-            // one chunk
-            buf.get(mDataBuffer, packetStart, size);
-        } else {
-            // two chunks
-            int firstSize = dataLen - packetStart;
-            if (VERBOSE) { Log.v(TAG, "split, firstsize=" + firstSize + " size=" + size); }
-            buf.get(mDataBuffer, packetStart, firstSize);
-            buf.get(mDataBuffer, 0, size - firstSize);
+        mRetainedBytes += size;
+        if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            mSyncIndex[mSyncHead] = mMetaHead;
+            mSyncHead = (mSyncHead + 1) & mMetaMask;
         }
 
-        mMetaHead = (mMetaHead + 1) % metaLen;
+        // Copy the data in.  It's always a single contiguous chunk.
+        mDataBuffer.limit(packetStart + size);
+        mDataBuffer.position(packetStart);
+        mDataBuffer.put(buf);
+
+        mMetaHead = (mMetaHead + 1) & mMetaMask;
 
         if (EXTRA_DEBUG) {
             // The head packet is the next-available spot.
@@ -155,37 +315,132 @@ public class CircularEncoderBuffer {
             mPacketStart[mMetaHead] = -100000;
             mPacketLength[mMetaHead] = Integer.MAX_VALUE;
         }
+
+        if (mEvictionPolicy != EvictionPolicy.BYTES) {
+            // Drop GOPs that start before the window, but always keep the newest one, even
+            // if it's longer than the window.
+            long oldestUsec = ptsUsec - mMaxSpanUsec;
+            while (getSyncCount() > 1 && mPacketPtsUsec[mMetaTail] < oldestUsec) {
+                if (!removeGop()) {
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override   // EncodedPacketSink
+    public void onFormatChanged(MediaFormat format) {}
+
+    /**
+     * Adds a packet, as add() does.  Codec config data isn't kept; whoever muxes from the
+     * buffer gets it from the MediaFormat.
+     */
+    @Override   // EncodedPacketSink
+    public void onPacket(ByteBuffer buf, int flags, long ptsUsec) {
+        if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+            add(buf, flags, ptsUsec);
+        }
     }
 
+    @Override   // EncodedPacketSink
+    public void onStopped() {}
+
     /**
      * Returns the index of the oldest sync frame.  Valid until the next add().
      * <p>
      * When sending output to a MediaMuxer, start here.
      */
     public int getFirstIndex() {
-        final int metaLen = mPacketStart.length;
+        if (hasSpilledData()) {
+            return SPILL_INDEX_FLAG | mSpill.getFirstEntry();
+        }
+        if (mSyncHead == mSyncTail) {
+            Log.w(TAG, "HEY: could not find sync frame in buffer");
+            return -1;
+        }
+        return mSyncIndex[mSyncTail];
+    }
 
-        int index = mMetaTail;
-        while (index != mMetaHead) {
-            if ((mPacketFlags[index] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
-                break;
+    /**
+     * Returns the index of the newest sync frame with a presentation time at or before
+     * ptsUsec, or -1 if there isn't one.  Valid until the next add().
+     * <p>
+     * Use this to find where to start muxing a clip that must include ptsUsec.
+     */
+    public int getSyncIndexAtOrBefore(long ptsUsec) {
+        // Find the first sync frame that's after ptsUsec, then back up one.
+        int pos = findFirstSyncAfter(ptsUsec, false);
+        if (pos == 0) {
+            if (hasSpilledData()) {
+                int entry = mSpill.getSyncEntryAtOrBefore(ptsUsec);
+                return (entry < 0) ? -1 : (SPILL_INDEX_FLAG | entry);
             }
-            index = (index + 1) % metaLen;
+            return -1;
         }
+        return mSyncIndex[(mSyncTail + pos - 1) & mMetaMask];
+    }
 
-        if (index == mMetaHead) {
-            Log.w(TAG, "HEY: could not find sync frame in buffer");
-            index = -1;
+    /**
+     * Returns the index of the oldest sync frame with a presentation time at or after
+     * ptsUsec, or -1 if there isn't one.  Valid until the next add().
+     */
+    public int getSyncIndexAtOrAfter(long ptsUsec) {
+        if (hasSpilledData() && ptsUsec <= mSpill.getNewestPtsUsec()) {
+            int entry = mSpill.getSyncEntryAtOrAfter(ptsUsec);
+            if (entry >= 0) {
+                return SPILL_INDEX_FLAG | entry;
+            }
         }
-        return index;
+        int pos = findFirstSyncAfter(ptsUsec, true);
+        if (pos == getSyncCount()) {
+            return -1;
+        }
+        return mSyncIndex[(mSyncTail + pos) & mMetaMask];
+    }
+
+    /**
+     * Returns the number of sync frames in memory.
+     */
+    public int getSyncCount() {
+        return (mSyncHead - mSyncTail) & mMetaMask;
+    }
+
+    /**
+     * Binary search on the sync frame index.  Assumes sync frame time stamps are increasing.
+     *
+     * @param inclusive If set, a sync frame at exactly ptsUsec counts as "after".
+     * @return Position (relative to the sync tail) of the first sync frame after ptsUsec,
+     *     or getSyncCount() if there isn't one.
+     */
+    private int findFirstSyncAfter(long ptsUsec, boolean inclusive) {
+        int lo = 0;
+        int hi = getSyncCount();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long midPts = mPacketPtsUsec[mSyncIndex[(mSyncTail + mid) & mMetaMask]];
+            if (midPts > ptsUsec || (inclusive && midPts == ptsUsec)) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
     }
 
     /**
      * Returns the index of the next packet, or -1 if we've reached the end.
      */
     public int getNextIndex(int index) {
-        final int metaLen = mPacketStart.length;
-        int next = (index + 1) % metaLen;
+        if ((index & SPILL_INDEX_FLAG) != 0) {
+            int entry = mSpill.getNextEntry(index & ~SPILL_INDEX_FLAG);
+            if (entry >= 0) {
+                return SPILL_INDEX_FLAG | entry;
+            }
+            // Continue with the in-memory packets.
+            return (mMetaHead == mMetaTail) ? -1 : mMetaTail;
+        }
+        int next = (index + 1) & mMetaMask;
         if (next == mMetaHead) {
             next = -1;
         }
@@ -196,60 +451,161 @@ public class CircularEncoderBuffer {
      * Returns a reference to a "direct" ByteBuffer with the data, and fills in the
      * BufferInfo.
      * <p>
+     * The packet data is always contiguous, so this is the full data buffer, with
+     * info.offset pointing at the start of the packet.  Nothing is allocated or copied.
+     * <p>
      * The caller must not modify the contents of the returned ByteBuffer.  Altering
      * the position and limit is allowed.
      */
     public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
-        final int dataLen = mDataBuffer.length;
-        int packetStart = mPacketStart[index];
-        int length = mPacketLength[index];
+        if ((index & SPILL_INDEX_FLAG) != 0) {
+            return mSpill.getChunk(index & ~SPILL_INDEX_FLAG, info);
+        }
+        fillBufferInfo(index, info);
+        return mDataBufferReader;
+    }
 
+    private void fillBufferInfo(int index, MediaCodec.BufferInfo info) {
         info.flags = mPacketFlags[index];
-        info.offset = packetStart;
+        info.offset = mPacketStart[index];
         info.presentationTimeUs = mPacketPtsUsec[index];
-        info.size = length;
+        info.size = mPacketLength[index];
+    }
 
-        if (packetStart + length <= dataLen) {
-            // one chunk; return full buffer to avoid copying data
-            return mDataBufferWrapper;
-        } else {
-            // two chunks
-            ByteBuffer tempBuf = ByteBuffer.allocateDirect(length);
-            int firstSize = dataLen - packetStart;
-            tempBuf.put(mDataBuffer, mPacketStart[index], firstSize);
-            tempBuf.put(mDataBuffer, 0, length - firstSize);
-            info.offset = 0;
-            return tempBuf;
+    /**
+     * Pins everything from "index" to the most recent packet, and returns a Snapshot that
+     * can be used to read it from another thread.  Only one snapshot may be pinned at a time.
+     * <p>
+     * Call {@link #unpin()} from this buffer's thread when the snapshot is no longer needed.
+     * <p>
+     * If "index" is in the spill tier, everything in memory is pinned as well, so nothing
+     * can be evicted until the snapshot is released.
+     */
+    public Snapshot pin(int index) {
+        if (mPinIndex >= 0 || mPinnedBytes != 0) {
+            throw new RuntimeException("Snapshot already pinned");
+        }
+        int ramIndex = index;
+        int spillEnd = -1;
+        if ((index & SPILL_INDEX_FLAG) != 0) {
+            mSpill.pin(index & ~SPILL_INDEX_FLAG);
+            spillEnd = mSpill.getEndEntry();
+            ramIndex = mMetaTail;
+        }
+
+        long pinnedBytes = 0;
+        if (ramIndex != mMetaHead) {
+            int end = ramIndex;
+            do {
+                pinnedBytes += mPacketLength[end];
+                end = (end + 1) & mMetaMask;
+            } while (end != mMetaHead);
+            mPinIndex = ramIndex;
         }
+        mPinnedBytes = pinnedBytes;
+        return new Snapshot(index, ramIndex, mMetaHead, spillEnd);
     }
 
     /**
-     * Computes the data buffer offset for the next place to store data.
-     * <p>
-     * Equal to the start of the previous packet's data plus the previous packet's length.
+     * Releases the pinned snapshot.  The Snapshot object must not be used after this.
      */
-    private int getHeadStart() {
-        if (mMetaHead == mMetaTail) {
-            // list is empty
-            return 0;
+    public void unpin() {
+        mPinIndex = -1;
+        mPinnedBytes = 0;
+        if (mSpill != null) {
+            mSpill.unpin();
+        }
+    }
+
+    /**
+     * Returns the percentage of the data buffer held by a pinned snapshot.
+     */
+    public int getPinnedPercent() {
+        return (int) (mPinnedBytes * 100 / mDataBuffer.capacity());
+    }
+
+    /**
+     * Returns the number of packets dropped because a snapshot was holding the space.
+     */
+    public int getDroppedPackets() {
+        return mDroppedPackets;
+    }
+
+    /**
+     * A fixed range of packets, from a sync frame to what was the head when the snapshot was
+     * taken.  It has its own view of the data, so it can be read on a different thread than
+     * the one that's adding packets to the buffer.
+     */
+    public class Snapshot {
+        private final int mFirstIndex;
+        private final int mRamIndex;
+        private final int mEndIndex;
+        private final int mSpillEnd;
+        private final ByteBuffer mReader;
+        private final ByteBuffer[] mSpillReaders;
+
+        private Snapshot(int firstIndex, int ramIndex, int endIndex, int spillEnd) {
+            mFirstIndex = firstIndex;
+            mRamIndex = ramIndex;
+            mEndIndex = endIndex;
+            mSpillEnd = spillEnd;
+            // duplicate() copies the writer's position and limit, so reset them.
+            mReader = mDataBuffer.duplicate();
+            mReader.clear();
+            mSpillReaders = (spillEnd >= 0) ? mSpill.createReaders() : null;
         }
 
-        final int dataLen = mDataBuffer.length;
-        final int metaLen = mPacketStart.length;
+        /**
+         * Returns the index of the first packet, which is a sync frame.
+         */
+        public int getFirstIndex() {
+            return mFirstIndex;
+        }
+
+        /**
+         * Returns the index of the next packet, or -1 if we've reached the end.
+         */
+        public int getNextIndex(int index) {
+            if ((index & SPILL_INDEX_FLAG) != 0) {
+                int entry = mSpill.getNextEntry(index & ~SPILL_INDEX_FLAG, mSpillEnd);
+                if (entry >= 0) {
+                    return SPILL_INDEX_FLAG | entry;
+                }
+                return (mRamIndex == mEndIndex) ? -1 : mRamIndex;
+            }
+            int next = (index + 1) & mMetaMask;
+            if (next == mEndIndex) {
+                next = -1;
+            }
+            return next;
+        }
 
-        int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
-        return (mPacketStart[beforeHead] + mPacketLength[beforeHead] + 1) % dataLen;
+        /**
+         * Like {@link CircularEncoderBuffer#getChunk}, but returns this snapshot's own view
+         * of the data.
+         */
+        public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
+            if ((index & SPILL_INDEX_FLAG) != 0) {
+                return mSpill.getChunk(index & ~SPILL_INDEX_FLAG, info, mSpillReaders);
+            }
+            fillBufferInfo(index, info);
+            return mReader;
+        }
     }
 
     /**
-     * Determines whether this is enough space to fit "size" bytes in the data buffer, and
-     * one more packet in the meta-data buffer.
+     * Computes the data buffer offset where a packet of "size" bytes would be stored,
+     * provided there's room for it in the data buffer and one more packet in the
+     * meta-data buffer.
+     * <p>
+     * The packet goes right after the previous packet's data if it fits before the end of
+     * the buffer, otherwise it goes at offset zero.  Either way, it must not overlap the
+     * data of the tail packet.
      *
-     * @return True if there is enough space to add without removing anything.
+     * @return The start offset, or -1 if we need to remove something first.
      */
-    private boolean canAdd(int size) {
-        final int dataLen = mDataBuffer.length;
-        final int metaLen = mPacketStart.length;
+    private int getHeadStart(int size) {
+        final int dataLen = mDataBuffer.capacity();
 
         if (size > dataLen) {
             throw new RuntimeException("Enormous packet: " + size + " vs. buffer " +
@@ -257,47 +613,109 @@ public class CircularEncoderBuffer {
         }
         if (mMetaHead == mMetaTail) {
             // empty list
-            return true;
+            return 0;
         }
 
         // Make sure we can advance head without stepping on the tail.
-        int nextHead = (mMetaHead + 1) % metaLen;
+        int nextHead = (mMetaHead + 1) & mMetaMask;
         if (nextHead == mMetaTail) {
             if (VERBOSE) {
                 Log.v(TAG, "ran out of metadata (head=" + mMetaHead + " tail=" + mMetaTail +")");
             }
-            return false;
+            return -1;
         }
 
-        // Need the byte offset of the start of the "tail" packet, and the byte offset where
-        // "head" will store its data.
-        int headStart = getHeadStart();
+        // Need the byte offset of the start of the "tail" packet, and the byte offset just
+        // past the end of the newest packet.  If the newest packet starts before the tail
+        // packet, the data has wrapped, and the only free space is between the two.
+        // Otherwise we have the space after the head, plus the space before the tail.
+        int beforeHead = (mMetaHead - 1) & mMetaMask;
+        int headStart = mPacketStart[beforeHead];
+        int headEnd = headStart + mPacketLength[beforeHead];
         int tailStart = mPacketStart[mMetaTail];
-        int freeSpace = (tailStart + dataLen - headStart) % dataLen;
-        if (size > freeSpace) {
-            if (VERBOSE) {
-                Log.v(TAG, "ran out of data (tailStart=" + tailStart + " headStart=" + headStart +
-                    " req=" + size + " free=" + freeSpace + ")");
-            }
-            return false;
+        int packetStart;
+        if (headStart < tailStart) {
+            packetStart = (headEnd + size <= tailStart) ? headEnd : -1;
+        } else if (headEnd + size <= dataLen) {
+            packetStart = headEnd;
+        } else {
+            packetStart = (size < tailStart) ? 0 : -1;
         }
 
         if (VERBOSE) {
-            Log.v(TAG, "OK: size=" + size + " free=" + freeSpace + " metaFree=" +
-                    ((mMetaTail + metaLen - mMetaHead) % metaLen - 1));
+            Log.v(TAG, "size=" + size + " headEnd=" + headEnd + " tailStart=" + tailStart +
+                    " -> start=" + packetStart + " metaFree=" +
+                    (((mMetaTail - mMetaHead) & mMetaMask) - 1));
         }
+        return packetStart;
+    }
 
+    /**
+     * Removes the tail packet, and any packets after it that aren't sync frames, so that
+     * the buffer is left starting on a GOP boundary (or empty).
+     *
+     * @return False if nothing could be removed because the tail packet is pinned.
+     */
+    private boolean removeGop() {
+        if (mMetaTail == mPinIndex) {
+            return false;
+        }
+        if (mSpill != null &&
+                (mPacketFlags[mMetaTail] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            spillGop();
+        }
+        if (!removeTail()) {
+            return false;
+        }
+        while (mMetaTail != mMetaHead &&
+                (mPacketFlags[mMetaTail] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+            if (!removeTail()) {
+                break;
+            }
+        }
         return true;
     }
 
+    /**
+     * Copies the GOP at the tail into the spill tier.  If the spill can't take it, it's
+     * just lost.
+     */
+    private void spillGop() {
+        int end = (getSyncCount() > 1) ? mSyncIndex[(mSyncTail + 1) & mMetaMask] : mMetaHead;
+        int totalBytes = 0;
+        int packetCount = 0;
+        for (int index = mMetaTail; index != end; index = (index + 1) & mMetaMask) {
+            totalBytes += mPacketLength[index];
+            packetCount++;
+        }
+        if (!mSpill.beginGop(totalBytes, packetCount)) {
+            return;
+        }
+        for (int index = mMetaTail; index != end; index = (index + 1) & mMetaMask) {
+            int start = mPacketStart[index];
+            mSpillReader.limit(start + mPacketLength[index]);
+            mSpillReader.position(start);
+            mSpill.addPacket(mSpillReader, mPacketFlags[index], mPacketPtsUsec[index]);
+        }
+    }
+
     /**
      * Removes the tail packet.
+     *
+     * @return False if the tail packet is pinned by a snapshot and can't be removed.
      */
-    private void removeTail() {
+    private boolean removeTail() {
         if (mMetaHead == mMetaTail) {
             throw new RuntimeException("Can't removeTail() in empty buffer");
         }
-        final int metaLen = mPacketStart.length;
-        mMetaTail = (mMetaTail + 1) % metaLen;
+        if (mMetaTail == mPinIndex) {
+            return false;
+        }
+        if (mSyncHead != mSyncTail && mSyncIndex[mSyncTail] == mMetaTail) {
+            mSyncTail = (mSyncTail + 1) & mMetaMask;
+        }
+        mRetainedBytes -= mPacketLength[mMetaTail];
+        mMetaTail = (mMetaTail + 1) & mMetaMask;
+        return true;
     }
 }
@@ -0,0 +1,614 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Circular buffer of encoded video in a memory-mapped file, so that the most recent video
+ * survives if the process dies.
+ * <p>
+ * The file is preallocated and laid out like this:
+ * <pre>
+ *   header (4KB): magic, version, data size, record count, head, tail, next sequence
+ *                 number, header CRC; then the encoded MediaFormat and its CRC
+ *   records:      one fixed-size record per packet: sequence, flags, PTS, data start,
+ *                 data length, CRC (of the other fields and the packet data)
+ *   data:         packet data, never split across the end
+ * </pre>
+ * Each add() writes the data, then the record, then updates the header.  Memory-mapped
+ * writes land in the page cache as soon as they're made, so they survive the process being
+ * killed.  (Surviving a power loss would also require {@link #sync()}.)
+ * <p>
+ * Recovery doesn't trust anything it can't check.  It starts from the newest record (taken
+ * from the header if its CRC is good, otherwise found by scanning), and walks backward
+ * while the sequence numbers are consecutive and the record CRCs match.  A record whose data
+ * has been overwritten, torn, or truncated away won't match, so we stop there.  Then we mux
+ * everything from the first sync frame to a .mp4 file.
+ * <p>
+ * Not thread-safe.
+ */
+public class CircularEncoderJournal {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final int MAGIC = 0x43454a31;        // "CEJ1"
+    private static final int VERSION = 1;
+
+    // Header layout.
+    private static final int HDR_MAGIC = 0;
+    private static final int HDR_VERSION = 4;
+    private static final int HDR_DATA_SIZE = 8;
+    private static final int HDR_RECORD_COUNT = 12;
+    private static final int HDR_HEAD = 16;
+    private static final int HDR_TAIL = 20;
+    private static final int HDR_NEXT_SEQ = 24;
+    private static final int HDR_CRC = 32;              // CRC of bytes [0, 32)
+    private static final int HDR_FORMAT_LENGTH = 36;
+    private static final int HDR_FORMAT_CRC = 40;
+    private static final int HDR_FORMAT = 64;
+    private static final int HEADER_SIZE = 4096;
+
+    // Record layout.
+    private static final int REC_SEQ = 0;
+    private static final int REC_FLAGS = 8;
+    private static final int REC_PTS = 12;
+    private static final int REC_START = 20;
+    private static final int REC_LENGTH = 24;
+    private static final int REC_CRC = 28;
+    private static final int RECORD_SIZE = 32;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mMap;
+    private final int mDataSize;
+    private final int mRecordCount;
+    private final int mRecordMask;
+    private final int mDataOffset;
+
+    // In-memory copies of the record fields we need for placement, so we don't have to read
+    // them back from the map.
+    private final int[] mRecordStart;
+    private final int[] mRecordLength;
+    private int mHead;
+    private int mTail;
+    private long mNextSeq;
+
+    // Scratch space for computing CRCs over data in the map.
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mCrcScratch = new byte[8192];
+
+    /**
+     * Creates (or overwrites) a journal file.
+     *
+     * @param file The journal file.
+     * @param dataSize Bytes of packet data to hold.
+     * @param recordCount Number of packets to hold.  Rounded up to a power of two.
+     */
+    public CircularEncoderJournal(File file, int dataSize, int recordCount) throws IOException {
+        mDataSize = dataSize;
+        mRecordCount = Integer.highestOneBit(Math.max(recordCount, 2) - 1) << 1;
+        mRecordMask = mRecordCount - 1;
+        mDataOffset = HEADER_SIZE + mRecordCount * RECORD_SIZE;
+        mRecordStart = new int[mRecordCount];
+        mRecordLength = new int[mRecordCount];
+
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            long fileSize = (long) mDataOffset + dataSize;
+            mFile.setLength(fileSize);
+            mMap = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        } catch (IOException ioe) {
+            mFile.close();
+            throw ioe;
+        }
+        mMap.order(ByteOrder.LITTLE_ENDIAN);
+
+        // Invalidate any records left over from a previous run, so recovery can't stitch
+        // them onto ours.
+        for (int i = 0; i < mRecordCount; i++) {
+            mMap.putLong(HEADER_SIZE + i * RECORD_SIZE + REC_SEQ, -1);
+        }
+        mMap.putInt(HDR_MAGIC, MAGIC);
+        mMap.putInt(HDR_VERSION, VERSION);
+        mMap.putInt(HDR_DATA_SIZE, dataSize);
+        mMap.putInt(HDR_RECORD_COUNT, mRecordCount);
+        mMap.putInt(HDR_FORMAT_LENGTH, 0);
+        writeHeader();
+
+        if (VERBOSE) {
+            Log.d(TAG, "Journal " + file + ": data=" + dataSize + " records=" + mRecordCount);
+        }
+    }
+
+    /**
+     * Closes the journal file.  The file is left in place; delete it if it's not needed.
+     */
+    public void release() {
+        try {
+            mFile.close();
+        } catch (IOException ioe) {
+            Log.w(TAG, "failed closing journal", ioe);
+        }
+    }
+
+    /**
+     * Forces the journal out to storage.  Not needed to survive a process crash.
+     */
+    public void sync() {
+        mMap.force();
+    }
+
+    /**
+     * Records the encoder's output format.  Must be called before recovery can work, i.e.
+     * when the encoder reports INFO_OUTPUT_FORMAT_CHANGED.
+     */
+    public void setFormat(MediaFormat format) {
+        setFormat(format.getString(MediaFormat.KEY_MIME),
+                format.getInteger(MediaFormat.KEY_WIDTH),
+                format.getInteger(MediaFormat.KEY_HEIGHT),
+                format.getByteBuffer("csd-0"), format.getByteBuffer("csd-1"));
+    }
+
+    /**
+     * Records the parts of the output format that MediaMuxer needs.  The csd buffers may be
+     * null.
+     */
+    void setFormat(String mime, int width, int height, ByteBuffer csd0, ByteBuffer csd1) {
+        byte[] blob = encodeFormat(mime, width, height, csd0, csd1);
+        if (blob.length > HEADER_SIZE - HDR_FORMAT) {
+            throw new RuntimeException("Format too large: " + blob.length);
+        }
+        mMap.position(HDR_FORMAT);
+        mMap.put(blob);
+        mCrc.reset();
+        mCrc.update(blob, 0, blob.length);
+        mMap.putInt(HDR_FORMAT_CRC, (int) mCrc.getValue());
+        mMap.putInt(HDR_FORMAT_LENGTH, blob.length);
+    }
+
+    /**
+     * Adds a packet, discarding the oldest packets if necessary.
+     *
+     * @param buf The data, from position() to limit().  The position may be altered.
+     */
+    public void add(ByteBuffer buf, int flags, long ptsUsec) {
+        int size = buf.limit() - buf.position();
+        if (size > mDataSize) {
+            throw new RuntimeException("Enormous packet: " + size + " vs. journal " + mDataSize);
+        }
+        int start;
+        while ((start = getHeadStart(size)) < 0) {
+            mTail = (mTail + 1) & mRecordMask;
+        }
+
+        // Data first, then the record that describes it, then the header that points at it.
+        mMap.limit(mDataOffset + start + size);
+        mMap.position(mDataOffset + start);
+        mMap.put(buf);
+        mMap.clear();
+
+        int recOffset = HEADER_SIZE + mHead * RECORD_SIZE;
+        mMap.putLong(recOffset + REC_SEQ, mNextSeq);
+        mMap.putInt(recOffset + REC_FLAGS, flags);
+        mMap.putLong(recOffset + REC_PTS, ptsUsec);
+        mMap.putInt(recOffset + REC_START, start);
+        mMap.putInt(recOffset + REC_LENGTH, size);
+        mMap.putInt(recOffset + REC_CRC, (int) recordCrc(mMap, recOffset, mDataOffset,
+                mMap.capacity(), mCrc, mCrcScratch));
+
+        mRecordStart[mHead] = start;
+        mRecordLength[mHead] = size;
+        mHead = (mHead + 1) & mRecordMask;
+        mNextSeq++;
+        writeHeader();
+    }
+
+    /**
+     * Same placement rules as CircularEncoderBuffer: right after the newest packet, or at
+     * offset zero if it won't fit before the end, without overlapping the tail packet.
+     *
+     * @return The data offset, or -1 if the tail must be discarded first.
+     */
+    private int getHeadStart(int size) {
+        if (mHead == mTail) {
+            return 0;
+        }
+        if (((mHead + 1) & mRecordMask) == mTail) {
+            return -1;
+        }
+        int beforeHead = (mHead - 1) & mRecordMask;
+        int headStart = mRecordStart[beforeHead];
+        int headEnd = headStart + mRecordLength[beforeHead];
+        int tailStart = mRecordStart[mTail];
+        if (headStart < tailStart) {
+            return (headEnd + size <= tailStart) ? headEnd : -1;
+        } else if (headEnd + size <= mDataSize) {
+            return headEnd;
+        } else {
+            return (size < tailStart) ? 0 : -1;
+        }
+    }
+
+    private void writeHeader() {
+        mMap.putInt(HDR_HEAD, mHead);
+        mMap.putInt(HDR_TAIL, mTail);
+        mMap.putLong(HDR_NEXT_SEQ, mNextSeq);
+        mCrc.reset();
+        for (int i = 0; i < HDR_CRC; i++) {
+            mCrc.update(mMap.get(i));
+        }
+        mMap.putInt(HDR_CRC, (int) mCrc.getValue());
+    }
+
+    /**
+     * Computes the CRC of a record's fields (excluding the CRC itself) and its data.
+     *
+     * @param file The journal contents, or as much of them as survived.
+     * @param available Number of valid bytes in "file".
+     * @return The CRC, or -1 if the record or its data is out of range.
+     */
+    private static long recordCrc(ByteBuffer file, int recOffset, int dataOffset, int available,
+            CRC32 crc, byte[] scratch) {
+        if (recOffset + RECORD_SIZE > available) {
+            return -1;
+        }
+        long start = dataOffset + (long) file.getInt(recOffset + REC_START);
+        int length = file.getInt(recOffset + REC_LENGTH);
+        if (start < dataOffset || length < 0 || start + length > available) {
+            return -1;
+        }
+
+        crc.reset();
+        for (int i = 0; i < REC_CRC; i++) {
+            crc.update(file.get(recOffset + i));
+        }
+        file.limit((int) start + length);
+        file.position((int) start);
+        while (file.hasRemaining()) {
+            int chunk = Math.min(scratch.length, file.remaining());
+            file.get(scratch, 0, chunk);
+            crc.update(scratch, 0, chunk);
+        }
+        file.clear();
+        return crc.getValue();
+    }
+
+    /**
+     * Serializes the parts of the MediaFormat that MediaMuxer needs.
+     */
+    private static byte[] encodeFormat(String mimeType, int width, int height, ByteBuffer csd0,
+            ByteBuffer csd1) {
+        byte[] mime = mimeType.getBytes(UTF8);
+        int csd0Len = (csd0 == null) ? 0 : csd0.remaining();
+        int csd1Len = (csd1 == null) ? 0 : csd1.remaining();
+
+        ByteBuffer blob = ByteBuffer.allocate(4 * 5 + mime.length + csd0Len + csd1Len);
+        blob.order(ByteOrder.LITTLE_ENDIAN);
+        blob.putInt(width);
+        blob.putInt(height);
+        blob.putInt(mime.length);
+        blob.put(mime);
+        blob.putInt(csd0Len);
+        if (csd0 != null) {
+            blob.put(csd0.duplicate());
+        }
+        blob.putInt(csd1Len);
+        if (csd1 != null) {
+            blob.put(csd1.duplicate());
+        }
+        return blob.array();
+    }
+
+    /**
+     * Reads back what encodeFormat() wrote, into "recovered".  The blob's CRC has already
+     * been checked.
+     */
+    private static void decodeFormat(ByteBuffer blob, Recovered recovered) {
+        recovered.width = blob.getInt();
+        recovered.height = blob.getInt();
+        byte[] mime = new byte[blob.getInt()];
+        blob.get(mime);
+        recovered.mime = new String(mime, UTF8);
+        byte[] csd0 = new byte[blob.getInt()];
+        blob.get(csd0);
+        recovered.csd0 = csd0;
+        byte[] csd1 = new byte[blob.getInt()];
+        blob.get(csd1);
+        recovered.csd1 = csd1;
+    }
+
+    /**
+     * The packets that survived in a journal file, oldest first, starting with a sync frame.
+     * Data offsets are relative to the start of {@link #data}.
+     */
+    public static class Recovered {
+        public final ByteBuffer data;
+        public final int[] flags;
+        public final long[] ptsUsec;
+        public final int[] start;
+        public final int[] length;
+
+        // The output format, as recorded by setFormat().  Empty csd arrays mean none.
+        public String mime;
+        public int width;
+        public int height;
+        public byte[] csd0;
+        public byte[] csd1;
+
+        Recovered(ByteBuffer data, int count) {
+            this.data = data;
+            flags = new int[count];
+            ptsUsec = new long[count];
+            start = new int[count];
+            length = new int[count];
+        }
+
+        public int getCount() {
+            return flags.length;
+        }
+
+        /**
+         * Builds a MediaFormat suitable for MediaMuxer#addTrack().
+         */
+        public MediaFormat createFormat() {
+            MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
+            if (csd0.length != 0) {
+                format.setByteBuffer("csd-0", ByteBuffer.wrap(csd0));
+            }
+            if (csd1.length != 0) {
+                format.setByteBuffer("csd-1", ByteBuffer.wrap(csd1));
+            }
+            return format;
+        }
+    }
+
+    /**
+     * Reads whatever can be validated from a journal file.
+     *
+     * @return The recovered packets, or null if nothing usable survived.
+     */
+    public static Recovered read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long fileSize = raf.length();
+            if (fileSize < HEADER_SIZE) {
+                Log.w(TAG, "Journal too short: " + fileSize);
+                return null;
+            }
+            ByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(fileSize, Integer.MAX_VALUE));
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            return read(map);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static Recovered read(ByteBuffer map) {
+        final int available = map.capacity();
+        CRC32 crc = new CRC32();
+        byte[] scratch = new byte[8192];
+
+        if (map.getInt(HDR_MAGIC) != MAGIC || map.getInt(HDR_VERSION) != VERSION) {
+            Log.w(TAG, "Not a journal file");
+            return null;
+        }
+        int dataSize = map.getInt(HDR_DATA_SIZE);
+        int recordCount = map.getInt(HDR_RECORD_COUNT);
+        if (recordCount <= 0 || Integer.bitCount(recordCount) != 1 || dataSize <= 0) {
+            Log.w(TAG, "Bad journal geometry");
+            return null;
+        }
+        int recordMask = recordCount - 1;
+        int dataOffset = HEADER_SIZE + recordCount * RECORD_SIZE;
+
+        // Without the format we can't build a .mp4.
+        int formatLength = map.getInt(HDR_FORMAT_LENGTH);
+        if (formatLength <= 0 || formatLength > HEADER_SIZE - HDR_FORMAT) {
+            Log.w(TAG, "Journal has no format");
+            return null;
+        }
+        byte[] formatBlob = new byte[formatLength];
+        ByteBuffer dup = map.duplicate();
+        dup.position(HDR_FORMAT);
+        dup.get(formatBlob);
+        crc.reset();
+        crc.update(formatBlob, 0, formatLength);
+        if ((int) crc.getValue() != map.getInt(HDR_FORMAT_CRC)) {
+            Log.w(TAG, "Journal format is corrupt");
+            return null;
+        }
+        ByteBuffer formatBuf = ByteBuffer.wrap(formatBlob);
+        formatBuf.order(ByteOrder.LITTLE_ENDIAN);
+
+        // Find the newest record.  Use the header if it checks out, otherwise scan.
+        crc.reset();
+        for (int i = 0; i < HDR_CRC; i++) {
+            crc.update(map.get(i));
+        }
+        int newest = -1;
+        if ((int) crc.getValue() == map.getInt(HDR_CRC) && map.getInt(HDR_HEAD) !=
+                map.getInt(HDR_TAIL)) {
+            newest = (map.getInt(HDR_HEAD) - 1) & recordMask;
+        }
+        if (newest < 0 || !isValid(map, newest, dataOffset, available, crc, scratch)) {
+            newest = -1;
+            long newestSeq = -1;
+            for (int i = 0; i < recordCount; i++) {
+                long seq = recordSeq(map, i, available);
+                if (seq > newestSeq && isValid(map, i, dataOffset, available, crc, scratch)) {
+                    newest = i;
+                    newestSeq = seq;
+                }
+            }
+            if (newest < 0) {
+                Log.w(TAG, "No valid records in journal");
+                return null;
+            }
+        }
+        // The header may lag the records by one.
+        int next = (newest + 1) & recordMask;
+        if (recordSeq(map, next, available) == recordSeq(map, newest, available) + 1 &&
+                isValid(map, next, dataOffset, available, crc, scratch)) {
+            newest = next;
+        }
+
+        // Walk backward to the oldest record that's still intact, and remember the oldest
+        // sync frame along the way.
+        int oldest = newest;
+        int firstSync = -1;
+        int count = 1;
+        while (count < recordCount) {
+            if ((map.getInt(HEADER_SIZE + oldest * RECORD_SIZE + REC_FLAGS) &
+                    MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                firstSync = oldest;
+            }
+            int prev = (oldest - 1) & recordMask;
+            if (recordSeq(map, prev, available) != recordSeq(map, oldest, available) - 1 ||
+                    !isValid(map, prev, dataOffset, available, crc, scratch)) {
+                break;
+            }
+            oldest = prev;
+            count++;
+        }
+        if ((map.getInt(HEADER_SIZE + oldest * RECORD_SIZE + REC_FLAGS) &
+                MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            firstSync = oldest;
+        }
+        if (firstSync < 0) {
+            Log.w(TAG, "No sync frame in journal");
+            return null;
+        }
+
+        int syncCount = ((newest - firstSync) & recordMask) + 1;
+        ByteBuffer data = map.duplicate();
+        data.position(dataOffset);
+        data = data.slice();
+        Recovered recovered = new Recovered(data, syncCount);
+        decodeFormat(formatBuf, recovered);
+        for (int i = 0; i < syncCount; i++) {
+            int recOffset = HEADER_SIZE + ((firstSync + i) & recordMask) * RECORD_SIZE;
+            recovered.flags[i] = map.getInt(recOffset + REC_FLAGS);
+            recovered.ptsUsec[i] = map.getLong(recOffset + REC_PTS);
+            recovered.start[i] = map.getInt(recOffset + REC_START);
+            recovered.length[i] = map.getInt(recOffset + REC_LENGTH);
+        }
+        if (VERBOSE) Log.d(TAG, "Recovered " + syncCount + " packets");
+        return recovered;
+    }
+
+    private static long recordSeq(ByteBuffer map, int record, int available) {
+        int recOffset = HEADER_SIZE + record * RECORD_SIZE;
+        if (recOffset + RECORD_SIZE > available) {
+            return -1;
+        }
+        return map.getLong(recOffset + REC_SEQ);
+    }
+
+    private static boolean isValid(ByteBuffer map, int record, int dataOffset, int available,
+            CRC32 crc, byte[] scratch) {
+        int recOffset = HEADER_SIZE + record * RECORD_SIZE;
+        if (recordSeq(map, record, available) < 0) {
+            return false;
+        }
+        long expected = recordCrc(map, recOffset, dataOffset, available, crc, scratch);
+        return expected >= 0 && (int) expected == map.getInt(recOffset + REC_CRC);
+    }
+
+    /**
+     * Recovers the video in a journal file to a .mp4 file.
+     * <p>
+     * If writing the .mp4 fails partway through, the output file is left with whatever the
+     * muxer managed to write, which may not be playable.
+     *
+     * @return Zero on success, 1 if nothing could be recovered, 2 on I/O failure.
+     */
+    public static int recover(File journalFile, File outputFile) {
+        Recovered recovered;
+        try {
+            recovered = read(journalFile);
+        } catch (IOException ioe) {
+            Log.w(TAG, "Unable to read journal", ioe);
+            return 2;
+        }
+        if (recovered == null) {
+            return 1;
+        }
+
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        MediaMuxer muxer = null;
+        boolean started = false;
+        int written = 0;
+        int result;
+        try {
+            muxer = new MediaMuxer(outputFile.getPath(),
+                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            int videoTrack = muxer.addTrack(recovered.createFormat());
+            muxer.start();
+            started = true;
+            for (int i = 0; i < recovered.getCount(); i++) {
+                info.flags = recovered.flags[i];
+                info.offset = recovered.start[i];
+                info.presentationTimeUs = recovered.ptsUsec[i];
+                info.size = recovered.length[i];
+                muxer.writeSampleData(videoTrack, recovered.data, info);
+                written++;
+            }
+            result = 0;
+        } catch (IOException ioe) {
+            Log.w(TAG, "muxer failed", ioe);
+            result = 2;
+        } catch (RuntimeException re) {
+            // addTrack() rejects a bad format, and writes fail when the disk fills up.
+            Log.w(TAG, "muxer failed", re);
+            result = 2;
+        }
+        if (muxer != null) {
+            // MediaMuxer#stop() throws if the muxer never started or nothing was written,
+            // which would hide the real problem.
+            if (started && written != 0) {
+                try {
+                    muxer.stop();
+                } catch (RuntimeException re) {
+                    Log.w(TAG, "muxer stop failed", re);
+                    result = 2;
+                }
+            }
+            muxer.release();
+        }
+        Log.d(TAG, "Recovered " + recovered.getCount() + " packets from " + journalFile +
+                ", result=" + result);
+        return result;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands encoded packets from one producer thread to one consumer thread, without locks.
+ * <p>
+ * This is the thread-safe counterpart to CircularEncoderBuffer.  The encoder thread
+ * offer()s packets as they come out of the codec, and a consumer (network streamer, muxer,
+ * analyzer) reads them at its own pace with poll() and release().
+ * <p>
+ * Packet data lives in a single direct ByteBuffer, and packets are never split across the
+ * end.  The per-packet meta-data is kept in parallel arrays.  The head and tail are
+ * free-running packet counts; the producer publishes the head only after the data and
+ * meta-data are written, and the consumer publishes the tail only after it's done with the
+ * data, so each side sees the other's writes without any locking.
+ * <p>
+ * If the consumer falls behind far enough for the queue to fill, the producer either drops
+ * packets until the next sync frame (so the consumer sees a gap, but never a frame whose
+ * reference is missing), or waits for the consumer to catch up.
+ */
+public class CircularEncoderQueue {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    /** How long a blocked thread sleeps before rechecking, in case a wake-up is missed. */
+    private static final long PARK_NSEC = 1000000L;
+
+    /**
+     * What to do when the consumer can't keep up.
+     */
+    public enum SlowConsumerPolicy {
+        /** Drop new packets until a sync frame arrives that fits. */
+        DROP_TO_KEYFRAME,
+        /** Wait in offer() until the consumer frees enough space. */
+        BLOCK
+    }
+
+    private final ByteBuffer mDataBuffer;
+    private final ByteBuffer mConsumerReader;
+    private final int mDataSize;
+    private final int[] mPacketFlags;
+    private final long[] mPacketPtsUsec;
+    private final int[] mPacketStart;
+    private final int[] mPacketLength;
+    private final int mMetaMask;
+    private final SlowConsumerPolicy mPolicy;
+
+    // Free-running packet counts.  Written by one side, read by the other.
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+
+    // Set by a thread that's about to park, so the other side knows to wake it.
+    private volatile Thread mConsumerWaiter;
+    private volatile Thread mProducerWaiter;
+
+    private volatile MediaFormat mFormat;
+    private volatile long mNewestPtsUsec;
+    private volatile long mDroppedPackets;
+    private volatile boolean mClosed;
+
+    // Producer-only state.
+    private int mWriteOffset;
+    private boolean mDropUntilSync;
+
+    /**
+     * Allocates the queue.
+     *
+     * @param dataSize Bytes of packet data to hold.
+     * @param packetCount Number of packets to hold.  Rounded up to a power of two.
+     * @param policy What to do when the consumer falls behind.
+     */
+    public CircularEncoderQueue(int dataSize, int packetCount, SlowConsumerPolicy policy) {
+        mDataSize = dataSize;
+        mDataBuffer = ByteBuffer.allocateDirect(dataSize);
+        mDataBuffer.order(ByteOrder.nativeOrder());
+        mConsumerReader = mDataBuffer.duplicate();
+        mPolicy = policy;
+
+        int metaCount = Integer.highestOneBit(Math.max(packetCount, 2) - 1) << 1;
+        mMetaMask = metaCount - 1;
+        mPacketFlags = new int[metaCount];
+        mPacketPtsUsec = new long[metaCount];
+        mPacketStart = new int[metaCount];
+        mPacketLength = new int[metaCount];
+    }
+
+    /**
+     * Sets the format of the packets.  Consumers that need the codec-specific data (e.g. to
+     * feed a MediaMuxer) can get it from {@link #getFormat()}.
+     * <p>
+     * Producer thread.
+     */
+    public void setFormat(MediaFormat format) {
+        mFormat = format;
+    }
+
+    /**
+     * Returns the format of the packets, or null if the producer hasn't seen it yet.
+     */
+    public MediaFormat getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Adds a packet to the queue.
+     * <p>
+     * Producer thread.
+     *
+     * @param buf The data, from position() to limit().  The position may be altered.
+     * @return False if the packet was dropped because the consumer is behind, or the
+     *     queue has been closed.
+     */
+    public boolean offer(ByteBuffer buf, int flags, long ptsUsec) {
+        int size = buf.limit() - buf.position();
+        if (size > mDataSize) {
+            throw new RuntimeException("Enormous packet: " + size + " vs. queue " + mDataSize);
+        }
+        mNewestPtsUsec = ptsUsec;
+
+        if (mDropUntilSync) {
+            if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+                mDroppedPackets++;
+                return false;
+            }
+            mDropUntilSync = false;
+        }
+
+        long head = mHead.get();
+        long tail;
+        int start;
+        while ((start = getHeadStart(head, tail = mTail.get(), size)) < 0) {
+            if (mClosed) {
+                return false;
+            }
+            if (mPolicy == SlowConsumerPolicy.BLOCK) {
+                waitForConsumer(tail);
+            } else {
+                // Whatever references this packet is useless to the consumer, so skip
+                // ahead to the next sync frame.
+                if (VERBOSE) Log.d(TAG, "consumer behind, dropping to next sync frame");
+                mDropUntilSync = true;
+                mDroppedPackets++;
+                return false;
+            }
+        }
+
+        ByteBuffer writer = mDataBuffer;
+        writer.limit(start + size);
+        writer.position(start);
+        writer.put(buf);
+        writer.clear();
+
+        int index = (int) head & mMetaMask;
+        mPacketFlags[index] = flags;
+        mPacketPtsUsec[index] = ptsUsec;
+        mPacketStart[index] = start;
+        mPacketLength[index] = size;
+        mWriteOffset = start + size;
+
+        // Publish, then wake the consumer if it's waiting.
+        mHead.lazySet(head + 1);
+        Thread waiter = mConsumerWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return true;
+    }
+
+    /**
+     * Finds room for a packet of the given size.
+     *
+     * @return The data offset, or -1 if the consumer needs to release something first.
+     */
+    private int getHeadStart(long head, long tail, int size) {
+        if (head == tail) {
+            return (mWriteOffset + size <= mDataSize) ? mWriteOffset : 0;
+        }
+        if (head - tail > mMetaMask) {
+            return -1;
+        }
+        int tailStart = mPacketStart[(int) tail & mMetaMask];
+        if (mWriteOffset > tailStart) {
+            if (mWriteOffset + size <= mDataSize) {
+                return mWriteOffset;
+            }
+            return (size <= tailStart) ? 0 : -1;
+        } else {
+            return (mWriteOffset + size <= tailStart) ? mWriteOffset : -1;
+        }
+    }
+
+    /**
+     * Parks the producer until the consumer moves the tail past "tail".
+     */
+    private void waitForConsumer(long tail) {
+        mProducerWaiter = Thread.currentThread();
+        if (mTail.get() == tail && !mClosed) {
+            LockSupport.parkNanos(this, PARK_NSEC);
+        }
+        mProducerWaiter = null;
+    }
+
+    /**
+     * Returns the oldest packet, waiting up to the timeout for one to arrive.  The data is
+     * valid until release() is called.
+     * <p>
+     * Consumer thread.
+     *
+     * @param info Receives the offset, size, flags, and presentation time of the packet.
+     * @param timeoutNsec How long to wait; zero returns immediately.
+     * @return A view of the data buffer, or null if nothing arrived (or the queue was
+     *     closed).
+     */
+    public ByteBuffer poll(MediaCodec.BufferInfo info, long timeoutNsec) {
+        long tail = mTail.get();
+        long deadline = System.nanoTime() + timeoutNsec;
+        while (mHead.get() == tail) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || mClosed) {
+                return null;
+            }
+            mConsumerWaiter = Thread.currentThread();
+            if (mHead.get() == tail) {
+                LockSupport.parkNanos(this, Math.min(remaining, PARK_NSEC));
+            }
+            mConsumerWaiter = null;
+        }
+
+        int index = (int) tail & mMetaMask;
+        info.flags = mPacketFlags[index];
+        info.offset = mPacketStart[index];
+        info.presentationTimeUs = mPacketPtsUsec[index];
+        info.size = mPacketLength[index];
+        mConsumerReader.limit(info.offset + info.size);
+        mConsumerReader.position(info.offset);
+        return mConsumerReader;
+    }
+
+    /**
+     * Releases the packet most recently returned by poll(), making its space available to
+     * the producer.
+     * <p>
+     * Consumer thread.
+     */
+    public void release() {
+        long tail = mTail.get();
+        if (mHead.get() == tail) {
+            throw new RuntimeException("Nothing to release");
+        }
+        mTail.lazySet(tail + 1);
+        Thread waiter = mProducerWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Wakes up both sides and makes further offer() and poll() calls return immediately.
+     * Packets already in the queue can still be read.
+     */
+    public void close() {
+        mClosed = true;
+        Thread waiter = mConsumerWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        waiter = mProducerWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Returns the number of packets the consumer has yet to release.  May be called from
+     * any thread.
+     */
+    public int getLagPackets() {
+        // Read the tail first, so a concurrent release can't make the lag negative.
+        long tail = mTail.get();
+        return (int) (mHead.get() - tail);
+    }
+
+    /**
+     * Returns how far behind the producer the consumer is, as the difference between the
+     * newest offered PTS and the PTS of the oldest unreleased packet.  May be called from
+     * any thread.
+     */
+    public long getLagUsec() {
+        long tail = mTail.get();
+        if (mHead.get() == tail) {
+            return 0;
+        }
+        return mNewestPtsUsec - mPacketPtsUsec[(int) tail & mMetaMask];
+    }
+
+    /**
+     * Returns the number of packets the producer dropped because the consumer was behind.
+     */
+    public long getDroppedPackets() {
+        return mDroppedPackets;
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Second-tier storage for CircularEncoderBuffer.  GOPs evicted from RAM are appended here,
+ * so we can hold a much longer span of video without growing the heap.
+ * <p>
+ * The data lives in a fixed set of segment files, each memory-mapped with
+ * FileChannel#map().  GOPs are appended to the current segment; when one doesn't fit, we
+ * move on to the next segment, discarding whatever the oldest segment held.  That's just a
+ * matter of moving the index tail past the old segment's entries, so it's O(1).  A GOP never
+ * spans two segments.
+ * <p>
+ * The meta-data (flags, PTS, segment, offset, length) is a circular buffer of parallel
+ * arrays, like the one in CircularEncoderBuffer.  Entries are in the order they were added.
+ * <p>
+ * Not thread-safe.  Pinned entries may be read from another thread through the views
+ * returned by {@link #createReaders()}.
+ */
+public class CircularEncoderSpill {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private final File[] mFiles;
+    private final FileChannel[] mChannels;
+    private final ByteBuffer[] mSegments;       // writer views
+    private final ByteBuffer[] mSegmentReaders; // reader views, for getChunk()
+    private final int mSegmentBytes;
+
+    // Where the next GOP goes.
+    private int mCurSegment;
+    private int mCurOffset;
+
+    // Entry index just past the last entry in each segment.  Not valid for the current segment;
+    // its entries run up to mHead.
+    private final int[] mSegmentEnd;
+
+    // Meta-data.  Head points to an empty node, so if head==tail the list is empty.
+    private final int[] mEntryFlags;
+    private final long[] mEntryPtsUsec;
+    private final int[] mEntrySegment;
+    private final int[] mEntryOffset;
+    private final int[] mEntryLength;
+    private final int mEntryMask;
+    private int mHead;
+    private int mTail;
+
+    // First pinned entry, or -1.  Segments holding pinned entries can't be recycled.
+    private int mPinEntry = -1;
+
+    private int mDroppedGops;
+
+    /**
+     * Creates and maps the segment files.
+     *
+     * @param dir Directory for the segment files.  Existing files are overwritten.
+     * @param segmentCount Number of segments.  At least two, so we can rotate.
+     * @param segmentBytes Size of each segment.  Must be at least as large as the largest GOP.
+     * @param maxEntries Number of packets the index can hold.  Rounded up to a power of two.
+     */
+    public CircularEncoderSpill(File dir, int segmentCount, int segmentBytes, int maxEntries)
+            throws IOException {
+        if (segmentCount < 2) {
+            throw new RuntimeException("Need at least two segments, got " + segmentCount);
+        }
+        mSegmentBytes = segmentBytes;
+        mFiles = new File[segmentCount];
+        mChannels = new FileChannel[segmentCount];
+        mSegments = new ByteBuffer[segmentCount];
+        mSegmentReaders = new ByteBuffer[segmentCount];
+        mSegmentEnd = new int[segmentCount];
+
+        try {
+            for (int i = 0; i < segmentCount; i++) {
+                mFiles[i] = new File(dir, "spill-" + i + ".seg");
+                RandomAccessFile raf = new RandomAccessFile(mFiles[i], "rw");
+                raf.setLength(segmentBytes);
+                mChannels[i] = raf.getChannel();
+                mSegments[i] = mChannels[i].map(FileChannel.MapMode.READ_WRITE, 0,
+                        segmentBytes);
+                mSegmentReaders[i] = mSegments[i].duplicate();
+            }
+        } catch (IOException ioe) {
+            release();
+            throw ioe;
+        }
+
+        int entryCount = Integer.highestOneBit(Math.max(maxEntries, 2) - 1) << 1;
+        mEntryMask = entryCount - 1;
+        mEntryFlags = new int[entryCount];
+        mEntryPtsUsec = new long[entryCount];
+        mEntrySegment = new int[entryCount];
+        mEntryOffset = new int[entryCount];
+        mEntryLength = new int[entryCount];
+
+        if (VERBOSE) {
+            Log.d(TAG, "Spill: " + segmentCount + "x" + segmentBytes + " entries=" + entryCount);
+        }
+    }
+
+    /**
+     * Closes the segment files.  The mapped memory is released when the buffers are
+     * garbage collected.
+     */
+    public void release() {
+        for (int i = 0; i < mChannels.length; i++) {
+            if (mChannels[i] != null) {
+                try {
+                    mChannels[i].close();
+                } catch (IOException ioe) {
+                    Log.w(TAG, "failed closing " + mFiles[i], ioe);
+                }
+                mChannels[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Returns true if there's nothing in the spill.
+     */
+    public boolean isEmpty() {
+        return mHead == mTail;
+    }
+
+    /**
+     * Returns the number of GOPs that were lost because they couldn't be added.
+     */
+    public int getDroppedGops() {
+        return mDroppedGops;
+    }
+
+    /**
+     * Prepares to add a GOP.  If this returns true, the caller must follow up with exactly
+     * packetCount calls to {@link #addPacket}.
+     *
+     * @return False if the GOP can't be stored (too large, or the space is pinned).
+     */
+    public boolean beginGop(int totalBytes, int packetCount) {
+        if (totalBytes > mSegmentBytes || packetCount > mEntryMask) {
+            Log.w(TAG, "GOP too large to spill: " + totalBytes + " bytes, " + packetCount +
+                    " packets");
+            mDroppedGops++;
+            return false;
+        }
+
+        // Move on to the next segment if this one is full.  The next segment is the oldest,
+        // so whatever it holds gets discarded.
+        if (mCurOffset + totalBytes > mSegmentBytes) {
+            int next = (mCurSegment + 1) % mSegments.length;
+            if (!discardSegment(next)) {
+                mDroppedGops++;
+                return false;
+            }
+            mSegmentEnd[mCurSegment] = mHead;
+            mCurSegment = next;
+            mCurOffset = 0;
+        }
+
+        // Make sure the index has room.  If not, drop the oldest segments until it does.
+        while (((mTail - mHead - 1) & mEntryMask) < packetCount) {
+            if (!discardSegment(mEntrySegment[mTail])) {
+                mDroppedGops++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a packet to the GOP started by {@link #beginGop}.
+     *
+     * @param buf The data, from position() to limit().  The position may be altered.
+     */
+    public void addPacket(ByteBuffer buf, int flags, long ptsUsec) {
+        int size = buf.limit() - buf.position();
+        ByteBuffer segment = mSegments[mCurSegment];
+        segment.limit(mCurOffset + size);
+        segment.position(mCurOffset);
+        segment.put(buf);
+
+        mEntryFlags[mHead] = flags;
+        mEntryPtsUsec[mHead] = ptsUsec;
+        mEntrySegment[mHead] = mCurSegment;
+        mEntryOffset[mHead] = mCurOffset;
+        mEntryLength[mHead] = size;
+        mHead = (mHead + 1) & mEntryMask;
+        mCurOffset += size;
+    }
+
+    /**
+     * Discards the entries in a segment, if it holds the oldest entries.
+     *
+     * @return False if the segment holds pinned entries.
+     */
+    private boolean discardSegment(int segment) {
+        if (mHead == mTail || mEntrySegment[mTail] != segment) {
+            // Nothing in it (segments are filled in order, so if the oldest entry isn't in
+            // this segment, nothing is).
+            return true;
+        }
+        int end = (segment == mCurSegment) ? mHead : mSegmentEnd[segment];
+        if (mPinEntry >= 0 && ((mPinEntry - mTail) & mEntryMask) < ((end - mTail) & mEntryMask)) {
+            if (VERBOSE) Log.v(TAG, "segment " + segment + " is pinned");
+            return false;
+        }
+        if (VERBOSE) Log.v(TAG, "discarding segment " + segment);
+        mTail = end;
+        if (segment == mCurSegment) {
+            mCurOffset = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the first entry (always a sync frame), or -1 if empty.
+     */
+    public int getFirstEntry() {
+        return (mHead == mTail) ? -1 : mTail;
+    }
+
+    /**
+     * Returns the entry after this one, or -1 if we've reached "end".
+     */
+    int getNextEntry(int entry, int end) {
+        int next = (entry + 1) & mEntryMask;
+        return (next == end) ? -1 : next;
+    }
+
+    /**
+     * Returns the entry after this one, or -1 if we've reached the end.
+     */
+    public int getNextEntry(int entry) {
+        return getNextEntry(entry, mHead);
+    }
+
+    /**
+     * Returns the head entry index.  Entries before this one are valid.
+     */
+    int getEndEntry() {
+        return mHead;
+    }
+
+    /**
+     * Returns the presentation time stamp of the oldest entry, or -1 if empty.
+     */
+    public long getOldestPtsUsec() {
+        return (mHead == mTail) ? -1 : mEntryPtsUsec[mTail];
+    }
+
+    /**
+     * Returns the presentation time stamp of the newest entry, or -1 if empty.
+     */
+    public long getNewestPtsUsec() {
+        return (mHead == mTail) ? -1 : mEntryPtsUsec[(mHead - 1) & mEntryMask];
+    }
+
+    /**
+     * Returns the newest sync frame entry with a time stamp at or before ptsUsec, or -1.
+     * <p>
+     * Binary search for the last entry at or before ptsUsec, then back up to the start of
+     * its GOP.
+     */
+    public int getSyncEntryAtOrBefore(long ptsUsec) {
+        int lo = 0;
+        int hi = (mHead - mTail) & mEntryMask;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mEntryPtsUsec[(mTail + mid) & mEntryMask] > ptsUsec) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        if (lo == 0) {
+            return -1;
+        }
+        int entry = (mTail + lo - 1) & mEntryMask;
+        while ((mEntryFlags[entry] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+            if (entry == mTail) {
+                return -1;
+            }
+            entry = (entry - 1) & mEntryMask;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the oldest sync frame entry with a time stamp at or after ptsUsec, or -1.
+     */
+    public int getSyncEntryAtOrAfter(long ptsUsec) {
+        int entry = getSyncEntryAtOrBefore(ptsUsec);
+        if (entry < 0) {
+            entry = getFirstEntry();
+        }
+        while (entry >= 0) {
+            if ((mEntryFlags[entry] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0 &&
+                    mEntryPtsUsec[entry] >= ptsUsec) {
+                return entry;
+            }
+            entry = getNextEntry(entry);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a reference to a "direct" ByteBuffer with the data, and fills in the
+     * BufferInfo.  Same rules as CircularEncoderBuffer#getChunk().
+     */
+    public ByteBuffer getChunk(int entry, MediaCodec.BufferInfo info) {
+        return getChunk(entry, info, mSegmentReaders);
+    }
+
+    /**
+     * Like {@link #getChunk(int, MediaCodec.BufferInfo)}, but returns a view from "readers".
+     */
+    ByteBuffer getChunk(int entry, MediaCodec.BufferInfo info, ByteBuffer[] readers) {
+        info.flags = mEntryFlags[entry];
+        info.offset = mEntryOffset[entry];
+        info.presentationTimeUs = mEntryPtsUsec[entry];
+        info.size = mEntryLength[entry];
+        return readers[mEntrySegment[entry]];
+    }
+
+    /**
+     * Returns a new set of views of the segments, for use on another thread.
+     */
+    ByteBuffer[] createReaders() {
+        ByteBuffer[] readers = new ByteBuffer[mSegments.length];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = mSegments[i].duplicate();
+            readers[i].clear();
+        }
+        return readers;
+    }
+
+    /**
+     * Pins everything from "entry" on.  Segments holding pinned entries won't be recycled
+     * until {@link #unpin()} is called.
+     */
+    void pin(int entry) {
+        mPinEntry = entry;
+    }
+
+    void unpin() {
+        mPinEntry = -1;
+    }
+}
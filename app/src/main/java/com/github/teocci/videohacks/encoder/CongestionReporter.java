@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+/**
+ * Implemented by sinks that queue or drop data themselves, past the queue
+ * {@link EncodedPacketFanout} keeps for them.  A sink like that takes packets from the
+ * fan-out as fast as they come, so the fan-out's queue says nothing about whether it's
+ * keeping up; an {@link AdaptiveBitrateController} watching it needs these numbers instead.
+ * <p>
+ * May be called from any thread.
+ */
+public interface CongestionReporter {
+    /**
+     * Returns the number of bytes the sink is holding that it hasn't sent on yet.
+     */
+    int getQueuedBytes();
+
+    /**
+     * Returns the total number of encoder packets the sink has dropped.
+     */
+    long getDroppedPackets();
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Hands each packet from the encoder's drain loop to any number of sinks.
+ * <p>
+ * Each sink gets its own bounded queue and thread, so a sink that's slow (a file on a busy
+ * SD card, a congested network) only holds up itself.  What happens when a sink's queue is
+ * full depends on the {@link Policy} it was added with.  Sinks that only copy into memory
+ * can skip the queue and be called directly on the drain thread.
+ * <p>
+ * Queued packets are copied into direct buffers that each queue slot keeps for reuse, so
+ * once things settle down nothing is allocated per packet.
+ * <p>
+ * Add all the sinks before the first packet.  formatChanged(), packet(), and stop() must be
+ * called from a single thread (the drain thread).
+ */
+public class EncodedPacketFanout {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final int MAX_SLOTS = 64;
+    private static final int MIN_SLOT_CAPACITY = 16 * 1024;
+
+    /**
+     * What to do with a packet when a sink's queue is full.
+     */
+    public enum Policy {
+        /** Wait for room.  Nothing is lost, but the drain loop stalls if the sink does. */
+        BLOCK,
+        /** Drop the packet, and everything after it until the next sync frame. */
+        DROP_UNTIL_SYNC,
+        /** Don't queue at all; call the sink on the drain thread.  For sinks that are cheap. */
+        DIRECT
+    }
+
+    private final ArrayList<SinkQueue> mQueues = new ArrayList<>();
+
+    /**
+     * Adds a sink.  For queued sinks, this starts the sink's thread.
+     *
+     * @param maxBytes Most packet data to hold for the sink.  Ignored for DIRECT.
+     */
+    public void addSink(EncodedPacketSink sink, Policy policy, int maxBytes) {
+        SinkQueue queue = new SinkQueue(sink, policy, maxBytes);
+        mQueues.add(queue);
+        if (policy != Policy.DIRECT) {
+            queue.start();
+        }
+    }
+
+    /**
+     * Returns the number of sinks.
+     */
+    public int getSinkCount() {
+        return mQueues.size();
+    }
+
+    /**
+     * Passes the encoder's output format to every sink.
+     */
+    public void formatChanged(MediaFormat format) {
+        for (int i = 0; i < mQueues.size(); i++) {
+            mQueues.get(i).formatChanged(format);
+        }
+    }
+
+    /**
+     * Passes a packet to every sink.
+     *
+     * @param buf The data, from position to limit.  The position and limit are restored
+     *     before returning.
+     * @param flags MediaCodec.BufferInfo flags.
+     * @param ptsUsec Presentation time stamp, in microseconds.
+     */
+    public void packet(ByteBuffer buf, int flags, long ptsUsec) {
+        int position = buf.position();
+        int limit = buf.limit();
+        for (int i = 0; i < mQueues.size(); i++) {
+            mQueues.get(i).packet(buf, flags, ptsUsec);
+            buf.limit(limit);
+            buf.position(position);
+        }
+    }
+
+    /**
+     * Lets each sink finish what's in its queue, tells it to stop, and waits for it.
+     */
+    public void stop() {
+        for (int i = 0; i < mQueues.size(); i++) {
+            mQueues.get(i).requestStop();
+        }
+        for (int i = 0; i < mQueues.size(); i++) {
+            mQueues.get(i).join();
+        }
+    }
+
+    /**
+     * Returns the number of packets the sink didn't get because its queue was full or it
+     * had failed.
+     */
+    public long getDroppedPackets(EncodedPacketSink sink) {
+        SinkQueue queue = find(sink);
+        synchronized (queue.mLock) {
+            return queue.mDroppedPackets;
+        }
+    }
+
+    /**
+     * Returns how long, in total, the drain thread spent waiting for room in the sink's
+     * queue.
+     */
+    public long getBlockedNsec(EncodedPacketSink sink) {
+        SinkQueue queue = find(sink);
+        synchronized (queue.mLock) {
+            return queue.mBlockedNsec;
+        }
+    }
+
+    /**
+     * Returns the number of bytes waiting in the sink's queue.
+     */
+    public int getQueuedBytes(EncodedPacketSink sink) {
+        SinkQueue queue = find(sink);
+        synchronized (queue.mLock) {
+            return queue.mQueuedBytes;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("EncodedPacketFanout[");
+        for (int i = 0; i < mQueues.size(); i++) {
+            if (i != 0) {
+                sb.append(", ");
+            }
+            sb.append(mQueues.get(i));
+        }
+        return sb.append(']').toString();
+    }
+
+    private SinkQueue find(EncodedPacketSink sink) {
+        for (int i = 0; i < mQueues.size(); i++) {
+            if (mQueues.get(i).mSink == sink) {
+                return mQueues.get(i);
+            }
+        }
+        throw new IllegalArgumentException("unknown sink " + sink);
+    }
+
+
+    /**
+     * One sink, with its queue and thread.
+     */
+    private static class SinkQueue {
+        final EncodedPacketSink mSink;
+        final Policy mPolicy;
+        final int mMaxBytes;
+        Thread mThread;
+
+        // Queued data, guarded by mLock.  The head slot stays in the queue while the sink
+        // is reading it, so its buffer isn't reused underneath it.
+        final Object mLock = new Object();
+        final ByteBuffer[] mSlotBuffer = new ByteBuffer[MAX_SLOTS];
+        final int[] mSlotSize = new int[MAX_SLOTS];
+        final int[] mSlotFlags = new int[MAX_SLOTS];
+        final long[] mSlotPtsUsec = new long[MAX_SLOTS];
+        int mHead;
+        int mCount;
+        int mQueuedBytes;
+        MediaFormat mPendingFormat;
+        boolean mStopRequested;
+        boolean mFailed;
+        boolean mDropUntilSync;
+
+        // Counters, guarded by mLock.
+        long mDroppedPackets;
+        long mBlockedNsec;
+
+        SinkQueue(EncodedPacketSink sink, Policy policy, int maxBytes) {
+            mSink = sink;
+            mPolicy = policy;
+            mMaxBytes = maxBytes;
+        }
+
+        void start() {
+            mThread = new Thread("Sink " + mSink.getClass().getSimpleName()) {
+                @Override
+                public void run() {
+                    sinkLoop();
+                }
+            };
+            mThread.start();
+        }
+
+        void formatChanged(MediaFormat format) {
+            if (mPolicy == Policy.DIRECT) {
+                mSink.onFormatChanged(format);
+                return;
+            }
+            synchronized (mLock) {
+                mPendingFormat = format;
+                mLock.notifyAll();
+            }
+        }
+
+        void packet(ByteBuffer buf, int flags, long ptsUsec) {
+            if (mPolicy == Policy.DIRECT) {
+                mSink.onPacket(buf, flags, ptsUsec);
+                return;
+            }
+
+            int size = buf.remaining();
+            int slot;
+            synchronized (mLock) {
+                if (mFailed) {
+                    mDroppedPackets++;
+                    return;
+                }
+                if (mDropUntilSync) {
+                    if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+                        mDroppedPackets++;
+                        return;
+                    }
+                    mDropUntilSync = false;
+                }
+                if (isFull(size)) {
+                    if (mPolicy == Policy.DROP_UNTIL_SYNC) {
+                        if (VERBOSE) Log.d(TAG, "sink queue full, dropping: " + this);
+                        mDropUntilSync = true;
+                        mDroppedPackets++;
+                        return;
+                    }
+                    long startNsec = System.nanoTime();
+                    while (isFull(size) && !mFailed) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException ie) {
+                            // discard
+                        }
+                    }
+                    mBlockedNsec += System.nanoTime() - startNsec;
+                    if (mFailed) {
+                        mDroppedPackets++;
+                        return;
+                    }
+                }
+
+                slot = (mHead + mCount) % MAX_SLOTS;
+            }
+
+            // The sink thread only looks at slots up to mCount, so we can fill this one
+            // without holding the lock.  It stays the next free slot even if the sink thread
+            // consumes something meanwhile.
+            if (mSlotBuffer[slot] == null || mSlotBuffer[slot].capacity() < size) {
+                mSlotBuffer[slot] = ByteBuffer.allocateDirect(
+                        Math.max(MIN_SLOT_CAPACITY, Integer.highestOneBit(size) * 2));
+            }
+            ByteBuffer dst = mSlotBuffer[slot];
+            dst.clear();
+            dst.put(buf);
+            mSlotSize[slot] = size;
+            mSlotFlags[slot] = flags;
+            mSlotPtsUsec[slot] = ptsUsec;
+
+            synchronized (mLock) {
+                mCount++;
+                mQueuedBytes += size;
+                mLock.notifyAll();
+            }
+        }
+
+        void requestStop() {
+            if (mPolicy == Policy.DIRECT) {
+                mSink.onStopped();
+                return;
+            }
+            synchronized (mLock) {
+                mStopRequested = true;
+                mLock.notifyAll();
+            }
+        }
+
+        void join() {
+            if (mThread == null) {
+                return;
+            }
+            try {
+                mThread.join();
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "sink thread join() was interrupted", ie);
+            }
+        }
+
+        /**
+         * Returns true if there's no room for another packet.  We always have room for one,
+         * so a packet bigger than the byte limit doesn't wedge us.  Caller must hold mLock.
+         */
+        private boolean isFull(int size) {
+            if (mCount == 0) {
+                return false;
+            }
+            return mCount == MAX_SLOTS || mQueuedBytes + size > mMaxBytes;
+        }
+
+        /**
+         * Sink thread main loop.  Delivers everything that was queued, then stops.
+         */
+        private void sinkLoop() {
+            while (true) {
+                MediaFormat format;
+                int slot = -1;
+                synchronized (mLock) {
+                    while (mPendingFormat == null && mCount == 0 && !mStopRequested) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException ie) {
+                            // discard
+                        }
+                    }
+                    format = mPendingFormat;
+                    mPendingFormat = null;
+                    if (format == null) {
+                        if (mCount == 0) {
+                            break;          // stop requested, and nothing left
+                        }
+                        slot = mHead;
+                    }
+                }
+
+                try {
+                    if (format != null) {
+                        mSink.onFormatChanged(format);
+                    } else if (!mFailed) {
+                        ByteBuffer buf = mSlotBuffer[slot];
+                        buf.limit(mSlotSize[slot]);
+                        buf.position(0);
+                        mSink.onPacket(buf, mSlotFlags[slot], mSlotPtsUsec[slot]);
+                    }
+                } catch (RuntimeException re) {
+                    // Don't let one broken sink hold up the rest.  From here on we just
+                    // throw its packets away.
+                    Log.e(TAG, "sink failed: " + mSink, re);
+                    synchronized (mLock) {
+                        mFailed = true;
+                        mLock.notifyAll();
+                    }
+                }
+
+                if (slot >= 0) {
+                    synchronized (mLock) {
+                        mQueuedBytes -= mSlotSize[slot];
+                        mHead = (mHead + 1) % MAX_SLOTS;
+                        mCount--;
+                        mLock.notifyAll();
+                    }
+                }
+            }
+
+            try {
+                mSink.onStopped();
+            } catch (RuntimeException re) {
+                Log.e(TAG, "sink failed stopping: " + mSink, re);
+            }
+        }
+
+        @Override
+        public String toString() {
+            synchronized (mLock) {
+                return mSink.getClass().getSimpleName() + " " + mPolicy + " queued=" + mCount +
+                        "/" + mQueuedBytes + "B dropped=" + mDroppedPackets + " blocked=" +
+                        (mBlockedNsec / 1000000) + "ms" + (mFailed ? " FAILED" : "");
+            }
+        }
+    }
+}
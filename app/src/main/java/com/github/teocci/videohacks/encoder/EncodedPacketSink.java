@@ -0,0 +1,50 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Something that consumes the encoder's output: a file, a socket, a buffer, a checksum.
+ * <p>
+ * Sinks are attached to an {@link EncodedPacketFanout}, which calls these methods from a
+ * single thread per sink -- the sink's own thread, or the drain thread for
+ * {@link EncodedPacketFanout.Policy#DIRECT} sinks.
+ */
+public interface EncodedPacketSink {
+    /**
+     * Called once, before the first packet, with the encoder's output format.
+     */
+    void onFormatChanged(MediaFormat format);
+
+    /**
+     * Called for each packet, including codec config data.
+     *
+     * @param buf The data, from position to limit.  Only valid until this returns; the
+     *     position and limit may be altered.
+     * @param flags MediaCodec.BufferInfo flags.
+     * @param ptsUsec Presentation time stamp, in microseconds.
+     */
+    void onPacket(ByteBuffer buf, int flags, long ptsUsec);
+
+    /**
+     * Called after the last packet.  Nothing else will be called after this.
+     */
+    void onStopped();
+}
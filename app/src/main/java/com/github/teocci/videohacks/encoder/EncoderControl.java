@@ -0,0 +1,50 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+/**
+ * Knobs that can be turned on a running encoder.
+ * <p>
+ * These are requests, not guarantees.  How quickly (and whether) the encoder follows them
+ * is up to the codec, and on older devices some of them do nothing at all.
+ */
+public interface EncoderControl {
+    /**
+     * Asks the encoder to switch to a new target bit rate, in bits per second.
+     */
+    void setBitRate(int bitRate);
+
+    /**
+     * Asks the encoder to make the next frame a sync frame.
+     */
+    void requestSyncFrame();
+
+    /**
+     * Changes the frame rate the encoder should expect, in frames per second.
+     */
+    void setFrameRateHint(int frameRate);
+
+    /**
+     * Returns the most recently requested bit rate.
+     */
+    int getBitRate();
+
+    /**
+     * Returns the most recently requested frame rate.
+     */
+    int getFrameRateHint();
+}
@@ -0,0 +1,529 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes an H.264 stream to a fragmented .mp4 file, without MediaMuxer.
+ * <p>
+ * MediaMuxer writes the index (the moov box) when it's stopped, so until then -- and forever,
+ * if the app crashes -- the file can't be played.  A fragmented file puts an empty index up
+ * front, then a movie fragment (a moof box describing the samples, and an mdat box holding
+ * them) for each GOP.  Every fragment on disk is playable as soon as it's written, and a
+ * crash loses at most the GOP in progress.
+ * <p>
+ * The layout is:
+ * <pre>
+ *   ftyp
+ *   moov   mvhd, trak (one video track, no samples), mvex/trex
+ *   moof   mfhd, traf (tfhd, tfdt, trun)     } once per GOP, or sooner if the
+ *   mdat   length-prefixed NAL units         } GOP gets too big
+ *   ...
+ * </pre>
+ * The encoder gives us NAL units with start codes; the file wants each one prefixed with
+ * its length, so a GOP is collected and converted in memory, then written with one
+ * gathering write.  SPS and PPS go in the avcC box rather than the samples.  We assume no
+ * B-frames (MediaCodec's surface encoders don't produce them), so decode order is
+ * presentation order and the time stamps are used as decode times.
+ * <p>
+ * Writes go to the page cache, so they survive the process dying.  Surviving a power loss
+ * would also need a FileChannel.force() per fragment, which we don't do.
+ */
+public class FragmentedMp4Writer implements EncodedPacketSink {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final int TIMESCALE = 90000;                 // 90kHz, as for RTP
+    private static final int TRACK_ID = 1;
+    private static final int MAX_FRAGMENT_BYTES = 8 * 1024 * 1024;
+    private static final long DEFAULT_SAMPLE_DURATION = TIMESCALE / 30;
+
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final int NAL_AUD = 9;
+
+    // trun sample_flags: sync samples depend on nothing; the rest depend on others and
+    // aren't sync samples.
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private final FileChannel mChannel;
+    private final FileOutputStream mStream;
+
+    // Format, from onFormatChanged() or the codec config packet.
+    private int mWidth;
+    private int mHeight;
+    private ByteBuffer mSps;
+    private ByteBuffer mPps;
+    private boolean mHeaderWritten;
+
+    // The fragment being collected.  Sample data is already length-prefixed.
+    private ByteBuffer mFragmentData = ByteBuffer.allocateDirect(1024 * 1024);
+    private int[] mSampleSize = new int[64];
+    private long[] mSamplePtsUsec = new long[64];
+    private boolean[] mSampleSync = new boolean[64];
+    private int mSampleCount;
+    private long mFirstPtsUsec = -1;
+    private long mLastDuration = DEFAULT_SAMPLE_DURATION;
+
+    // Scratch space, reused for every fragment.
+    private ByteBuffer mMoof = ByteBuffer.allocate(4096);
+    private final ByteBuffer mMdatHeader = ByteBuffer.allocate(8);
+    private final ByteBuffer[] mGather = new ByteBuffer[3];
+    private final int[] mNalStart = new int[256];
+    private final int[] mNalEnd = new int[256];
+
+    private int mFragmentCount;
+    private long mBytesWritten;
+
+    /**
+     * Creates (or truncates) the output file.
+     */
+    public FragmentedMp4Writer(File outputFile) throws IOException {
+        mStream = new FileOutputStream(outputFile);
+        mChannel = mStream.getChannel();
+    }
+
+    @Override
+    public void onFormatChanged(MediaFormat format) {
+        mWidth = format.getInteger(MediaFormat.KEY_WIDTH);
+        mHeight = format.getInteger(MediaFormat.KEY_HEIGHT);
+        if (format.containsKey("csd-0") && format.containsKey("csd-1")) {
+            mSps = firstNalUnit(format.getByteBuffer("csd-0"));
+            mPps = firstNalUnit(format.getByteBuffer("csd-1"));
+        }
+    }
+
+    @Override
+    public void onPacket(ByteBuffer buf, int flags, long ptsUsec) {
+        if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            if (mSps == null) {
+                takeCodecConfig(buf);
+            }
+            return;
+        }
+        if (!mHeaderWritten) {
+            if ((flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+                if (VERBOSE) Log.d(TAG, "fmp4: skipping frame before first sync frame");
+                return;
+            }
+            writeHeader();
+        }
+
+        boolean sync = (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        if (mSampleCount > 0 &&
+                (sync || mFragmentData.position() + buf.remaining() > MAX_FRAGMENT_BYTES)) {
+            writeFragment(ptsUsec);
+        }
+        addSample(buf, ptsUsec, sync);
+    }
+
+    @Override
+    public void onStopped() {
+        try {
+            if (mSampleCount > 0) {
+                writeFragment(-1);
+            }
+            mChannel.close();
+            mStream.close();
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+        if (VERBOSE) {
+            Log.d(TAG, "fmp4 closed: " + mFragmentCount + " fragments, " + mBytesWritten +
+                    " bytes");
+        }
+    }
+
+    /**
+     * Returns the number of fragments written so far.
+     */
+    public int getFragmentCount() {
+        return mFragmentCount;
+    }
+
+    /**
+     * Pulls the SPS and PPS out of an Annex B codec config buffer.
+     */
+    private void takeCodecConfig(ByteBuffer buf) {
+        int count = RtpStreamer.findNalUnits(buf, buf.position(), buf.limit(), mNalStart,
+                mNalEnd);
+        for (int i = 0; i < count; i++) {
+            int type = buf.get(mNalStart[i]) & 0x1f;
+            if (type == NAL_SPS && mSps == null) {
+                mSps = copy(buf, mNalStart[i], mNalEnd[i]);
+            } else if (type == NAL_PPS && mPps == null) {
+                mPps = copy(buf, mNalStart[i], mNalEnd[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the first NAL unit in an Annex B buffer (csd-0 or csd-1).
+     */
+    private ByteBuffer firstNalUnit(ByteBuffer buf) {
+        int count = RtpStreamer.findNalUnits(buf, buf.position(), buf.limit(), mNalStart,
+                mNalEnd);
+        if (count == 0) {
+            return copy(buf, buf.position(), buf.limit());      // no start code; take it all
+        }
+        return copy(buf, mNalStart[0], mNalEnd[0]);
+    }
+
+    private static ByteBuffer copy(ByteBuffer buf, int start, int end) {
+        ByteBuffer src = buf.duplicate();
+        src.limit(end);
+        src.position(start);
+        ByteBuffer dst = ByteBuffer.allocate(end - start);
+        dst.put(src);
+        dst.flip();
+        return dst;
+    }
+
+    /**
+     * Appends one access unit to the fragment, converting it to length-prefixed form.
+     */
+    private void addSample(ByteBuffer buf, long ptsUsec, boolean sync) {
+        int position = buf.position();
+        int limit = buf.limit();
+        int count = RtpStreamer.findNalUnits(buf, position, limit, mNalStart, mNalEnd);
+
+        int needed = mFragmentData.position() + (limit - position) + 4 * count;
+        if (needed > mFragmentData.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocateDirect(Integer.highestOneBit(needed) * 2);
+            mFragmentData.flip();
+            bigger.put(mFragmentData);
+            mFragmentData = bigger;
+        }
+        if (mSampleCount == mSampleSize.length) {
+            int newLength = mSampleCount * 2;
+            int[] sizes = new int[newLength];
+            long[] pts = new long[newLength];
+            boolean[] syncs = new boolean[newLength];
+            System.arraycopy(mSampleSize, 0, sizes, 0, mSampleCount);
+            System.arraycopy(mSamplePtsUsec, 0, pts, 0, mSampleCount);
+            System.arraycopy(mSampleSync, 0, syncs, 0, mSampleCount);
+            mSampleSize = sizes;
+            mSamplePtsUsec = pts;
+            mSampleSync = syncs;
+        }
+
+        int sampleStart = mFragmentData.position();
+        for (int i = 0; i < count; i++) {
+            int type = buf.get(mNalStart[i]) & 0x1f;
+            if (type == NAL_SPS || type == NAL_PPS || type == NAL_AUD) {
+                continue;       // SPS/PPS live in avcC
+            }
+            mFragmentData.putInt(mNalEnd[i] - mNalStart[i]);
+            buf.limit(mNalEnd[i]);
+            buf.position(mNalStart[i]);
+            mFragmentData.put(buf);
+            buf.limit(limit);
+        }
+        buf.position(position);
+
+        if (mFirstPtsUsec < 0) {
+            mFirstPtsUsec = ptsUsec;
+        }
+        mSampleSize[mSampleCount] = mFragmentData.position() - sampleStart;
+        mSamplePtsUsec[mSampleCount] = ptsUsec;
+        mSampleSync[mSampleCount] = sync;
+        mSampleCount++;
+    }
+
+    /**
+     * Writes the collected samples as a moof/mdat pair.
+     *
+     * @param nextPtsUsec Time stamp of the sample after the last one, to work out its
+     *     duration, or -1 if there isn't one.
+     */
+    private void writeFragment(long nextPtsUsec) {
+        int dataSize = mFragmentData.position();
+        int moofSize = 8 + 16 + 8 + 16 + 20 + 20 + 12 * mSampleCount;
+        if (mMoof.capacity() < moofSize) {
+            mMoof = ByteBuffer.allocate(moofSize * 2);
+        }
+        ByteBuffer b = mMoof;
+        b.clear();
+
+        int moof = startBox(b, "moof");
+        int mfhd = startFullBox(b, "mfhd", 0, 0);
+        b.putInt(mFragmentCount + 1);                           // sequence_number
+        endBox(b, mfhd);
+        int traf = startBox(b, "traf");
+        int tfhd = startFullBox(b, "tfhd", 0, 0x020000);        // default-base-is-moof
+        b.putInt(TRACK_ID);
+        endBox(b, tfhd);
+        int tfdt = startFullBox(b, "tfdt", 1, 0);
+        b.putLong(toTicks(mSamplePtsUsec[0]));                  // baseMediaDecodeTime
+        endBox(b, tfdt);
+        // data-offset, sample-duration, sample-size, sample-flags present
+        int trun = startFullBox(b, "trun", 0, 0x000701);
+        b.putInt(mSampleCount);
+        int dataOffsetPos = b.position();
+        b.putInt(0);                                            // patched below
+        for (int i = 0; i < mSampleCount; i++) {
+            long duration;
+            if (i + 1 < mSampleCount) {
+                duration = toTicks(mSamplePtsUsec[i + 1]) - toTicks(mSamplePtsUsec[i]);
+            } else if (nextPtsUsec >= 0) {
+                duration = toTicks(nextPtsUsec) - toTicks(mSamplePtsUsec[i]);
+            } else {
+                duration = mLastDuration;
+            }
+            if (duration <= 0) {
+                duration = mLastDuration;
+            }
+            mLastDuration = duration;
+            b.putInt((int) duration);
+            b.putInt(mSampleSize[i]);
+            b.putInt(mSampleSync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        endBox(b, trun);
+        endBox(b, traf);
+        endBox(b, moof);
+        // Sample data starts right after the mdat header, counting from the start of moof.
+        b.putInt(dataOffsetPos, b.position() + 8);
+        b.flip();
+
+        mMdatHeader.clear();
+        mMdatHeader.putInt(8 + dataSize);
+        putType(mMdatHeader, "mdat");
+        mMdatHeader.flip();
+        mFragmentData.flip();
+
+        mGather[0] = b;
+        mGather[1] = mMdatHeader;
+        mGather[2] = mFragmentData;
+        writeFully(mGather);
+        if (VERBOSE) {
+            Log.d(TAG, "fmp4 fragment " + mFragmentCount + ": " + mSampleCount + " samples, " +
+                    dataSize + " bytes");
+        }
+
+        mFragmentCount++;
+        mFragmentData.clear();
+        mSampleCount = 0;
+    }
+
+    /**
+     * Writes ftyp and moov.  Called before the first fragment.
+     */
+    private void writeHeader() {
+        if (mSps == null || mPps == null) {
+            throw new RuntimeException("no SPS/PPS before first frame");
+        }
+        ByteBuffer b = ByteBuffer.allocate(1024 + mSps.remaining() + mPps.remaining());
+
+        int ftyp = startBox(b, "ftyp");
+        putType(b, "iso6");                                     // major brand
+        b.putInt(0);                                            // minor version
+        putType(b, "iso6");
+        putType(b, "cmfc");
+        putType(b, "avc1");
+        putType(b, "mp41");
+        endBox(b, ftyp);
+
+        int moov = startBox(b, "moov");
+        int mvhd = startFullBox(b, "mvhd", 0, 0);
+        b.putInt(0);                                            // creation_time
+        b.putInt(0);                                            // modification_time
+        b.putInt(TIMESCALE);
+        b.putInt(0);                                            // duration: unknown
+        b.putInt(0x00010000);                                   // rate 1.0
+        b.putShort((short) 0x0100);                             // volume 1.0
+        b.put(new byte[10]);                                    // reserved
+        putMatrix(b);
+        b.put(new byte[24]);                                    // pre_defined
+        b.putInt(TRACK_ID + 1);                                 // next_track_ID
+        endBox(b, mvhd);
+
+        int trak = startBox(b, "trak");
+        int tkhd = startFullBox(b, "tkhd", 0, 0x000003);        // enabled, in movie
+        b.putInt(0);                                            // creation_time
+        b.putInt(0);                                            // modification_time
+        b.putInt(TRACK_ID);
+        b.putInt(0);                                            // reserved
+        b.putInt(0);                                            // duration
+        b.put(new byte[8]);                                     // reserved
+        b.putShort((short) 0);                                  // layer
+        b.putShort((short) 0);                                  // alternate_group
+        b.putShort((short) 0);                                  // volume
+        b.putShort((short) 0);                                  // reserved
+        putMatrix(b);
+        b.putInt(mWidth << 16);
+        b.putInt(mHeight << 16);
+        endBox(b, tkhd);
+
+        int mdia = startBox(b, "mdia");
+        int mdhd = startFullBox(b, "mdhd", 0, 0);
+        b.putInt(0);                                            // creation_time
+        b.putInt(0);                                            // modification_time
+        b.putInt(TIMESCALE);
+        b.putInt(0);                                            // duration
+        b.putShort((short) 0x55c4);                             // language "und"
+        b.putShort((short) 0);
+        endBox(b, mdhd);
+        int hdlr = startFullBox(b, "hdlr", 0, 0);
+        b.putInt(0);                                            // pre_defined
+        putType(b, "vide");
+        b.put(new byte[12]);                                    // reserved
+        b.put("VideoHandler".getBytes()).put((byte) 0);
+        endBox(b, hdlr);
+
+        int minf = startBox(b, "minf");
+        int vmhd = startFullBox(b, "vmhd", 0, 1);
+        b.put(new byte[8]);                                     // graphicsmode, opcolor
+        endBox(b, vmhd);
+        int dinf = startBox(b, "dinf");
+        int dref = startFullBox(b, "dref", 0, 0);
+        b.putInt(1);
+        int url = startFullBox(b, "url ", 0, 1);                // data is in this file
+        endBox(b, url);
+        endBox(b, dref);
+        endBox(b, dinf);
+
+        int stbl = startBox(b, "stbl");
+        int stsd = startFullBox(b, "stsd", 0, 0);
+        b.putInt(1);
+        int avc1 = startBox(b, "avc1");
+        b.put(new byte[6]);                                     // reserved
+        b.putShort((short) 1);                                  // data_reference_index
+        b.put(new byte[16]);                                    // pre_defined, reserved
+        b.putShort((short) mWidth);
+        b.putShort((short) mHeight);
+        b.putInt(0x00480000);                                   // 72 dpi
+        b.putInt(0x00480000);
+        b.putInt(0);                                            // reserved
+        b.putShort((short) 1);                                  // frame_count
+        b.put(new byte[32]);                                    // compressorname
+        b.putShort((short) 0x0018);                             // depth
+        b.putShort((short) -1);                                 // pre_defined
+        int avcC = startBox(b, "avcC");
+        b.put((byte) 1);                                        // configurationVersion
+        b.put(mSps.get(1));                                     // AVCProfileIndication
+        b.put(mSps.get(2));                                     // profile_compatibility
+        b.put(mSps.get(3));                                     // AVCLevelIndication
+        b.put((byte) 0xff);                                     // 4-byte NAL lengths
+        b.put((byte) 0xe1);                                     // one SPS
+        b.putShort((short) mSps.remaining());
+        b.put(mSps.duplicate());
+        b.put((byte) 1);                                        // one PPS
+        b.putShort((short) mPps.remaining());
+        b.put(mPps.duplicate());
+        endBox(b, avcC);
+        endBox(b, avc1);
+        endBox(b, stsd);
+        // Empty sample tables; the samples are all in fragments.
+        int stts = startFullBox(b, "stts", 0, 0);
+        b.putInt(0);
+        endBox(b, stts);
+        int stsc = startFullBox(b, "stsc", 0, 0);
+        b.putInt(0);
+        endBox(b, stsc);
+        int stsz = startFullBox(b, "stsz", 0, 0);
+        b.putInt(0);                                            // sample_size
+        b.putInt(0);                                            // sample_count
+        endBox(b, stsz);
+        int stco = startFullBox(b, "stco", 0, 0);
+        b.putInt(0);
+        endBox(b, stco);
+        endBox(b, stbl);
+        endBox(b, minf);
+        endBox(b, mdia);
+        endBox(b, trak);
+
+        int mvex = startBox(b, "mvex");
+        int trex = startFullBox(b, "trex", 0, 0);
+        b.putInt(TRACK_ID);
+        b.putInt(1);                                            // default_sample_description
+        b.putInt(0);                                            // default_sample_duration
+        b.putInt(0);                                            // default_sample_size
+        b.putInt(0);                                            // default_sample_flags
+        endBox(b, trex);
+        endBox(b, mvex);
+        endBox(b, moov);
+
+        b.flip();
+        mGather[0] = b;
+        mGather[1] = ByteBuffer.allocate(0);
+        mGather[2] = ByteBuffer.allocate(0);
+        writeFully(mGather);
+        mHeaderWritten = true;
+    }
+
+    private void writeFully(ByteBuffer[] bufs) {
+        try {
+            long total = 0;
+            for (ByteBuffer buf : bufs) {
+                total += buf.remaining();
+            }
+            long written = 0;
+            while (written < total) {
+                written += mChannel.write(bufs);
+            }
+            mBytesWritten += total;
+        } catch (IOException ioe) {
+            throw new RuntimeException(ioe);
+        }
+    }
+
+    private long toTicks(long ptsUsec) {
+        return (ptsUsec - mFirstPtsUsec) * (TIMESCALE / 1000) / 1000;
+    }
+
+    private static int startBox(ByteBuffer b, String type) {
+        int start = b.position();
+        b.putInt(0);                                            // size, patched by endBox
+        putType(b, type);
+        return start;
+    }
+
+    private static int startFullBox(ByteBuffer b, String type, int version, int flags) {
+        int start = startBox(b, type);
+        b.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void endBox(ByteBuffer b, int start) {
+        b.putInt(start, b.position() - start);
+    }
+
+    private static void putType(ByteBuffer b, String type) {
+        for (int i = 0; i < 4; i++) {
+            b.put((byte) type.charAt(i));
+        }
+    }
+
+    private static void putMatrix(ByteBuffer b) {
+        // Identity, in the 16.16 / 2.30 fixed point the spec uses.
+        b.putInt(0x00010000).putInt(0).putInt(0);
+        b.putInt(0).putInt(0x00010000).putInt(0);
+        b.putInt(0).putInt(0).putInt(0x40000000);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+/**
+ * EncoderControl for a running MediaCodec encoder, using setParameters().
+ * <p>
+ * setParameters() arrived in API 19, so on older devices this only remembers what was
+ * asked for.  There's no runtime key for the frame rate until API 23, and even then
+ * "operating-rate" is only a hint that many encoders ignore; callers that feed the encoder
+ * should also pace their input to getFrameRateHint().
+ * <p>
+ * May be called from any thread.  Call release() before the codec is released, after which
+ * requests are ignored.
+ */
+class MediaCodecControl implements EncoderControl {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private MediaCodec mCodec;
+    private int mBitRate;
+    private int mFrameRate;
+
+    MediaCodecControl(MediaCodec codec, int bitRate, int frameRate) {
+        mCodec = codec;
+        mBitRate = bitRate;
+        mFrameRate = frameRate;
+    }
+
+    /**
+     * Returns true if the device can change parameters on a running codec.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    @Override
+    public synchronized void setBitRate(int bitRate) {
+        if (VERBOSE) Log.d(TAG, "setBitRate " + bitRate);
+        mBitRate = bitRate;
+        if (mCodec != null && isSupported()) {
+            setIntParameter(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        }
+    }
+
+    @Override
+    public synchronized void requestSyncFrame() {
+        if (VERBOSE) Log.d(TAG, "requestSyncFrame");
+        if (mCodec != null && isSupported()) {
+            setIntParameter(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        }
+    }
+
+    @Override
+    public synchronized void setFrameRateHint(int frameRate) {
+        if (VERBOSE) Log.d(TAG, "setFrameRateHint " + frameRate);
+        mFrameRate = frameRate;
+        if (mCodec != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            setIntParameter(MediaFormat.KEY_OPERATING_RATE, frameRate);
+        }
+    }
+
+    @Override
+    public synchronized int getBitRate() {
+        return mBitRate;
+    }
+
+    @Override
+    public synchronized int getFrameRateHint() {
+        return mFrameRate;
+    }
+
+    /**
+     * Stops passing requests to the codec.
+     */
+    public synchronized void release() {
+        mCodec = null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void setIntParameter(String key, int value) {
+        Bundle params = new Bundle();
+        params.putInt(key, value);
+        try {
+            mCodec.setParameters(params);
+        } catch (IllegalStateException ise) {
+            // The codec is stopping, or broken.  Either way there's nothing left to control.
+            Log.w(TAG, "setParameters(" + key + ") failed", ise);
+        }
+    }
+}
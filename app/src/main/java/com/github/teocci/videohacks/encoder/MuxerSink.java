@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the encoded stream to a .mp4 file.
+ */
+public class MuxerSink implements EncodedPacketSink {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private final MediaMuxer mMuxer;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private int mTrackIndex = -1;
+    private int mFramesWritten;
+
+    /**
+     * Creates the muxer.  We can't add the video track and start it yet, because we don't
+     * have the Magic Goodies; those come with onFormatChanged().
+     */
+    public MuxerSink(File outputFile) throws IOException {
+        mMuxer = new MediaMuxer(outputFile.toString(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public void onFormatChanged(MediaFormat format) {
+        if (mTrackIndex >= 0) {
+            throw new RuntimeException("format changed twice");
+        }
+        mTrackIndex = mMuxer.addTrack(format);
+        mMuxer.start();
+    }
+
+    @Override
+    public void onPacket(ByteBuffer buf, int flags, long ptsUsec) {
+        if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // The codec config data came to the muxer with the format.  Ignore it.
+            if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+            return;
+        }
+        if (mTrackIndex < 0) {
+            throw new RuntimeException("muxer hasn't started");
+        }
+        mBufferInfo.set(buf.position(), buf.remaining(), ptsUsec, flags);
+        mMuxer.writeSampleData(mTrackIndex, buf, mBufferInfo);
+        mFramesWritten++;
+        if (VERBOSE) Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" + ptsUsec);
+    }
+
+    @Override
+    public void onStopped() {
+        // stop() throws an exception if the muxer was never started or never fed.
+        if (mFramesWritten > 0) {
+            mMuxer.stop();
+        } else {
+            Log.w(TAG, "muxer never got any frames; file will be empty");
+        }
+        mMuxer.release();
+    }
+}
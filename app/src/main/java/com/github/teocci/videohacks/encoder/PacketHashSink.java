@@ -0,0 +1,80 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a running CRC of everything the encoder produced, along with the packet count and
+ * the time stamps.  Two of these fed from different paths (say, straight from the encoder
+ * and back out of a file) should agree.
+ */
+public class PacketHashSink implements EncodedPacketSink {
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mScratch = new byte[16 * 1024];
+
+    // Guarded by "this", so the results can be read from any thread.
+    private long mPacketCount;
+    private long mByteCount;
+    private long mFirstPtsUsec = -1;
+    private long mLastPtsUsec = -1;
+
+    @Override
+    public void onFormatChanged(MediaFormat format) {}
+
+    @Override
+    public synchronized void onPacket(ByteBuffer buf, int flags, long ptsUsec) {
+        mByteCount += buf.remaining();
+        while (buf.hasRemaining()) {
+            int chunk = Math.min(mScratch.length, buf.remaining());
+            buf.get(mScratch, 0, chunk);
+            mCrc.update(mScratch, 0, chunk);
+        }
+        mPacketCount++;
+        if (mFirstPtsUsec < 0) {
+            mFirstPtsUsec = ptsUsec;
+        }
+        mLastPtsUsec = ptsUsec;
+    }
+
+    @Override
+    public void onStopped() {}
+
+    /**
+     * Returns the CRC32 of all packet data, in order.
+     */
+    public synchronized long getCrc() {
+        return mCrc.getValue();
+    }
+
+    /**
+     * Returns the number of packets seen.
+     */
+    public synchronized long getPacketCount() {
+        return mPacketCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PacketHashSink[packets=" + mPacketCount + " bytes=" + mByteCount + " crc=" +
+                Long.toHexString(mCrc.getValue()) + " pts=" + mFirstPtsUsec + ".." +
+                mLastPtsUsec + "]";
+    }
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends an H.264 elementary stream as RTP over UDP (RFC 6184).
+ * <p>
+ * Access units come in from the encoder, usually through an {@link EncodedPacketFanout}, in
+ * Annex B form (NAL units separated by start codes), which is what MediaCodec produces.
+ * Each NAL unit that fits in a packet is sent as-is; bigger ones are split into FU-A
+ * fragments.  The last packet of each access unit has the marker bit set.  SPS and PPS,
+ * which MediaCodec hands us once as codec config data, are sent again in front of every
+ * sync frame, so a receiver can join mid-stream.
+ * <p>
+ * Packets are built in a fixed pool of direct buffers and handed to a sender thread, so the
+ * thread feeding us never waits on the network.  The sender can optionally pace packets out at a
+ * fixed byte rate, rather than bursting a whole frame onto the wire at once.  If the pool
+ * runs dry, we drop whole access units, and keep dropping until the next sync frame, since
+ * anything in between would decode to garbage.  Since onPacket() never waits, the fan-out's
+ * queue for us stays empty; the packets waiting here and the access units dropped are
+ * reported through {@link CongestionReporter} instead.
+ * <p>
+ * To watch the stream, give the receiver an SDP file along these lines:
+ * <pre>
+ * v=0
+ * o=- 0 0 IN IP4 127.0.0.1
+ * s=VideoHacks
+ * c=IN IP4 0.0.0.0
+ * t=0 0
+ * m=video 5004 RTP/AVP 96
+ * a=rtpmap:96 H264/90000
+ * a=fmtp:96 packetization-mode=1
+ * </pre>
+ */
+public class RtpStreamer implements EncodedPacketSink, CongestionReporter {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    /** Largest datagram we send.  Leaves room for IP/UDP headers (and then some) in 1500. */
+    public static final int MAX_PACKET_SIZE = 1400;
+
+    private static final int RTP_HEADER_SIZE = 12;
+    private static final int MAX_PAYLOAD = MAX_PACKET_SIZE - RTP_HEADER_SIZE;
+    private static final int FU_HEADER_SIZE = 2;
+    private static final int PAYLOAD_TYPE = 96;             // first dynamic type
+    private static final int POOL_SIZE = 512;
+    private static final int MAX_CONFIG_NALS = 8;
+
+    private static final int NAL_FU_A = 28;
+    private static final int NAL_SPS = 7;
+
+    private final DatagramChannel mChannel;
+    private final int mSsrc;
+    private final long mBytesPerSec;
+    private final Thread mThread;
+
+    // ----- accessed exclusively by the thread feeding us -----
+    private int mSequence;
+    private boolean mNeedSyncFrame = true;
+    private ByteBuffer mConfig;
+    private final int[] mConfigNalStart = new int[MAX_CONFIG_NALS];
+    private final int[] mConfigNalEnd = new int[MAX_CONFIG_NALS];
+    private int mConfigNalCount;
+    private final int[] mNalStart = new int[256];
+    private final int[] mNalEnd = new int[256];
+
+    // Packet pool, guarded by mLock.  Free buffers sit on a stack; filled ones wait in a
+    // ring for the sender thread.
+    private final Object mLock = new Object();
+    private final ByteBuffer[] mPackets = new ByteBuffer[POOL_SIZE];
+    private final int[] mFree = new int[POOL_SIZE];
+    private int mFreeCount;
+    private final int[] mQueue = new int[POOL_SIZE];
+    private int mQueueHead;
+    private int mQueueCount;
+    private int mQueuedBytes;
+    private boolean mStopRequested;
+
+    // Counters, guarded by mLock.
+    private long mPacketsSent;
+    private long mBytesSent;
+    private long mSendErrors;
+    private long mDroppedAccessUnits;
+
+    /**
+     * Opens a socket and starts the sender thread.
+     *
+     * @param destination Where to send the stream.  If it's unresolved, it's looked up
+     *        here, so don't call this on the UI thread.
+     * @param maxBytesPerSec Rate to pace packets out at, or 0 to send them as fast as
+     *        they come.
+     */
+    public RtpStreamer(InetSocketAddress destination, long maxBytesPerSec) throws IOException {
+        if (destination.isUnresolved()) {
+            destination = new InetSocketAddress(destination.getHostName(), destination.getPort());
+            if (destination.isUnresolved()) {
+                throw new IOException("unable to resolve " + destination.getHostName());
+            }
+        }
+        mChannel = DatagramChannel.open();
+        mChannel.connect(destination);
+        mSsrc = new Random().nextInt();
+        mBytesPerSec = maxBytesPerSec;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            mPackets[i] = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+            mFree[i] = i;
+        }
+        mFreeCount = POOL_SIZE;
+
+        mThread = new Thread("RTP Sender") {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        };
+        mThread.start();
+        if (VERBOSE) {
+            Log.d(TAG, "RTP streaming to " + destination + " ssrc=" +
+                    Integer.toHexString(mSsrc));
+        }
+    }
+
+    /**
+     * Remembers the SPS and PPS so they can be sent in front of each sync frame.  Pass the
+     * buffer MediaCodec flagged with BUFFER_FLAG_CODEC_CONFIG, with position and limit set
+     * to the data.  Feeding thread.
+     */
+    public void setCodecConfig(ByteBuffer buf) {
+        int size = buf.remaining();
+        if (mConfig == null || mConfig.capacity() < size) {
+            mConfig = ByteBuffer.allocateDirect(size);
+        }
+        int oldPosition = buf.position();
+        mConfig.clear();
+        mConfig.put(buf);
+        mConfig.flip();
+        buf.position(oldPosition);
+
+        mConfigNalCount = findNalUnits(mConfig, 0, size, mConfigNalStart, mConfigNalEnd);
+        if (VERBOSE) Log.d(TAG, "RTP codec config: " + mConfigNalCount + " NAL units");
+    }
+
+    /**
+     * Packetizes an access unit and queues it for sending.  Feeding thread.
+     * <p>
+     * The buffer's position and limit are restored before returning.
+     *
+     * @param buf Encoded access unit, from position to limit.
+     * @param ptsUsec Presentation time stamp, in microseconds.
+     * @param syncFrame True if the access unit can be decoded without any before it.
+     */
+    public void sendAccessUnit(ByteBuffer buf, long ptsUsec, boolean syncFrame) {
+        if (mNeedSyncFrame && !syncFrame) {
+            dropAccessUnit();
+            return;
+        }
+        int oldPosition = buf.position();
+        int oldLimit = buf.limit();
+        int nalCount = findNalUnits(buf, oldPosition, oldLimit, mNalStart, mNalEnd);
+        if (nalCount == 0) {
+            return;
+        }
+
+        // Don't resend SPS/PPS if the encoder put them in front of the frame itself.
+        boolean sendConfig = syncFrame && mConfigNalCount > 0 &&
+                (buf.get(mNalStart[0]) & 0x1f) != NAL_SPS;
+
+        int needed = 0;
+        if (sendConfig) {
+            for (int i = 0; i < mConfigNalCount; i++) {
+                needed += packetCount(mConfigNalEnd[i] - mConfigNalStart[i]);
+            }
+        }
+        for (int i = 0; i < nalCount; i++) {
+            needed += packetCount(mNalEnd[i] - mNalStart[i]);
+        }
+        synchronized (mLock) {
+            if (needed > mFreeCount) {
+                if (VERBOSE) Log.d(TAG, "RTP pool exhausted, need " + needed);
+                dropAccessUnit();
+                return;
+            }
+        }
+        mNeedSyncFrame = false;
+
+        int timestamp = (int) (ptsUsec * 9 / 100);          // 90kHz clock
+        if (sendConfig) {
+            for (int i = 0; i < mConfigNalCount; i++) {
+                sendNalUnit(mConfig, mConfigNalStart[i], mConfigNalEnd[i], timestamp, false);
+            }
+        }
+        try {
+            for (int i = 0; i < nalCount; i++) {
+                sendNalUnit(buf, mNalStart[i], mNalEnd[i], timestamp, i == nalCount - 1);
+            }
+        } finally {
+            buf.limit(oldLimit);
+            buf.position(oldPosition);
+        }
+    }
+
+    @Override   // EncodedPacketSink
+    public void onFormatChanged(MediaFormat format) {}
+
+    @Override   // EncodedPacketSink
+    public void onPacket(ByteBuffer buf, int flags, long ptsUsec) {
+        if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            setCodecConfig(buf);
+        } else {
+            sendAccessUnit(buf, ptsUsec, (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+        }
+    }
+
+    @Override   // EncodedPacketSink
+    public void onStopped() {
+        // Nothing to do; whoever created us calls release().
+    }
+
+    /**
+     * Stops the sender thread, discarding anything not yet sent, and closes the socket.
+     */
+    public void release() {
+        synchronized (mLock) {
+            mStopRequested = true;
+            mLock.notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "RTP sender join() was interrupted", ie);
+        }
+        try {
+            mChannel.close();
+        } catch (IOException ioe) {
+            Log.w(TAG, "failed closing RTP channel", ioe);
+        }
+        if (VERBOSE) Log.d(TAG, "RTP streamer released: " + this);
+    }
+
+    /**
+     * Returns the number of packets sent.
+     */
+    public long getPacketsSent() {
+        synchronized (mLock) {
+            return mPacketsSent;
+        }
+    }
+
+    /**
+     * Returns the number of access units dropped because the sender couldn't keep up.
+     */
+    public long getDroppedAccessUnits() {
+        synchronized (mLock) {
+            return mDroppedAccessUnits;
+        }
+    }
+
+    /**
+     * Returns the number of packets waiting to be sent.
+     */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mQueueCount;
+        }
+    }
+
+    @Override   // CongestionReporter
+    public int getQueuedBytes() {
+        synchronized (mLock) {
+            return mQueuedBytes;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The same as getDroppedAccessUnits(); each access unit is one encoder packet.
+     */
+    @Override   // CongestionReporter
+    public long getDroppedPackets() {
+        return getDroppedAccessUnits();
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "RtpStreamer[packets=" + mPacketsSent + " bytes=" + mBytesSent +
+                    " queued=" + mQueueCount + "/" + mQueuedBytes + "B droppedAUs=" +
+                    mDroppedAccessUnits + " sendErrors=" + mSendErrors + "]";
+        }
+    }
+
+    /**
+     * Returns the number of packets a NAL unit of the given size (header included) needs.
+     */
+    private static int packetCount(int size) {
+        if (size <= MAX_PAYLOAD) {
+            return 1;
+        }
+        // The NAL header byte is replaced by the two FU bytes in every fragment.
+        int perPacket = MAX_PAYLOAD - FU_HEADER_SIZE;
+        return (size - 1 + perPacket - 1) / perPacket;
+    }
+
+    private void dropAccessUnit() {
+        mNeedSyncFrame = true;
+        synchronized (mLock) {
+            mDroppedAccessUnits++;
+        }
+    }
+
+    /**
+     * Queues one NAL unit, as a single packet or as FU-A fragments.  The caller has checked
+     * that enough packets are free.  Changes buf's position and limit.
+     */
+    private void sendNalUnit(ByteBuffer buf, int start, int end, int timestamp,
+            boolean lastInAccessUnit) {
+        int size = end - start;
+        buf.limit(end);
+        if (size <= MAX_PAYLOAD) {
+            int index = beginPacket(lastInAccessUnit, timestamp);
+            buf.position(start);
+            mPackets[index].put(buf);
+            queuePacket(index);
+            return;
+        }
+
+        int header = buf.get(start) & 0xff;
+        int indicator = (header & 0xe0) | NAL_FU_A;         // keep F and NRI
+        int type = header & 0x1f;
+        int pos = start + 1;
+        while (pos < end) {
+            int chunk = Math.min(end - pos, MAX_PAYLOAD - FU_HEADER_SIZE);
+            boolean first = (pos == start + 1);
+            boolean last = (pos + chunk == end);
+            int index = beginPacket(last && lastInAccessUnit, timestamp);
+            ByteBuffer packet = mPackets[index];
+            packet.put((byte) indicator);
+            packet.put((byte) ((first ? 0x80 : 0) | (last ? 0x40 : 0) | type));
+            buf.limit(pos + chunk);
+            buf.position(pos);
+            packet.put(buf);
+            queuePacket(index);
+            pos += chunk;
+        }
+    }
+
+    /**
+     * Takes a buffer from the pool and writes an RTP header into it.
+     *
+     * @return The index of the buffer in mPackets.
+     */
+    private int beginPacket(boolean marker, int timestamp) {
+        int index;
+        synchronized (mLock) {
+            index = mFree[--mFreeCount];
+        }
+        ByteBuffer packet = mPackets[index];
+        packet.clear();
+        packet.put((byte) 0x80);                            // V=2, no padding/extension/CSRC
+        packet.put((byte) ((marker ? 0x80 : 0) | PAYLOAD_TYPE));
+        packet.putShort((short) mSequence++);
+        packet.putInt(timestamp);
+        packet.putInt(mSsrc);
+        return index;
+    }
+
+    /**
+     * Hands a filled buffer to the sender thread.
+     */
+    private void queuePacket(int index) {
+        mPackets[index].flip();
+        synchronized (mLock) {
+            mQueue[(mQueueHead + mQueueCount) % POOL_SIZE] = index;
+            mQueueCount++;
+            mQueuedBytes += mPackets[index].remaining();
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Sender thread main loop.
+     */
+    private void sendLoop() {
+        long nextSendNsec = 0;
+        boolean loggedError = false;
+        while (true) {
+            int index;
+            synchronized (mLock) {
+                while (!mStopRequested && mQueueCount == 0) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) {
+                        // discard
+                    }
+                }
+                if (mStopRequested) {
+                    return;
+                }
+                index = mQueue[mQueueHead];
+                mQueueHead = (mQueueHead + 1) % POOL_SIZE;
+                mQueueCount--;
+                mQueuedBytes -= mPackets[index].remaining();
+            }
+
+            ByteBuffer packet = mPackets[index];
+            int size = packet.remaining();
+            if (mBytesPerSec > 0) {
+                long nowNsec = System.nanoTime();
+                if (nextSendNsec < nowNsec) {
+                    nextSendNsec = nowNsec;     // idle for a while; don't burst to catch up
+                } else {
+                    while (nowNsec < nextSendNsec) {
+                        LockSupport.parkNanos(nextSendNsec - nowNsec);
+                        nowNsec = System.nanoTime();
+                    }
+                }
+                nextSendNsec += size * 1000000000L / mBytesPerSec;
+            }
+
+            boolean sent = false;
+            try {
+                mChannel.write(packet);
+                sent = true;
+            } catch (IOException ioe) {
+                // Typically ICMP "port unreachable" because nobody is listening yet.  Keep
+                // going; the receiver can join at the next sync frame.
+                if (!loggedError) {
+                    Log.w(TAG, "RTP send failed", ioe);
+                    loggedError = true;
+                }
+            }
+
+            synchronized (mLock) {
+                if (sent) {
+                    mPacketsSent++;
+                    mBytesSent += size;
+                } else {
+                    mSendErrors++;
+                }
+                mFree[mFreeCount++] = index;
+            }
+        }
+    }
+
+    /**
+     * Finds the NAL units in an Annex B byte stream, recording where each starts (at its
+     * header byte) and ends.  Trailing zero bytes are left off, and empty NAL units are
+     * skipped.  Stops when the arrays are full.
+     *
+     * @return The number of NAL units found.
+     */
+    static int findNalUnits(ByteBuffer buf, int from, int to, int[] starts, int[] ends) {
+        int count = 0;
+        int zeroes = 0;
+        for (int i = from; i < to; i++) {
+            int b = buf.get(i);
+            if (b == 0) {
+                zeroes++;
+                continue;
+            }
+            if (b == 1 && zeroes >= 2) {
+                if (count > 0) {
+                    ends[count - 1] = i - zeroes;
+                    if (ends[count - 1] <= starts[count - 1]) {
+                        count--;
+                    }
+                }
+                if (count == starts.length) {
+                    return count;
+                }
+                starts[count++] = i + 1;
+            }
+            zeroes = 0;
+        }
+        if (count > 0) {
+            ends[count - 1] = to - zeroes;
+            if (ends[count - 1] <= starts[count - 1]) {
+                count--;
+            }
+        }
+        return count;
+    }
+}
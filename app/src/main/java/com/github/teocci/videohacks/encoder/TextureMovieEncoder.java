@@ -33,6 +33,7 @@ import com.github.teocci.videohacks.ui.MainActivity;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
 
 /**
  * Encode a movie from frames rendered from an external texture image.
@@ -56,6 +57,11 @@ import java.lang.ref.WeakReference;
  * <li>for each frame, after latching it with SurfaceTexture#updateTexImage(),
  *     call TextureMovieEncoder#frameAvailable().
  * </ul>
+ * <p>
+ * Frames are handed to the encoder thread through a small ring of preallocated descriptors
+ * (transform, timestamp, texture name), so nothing is allocated per frame.  The message
+ * carries only the slot index.  If the encoder thread falls so far behind that the ring is
+ * full, new frames are dropped until it catches up.
  *
  * TODO: tweak the API (esp. textureId) so it's less awkward for simple use cases.
  */
@@ -66,17 +72,21 @@ public class TextureMovieEncoder implements Runnable {
     private static final int MSG_START_RECORDING = 0;
     private static final int MSG_STOP_RECORDING = 1;
     private static final int MSG_FRAME_AVAILABLE = 2;
-    private static final int MSG_SET_TEXTURE_ID = 3;
-    private static final int MSG_UPDATE_SHARED_CONTEXT = 4;
-    private static final int MSG_QUIT = 5;
+    private static final int MSG_UPDATE_SHARED_CONTEXT = 3;
+    private static final int MSG_QUIT = 4;
+
+    // Number of frames that can be waiting for the encoder thread.
+    static final int FRAME_SLOTS = 8;
 
     // ----- accessed exclusively by encoder thread -----
     private WindowSurface mInputWindowSurface;
     private EglCore mEglCore;
     private FullFrameRect mFullScreen;
-    private int mTextureId;
     private int mFrameNum;
     private VideoEncoderCore mVideoEncoder;
+    private RtpStreamer mStreamer;
+    private int mFullFrameRate;                     // encoder's frame rate hint at start
+    private long mNextFrameNanos;                   // when we want the next frame, if pacing
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
@@ -85,6 +95,18 @@ public class TextureMovieEncoder implements Runnable {
     private boolean mReady;
     private boolean mRunning;
 
+    // Frame descriptor ring.  A slot is filled by the caller of frameAvailable() and
+    // belongs to the encoder thread from when its message is sent until the encoder thread
+    // advances mFrameHead past it.  Only the bookkeeping is guarded by mFrameLock; the
+    // Handler message orders the slot contents.
+    private final Object mFrameLock = new Object();
+    private final float[][] mFrameTransform = new float[FRAME_SLOTS][16];
+    private final long[] mFrameTimestamp = new long[FRAME_SLOTS];
+    private final int[] mFrameTextureId = new int[FRAME_SLOTS];
+    private int mFrameHead;
+    private int mFrameCount;
+    private int mTextureId;                         // last value passed to setTextureId()
+    private long mDroppedFrames;
 
     /**
      * Encoder configuration.
@@ -102,20 +124,46 @@ public class TextureMovieEncoder implements Runnable {
         final int mHeight;
         final int mBitRate;
         final EGLContext mEglContext;
+        final InetSocketAddress mStreamDestination;
+        final boolean mFragmented;
 
         public EncoderConfig(File outputFile, int width, int height, int bitRate,
                 EGLContext sharedEglContext) {
+            this(outputFile, width, height, bitRate, sharedEglContext, null);
+        }
+
+        /**
+         * Creates a config that also streams the video as RTP to streamDestination, if it
+         * isn't null.
+         */
+        public EncoderConfig(File outputFile, int width, int height, int bitRate,
+                EGLContext sharedEglContext, InetSocketAddress streamDestination) {
+            this(outputFile, width, height, bitRate, sharedEglContext, streamDestination,
+                    false);
+        }
+
+        /**
+         * Creates a config that can also write a fragmented .mp4, which is playable while
+         * it's being recorded and survives a crash.  See FragmentedMp4Writer.
+         */
+        public EncoderConfig(File outputFile, int width, int height, int bitRate,
+                EGLContext sharedEglContext, InetSocketAddress streamDestination,
+                boolean fragmented) {
             mOutputFile = outputFile;
             mWidth = width;
             mHeight = height;
             mBitRate = bitRate;
             mEglContext = sharedEglContext;
+            mStreamDestination = streamDestination;
+            mFragmented = fragmented;
         }
 
         @Override
         public String toString() {
             return "EncoderConfig: " + mWidth + "x" + mHeight + " @" + mBitRate +
-                    " to '" + mOutputFile.toString() + "' ctxt=" + mEglContext;
+                    " to '" + mOutputFile.toString() + "' ctxt=" + mEglContext +
+                    (mStreamDestination != null ? " stream=" + mStreamDestination : "") +
+                    (mFragmented ? " fragmented" : "");
         }
     }
 
@@ -135,6 +183,9 @@ public class TextureMovieEncoder implements Runnable {
                 return;
             }
             mRunning = true;
+            synchronized (mFrameLock) {
+                mFrameHead = mFrameCount = 0;
+            }
             new Thread(this, "TextureMovieEncoder").start();
             while (!mReady) {
                 try {
@@ -200,8 +251,6 @@ public class TextureMovieEncoder implements Runnable {
             }
         }
 
-        float[] transform = new float[16];      // TODO - avoid alloc every frame
-        st.getTransformMatrix(transform);
         long timestamp = st.getTimestamp();
         if (timestamp == 0) {
             // Seeing this after device is toggled off/on with power button.  The
@@ -213,14 +262,40 @@ public class TextureMovieEncoder implements Runnable {
             return;
         }
 
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE,
-                (int) (timestamp >> 32), (int) timestamp, transform));
+        int slot;
+        int textureId;
+        synchronized (mFrameLock) {
+            if (mFrameCount == FRAME_SLOTS) {
+                mDroppedFrames++;
+                if (VERBOSE) Log.d(TAG, "encoder behind, dropping frame " + timestamp);
+                return;
+            }
+            slot = (mFrameHead + mFrameCount) % FRAME_SLOTS;
+            mFrameCount++;
+            textureId = mTextureId;
+        }
+        st.getTransformMatrix(mFrameTransform[slot]);
+        mFrameTimestamp[slot] = timestamp;
+        mFrameTextureId[slot] = textureId;
+
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE, slot, 0));
+    }
+
+    /**
+     * Returns the number of frames dropped because the encoder thread had fallen behind.
+     */
+    public long getDroppedFrames() {
+        synchronized (mFrameLock) {
+            return mDroppedFrames;
+        }
     }
 
     /**
      * Tells the video recorder what texture name to use.  This is the external texture that
      * we're receiving camera previews in.  (Call from non-encoder thread.)
      * <p>
+     * The name goes along with each subsequent frame, so no message is needed.
+     * <p>
      * TODO: do something less clumsy
      */
     public void setTextureId(int id) {
@@ -229,7 +304,9 @@ public class TextureMovieEncoder implements Runnable {
                 return;
             }
         }
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_TEXTURE_ID, id, 0, null));
+        synchronized (mFrameLock) {
+            mTextureId = id;
+        }
     }
 
     /**
@@ -241,11 +318,7 @@ public class TextureMovieEncoder implements Runnable {
     public void run() {
         // Establish a Looper for this thread, and define a Handler for it.
         Looper.prepare();
-        synchronized (mReadyFence) {
-            mHandler = new EncoderHandler(this);
-            mReady = true;
-            mReadyFence.notify();
-        }
+        startHandler();
         Looper.loop();
 
         Log.d(TAG, "Encoder thread exiting");
@@ -255,6 +328,27 @@ public class TextureMovieEncoder implements Runnable {
         }
     }
 
+    /**
+     * Creates the Handler and lets callers in.  Encoder thread, with its Looper prepared.
+     * Package-private so tests can drive frameAvailable() without a Looper.
+     */
+    void startHandler() {
+        synchronized (mReadyFence) {
+            mHandler = new EncoderHandler(this);
+            mReady = true;
+            mReadyFence.notify();
+        }
+    }
+
+    /**
+     * Hands the oldest frame descriptor back to frameAvailable().  Encoder thread.
+     */
+    void releaseFrameSlot() {
+        synchronized (mFrameLock) {
+            mFrameHead = (mFrameHead + 1) % FRAME_SLOTS;
+            mFrameCount--;
+        }
+    }
 
     /**
      * Handles encoder state change requests.  The handler is created on the encoder thread.
@@ -285,12 +379,7 @@ public class TextureMovieEncoder implements Runnable {
                     encoder.handleStopRecording();
                     break;
                 case MSG_FRAME_AVAILABLE:
-                    long timestamp = (((long) inputMessage.arg1) << 32) |
-                            (((long) inputMessage.arg2) & 0xffffffffL);
-                    encoder.handleFrameAvailable((float[]) obj, timestamp);
-                    break;
-                case MSG_SET_TEXTURE_ID:
-                    encoder.handleSetTexture(inputMessage.arg1);
+                    encoder.handleFrameAvailable(inputMessage.arg1);
                     break;
                 case MSG_UPDATE_SHARED_CONTEXT:
                     encoder.handleUpdateSharedContext((EGLContext) inputMessage.obj);
@@ -311,22 +400,30 @@ public class TextureMovieEncoder implements Runnable {
         Log.d(TAG, "handleStartRecording " + config);
         mFrameNum = 0;
         prepareEncoder(config.mEglContext, config.mWidth, config.mHeight, config.mBitRate,
-                config.mOutputFile);
+                config.mOutputFile, config.mStreamDestination, config.mFragmented);
     }
 
     /**
      * Handles notification of an available frame.
      * <p>
      * The texture is rendered onto the encoder's input surface, along with a moving
-     * box (just because we can).
+     * box (just because we can).  The slot is handed back once the frame has been drawn.
      * <p>
-     * @param transform The texture transform, from SurfaceTexture.
-     * @param timestampNanos The frame's timestamp, from SurfaceTexture.
+     * @param slot Index of the frame descriptor filled in by frameAvailable().
      */
-    private void handleFrameAvailable(float[] transform, long timestampNanos) {
-        if (VERBOSE) Log.d(TAG, "handleFrameAvailable tr=" + transform);
+    private void handleFrameAvailable(int slot) {
+        long timestampNanos = mFrameTimestamp[slot];
+        if (VERBOSE) Log.d(TAG, "handleFrameAvailable slot=" + slot + " ts=" + timestampNanos);
         mVideoEncoder.drainEncoder(false);
-        mFullScreen.drawFrame(mTextureId, transform);
+        boolean skip = skipForFrameRate(timestampNanos);
+        if (!skip) {
+            mFullScreen.drawFrame(mFrameTextureId[slot], mFrameTransform[slot]);
+        }
+
+        releaseFrameSlot();
+        if (skip) {
+            return;
+        }
 
         drawBox(mFrameNum++);
 
@@ -334,6 +431,30 @@ public class TextureMovieEncoder implements Runnable {
         mInputWindowSurface.swapBuffers();
     }
 
+    /**
+     * Returns true if the frame should be left out to bring the frame rate down to the
+     * encoder's frame rate hint.  Encoders mostly ignore the hint while running, so when
+     * it's been lowered (e.g. by the rate controller) we do the work ourselves.
+     */
+    private boolean skipForFrameRate(long timestampNanos) {
+        int frameRate = mVideoEncoder.getFrameRateHint();
+        if (frameRate >= mFullFrameRate) {
+            mNextFrameNanos = 0;
+            return false;
+        }
+        long periodNanos = 1000000000L / frameRate;
+        if (timestampNanos + periodNanos / 4 < mNextFrameNanos) {
+            return true;
+        }
+        // Keep to the cadence if we're roughly on time, otherwise start over from here.
+        if (timestampNanos > mNextFrameNanos + periodNanos) {
+            mNextFrameNanos = timestampNanos + periodNanos;
+        } else {
+            mNextFrameNanos += periodNanos;
+        }
+        return false;
+    }
+
     /**
      * Handles a request to stop encoding.
      */
@@ -343,14 +464,6 @@ public class TextureMovieEncoder implements Runnable {
         releaseEncoder();
     }
 
-    /**
-     * Sets the texture name that SurfaceTexture will use when frames are received.
-     */
-    private void handleSetTexture(int id) {
-        //Log.d(TAG, "handleSetTexture " + id);
-        mTextureId = id;
-    }
-
     /**
      * Tears down the EGL surface and context we've been using to feed the MediaCodec input
      * surface, and replaces it with a new one that shares with the new context.
@@ -377,9 +490,25 @@ public class TextureMovieEncoder implements Runnable {
     }
 
     private void prepareEncoder(EGLContext sharedContext, int width, int height, int bitRate,
-            File outputFile) {
+            File outputFile, InetSocketAddress streamDestination, boolean fragmented) {
         try {
-            mVideoEncoder = new VideoEncoderCore(width, height, bitRate, outputFile);
+            mVideoEncoder = new VideoEncoderCore(width, height, bitRate, outputFile,
+                    fragmented);
+            if (streamDestination != null) {
+                // Pace at twice the nominal bit rate, so bursts from sync frames are spread
+                // out without falling behind.
+                mStreamer = new RtpStreamer(streamDestination, bitRate / 8 * 2);
+                mVideoEncoder.addSink(mStreamer, EncodedPacketFanout.Policy.DROP_UNTIL_SYNC,
+                        bitRate / 8);       // about a second's worth
+
+                // Back off when the network can't keep up, down to a quarter of the
+                // requested rate and then a third of the frame rate.
+                AdaptiveBitrateController rateController = new AdaptiveBitrateController(
+                        mVideoEncoder, bitRate / 4, mVideoEncoder.getFrameRateHint() / 3);
+                mVideoEncoder.setRateController(rateController, mStreamer);
+            }
+            mFullFrameRate = mVideoEncoder.getFrameRateHint();
+            mNextFrameNanos = 0;
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -393,6 +522,10 @@ public class TextureMovieEncoder implements Runnable {
 
     private void releaseEncoder() {
         mVideoEncoder.release();
+        if (mStreamer != null) {
+            mStreamer.release();
+            mStreamer = null;
+        }
         if (mInputWindowSurface != null) {
             mInputWindowSurface.release();
             mInputWindowSurface = null;
@@ -19,7 +19,6 @@ package com.github.teocci.videohacks.encoder;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.util.Log;
 import android.view.Surface;
 
@@ -36,31 +35,58 @@ import java.nio.ByteBuffer;
  * time stamp, and always call drainEncoder() before swapBuffers() to ensure that the
  * producer side doesn't get backed up.
  * <p>
- * This class is not thread-safe, with one exception: it is valid to use the input surface
- * on one thread, and drain the output on a different thread.
+ * The encoded stream goes to a .mp4 file, and to any other sinks added with addSink().  Each
+ * sink is fed through an {@link EncodedPacketFanout}, so a slow one doesn't hold up the
+ * encoder.
+ * <p>
+ * The bit rate and frame rate can be changed while running, through {@link EncoderControl},
+ * either directly or by an {@link AdaptiveBitrateController} watching one of the sinks.
+ * <p>
+ * This class is not thread-safe, with two exceptions: it is valid to use the input surface
+ * on one thread, and drain the output on a different thread; and the EncoderControl methods
+ * may be called from any thread.
  */
-public class VideoEncoderCore {
+public class VideoEncoderCore implements EncoderControl {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = false;
 
     // TODO: these ought to be configurable as well
     private static final String MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
-    private static final int FRAME_RATE = 30;               // 30fps
+    private static final int FRAME_RATE = 30;               // 30fps; see setFrameRateHint()
     private static final int IFRAME_INTERVAL = 5;           // 5 seconds between I-frames
 
+    // The muxer waits rather than lose data, but gets a few seconds' worth of queue, so it's
+    // only the encoder's problem if storage stalls for a long time.
+    private static final int MUXER_QUEUE_BYTES = 4 * 1024 * 1024;
+
     private Surface mInputSurface;
-    private MediaMuxer mediaMuxer;
     private MediaCodec mediaEncoder;
     private MediaCodec.BufferInfo mBufferInfo;
-    private int mTrackIndex;
-    private boolean mMuxerStarted;
+    private final EncodedPacketFanout mFanout = new EncodedPacketFanout();
+    private boolean mFormatKnown;
+    private final MediaCodecControl mControl;
+    private AdaptiveBitrateController mRateController;
+    private EncodedPacketSink mRateControlSink;
+    private CongestionReporter mRateControlReporter;
 
 
     /**
-     * Configures mediaEncoder and mediaMuxer state, and prepares the input Surface.
+     * Configures mediaEncoder and the file sink, and prepares the input Surface.
      */
     public VideoEncoderCore(int width, int height, int bitRate, File outputFile)
             throws IOException {
+        this(width, height, bitRate, outputFile, false);
+    }
+
+    /**
+     * Configures mediaEncoder and the file sink, and prepares the input Surface.
+     *
+     * @param fragmented If set, write a fragmented .mp4 with FragmentedMp4Writer instead of
+     *     using MediaMuxer.  The file is playable while it's being written, and survives a
+     *     crash.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, File outputFile,
+            boolean fragmented) throws IOException {
         mBufferInfo = new MediaCodec.BufferInfo();
 
         MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
@@ -80,18 +106,17 @@ public class VideoEncoderCore {
         mediaEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mInputSurface = mediaEncoder.createInputSurface();
         mediaEncoder.start();
+        mControl = new MediaCodecControl(mediaEncoder, bitRate, FRAME_RATE);
 
-        // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
-        // because our MediaFormat doesn't have the Magic Goodies.  These can only be
-        // obtained from the mediaEncoder after it has started processing data.
+        // Create a muxer.  It can't add the video track and start here, because our
+        // MediaFormat doesn't have the Magic Goodies.  These can only be obtained from the
+        // mediaEncoder after it has started processing data.
         //
         // We're not actually interested in multiplexing audio.  We just want to convert
         // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
-        mediaMuxer = new MediaMuxer(outputFile.toString(),
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-
-        mTrackIndex = -1;
-        mMuxerStarted = false;
+        EncodedPacketSink fileSink = fragmented ?
+                new FragmentedMp4Writer(outputFile) : new MuxerSink(outputFile);
+        mFanout.addSink(fileSink, EncodedPacketFanout.Policy.BLOCK, MUXER_QUEUE_BYTES);
     }
 
     /**
@@ -102,32 +127,97 @@ public class VideoEncoderCore {
     }
 
     /**
-     * Releases mediaEncoder resources.
+     * Sends the encoded stream to another sink, as well as to the file.  Call before the
+     * first drainEncoder().  The caller keeps ownership of the sink.
+     *
+     * @param maxBytes Most data to queue for the sink.  Ignored for DIRECT.
+     */
+    public void addSink(EncodedPacketSink sink, EncodedPacketFanout.Policy policy,
+            int maxBytes) {
+        mFanout.addSink(sink, policy, maxBytes);
+    }
+
+    /**
+     * Returns the fan-out feeding the sinks, for its statistics.
+     */
+    public EncodedPacketFanout getFanout() {
+        return mFanout;
+    }
+
+    /**
+     * Lets a controller adjust the encoder based on how well a sink is keeping up.  The
+     * controller is fed from drainEncoder(), after each packet.  Call before the first
+     * drainEncoder().
+     *
+     * @param sink The sink whose queue the controller watches.  Must have been added with
+     *     addSink().  If it's a CongestionReporter, what it queues and drops itself is
+     *     counted too.
+     */
+    public void setRateController(AdaptiveBitrateController controller,
+            EncodedPacketSink sink) {
+        mRateController = controller;
+        mRateControlSink = sink;
+        mRateControlReporter = (sink instanceof CongestionReporter) ?
+                (CongestionReporter) sink : null;
+    }
+
+    @Override
+    public void setBitRate(int bitRate) {
+        mControl.setBitRate(bitRate);
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        mControl.requestSyncFrame();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Most encoders ignore this while running, so whoever feeds the input surface should
+     * also skip frames to match.
+     */
+    @Override
+    public void setFrameRateHint(int frameRate) {
+        mControl.setFrameRateHint(frameRate);
+    }
+
+    @Override
+    public int getBitRate() {
+        return mControl.getBitRate();
+    }
+
+    @Override
+    public int getFrameRateHint() {
+        return mControl.getFrameRateHint();
+    }
+
+    /**
+     * Releases mediaEncoder resources.  Waits for the sinks to finish with what they have.
      */
     public void release() {
         if (VERBOSE) Log.d(TAG, "releasing mediaEncoder objects");
         if (mediaEncoder != null) {
+            mControl.release();
             mediaEncoder.stop();
             mediaEncoder.release();
             mediaEncoder = null;
         }
-        if (mediaMuxer != null) {
-            // TODO: stop() throws an exception if you haven't fed it any data.  Keep track
-            //       of frames submitted, and don't call stop() if we haven't written anything.
-            mediaMuxer.stop();
-            mediaMuxer.release();
-            mediaMuxer = null;
+        mFanout.stop();
+        Log.d(TAG, "sinks stopped: " + mFanout);
+        if (mRateController != null) {
+            Log.d(TAG, "rate control: " + mRateController);
         }
     }
 
     /**
-     * Extracts all pending data from the mediaEncoder and forwards it to the mediaMuxer.
+     * Extracts all pending data from the mediaEncoder and forwards it to the sinks.
      * <p>
      * If endOfStream is not set, this returns when there is no more data to drain.  If it
      * is set, we send EOS to the mediaEncoder, and then iterate until we see EOS on the output.
-     * Calling this with endOfStream set should be done once, right before stopping the mediaMuxer.
+     * Calling this with endOfStream set should be done once, right before release().
      * <p>
-     * We're just using the mediaMuxer to get a .mp4 file (instead of a raw H.264 stream).  We're
+     * We're just using the muxer to get a .mp4 file (instead of a raw H.264 stream).  We're
      * not recording audio.
      *
      * @param endOfStream boolean
@@ -156,16 +246,15 @@ public class VideoEncoderCore {
                 encoderOutputBuffers = mediaEncoder.getOutputBuffers();
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
+                if (mFormatKnown) {
                     throw new RuntimeException("format changed twice");
                 }
                 MediaFormat newFormat = mediaEncoder.getOutputFormat();
                 Log.d(TAG, "mediaEncoder output format changed: " + newFormat);
 
-                // now that we have the Magic Goodies, start the muxer
-                mTrackIndex = mediaMuxer.addTrack(newFormat);
-                mediaMuxer.start();
-                mMuxerStarted = true;
+                // now that we have the Magic Goodies, the muxer can start
+                mFanout.formatChanged(newFormat);
+                mFormatKnown = true;
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from mediaEncoder.dequeueOutputBuffer: " +
                         encoderStatus);
@@ -177,25 +266,33 @@ public class VideoEncoderCore {
                             " was null");
                 }
 
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    // The codec config data was pulled out and fed to the muxer when we got
-                    // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                    if (VERBOSE) Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                    mBufferInfo.size = 0;
-                }
-
+                // Codec config data goes to the sinks too.  The muxer got it with the format
+                // and ignores it, but e.g. a network sink needs to resend it.
                 if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
+                    if (!mFormatKnown) {
+                        throw new RuntimeException("got data before the output format");
                     }
 
                     // adjust the ByteBuffer values to match BufferInfo (not needed?)
                     encodedData.position(mBufferInfo.offset);
                     encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
 
-                    mediaMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
+                    mFanout.packet(encodedData, mBufferInfo.flags,
+                            mBufferInfo.presentationTimeUs);
+                    if (mRateController != null) {
+                        mRateController.onPacket(mBufferInfo.size, mBufferInfo.flags,
+                                mBufferInfo.presentationTimeUs);
+                        int queuedBytes = mFanout.getQueuedBytes(mRateControlSink);
+                        long droppedPackets = mFanout.getDroppedPackets(mRateControlSink);
+                        if (mRateControlReporter != null) {
+                            queuedBytes += mRateControlReporter.getQueuedBytes();
+                            droppedPackets += mRateControlReporter.getDroppedPackets();
+                        }
+                        mRateController.update(System.nanoTime() / 1000, queuedBytes,
+                                droppedPackets);
+                    }
                     if (VERBOSE) {
-                        Log.d(TAG, "sent " + mBufferInfo.size + " bytes to muxer, ts=" +
+                        Log.d(TAG, "sent " + mBufferInfo.size + " bytes to sinks, ts=" +
                                 mBufferInfo.presentationTimeUs);
                     }
                 }
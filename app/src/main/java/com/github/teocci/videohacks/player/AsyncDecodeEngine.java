@@ -0,0 +1,345 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decode loop driven by codec buffer-available events, rather than by polling with
+ * timeouts.
+ * <p>
+ * The codec tells us (on its own thread) when an input buffer is free or an output buffer
+ * is ready.  We just note the index and wake the player thread, which does the actual work:
+ * it fills every free input buffer as soon as it learns of it, and renders output buffers
+ * in order, calling the FrameCallback around each one exactly as the synchronous loop in
+ * MoviePlayer does.  When there's nothing to do, the player thread sleeps until the next
+ * event, so it neither spins nor waits out a timeout.
+ * <p>
+ * Input is fed on the player thread rather than the codec's, because the FrameCallback may
+ * sleep to pace output, and the sample source has to be repositioned on the player thread when
+ * we loop.  While it's sleeping, free input buffers queue up and are all filled as soon as
+ * it wakes.
+ */
+class AsyncDecodeEngine implements PlayerCodec.Callback {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    // Codecs have a handful of buffers; this is far more than we expect to see pending.
+    private static final int MAX_PENDING = 64;
+
+    private final PlayerCodec mCodec;
+    private final SampleSource mSource;
+    private final SeekController mSeekController;
+    private final boolean mIsAvc;
+
+    // Pending buffer indices, guarded by mLock.  Output buffers keep a copy of their
+    // BufferInfo, since the codec only lends it to us for the duration of the callback.
+    private final Object mLock = new Object();
+    private final int[] mInputIndex = new int[MAX_PENDING];
+    private int mInputHead;
+    private int mInputCount;
+    private final int[] mOutputIndex = new int[MAX_PENDING];
+    private final int[] mOutputFlags = new int[MAX_PENDING];
+    private final int[] mOutputSize = new int[MAX_PENDING];
+    private final long[] mOutputPtsUsec = new long[MAX_PENDING];
+    private int mOutputHead;
+    private int mOutputCount;
+    private RuntimeException mError;
+
+    private volatile boolean mIsStopRequested;
+    private volatile boolean mSkipNonReference;
+    private long mTimeToFirstFrameNsec = -1;
+    private PlaybackTelemetry mTelemetry;
+
+    // Used only on the player thread.
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * @param codec The decoder.  Must not have been started.
+     * @param source Source of input.
+     * @param seekController Source of seek requests.
+     */
+    public AsyncDecodeEngine(PlayerCodec codec, SampleSource source,
+            SeekController seekController) {
+        mCodec = codec;
+        mSource = source;
+        mSeekController = seekController;
+        mIsAvc = NalUnits.MIME_AVC.equals(source.getFormat().getString(MediaFormat.KEY_MIME));
+    }
+
+    /**
+     * Sets whether H.264 non-reference frames are left out of the decoder's input.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void setSkipNonReferenceFrames(boolean skip) {
+        mSkipNonReference = skip;
+    }
+
+    /**
+     * Wakes the player thread so it notices a new seek request.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void wake() {
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Asks the engine to stop.  Returns without waiting for playback to halt.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void requestStop() {
+        mIsStopRequested = true;
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+    }
+
+    @Override   // codec thread
+    public void onInputBufferAvailable(int index) {
+        synchronized (mLock) {
+            if (mInputCount == MAX_PENDING) {
+                throw new RuntimeException("Too many pending input buffers");
+            }
+            mInputIndex[(mInputHead + mInputCount) % MAX_PENDING] = index;
+            mInputCount++;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override   // codec thread
+    public void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+        synchronized (mLock) {
+            if (mOutputCount == MAX_PENDING) {
+                throw new RuntimeException("Too many pending output buffers");
+            }
+            int slot = (mOutputHead + mOutputCount) % MAX_PENDING;
+            mOutputIndex[slot] = index;
+            mOutputFlags[slot] = info.flags;
+            mOutputSize[slot] = info.size;
+            mOutputPtsUsec[slot] = info.presentationTimeUs;
+            mOutputCount++;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override   // codec thread
+    public void onOutputFormatChanged(MediaFormat format) {
+        if (VERBOSE) Log.d(TAG, "decoder output format changed: " + format);
+    }
+
+    @Override   // codec thread
+    public void onError(RuntimeException e) {
+        synchronized (mLock) {
+            mError = e;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Sets where per-frame statistics are recorded.  May be null.  Call before run().
+     */
+    public void setTelemetry(PlaybackTelemetry telemetry) {
+        mTelemetry = telemetry;
+    }
+
+    /**
+     * Returns the time from the start of play to the first frame of output, or -1 if there
+     * wasn't any.  Player thread, after run() returns.
+     */
+    public long getTimeToFirstFrameNsec() {
+        return mTimeToFirstFrameNsec;
+    }
+
+    /**
+     * Starts the codec and plays until we run out of video or are told to stop.
+     *
+     * @param frameCallback Called around each rendered frame.  May be null.
+     * @param loop If true, play forever.
+     * @param playStartNsec When the player started, for measuring time to first frame.
+     */
+    public void run(MoviePlayer.FrameCallback frameCallback, boolean loop, long playStartNsec) {
+        mCodec.setCallback(this);
+        mCodec.start();
+
+        int inputChunk = 0;
+        long firstInputTimeNsec = -1;
+        boolean inputDone = false;
+
+        while (true) {
+            int inputBufIndex = -1;
+            int decoderStatus = -1;
+            boolean seekRequested = false;
+            synchronized (mLock) {
+                while (!mIsStopRequested && mError == null && mOutputCount == 0 &&
+                        (inputDone || mInputCount == 0) &&
+                        !mSeekController.isSeekRequested()) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) {
+                        // discard
+                    }
+                }
+                if (mError != null) {
+                    throw new RuntimeException("decoder failed", mError);
+                }
+                if (mIsStopRequested) {
+                    Log.d(TAG, "Stop requested");
+                    return;
+                }
+
+                if (mSeekController.isSeekRequested()) {
+                    seekRequested = true;
+                } else if (!inputDone && mInputCount > 0) {
+                    // Feeding input is quick, so do that first.
+                    inputBufIndex = mInputIndex[mInputHead];
+                    mInputHead = (mInputHead + 1) % MAX_PENDING;
+                    mInputCount--;
+                } else {
+                    decoderStatus = mOutputIndex[mOutputHead];
+                    mBufferInfo.offset = 0;
+                    mBufferInfo.size = mOutputSize[mOutputHead];
+                    mBufferInfo.presentationTimeUs = mOutputPtsUsec[mOutputHead];
+                    mBufferInfo.flags = mOutputFlags[mOutputHead];
+                    mOutputHead = (mOutputHead + 1) % MAX_PENDING;
+                    mOutputCount--;
+                }
+            }
+
+            if (seekRequested) {
+                mSeekController.start(mSource);
+                inputDone = false;
+                restart(frameCallback);
+                continue;
+            }
+
+            if (inputBufIndex >= 0) {
+                if (firstInputTimeNsec == -1) {
+                    firstInputTimeNsec = System.nanoTime();
+                }
+                ByteBuffer inputBuf = mCodec.getInputBuffer(inputBufIndex);
+                int chunkSize = NalUnits.readSample(mSource, inputBuf,
+                        mIsAvc && mSkipNonReference);
+                if (chunkSize < 0) {
+                    // End of stream -- send empty frame with EOS flag set.
+                    mCodec.queueInputBuffer(inputBufIndex, 0, 0, 0L,
+                            MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    inputDone = true;
+                    if (VERBOSE) Log.d(TAG, "sent input EOS");
+                } else {
+                    long presentationTimeUs = mSource.getSampleTime();
+                    mCodec.queueInputBuffer(inputBufIndex, 0, chunkSize, presentationTimeUs,
+                            0 /*flags*/);
+                    if (mTelemetry != null) {
+                        mTelemetry.inputQueued(presentationTimeUs, System.nanoTime());
+                    }
+                    if (VERBOSE) {
+                        Log.d(TAG, "submitted frame " + inputChunk + " to dec, size=" +
+                                chunkSize);
+                    }
+                    inputChunk++;
+                    mSource.advance();
+                }
+                continue;
+            }
+
+            if (firstInputTimeNsec != 0) {
+                // Log the delay from the first buffer of input to the first buffer of output.
+                long nowNsec = System.nanoTime();
+                Log.d(TAG, "startup lag " + ((nowNsec - firstInputTimeNsec) / 1000000.0) +
+                        " ms, time to first frame " + ((nowNsec - playStartNsec) / 1000000.0) +
+                        " ms");
+                firstInputTimeNsec = 0;
+                mTimeToFirstFrameNsec = nowNsec - playStartNsec;
+            }
+            if (VERBOSE) Log.d(TAG, "surface decoder given buffer " + decoderStatus +
+                    " (size=" + mBufferInfo.size + ")");
+            boolean doLoop = false;
+            boolean outputDone = false;
+            if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                if (VERBOSE) Log.d(TAG, "output EOS");
+                mSeekController.endOfStream();
+                if (loop) {
+                    doLoop = true;
+                } else {
+                    outputDone = true;
+                }
+            }
+
+            if (mTelemetry != null && mBufferInfo.size != 0) {
+                mTelemetry.outputDequeued(mBufferInfo.presentationTimeUs, System.nanoTime());
+            }
+            boolean seekDiscard = (mBufferInfo.size != 0) &&
+                    !mSeekController.shouldRender(mBufferInfo.presentationTimeUs);
+            boolean doRender = (mBufferInfo.size != 0) && !seekDiscard;
+            if (doRender && frameCallback != null) {
+                doRender = frameCallback.preRender(mBufferInfo.presentationTimeUs);
+            }
+            mCodec.releaseOutputBuffer(decoderStatus, doRender);
+            if (doRender && frameCallback != null) {
+                frameCallback.postRender();
+            }
+            if (mTelemetry != null && mBufferInfo.size != 0) {
+                if (doRender) {
+                    mTelemetry.frameRendered();
+                } else if (seekDiscard) {
+                    mTelemetry.frameDiscardedForSeek();
+                } else {
+                    mTelemetry.frameDropped();
+                }
+            }
+
+            if (doLoop) {
+                Log.d(TAG, "Reached EOS, looping");
+                mSource.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                inputDone = false;
+                restart(frameCallback);
+            }
+            if (outputDone) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Flushes and restarts the codec after the sample source has been repositioned.
+     */
+    private void restart(MoviePlayer.FrameCallback frameCallback) {
+        mCodec.flush();
+        // The flush invalidated every index we're holding.  The codec won't send any more
+        // callbacks until it's restarted, so it's safe to clear them now.
+        synchronized (mLock) {
+            mInputCount = 0;
+            mOutputCount = 0;
+        }
+        mCodec.start();
+        if (frameCallback != null) {
+            frameCallback.loopReset();
+        }
+    }
+}
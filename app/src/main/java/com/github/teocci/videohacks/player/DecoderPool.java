@@ -0,0 +1,301 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Keeps stopped decoders around so the next movie can skip creating one.
+ * <p>
+ * Creating a codec instance is expensive (see CodecOpenActivity), but a stopped codec can be
+ * configured again, with a new format and Surface, much more cheaply.  When a player is done
+ * with a decoder it hands it back with recycle(), and the next acquire() for the same MIME
+ * type and resolution gets it back instead of a new one.
+ * <p>
+ * Idle decoders still hold hardware resources, so the pool keeps only a few, dropping the
+ * least recently used when it's full, and releases any that sit idle too long.  Releasing a
+ * codec can take tens of milliseconds, so the idle timer runs on the pool's own background
+ * thread, and a decoder evicted by recycle() is released on the thread that called it.  The
+ * pool is meant to live as long as the process.
+ * <p>
+ * We also track how long it takes to get the first frame on screen, separately for pooled
+ * and new decoders, so the benefit can be measured.
+ * <p>
+ * All methods may be called from any thread.
+ */
+public class DecoderPool {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private final int mMaxIdle;
+    private final long mIdleTimeoutMsec;
+    private final HandlerThread mTrimThread;
+    private final Handler mHandler;
+
+    // Idle decoders, least recently used first.  Parallel lists.
+    private final ArrayList<MediaCodec> mIdleCodecs = new ArrayList<MediaCodec>();
+    private final ArrayList<String> mIdleKeys = new ArrayList<String>();
+    private final ArrayList<Long> mIdleSinceMsec = new ArrayList<Long>();
+
+    // Decoders handed out, and where they came from.
+    private final IdentityHashMap<MediaCodec, Lease> mLeased =
+            new IdentityHashMap<MediaCodec, Lease>();
+
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+    private int mHitFirstFrames;
+    private long mHitFirstFrameNsec;
+    private int mMissFirstFrames;
+    private long mMissFirstFrameNsec;
+
+    private final Runnable mTrimRunnable = new Runnable() {
+        @Override
+        public void run() {
+            trim();
+        }
+    };
+
+    /**
+     * @param maxIdle Most idle decoders to keep.
+     * @param idleTimeoutMsec How long an idle decoder is kept before it's released.
+     */
+    public DecoderPool(int maxIdle, long idleTimeoutMsec) {
+        mMaxIdle = maxIdle;
+        mIdleTimeoutMsec = idleTimeoutMsec;
+        mTrimThread = new HandlerThread("Decoder Pool", Process.THREAD_PRIORITY_BACKGROUND);
+        mTrimThread.start();
+        mHandler = new Handler(mTrimThread.getLooper());
+    }
+
+    /**
+     * Returns a stopped decoder for the format, from the pool if there's one that matches,
+     * or a new one if not.  The caller configures and starts it, and gives it back with
+     * recycle() when done.
+     */
+    public MediaCodec acquire(MediaFormat format) throws IOException {
+        String key = keyFor(format);
+        synchronized (this) {
+            for (int i = mIdleKeys.size() - 1; i >= 0; i--) {
+                if (mIdleKeys.get(i).equals(key)) {
+                    MediaCodec codec = mIdleCodecs.remove(i);
+                    mIdleKeys.remove(i);
+                    mIdleSinceMsec.remove(i);
+                    mLeased.put(codec, new Lease(key, true));
+                    mHits++;
+                    if (VERBOSE) Log.d(TAG, "decoder pool hit for " + key);
+                    return codec;
+                }
+            }
+            mMisses++;
+        }
+
+        if (VERBOSE) Log.d(TAG, "decoder pool miss for " + key);
+        MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        synchronized (this) {
+            mLeased.put(codec, new Lease(key, false));
+        }
+        return codec;
+    }
+
+    /**
+     * Returns a decoder obtained from acquire() to the pool.  It must have been stopped.
+     * If the pool is full, the least recently used decoder is released.
+     */
+    public void recycle(MediaCodec codec) {
+        MediaCodec evicted = null;
+        synchronized (this) {
+            Lease lease = mLeased.remove(codec);
+            if (lease == null) {
+                Log.w(TAG, "recycled decoder didn't come from the pool");
+                evicted = codec;
+            } else {
+                mIdleCodecs.add(codec);
+                mIdleKeys.add(lease.mKey);
+                mIdleSinceMsec.add(now());
+                if (mIdleCodecs.size() > mMaxIdle) {
+                    evicted = removeIdle(0);
+                    mEvictions++;
+                }
+            }
+        }
+        if (evicted != null) {
+            evicted.release();
+        }
+        mHandler.removeCallbacks(mTrimRunnable);
+        mHandler.postDelayed(mTrimRunnable, mIdleTimeoutMsec);
+    }
+
+    /**
+     * Releases a decoder obtained from acquire() instead of returning it to the pool.  Use
+     * this when playback failed, and the decoder may be left in a state the next user
+     * can't recover from.
+     */
+    public void discard(MediaCodec codec) {
+        synchronized (this) {
+            mLeased.remove(codec);
+        }
+        codec.release();
+    }
+
+    /**
+     * Notes that a decoder obtained from acquire() has been configured for a different
+     * format, so recycle() files it under the format it's actually set up for.
+     */
+    public synchronized void reconfigured(MediaCodec codec, MediaFormat format) {
+        Lease lease = mLeased.get(codec);
+        if (lease != null) {
+            mLeased.put(codec, new Lease(keyFor(format), lease.mHit));
+        }
+    }
+
+    /**
+     * Records how long a movie played with this decoder took to show its first frame.  Call
+     * before recycle().
+     */
+    public synchronized void reportFirstFrame(MediaCodec codec, long timeToFirstFrameNsec) {
+        Lease lease = mLeased.get(codec);
+        if (lease == null) {
+            return;
+        }
+        if (lease.mHit) {
+            mHitFirstFrames++;
+            mHitFirstFrameNsec += timeToFirstFrameNsec;
+        } else {
+            mMissFirstFrames++;
+            mMissFirstFrameNsec += timeToFirstFrameNsec;
+        }
+    }
+
+    /**
+     * Releases decoders that have been idle longer than the timeout.  Runs on the pool's
+     * thread when the idle timer fires, but may be called from any thread.
+     */
+    public void trim() {
+        ArrayList<MediaCodec> expired = new ArrayList<MediaCodec>();
+        long nowMsec = now();
+        synchronized (this) {
+            // Oldest first, so we can stop at the first one that's still fresh.
+            while (!mIdleCodecs.isEmpty() &&
+                    nowMsec - mIdleSinceMsec.get(0) >= mIdleTimeoutMsec) {
+                expired.add(removeIdle(0));
+            }
+        }
+        for (MediaCodec codec : expired) {
+            codec.release();
+        }
+        if (VERBOSE) Log.d(TAG, "decoder pool released " + expired.size() + " idle");
+    }
+
+    /**
+     * Releases all idle decoders.  Decoders that are in use aren't affected.
+     */
+    public void clear() {
+        ArrayList<MediaCodec> idle;
+        synchronized (this) {
+            idle = new ArrayList<MediaCodec>(mIdleCodecs);
+            mIdleCodecs.clear();
+            mIdleKeys.clear();
+            mIdleSinceMsec.clear();
+        }
+        for (MediaCodec codec : idle) {
+            codec.release();
+        }
+        mHandler.removeCallbacks(mTrimRunnable);
+    }
+
+    /**
+     * Returns the number of acquire() calls satisfied from the pool.
+     */
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    /**
+     * Returns the number of acquire() calls that had to create a decoder.
+     */
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Returns the number of decoders released because the pool was full.
+     */
+    public synchronized int getEvictions() {
+        return mEvictions;
+    }
+
+    /**
+     * Returns the average time to first frame, in nanoseconds, for movies played with a
+     * pooled decoder (hit == true) or a new one.  Returns 0 if there haven't been any.
+     */
+    public synchronized long getAverageTimeToFirstFrameNsec(boolean hit) {
+        if (hit) {
+            return (mHitFirstFrames == 0) ? 0 : mHitFirstFrameNsec / mHitFirstFrames;
+        } else {
+            return (mMissFirstFrames == 0) ? 0 : mMissFirstFrameNsec / mMissFirstFrames;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DecoderPool[idle=" + mIdleCodecs.size() + " hits=" + mHits + " misses=" +
+                mMisses + " evictions=" + mEvictions + " ttff hit=" +
+                (getAverageTimeToFirstFrameNsec(true) / 1000000) + "ms miss=" +
+                (getAverageTimeToFirstFrameNsec(false) / 1000000) + "ms]";
+    }
+
+    /**
+     * Where a decoder that's in use came from.
+     */
+    private static class Lease {
+        final String mKey;
+        final boolean mHit;
+
+        Lease(String key, boolean hit) {
+            mKey = key;
+            mHit = hit;
+        }
+    }
+
+    private MediaCodec removeIdle(int index) {
+        mIdleKeys.remove(index);
+        mIdleSinceMsec.remove(index);
+        return mIdleCodecs.remove(index);
+    }
+
+    private static String keyFor(MediaFormat format) {
+        return format.getString(MediaFormat.KEY_MIME) + " " +
+                format.getInteger(MediaFormat.KEY_WIDTH) + "x" +
+                format.getInteger(MediaFormat.KEY_HEIGHT);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
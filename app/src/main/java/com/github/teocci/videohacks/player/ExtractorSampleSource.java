@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.nio.ByteBuffer;
+
+/**
+ * SampleSource that reads directly from a MediaExtractor.
+ */
+class ExtractorSampleSource implements SampleSource {
+    private static final String TAG = MainActivity.TAG;
+
+    private final MediaExtractor mExtractor;
+    private final int mTrackIndex;
+    private final MediaFormat mFormat;
+
+    /**
+     * @param extractor Extractor with the track selected.  Released by release().
+     * @param trackIndex Index of the selected track.
+     */
+    public ExtractorSampleSource(MediaExtractor extractor, int trackIndex) {
+        this(extractor, trackIndex, extractor.getTrackFormat(trackIndex));
+    }
+
+    /**
+     * @param extractor Extractor with the track selected.  Released by release().
+     * @param trackIndex Index of the selected track.
+     * @param format The track's format, if the caller already has it.
+     */
+    public ExtractorSampleSource(MediaExtractor extractor, int trackIndex, MediaFormat format) {
+        mExtractor = extractor;
+        mTrackIndex = trackIndex;
+        mFormat = format;
+    }
+
+    @Override
+    public MediaFormat getFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buf, int offset) {
+        int size = mExtractor.readSampleData(buf, offset);
+        if (size >= 0 && mExtractor.getSampleTrackIndex() != mTrackIndex) {
+            Log.w(TAG, "WEIRD: got sample from track " + mExtractor.getSampleTrackIndex() +
+                    ", expected " + mTrackIndex);
+        }
+        return size;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mExtractor.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mExtractor.getSampleFlags();
+    }
+
+    @Override
+    public boolean advance() {
+        return mExtractor.advance();
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        mExtractor.seekTo(timeUs, mode);
+    }
+
+    @Override
+    public void release() {
+        mExtractor.release();
+    }
+}
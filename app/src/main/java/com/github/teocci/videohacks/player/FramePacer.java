@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits for frame deadlines with sub-millisecond precision.
+ * <p>
+ * Sleeping is imprecise: depending on the device, a thread may wake up a millisecond or more
+ * after it asked to.  Spinning is precise but burns a core.  So we park until shortly before
+ * the deadline, then spin the rest of the way.
+ * <p>
+ * How far ahead of the deadline to wake up (the margin) is learned as we go.  Every time we
+ * park we measure how late we actually woke up.  If we overslept by more than the margin, the
+ * margin grows to cover it immediately; otherwise it decays slowly toward what we've been
+ * seeing, so we don't spin longer than we need to.
+ * <p>
+ * The difference between the deadline and when we actually returned is recorded in a
+ * histogram, so the jitter can be checked on a real device.
+ * <p>
+ * Not thread-safe; each player thread should have its own.
+ */
+public class FramePacer {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    // Bounds on the margin.  Below the minimum we'd oversleep on most devices anyway; above
+    // the maximum the device is too sluggish for spinning to be worth it.
+    private static final long MIN_MARGIN_NSEC = 50000L;
+    private static final long MAX_MARGIN_NSEC = 2000000L;
+    private static final long INITIAL_MARGIN_NSEC = 200000L;
+
+    // Margin decays by 1/DECAY_DIVISOR of the difference per wakeup.
+    private static final int DECAY_DIVISOR = 16;
+
+    // Wake up at least this often, so a stopped player doesn't sleep through a long pause.
+    private static final long MAX_PARK_NSEC = 500000000L;
+
+    /** Width of each histogram bucket. */
+    public static final long BUCKET_WIDTH_NSEC = 50000L;
+    /** Number of histogram buckets.  The last one holds everything that doesn't fit. */
+    public static final int BUCKET_COUNT = 41;
+
+    private long mMarginNsec = INITIAL_MARGIN_NSEC;
+    private final long[] mHistogram = new long[BUCKET_COUNT];
+    private long mSampleCount;
+    private long mMaxLatenessNsec;
+    private long mSpinNsec;
+
+    /**
+     * Returns when System.nanoTime() reaches deadlineNsec.  Returns immediately if it
+     * already has.
+     *
+     * @return How late we were, in nanoseconds.
+     */
+    public long waitUntil(long deadlineNsec) {
+        long nowNsec = System.nanoTime();
+        while (deadlineNsec - nowNsec > mMarginNsec) {
+            long parkNsec = Math.min(deadlineNsec - nowNsec - mMarginNsec, MAX_PARK_NSEC);
+            LockSupport.parkNanos(parkNsec);
+            long wakeNsec = System.nanoTime();
+            calibrate(wakeNsec - nowNsec - parkNsec);
+            nowNsec = wakeNsec;
+        }
+
+        long spinStartNsec = nowNsec;
+        while (nowNsec < deadlineNsec) {
+            nowNsec = System.nanoTime();
+        }
+        mSpinNsec += nowNsec - spinStartNsec;
+
+        long latenessNsec = nowNsec - deadlineNsec;
+        record(latenessNsec);
+        return latenessNsec;
+    }
+
+    /**
+     * Adjusts the margin after a park that overslept by oversleepNsec.  (It may be negative,
+     * if parkNanos returned early.)
+     */
+    private void calibrate(long oversleepNsec) {
+        if (oversleepNsec > mMarginNsec) {
+            mMarginNsec = oversleepNsec;
+        } else {
+            mMarginNsec -= (mMarginNsec - Math.max(oversleepNsec, 0)) / DECAY_DIVISOR;
+        }
+        if (mMarginNsec < MIN_MARGIN_NSEC) {
+            mMarginNsec = MIN_MARGIN_NSEC;
+        } else if (mMarginNsec > MAX_MARGIN_NSEC) {
+            mMarginNsec = MAX_MARGIN_NSEC;
+        }
+        if (VERBOSE) Log.d(TAG, "overslept " + oversleepNsec + ", margin now " + mMarginNsec);
+    }
+
+    private void record(long latenessNsec) {
+        int bucket = (int) Math.min(latenessNsec / BUCKET_WIDTH_NSEC, BUCKET_COUNT - 1);
+        mHistogram[bucket]++;
+        mSampleCount++;
+        if (latenessNsec > mMaxLatenessNsec) {
+            mMaxLatenessNsec = latenessNsec;
+        }
+    }
+
+    /**
+     * Returns the current wakeup margin, in nanoseconds.
+     */
+    public long getMarginNsec() {
+        return mMarginNsec;
+    }
+
+    /**
+     * Returns the number of deadlines waited for.
+     */
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Returns the latest we've returned after a deadline, in nanoseconds.
+     */
+    public long getMaxLatenessNsec() {
+        return mMaxLatenessNsec;
+    }
+
+    /**
+     * Returns the total time spent spinning, in nanoseconds.
+     */
+    public long getSpinNsec() {
+        return mSpinNsec;
+    }
+
+    /**
+     * Copies the lateness histogram into dest, which must have BUCKET_COUNT entries.  Bucket n
+     * counts returns between n and n+1 bucket widths after the deadline.
+     */
+    public void getHistogram(long[] dest) {
+        System.arraycopy(mHistogram, 0, dest, 0, BUCKET_COUNT);
+    }
+
+    /**
+     * Clears the histogram and counters.  The margin is kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mHistogram[i] = 0;
+        }
+        mSampleCount = 0;
+        mMaxLatenessNsec = 0;
+        mSpinNsec = 0;
+    }
+
+    /**
+     * Logs the histogram, skipping empty buckets.
+     */
+    public void logHistogram() {
+        Log.d(TAG, "frame pacing: " + mSampleCount + " frames, margin " +
+                (mMarginNsec / 1000) + " us, max late " + (mMaxLatenessNsec / 1000) +
+                " us, spun " + (mSpinNsec / 1000000) + " ms");
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (mHistogram[i] == 0) {
+                continue;
+            }
+            String range = (i == BUCKET_COUNT - 1) ?
+                    ">=" + (i * BUCKET_WIDTH_NSEC / 1000) :
+                    (i * BUCKET_WIDTH_NSEC / 1000) + "-" + ((i + 1) * BUCKET_WIDTH_NSEC / 1000);
+            Log.d(TAG, "  " + range + " us: " + mHistogram[i]);
+        }
+    }
+}
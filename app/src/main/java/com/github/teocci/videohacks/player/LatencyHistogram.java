@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of durations, in nanoseconds, with roughly constant relative precision.
+ * <p>
+ * Values below 128ns get a bucket each.  Above that, each power of two is split into 64
+ * buckets, so a value is never off by more than about 1.6%, from a nanosecond up to an
+ * hour.  (This is the layout HdrHistogram uses.)  Recording a value is a few shifts and an
+ * array increment; nothing is allocated after construction.
+ * <p>
+ * Not thread-safe.  PlaybackTelemetry does the locking.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;      // 128
+    private static final int HALF_COUNT = SUB_BUCKET_COUNT / 2;             // 64
+
+    /** Largest value we keep track of.  Anything bigger is counted as this. */
+    public static final long MAX_VALUE_NSEC = 3600L * 1000000000L;
+
+    private static final int MAX_SHIFT = 63 - Long.numberOfLeadingZeros(MAX_VALUE_NSEC) -
+            (SUB_BUCKET_BITS - 1);
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + MAX_SHIFT * HALF_COUNT;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mTotalCount;
+    private long mTotalNsec;
+    private long mMinNsec = Long.MAX_VALUE;
+    private long mMaxNsec;
+
+    /**
+     * Records a value.  Negative values are counted as zero.
+     */
+    public void record(long valueNsec) {
+        if (valueNsec < 0) {
+            valueNsec = 0;
+        } else if (valueNsec > MAX_VALUE_NSEC) {
+            valueNsec = MAX_VALUE_NSEC;
+        }
+        mCounts[indexFor(valueNsec)]++;
+        mTotalCount++;
+        mTotalNsec += valueNsec;
+        if (valueNsec < mMinNsec) {
+            mMinNsec = valueNsec;
+        }
+        if (valueNsec > mMaxNsec) {
+            mMaxNsec = valueNsec;
+        }
+    }
+
+    /**
+     * Discards everything recorded so far.
+     */
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mTotalNsec = 0;
+        mMinNsec = Long.MAX_VALUE;
+        mMaxNsec = 0;
+    }
+
+    /**
+     * Returns the number of values recorded.
+     */
+    public long getCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * Returns the smallest value recorded, or 0 if there aren't any.
+     */
+    public long getMinNsec() {
+        return (mTotalCount == 0) ? 0 : mMinNsec;
+    }
+
+    /**
+     * Returns the largest value recorded.
+     */
+    public long getMaxNsec() {
+        return mMaxNsec;
+    }
+
+    /**
+     * Returns the mean of the values recorded, or 0 if there aren't any.
+     */
+    public long getMeanNsec() {
+        return (mTotalCount == 0) ? 0 : mTotalNsec / mTotalCount;
+    }
+
+    /**
+     * Returns a value that the given percentage of the recorded values are at or below.
+     * It's the top of the bucket, so it may overstate slightly, but never understates.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(percentile / 100.0 * mTotalCount);
+        if (target < 1) {
+            target = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= target) {
+                return Math.min(highestValueFor(i), mMaxNsec);
+            }
+        }
+        return mMaxNsec;
+    }
+
+    /**
+     * Appends a JSON object summarizing the histogram, in microseconds.
+     */
+    public void appendJson(StringBuilder sb) {
+        sb.append("{\"count\":").append(mTotalCount);
+        appendJsonValue(sb, "min", getMinNsec());
+        appendJsonValue(sb, "mean", getMeanNsec());
+        appendJsonValue(sb, "p50", getValueAtPercentile(50));
+        appendJsonValue(sb, "p90", getValueAtPercentile(90));
+        appendJsonValue(sb, "p99", getValueAtPercentile(99));
+        appendJsonValue(sb, "p999", getValueAtPercentile(99.9));
+        appendJsonValue(sb, "max", mMaxNsec);
+        sb.append('}');
+    }
+
+    private static void appendJsonValue(StringBuilder sb, String name, long valueNsec) {
+        sb.append(",\"").append(name).append("Usec\":").append(valueNsec / 1000);
+    }
+
+    private static int indexFor(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // Shift so the value lands in [HALF_COUNT, SUB_BUCKET_COUNT).
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKET_COUNT + (shift - 1) * HALF_COUNT + (int) (value >> shift) - HALF_COUNT;
+    }
+
+    private static long highestValueFor(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int k = index - SUB_BUCKET_COUNT;
+        int shift = k / HALF_COUNT + 1;
+        long mantissa = k % HALF_COUNT + HALF_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
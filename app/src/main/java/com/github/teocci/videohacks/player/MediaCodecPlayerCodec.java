@@ -0,0 +1,208 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * PlayerCodec backed by a MediaCodec decoder in asynchronous mode.
+ * <p>
+ * MediaCodec callbacks are delivered on a dedicated HandlerThread, so they never wait
+ * behind the player thread (which may be sleeping to pace output), or on a Handler supplied
+ * by the caller, which lets several codecs share one callback thread.  Requires API 23, for
+ * setCallback(Callback, Handler).
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class MediaCodecPlayerCodec implements PlayerCodec {
+    private static final String TAG = MainActivity.TAG;
+
+    private final MediaCodec mDecoder;
+    private final MediaFormat mFormat;
+    private final Surface mSurface;
+    private final DecoderPool mDecoderPool;     // may be null
+    private Handler mCallbackHandler;
+    private HandlerThread mCallbackThread;      // non-null if we created it
+
+    /**
+     * Creates a decoder for the format.  It will be configured when the callback is set.
+     *
+     * @param format Format from the extractor, which includes the codec-specific data.
+     * @param surface Where decoded frames are rendered.
+     */
+    public MediaCodecPlayerCodec(MediaFormat format, Surface surface) throws IOException {
+        this(format, surface, null);
+    }
+
+    /**
+     * Creates a decoder whose callbacks are delivered through the given Handler.  If the
+     * Handler is null, we create a thread for them.
+     */
+    public MediaCodecPlayerCodec(MediaFormat format, Surface surface, Handler callbackHandler)
+            throws IOException {
+        this(format, surface, callbackHandler, null);
+    }
+
+    /**
+     * Creates a decoder, taking it from the pool if one is given.  On release it goes back
+     * to the pool.
+     */
+    public MediaCodecPlayerCodec(MediaFormat format, Surface surface, Handler callbackHandler,
+            DecoderPool pool) throws IOException {
+        mFormat = format;
+        mSurface = surface;
+        mCallbackHandler = callbackHandler;
+        mDecoderPool = pool;
+        if (pool != null) {
+            mDecoder = pool.acquire(format);
+        } else {
+            mDecoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+        }
+    }
+
+    /**
+     * Returns true if the device supports what this class needs.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    @Override
+    public void setCallback(final Callback callback) {
+        if (mCallbackHandler == null) {
+            mCallbackThread = new HandlerThread("Codec Callbacks");
+            mCallbackThread.start();
+            mCallbackHandler = new Handler(mCallbackThread.getLooper());
+        }
+        mDecoder.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                callback.onInputBufferAvailable(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index,
+                    MediaCodec.BufferInfo info) {
+                callback.onOutputBufferAvailable(index, info);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                callback.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                callback.onOutputFormatChanged(format);
+            }
+        }, mCallbackHandler);
+
+        // The callback has to be in place before we configure.
+        mDecoder.configure(mFormat, mSurface, null, 0);
+    }
+
+    @Override
+    public void start() {
+        mDecoder.start();
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mDecoder.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+            int flags) {
+        mDecoder.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mDecoder.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void flush() {
+        mDecoder.flush();
+    }
+
+    @Override
+    public void stop() {
+        mDecoder.stop();
+    }
+
+    /**
+     * Passes the time to first frame to the pool, if there is one.  Call after stop().
+     */
+    public void reportFirstFrame(long timeToFirstFrameNsec) {
+        if (mDecoderPool != null) {
+            mDecoderPool.reportFirstFrame(mDecoder, timeToFirstFrameNsec);
+        }
+    }
+
+    /**
+     * Releases the decoder, or returns it to the pool.  Call after stop().
+     */
+    @Override
+    public void release() {
+        if (mDecoderPool != null) {
+            // The next user may want synchronous mode.
+            mDecoder.setCallback(null);
+            mDecoderPool.recycle(mDecoder);
+        } else {
+            mDecoder.release();
+        }
+        quitCallbackThread();
+    }
+
+    /**
+     * Stops and releases the decoder without returning it to the pool.  Use instead of
+     * stop() and release() when playback failed, since the decoder may be in any state.
+     */
+    public void discard() {
+        try {
+            mDecoder.stop();
+        } catch (IllegalStateException ise) {
+            Log.w(TAG, "stop() of failed decoder threw", ise);
+        }
+        if (mDecoderPool != null) {
+            mDecoderPool.discard(mDecoder);
+        } else {
+            mDecoder.release();
+        }
+        quitCallbackThread();
+    }
+
+    private void quitCallbackThread() {
+        if (mCallbackThread != null) {
+            mCallbackThread.quit();
+            mCallbackThread = null;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * What we know about a movie's video track without decoding it: the format, dimensions,
+ * duration, sample count, largest sample, and the times of the sync frames.
+ * <p>
+ * Getting all of that means walking every sample in the file, so we do it once and keep
+ * the result in a small cache file.  The cache is keyed by the movie's path, and records
+ * its size and modification time; if either has changed, the entry is ignored.  Cache files
+ * go in the directory set with {@link #setCacheDir(File)}, or next to the movie if none has
+ * been set.
+ * <p>
+ * Object is immutable, so it can be passed between threads without synchronization.
+ */
+public class MovieMetadata {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final String SUFFIX = ".meta";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x4d4f4f56;        // "MOOV"
+    private static final int VERSION = 2;
+
+    private static volatile File sCacheDir;
+
+    private final int mTrackIndex;
+    private final String mMime;
+    private final int mWidth;
+    private final int mHeight;
+    private final long mDurationUsec;
+    private final int mSampleCount;
+    private final int mMaxSampleSize;
+    private final byte[] mCsd0;
+    private final byte[] mCsd1;
+    private final SyncSampleIndex mSyncIndex;
+
+    MovieMetadata(int trackIndex, String mime, int width, int height, long durationUsec,
+            int sampleCount, int maxSampleSize, byte[] csd0, byte[] csd1, long[] syncPtsUsec) {
+        mTrackIndex = trackIndex;
+        mMime = mime;
+        mWidth = width;
+        mHeight = height;
+        mDurationUsec = durationUsec;
+        mSampleCount = sampleCount;
+        mMaxSampleSize = maxSampleSize;
+        mCsd0 = csd0;
+        mCsd1 = csd1;
+        mSyncIndex = new SyncSampleIndex(syncPtsUsec);
+    }
+
+    /**
+     * Sets the directory for cache files, e.g. Context.getCacheDir().  If not set, each
+     * movie's cache file goes next to it.
+     */
+    public static void setCacheDir(File cacheDir) {
+        sCacheDir = cacheDir;
+    }
+
+    /**
+     * Returns the cached metadata for a movie, or null if there isn't an up-to-date entry.
+     * Only reads the (small) cache file.
+     */
+    public static MovieMetadata getCached(File sourceFile) {
+        return readCache(sourceFile, getCacheFile(sourceFile));
+    }
+
+    /**
+     * Returns the metadata for a movie, from the cache if possible, otherwise by scanning
+     * the movie with a new extractor.
+     */
+    public static MovieMetadata get(File sourceFile) throws IOException {
+        MovieMetadata metadata = getCached(sourceFile);
+        if (metadata != null) {
+            return metadata;
+        }
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(sourceFile.toString());
+            int trackIndex = MoviePlayer.selectTrack(extractor);
+            if (trackIndex < 0) {
+                throw new RuntimeException("No video track found in " + sourceFile);
+            }
+            extractor.selectTrack(trackIndex);
+            return build(sourceFile, extractor, trackIndex);
+        } finally {
+            extractor.release();
+        }
+    }
+
+
+    /**
+     * Scans a movie and updates the cache.  The extractor is left positioned at the start,
+     * so the caller can go on to play from it.
+     *
+     * @param extractor Extractor for sourceFile, with the video track selected.
+     */
+    public static MovieMetadata build(File sourceFile, MediaExtractor extractor,
+            int trackIndex) {
+        long startNsec = System.nanoTime();
+        MediaFormat format = extractor.getTrackFormat(trackIndex);
+
+        // MediaExtractor can't tell us a sample's size without reading it, so we need
+        // somewhere to put the data.  A compressed frame won't normally be bigger than a raw
+        // one; scan() grows the buffer if one is.
+        int scratchSize = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE) ?
+                format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) :
+                format.getInteger(MediaFormat.KEY_WIDTH) *
+                        format.getInteger(MediaFormat.KEY_HEIGHT) * 3 / 2;
+        long durationUsec = format.containsKey(MediaFormat.KEY_DURATION) ?
+                format.getLong(MediaFormat.KEY_DURATION) : -1;
+        MovieMetadata metadata = scan(new ExtractorSampleSource(extractor, trackIndex, format),
+                trackIndex, format.getString(MediaFormat.KEY_MIME),
+                format.getInteger(MediaFormat.KEY_WIDTH),
+                format.getInteger(MediaFormat.KEY_HEIGHT), durationUsec,
+                getBytes(format, "csd-0"), getBytes(format, "csd-1"), scratchSize);
+        extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        Log.d(TAG, "Scanned " + sourceFile + ": " + metadata.mSampleCount + " samples, " +
+                metadata.mSyncIndex.getCount() + " sync, in " +
+                ((System.nanoTime() - startNsec) / 1000000) + " ms");
+
+        File cacheFile = getCacheFile(sourceFile);
+        try {
+            metadata.writeCache(sourceFile, cacheFile);
+        } catch (IOException ioe) {
+            // Not fatal; we'll just have to scan again next time.
+            Log.w(TAG, "Unable to write " + cacheFile + ": " + ioe.getMessage());
+        }
+        return metadata;
+    }
+
+    /**
+     * Walks every sample in the source to find the sample count, the largest sample, and
+     * the sync frame times.  The source is left at the end.
+     *
+     * @param durationUsec Duration from the container, or -1 to use the last sample's time.
+     * @param scratchSize Initial size of the buffer samples are read into.
+     */
+    static MovieMetadata scan(SampleSource source, int trackIndex, String mime, int width,
+            int height, long durationUsec, byte[] csd0, byte[] csd1, int scratchSize) {
+        ByteBuffer scratch = ByteBuffer.allocateDirect(Math.max(scratchSize, 1024));
+        long[] syncPtsUsec = new long[64];
+        int syncCount = 0;
+        int sampleCount = 0;
+        int maxSampleSize = 0;
+        long lastPtsUsec = 0;
+        while (true) {
+            int size;
+            try {
+                size = source.readSampleData(scratch, 0);
+            } catch (IllegalArgumentException iae) {
+                // Sample didn't fit, most likely.  Try again with more room, up to a point;
+                // if the problem is something else, more room won't help.
+                if (scratch.capacity() >= SampleSource.MAX_SAMPLE_SIZE) {
+                    throw iae;
+                }
+                scratch = ByteBuffer.allocateDirect(
+                        Math.min(scratch.capacity() * 2, SampleSource.MAX_SAMPLE_SIZE));
+                continue;
+            }
+            if (size < 0) {
+                break;
+            }
+            long ptsUsec = source.getSampleTime();
+            if ((source.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                if (syncCount == syncPtsUsec.length) {
+                    syncPtsUsec = Arrays.copyOf(syncPtsUsec, syncCount * 2);
+                }
+                syncPtsUsec[syncCount++] = ptsUsec;
+            }
+            maxSampleSize = Math.max(maxSampleSize, size);
+            lastPtsUsec = Math.max(lastPtsUsec, ptsUsec);
+            sampleCount++;
+            source.advance();
+        }
+        syncPtsUsec = Arrays.copyOf(syncPtsUsec, syncCount);
+        Arrays.sort(syncPtsUsec);
+
+        return new MovieMetadata(trackIndex, mime, width, height,
+                durationUsec >= 0 ? durationUsec : lastPtsUsec, sampleCount, maxSampleSize,
+                csd0, csd1, syncPtsUsec);
+    }
+
+    private static byte[] getBytes(MediaFormat format, String key) {
+        ByteBuffer buf = format.getByteBuffer(key);
+        if (buf == null) {
+            return new byte[0];
+        }
+        byte[] bytes = new byte[buf.remaining()];
+        buf.duplicate().get(bytes);
+        return bytes;
+    }
+
+    static File getCacheFile(File sourceFile) {
+        File cacheDir = sCacheDir;
+        if (cacheDir == null) {
+            return new File(sourceFile.getPath() + SUFFIX);
+        }
+        CRC32 crc = new CRC32();
+        byte[] path = sourceFile.getAbsolutePath().getBytes(UTF8);
+        crc.update(path, 0, path.length);
+        return new File(cacheDir, "movie-" + Long.toHexString(crc.getValue()) + SUFFIX);
+    }
+
+    /**
+     * Reads a cache file.  Anything wrong with it -- stale, truncated, or corrupt -- is
+     * treated as a cache miss.
+     */
+    private static MovieMetadata readCache(File sourceFile, File cacheFile) {
+        if (!cacheFile.canRead()) {
+            return null;
+        }
+        long fileSize = cacheFile.length();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            // The path check catches hash collisions in the cache directory.
+            if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                    !in.readUTF().equals(sourceFile.getAbsolutePath()) ||
+                    in.readLong() != sourceFile.length() ||
+                    in.readLong() != sourceFile.lastModified()) {
+                if (VERBOSE) Log.d(TAG, "Stale metadata " + cacheFile);
+                return null;
+            }
+            int trackIndex = in.readInt();
+            String mime = in.readUTF();
+            int width = in.readInt();
+            int height = in.readInt();
+            long durationUsec = in.readLong();
+            int sampleCount = in.readInt();
+            int maxSampleSize = in.readInt();
+            if (trackIndex < 0 || width <= 0 || height <= 0 || sampleCount < 0 ||
+                    maxSampleSize < 0) {
+                throw new IOException("bad track description");
+            }
+            byte[] csd0 = new byte[readLength(in, fileSize, 1)];
+            in.readFully(csd0);
+            byte[] csd1 = new byte[readLength(in, fileSize, 1)];
+            in.readFully(csd1);
+            long[] syncPtsUsec = new long[readLength(in, fileSize, 8)];
+            for (int i = 0; i < syncPtsUsec.length; i++) {
+                syncPtsUsec[i] = in.readLong();
+                if (i > 0 && syncPtsUsec[i] < syncPtsUsec[i - 1]) {
+                    throw new IOException("sync frames out of order");
+                }
+            }
+            if (VERBOSE) Log.d(TAG, "Loaded metadata " + cacheFile);
+            return new MovieMetadata(trackIndex, mime, width, height, durationUsec,
+                    sampleCount, maxSampleSize, csd0, csd1, syncPtsUsec);
+        } catch (IOException ioe) {
+            Log.w(TAG, "Unable to read " + cacheFile + ": " + ioe.getMessage());
+            return null;
+        } catch (RuntimeException re) {
+            Log.w(TAG, "Unable to read " + cacheFile, re);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ioe) {
+                    // discard
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads an array length, and checks that an array that long could fit in the file.
+     */
+    private static int readLength(DataInputStream in, long fileSize, int elementSize)
+            throws IOException {
+        int length = in.readInt();
+        if (length < 0 || (long) length * elementSize > fileSize) {
+            throw new IOException("bad length " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Writes the cache file.  The data goes to a temporary file that's renamed into place,
+     * so a reader never sees a partial file, and two threads writing the same entry (e.g.
+     * SeekController's background index build and a seek) don't interleave.
+     */
+    void writeCache(File sourceFile, File cacheFile) throws IOException {
+        File tempFile = File.createTempFile(cacheFile.getName(), ".tmp",
+                cacheFile.getAbsoluteFile().getParentFile());
+        boolean renamed = false;
+        try {
+            writeCacheData(sourceFile, tempFile);
+            renamed = tempFile.renameTo(cacheFile);
+            if (!renamed) {
+                throw new IOException("unable to rename " + tempFile + " to " + cacheFile);
+            }
+        } finally {
+            if (!renamed) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private void writeCacheData(File sourceFile, File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(sourceFile.getAbsolutePath());
+            out.writeLong(sourceFile.length());
+            out.writeLong(sourceFile.lastModified());
+            out.writeInt(mTrackIndex);
+            out.writeUTF(mMime);
+            out.writeInt(mWidth);
+            out.writeInt(mHeight);
+            out.writeLong(mDurationUsec);
+            out.writeInt(mSampleCount);
+            out.writeInt(mMaxSampleSize);
+            out.writeInt(mCsd0.length);
+            out.write(mCsd0);
+            out.writeInt(mCsd1.length);
+            out.write(mCsd1);
+            out.writeInt(mSyncIndex.getCount());
+            for (int i = 0; i < mSyncIndex.getCount(); i++) {
+                out.writeLong(mSyncIndex.getSyncPtsUsec(i));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Creates a decoder format for the track, including the codec-specific data, with the
+     * input buffer size set to fit the largest sample.
+     */
+    public MediaFormat createFormat() {
+        MediaFormat format = MediaFormat.createVideoFormat(mMime, mWidth, mHeight);
+        if (mCsd0.length != 0) {
+            format.setByteBuffer("csd-0", ByteBuffer.wrap(mCsd0));
+        }
+        if (mCsd1.length != 0) {
+            format.setByteBuffer("csd-1", ByteBuffer.wrap(mCsd1));
+        }
+        format.setLong(MediaFormat.KEY_DURATION, mDurationUsec);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, mMaxSampleSize);
+        return format;
+    }
+
+    /**
+     * Returns the index of the video track, for MediaExtractor#selectTrack().
+     */
+    public int getTrackIndex() {
+        return mTrackIndex;
+    }
+
+    public String getMime() {
+        return mMime;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getDurationUsec() {
+        return mDurationUsec;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Returns the size, in bytes, of the largest sample in the track.
+     */
+    public int getMaxSampleSize() {
+        return mMaxSampleSize;
+    }
+
+    public SyncSampleIndex getSyncIndex() {
+        return mSyncIndex;
+    }
+}
@@ -30,6 +30,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -41,18 +43,32 @@ public class MoviePlayer {
     private static final String TAG = MainActivity.TAG;
     private static final boolean VERBOSE = false;
 
+    private static final int READAHEAD_MAX_BYTES = 4 * 1024 * 1024;
+
     // Declare this here to reduce allocations.
     private MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
 
     // May be set/read by different threads.
     private volatile boolean mIsStopRequested;
+    private volatile AsyncDecodeEngine mAsyncEngine;
+    private volatile boolean mSkipNonReference;
+    private volatile long mLastClipGapNsec = -1;
+    private volatile ReadaheadSampleSource mReadaheadSource;
 
     private File mSourceFile;
+    private SeekController mSeekController;
     private Surface mOutputSurface;
     FrameCallback mFrameCallback;
     private boolean mLoop;
+    private boolean mAsyncDecode;
+    private boolean mReadahead;
     private int mVideoWidth;
     private int mVideoHeight;
+    private MovieMetadata mMetadata;    // null if it wasn't cached when we were created
+    private DecoderPool mDecoderPool;
+    private List<File> mPlaylist;
+    private PlaybackTelemetry mTelemetry;
+    private long mTimeToFirstFrameNsec;
 
 
     /**
@@ -65,6 +81,37 @@ public class MoviePlayer {
     }
 
 
+    /**
+     * How seekTo() picks the first frame to show.
+     */
+    public enum SeekMode {
+        /** The sync frame at or before the target. */
+        PREVIOUS_SYNC,
+        /** The sync frame at or after the target. */
+        NEXT_SYNC,
+        /** Whichever sync frame is closest to the target. */
+        CLOSEST_SYNC,
+        /** The target itself.  Frames from the previous sync frame are decoded silently. */
+        EXACT
+    }
+
+
+    /**
+     * Callback invoked when a seek finishes, on the player thread.
+     */
+    public interface SeekCallback {
+        /**
+         * @param targetUsec The requested presentation time.
+         * @param actualUsec Presentation time of the first frame rendered, or -1 if the
+         *     target was past the end of the movie.
+         * @param latencyNsec Time from starting the seek to rendering that frame.
+         * @param discardedFrames Frames decoded but not shown to get there.
+         */
+        void seekComplete(long targetUsec, long actualUsec, long latencyNsec,
+                int discardedFrames);
+    }
+
+
     /**
      * Callback invoked when rendering video frames.  The MoviePlayer client must
      * provide one of these.
@@ -73,8 +120,9 @@ public class MoviePlayer {
         /**
          * Called immediately before the frame is rendered.
          * @param presentationTimeUsec The desired presentation time, in microseconds.
+         * @return true to render the frame, false to drop it.
          */
-        void preRender(long presentationTimeUsec);
+        boolean preRender(long presentationTimeUsec);
 
         /**
          * Called immediately after the frame render call returns.  The frame may not have
@@ -102,9 +150,23 @@ public class MoviePlayer {
     public MoviePlayer(File sourceFile, Surface outputSurface, FrameCallback frameCallback)
             throws IOException {
         mSourceFile = sourceFile;
+        mSeekController = new SeekController(sourceFile);
         mOutputSurface = outputSurface;
         mFrameCallback = frameCallback;
 
+        // If we've seen this movie before, the cached metadata has what we need, and we
+        // don't have to open it.
+        mMetadata = MovieMetadata.getCached(sourceFile);
+        if (mMetadata != null) {
+            mVideoWidth = mMetadata.getWidth();
+            mVideoHeight = mMetadata.getHeight();
+            mSeekController.setIndex(mMetadata.getSyncIndex());
+            if (VERBOSE) {
+                Log.d(TAG, "Video size is " + mVideoWidth + "x" + mVideoHeight + " (cached)");
+            }
+            return;
+        }
+
         // Pop the file open and pull out the video characteristics.
         // TODO: consider leaving the extractor open.  Should be able to just seek back to
         //       the start after each iteration of play.  Need to rearrange the API a bit --
@@ -153,6 +215,128 @@ public class MoviePlayer {
         mLoop = loopMode;
     }
 
+    /**
+     * Sets the decode mode.  If true, and the device supports it, the decoder is driven by
+     * buffer-available callbacks instead of by polling.  See AsyncDecodeEngine.
+     */
+    public void setAsyncDecode(boolean asyncDecode) {
+        mAsyncDecode = asyncDecode;
+    }
+
+    /**
+     * Sets files to play after this one, without a gap.  While each file plays, the next is
+     * opened and its first GOP read into memory, and the decoder carries straight on from
+     * one to the next.  With loop mode, the whole list repeats.  Seeking isn't supported
+     * in playlist mode, and playback always uses the synchronous decode loop.  Call before
+     * play().
+     */
+    public void setPlaylist(List<File> nextFiles) {
+        mPlaylist = nextFiles.isEmpty() ? null : nextFiles;
+    }
+
+    /**
+     * Returns the time between the last frame of a clip and the first frame of the next,
+     * for the most recent switch in playlist mode, or -1 if there hasn't been one.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public long getLastClipGapNsec() {
+        return mLastClipGapNsec;
+    }
+
+    /**
+     * Sets where per-frame decode latency and dropped-frame counts are recorded.  Call
+     * before play().
+     */
+    public void setTelemetry(PlaybackTelemetry telemetry) {
+        mTelemetry = telemetry;
+    }
+
+    /**
+     * Sets a pool to get the decoder from, and return it to when playback ends, so
+     * successive movies can share one.  Call before play().
+     */
+    public void setDecoderPool(DecoderPool pool) {
+        mDecoderPool = pool;
+    }
+
+    /**
+     * Sets whether non-reference frames are skipped, so they're never decoded.  Nothing else
+     * depends on them, so this speeds up scanning at high playback rates without harming
+     * the frames that remain.  Only H.264 movies are examined; others play every frame.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void setSkipNonReferenceFrames(boolean skip) {
+        mSkipNonReference = skip;
+        AsyncDecodeEngine engine = mAsyncEngine;
+        if (engine != null) {
+            engine.setSkipNonReferenceFrames(skip);
+        }
+    }
+
+    /**
+     * Sets whether samples are read ahead on a separate thread, so slow storage doesn't
+     * hold up the decoder.  See ReadaheadSampleSource.  Ignored in playlist mode.  Call
+     * before play().
+     */
+    public void setReadahead(boolean readahead) {
+        mReadahead = readahead;
+    }
+
+    /**
+     * Returns the number of samples read ahead and waiting for the decoder, or 0 if we're
+     * not reading ahead.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public int getReadaheadQueueDepth() {
+        ReadaheadSampleSource readahead = mReadaheadSource;
+        return (readahead == null) ? 0 : readahead.getQueueDepth();
+    }
+
+    /**
+     * Returns the number of times the decoder had to wait for the readahead thread, or 0
+     * if we're not reading ahead.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public long getReadaheadStalls() {
+        ReadaheadSampleSource readahead = mReadaheadSource;
+        return (readahead == null) ? 0 : readahead.getConsumerStalls();
+    }
+
+    /**
+     * Sets the callback for seek completion.  Call before play().
+     */
+    public void setSeekCallback(SeekCallback seekCallback) {
+        mSeekController.setCallback(seekCallback);
+    }
+
+    /**
+     * Asks the player to jump to a new position.  Returns immediately; the seek is carried
+     * out by the playback thread, replacing any earlier seek that hasn't started yet.
+     * <p>
+     * Seeks use an index of the movie's sync frames, loaded from the metadata cache (in the
+     * directory given to MovieMetadata.setCacheDir(), which the activities set to the app's
+     * cache directory) or built in the background when playback starts.  Until it's ready, the
+     * extractor finds the sync frame instead.  When the seek starts, the FrameCallback's
+     * loopReset() is called so it doesn't try to pace across the jump.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void seekTo(long ptsUsec, SeekMode mode) {
+        if (mPlaylist != null) {
+            Log.w(TAG, "Seeking isn't supported in playlist mode");
+            return;
+        }
+        mSeekController.request(ptsUsec, mode);
+        AsyncDecodeEngine engine = mAsyncEngine;
+        if (engine != null) {
+            engine.wake();
+        }
+    }
+
     /**
      * Asks the player to stop.  Returns without waiting for playback to halt.
      * <p>
@@ -160,6 +344,10 @@ public class MoviePlayer {
      */
     public void requestStop() {
         mIsStopRequested = true;
+        AsyncDecodeEngine engine = mAsyncEngine;
+        if (engine != null) {
+            engine.requestStop();
+        }
     }
 
     /**
@@ -169,8 +357,13 @@ public class MoviePlayer {
      * frameCallback.
      */
     public void play() throws IOException {
+        long playStartNsec = System.nanoTime();
         MediaExtractor extractor = null;
+        SampleSource source = null;
         MediaCodec decoder = null;
+        MediaCodecPlayerCodec codec = null;
+        Playlist playlist = null;
+        boolean finished = false;
 
         // The MediaExtractor error messages aren't very useful.  Check to see if the input
         // file exists so we can throw a better one if it's not there.
@@ -178,37 +371,136 @@ public class MoviePlayer {
             throw new FileNotFoundException("Unable to read " + mSourceFile);
         }
 
+        mTimeToFirstFrameNsec = -1;
         try {
             extractor = new MediaExtractor();
             extractor.setDataSource(mSourceFile.toString());
-            int trackIndex = selectTrack(extractor);
-            if (trackIndex < 0) {
-                throw new RuntimeException("No video track found in " + mSourceFile);
+            int trackIndex;
+            MediaFormat format;
+            if (mMetadata != null) {
+                // The cache has the track and its format (with the input buffer size set to
+                // fit the largest sample), so we don't have to probe the tracks.
+                trackIndex = mMetadata.getTrackIndex();
+                format = mMetadata.createFormat();
+            } else {
+                trackIndex = selectTrack(extractor);
+                if (trackIndex < 0) {
+                    throw new RuntimeException("No video track found in " + mSourceFile);
+                }
+                format = extractor.getTrackFormat(trackIndex);
             }
             extractor.selectTrack(trackIndex);
+            source = new ExtractorSampleSource(extractor, trackIndex, format);
+            if (mReadahead && mPlaylist == null) {
+                // Hold up to a second or a few megabytes of samples, whichever comes first.
+                ReadaheadSampleSource readahead =
+                        new ReadaheadSampleSource(source, READAHEAD_MAX_BYTES, 1000000L);
+                source = readahead;
+                mReadaheadSource = readahead;
+            }
 
-            MediaFormat format = extractor.getTrackFormat(trackIndex);
-
-            // Create a MediaCodec decoder, and configure it with the MediaFormat from the
-            // extractor.  It's very important to use the format from the extractor because
-            // it contains a copy of the CSD-0/CSD-1 codec-specific data chunks.
-            String mime = format.getString(MediaFormat.KEY_MIME);
-            decoder = MediaCodec.createDecoderByType(mime);
-            decoder.configure(format, mOutputSurface, null, 0);
-            decoder.start();
+            // Log whether this is a cold or warm start, to go with the time to first frame.
+            Log.d(TAG, "Playing " + mSourceFile + ", metadata " +
+                    (mMetadata != null ? "cached" : "not cached"));
+            if (mMetadata == null) {
+                // Scan the movie in the background.  That gives seeks an index, and next
+                // time we won't have to probe it.
+                mSeekController.loadIndexInBackground();
+            }
 
-            doExtract(extractor, trackIndex, decoder, mFrameCallback);
+            // Create a MediaCodec decoder, and configure it with the track's MediaFormat.
+            // It's very important to use the format from the extractor (or the copy in the
+            // cache) because it contains the CSD-0/CSD-1 codec-specific data chunks.
+            if (mAsyncDecode && MediaCodecPlayerCodec.isSupported() && mPlaylist == null) {
+                codec = new MediaCodecPlayerCodec(format, mOutputSurface, null, mDecoderPool);
+                AsyncDecodeEngine engine = new AsyncDecodeEngine(codec, source,
+                        mSeekController);
+                engine.setSkipNonReferenceFrames(mSkipNonReference);
+                engine.setTelemetry(mTelemetry);
+                mAsyncEngine = engine;
+                if (mIsStopRequested) {
+                    // requestStop() may have looked for the engine before we set it.
+                    engine.requestStop();
+                }
+                try {
+                    engine.run(mFrameCallback, mLoop, playStartNsec);
+                } finally {
+                    mTimeToFirstFrameNsec = engine.getTimeToFirstFrameNsec();
+                }
+            } else {
+                if (mDecoderPool != null) {
+                    decoder = mDecoderPool.acquire(format);
+                } else {
+                    String mime = format.getString(MediaFormat.KEY_MIME);
+                    decoder = MediaCodec.createDecoderByType(mime);
+                }
+                decoder.configure(format, mOutputSurface, null, 0);
+                decoder.start();
+
+                if (mPlaylist != null) {
+                    List<File> files = new ArrayList<File>();
+                    files.add(mSourceFile);
+                    files.addAll(mPlaylist);
+                    playlist = new Playlist(files, extractor, trackIndex, mLoop);
+                }
+                doExtract(source, decoder, playlist, mFrameCallback, playStartNsec);
+            }
+            finished = true;
         } finally {
             // release everything we grabbed
+            mAsyncEngine = null;
+            if (playlist != null) {
+                playlist.release();
+                playlist = null;
+            }
+            // A decoder only goes back to the pool if playback finished cleanly.  If we're
+            // here because of an exception, it may be failed or half configured.
+            if (codec != null) {
+                if (finished) {
+                    codec.stop();
+                    if (mTimeToFirstFrameNsec >= 0) {
+                        codec.reportFirstFrame(mTimeToFirstFrameNsec);
+                    }
+                    codec.release();
+                } else {
+                    codec.discard();
+                }
+                codec = null;
+            }
             if (decoder != null) {
-                decoder.stop();
-                decoder.release();
+                if (finished) {
+                    decoder.stop();
+                    if (mDecoderPool != null) {
+                        if (mTimeToFirstFrameNsec >= 0) {
+                            mDecoderPool.reportFirstFrame(decoder, mTimeToFirstFrameNsec);
+                        }
+                        mDecoderPool.recycle(decoder);
+                    } else {
+                        decoder.release();
+                    }
+                } else {
+                    try {
+                        decoder.stop();
+                    } catch (IllegalStateException ise) {
+                        Log.w(TAG, "stop() of failed decoder threw", ise);
+                    }
+                    if (mDecoderPool != null) {
+                        mDecoderPool.discard(decoder);
+                    } else {
+                        decoder.release();
+                    }
+                }
                 decoder = null;
             }
-            if (extractor != null) {
+            mReadaheadSource = null;
+            if (source != null) {
+                if (VERBOSE) Log.d(TAG, "source: " + source);
+                source.release();       // releases the extractor too
+                source = null;
+            } else if (extractor != null) {
                 extractor.release();
-                extractor = null;
             }
+            extractor = null;
         }
     }
 
@@ -217,7 +509,7 @@ public class MoviePlayer {
      *
      * @return the track index, or -1 if no video track is found.
      */
-    private static int selectTrack(MediaExtractor extractor) {
+    static int selectTrack(MediaExtractor extractor) {
         // Select the first video track we find, ignore the rest.
         int numTracks = extractor.getTrackCount();
         for (int i = 0; i < numTracks; i++) {
@@ -236,9 +528,11 @@ public class MoviePlayer {
 
     /**
      * Work loop.  We execute here until we run out of video or are told to stop.
+     *
+     * @param playlist If non-null, input comes from here rather than the sample source.
      */
-    private void doExtract(MediaExtractor extractor, int trackIndex, MediaCodec decoder,
-            FrameCallback frameCallback) {
+    private void doExtract(SampleSource source, MediaCodec decoder, Playlist playlist,
+            FrameCallback frameCallback, long playStartNsec) {
         // We need to strike a balance between providing input and reading output that
         // operates efficiently without delays on the output side.
         //
@@ -299,6 +593,8 @@ public class MoviePlayer {
 
         final int TIMEOUT_USEC = 10000;
         ByteBuffer[] decoderInputBuffers = decoder.getInputBuffers();
+        boolean isAvc = NalUnits.MIME_AVC.equals(
+                source.getFormat().getString(MediaFormat.KEY_MIME));
         int inputChunk = 0;
         long firstInputTimeNsec = -1;
 
@@ -311,6 +607,15 @@ public class MoviePlayer {
                 return;
             }
 
+            if (mSeekController.isSeekRequested()) {
+                mSeekController.start(source);
+                inputDone = false;
+                decoder.flush();    // drop everything from before the seek
+                if (frameCallback != null) {
+                    frameCallback.loopReset();
+                }
+            }
+
             // Feed more data to the decoder.
             if (!inputDone) {
                 int inputBufIndex = decoder.dequeueInputBuffer(TIMEOUT_USEC);
@@ -321,27 +626,45 @@ public class MoviePlayer {
                     ByteBuffer inputBuf = decoderInputBuffers[inputBufIndex];
                     // Read the sample data into the ByteBuffer.  This neither respects nor
                     // updates inputBuf's position, limit, etc.
-                    int chunkSize = extractor.readSampleData(inputBuf, 0);
+                    int chunkSize;
+                    if (playlist != null) {
+                        chunkSize = playlist.readSample(inputBuf);
+                    } else {
+                        chunkSize = NalUnits.readSample(source, inputBuf,
+                                isAvc && mSkipNonReference);
+                    }
                     if (chunkSize < 0) {
                         // End of stream -- send empty frame with EOS flag set.
                         decoder.queueInputBuffer(inputBufIndex, 0, 0, 0L,
                                 MediaCodec.BUFFER_FLAG_END_OF_STREAM);
                         inputDone = true;
                         if (VERBOSE) Log.d(TAG, "sent input EOS");
-                    } else {
-                        if (extractor.getSampleTrackIndex() != trackIndex) {
-                            Log.w(TAG, "WEIRD: got sample from track " +
-                                    extractor.getSampleTrackIndex() + ", expected " + trackIndex);
+                    } else if (playlist != null) {
+                        long presentationTimeUs = playlist.getSampleTime();
+                        int flags = playlist.getSampleFlags();
+                        decoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
+                                presentationTimeUs, flags);
+                        // Codec config samples don't come out the other side, so they
+                        // have no decode latency.  Every other sample is timed.
+                        if (mTelemetry != null &&
+                                (flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
+                            mTelemetry.inputQueued(presentationTimeUs, System.nanoTime());
                         }
-                        long presentationTimeUs = extractor.getSampleTime();
+                        inputChunk++;
+                        playlist.advance();
+                    } else {
+                        long presentationTimeUs = source.getSampleTime();
                         decoder.queueInputBuffer(inputBufIndex, 0, chunkSize,
                                 presentationTimeUs, 0 /*flags*/);
+                        if (mTelemetry != null) {
+                            mTelemetry.inputQueued(presentationTimeUs, System.nanoTime());
+                        }
                         if (VERBOSE) {
                             Log.d(TAG, "submitted frame " + inputChunk + " to dec, size=" +
                                     chunkSize);
                         }
                         inputChunk++;
-                        extractor.advance();
+                        source.advance();
                     }
                 } else {
                     if (VERBOSE) Log.d(TAG, "input buffer not available");
@@ -368,42 +691,90 @@ public class MoviePlayer {
                         // Log the delay from the first buffer of input to the first buffer
                         // of output.
                         long nowNsec = System.nanoTime();
-                        Log.d(TAG, "startup lag " + ((nowNsec-firstInputTimeNsec) / 1000000.0) + " ms");
+                        Log.d(TAG, "startup lag " + ((nowNsec-firstInputTimeNsec) / 1000000.0) +
+                                " ms, time to first frame " +
+                                ((nowNsec - playStartNsec) / 1000000.0) + " ms");
                         firstInputTimeNsec = 0;
+                        mTimeToFirstFrameNsec = nowNsec - playStartNsec;
                     }
                     boolean doLoop = false;
+                    boolean doReconfigure = false;
                     if (VERBOSE) Log.d(TAG, "surface decoder given buffer " + decoderStatus +
                             " (size=" + mBufferInfo.size + ")");
                     if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         if (VERBOSE) Log.d(TAG, "output EOS");
-                        if (mLoop) {
+                        mSeekController.endOfStream();
+                        if (playlist != null) {
+                            // The playlist does its own looping.
+                            if (playlist.isReconfigurePending()) {
+                                doReconfigure = true;
+                            } else {
+                                outputDone = true;
+                            }
+                        } else if (mLoop) {
                             doLoop = true;
                         } else {
                             outputDone = true;
                         }
                     }
 
-                    boolean doRender = (mBufferInfo.size != 0);
+                    if (mTelemetry != null && mBufferInfo.size != 0) {
+                        mTelemetry.outputDequeued(mBufferInfo.presentationTimeUs,
+                                System.nanoTime());
+                    }
+                    boolean seekDiscard = (mBufferInfo.size != 0) &&
+                            !mSeekController.shouldRender(mBufferInfo.presentationTimeUs);
+                    boolean doRender = (mBufferInfo.size != 0) && !seekDiscard;
 
                     // As soon as we call releaseOutputBuffer, the buffer will be forwarded
                     // to SurfaceTexture to convert to a texture.  We can't control when it
                     // appears on-screen, but we can manage the pace at which we release
                     // the buffers.
                     if (doRender && frameCallback != null) {
-                        frameCallback.preRender(mBufferInfo.presentationTimeUs);
+                        doRender = frameCallback.preRender(mBufferInfo.presentationTimeUs);
                     }
                     decoder.releaseOutputBuffer(decoderStatus, doRender);
                     if (doRender && frameCallback != null) {
                         frameCallback.postRender();
                     }
+                    if (mTelemetry != null && mBufferInfo.size != 0) {
+                        if (doRender) {
+                            mTelemetry.frameRendered();
+                        } else if (seekDiscard) {
+                            mTelemetry.frameDiscardedForSeek();
+                        } else {
+                            mTelemetry.frameDropped();
+                        }
+                    }
+                    if (doRender && playlist != null) {
+                        long gapNsec = playlist.frameRendered(mBufferInfo.presentationTimeUs);
+                        if (gapNsec >= 0) {
+                            mLastClipGapNsec = gapNsec;
+                        }
+                    }
 
                     if (doLoop) {
                         Log.d(TAG, "Reached EOS, looping");
-                        extractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                        source.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
                         inputDone = false;
                         decoder.flush();    // reset decoder state
                         frameCallback.loopReset();
                     }
+                    if (doReconfigure) {
+                        // The next clip is too different for the decoder to carry on.  The
+                        // time stamps still continue, so pacing isn't disturbed.
+                        Log.d(TAG, "Reconfiguring decoder for next clip");
+                        decoder.stop();
+                        decoder.configure(playlist.getFormat(), mOutputSurface, null, 0);
+                        decoder.start();
+                        if (mDecoderPool != null) {
+                            // Pool it under what it's configured for now, not the first clip.
+                            mDecoderPool.reconfigured(decoder, playlist.getFormat());
+                        }
+                        playlist.reconfigured();
+                        decoderInputBuffers = decoder.getInputBuffers();
+                        inputDone = false;
+                    }
                 }
             }
         }
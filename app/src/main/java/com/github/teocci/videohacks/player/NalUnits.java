@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for looking inside H.264 access units, as MediaExtractor hands them to us (NAL
+ * units separated by start codes).
+ */
+class NalUnits {
+    /** MIME type of the only format we know how to look inside. */
+    public static final String MIME_AVC = "video/avc";
+
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_SLICE_IDR = 5;
+
+    private NalUnits() {}
+
+    /**
+     * Returns true if the access unit holds slices, none of which is used for reference.  No
+     * other frame depends on such a frame, so it can be left out of the decoder's input
+     * without harming anything but itself.
+     * <p>
+     * Doesn't change the buffer's position or limit.
+     *
+     * @param buf Access unit, starting at offset 0.
+     * @param size Number of bytes in the access unit.
+     */
+    public static boolean isNonReference(ByteBuffer buf, int size) {
+        boolean sawSlice = false;
+        int zeroes = 0;
+        for (int i = 0; i < size - 1; i++) {
+            int b = buf.get(i) & 0xff;
+            if (b == 0) {
+                zeroes++;
+                continue;
+            }
+            if (b == 1 && zeroes >= 2) {
+                // Start code.  The next byte is the NAL unit header.
+                int header = buf.get(i + 1) & 0xff;
+                int type = header & 0x1f;
+                int refIdc = (header >> 5) & 0x03;
+                if (type >= NAL_SLICE && type <= NAL_SLICE_IDR) {
+                    if (refIdc != 0) {
+                        return false;
+                    }
+                    sawSlice = true;
+                }
+                i++;
+            }
+            zeroes = 0;
+        }
+        return sawSlice;
+    }
+
+    /**
+     * Reads the next sample into buf, like SampleSource.readSampleData(buf, 0).  If
+     * skipNonReference is set, non-reference frames are passed over.
+     *
+     * @return The sample size, or -1 at end of stream.
+     */
+    public static int readSample(SampleSource source, ByteBuffer buf,
+            boolean skipNonReference) {
+        int chunkSize = source.readSampleData(buf, 0);
+        while (skipNonReference && chunkSize >= 0 && isNonReference(buf, chunkSize)) {
+            source.advance();
+            chunkSize = source.readSampleData(buf, 0);
+        }
+        return chunkSize;
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays any number of movies with two threads, instead of one (sleeping) thread per movie.
+ * <p>
+ * All of the decoders deliver their callbacks to one shared thread.  That thread feeds each
+ * decoder's input from its extractor, and puts each decoded frame into a priority queue,
+ * ordered by the time at which it should be presented.  A timing thread sleeps until the
+ * earliest deadline and releases that frame to its Surface.  Every stream is timed
+ * against the same clock, so they can't drift apart the way independently sleeping
+ * threads do.
+ * <p>
+ * Looping doesn't flush the decoder.  When a stream's extractor runs out, we rewind it and
+ * keep going, offsetting the time stamps so they continue to increase.  (The first frame
+ * after the rewind is a sync frame, so the decoder is happy.)  That way frames from the end
+ * of one pass that are still waiting to be presented aren't thrown away.
+ * <p>
+ * The queue is a binary heap in parallel arrays, so steady-state playback doesn't allocate.
+ * Requires MediaCodec's asynchronous mode (API 23).
+ */
+public class PlaybackScheduler {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final long ONE_MILLION = 1000000L;
+    private static final long DEFAULT_FRAME_DURATION_USEC = ONE_MILLION / 30;
+
+    /** Frames presented later than this count as late. */
+    private static final long LATE_THRESHOLD_NSEC = 4000000L;
+
+    private final HandlerThread mCallbackThread;
+    private final Handler mCallbackHandler;
+    private final Thread mTimingThread;
+    private volatile boolean mShutdownRequested;
+
+    // Frames waiting to be presented, ordered by deadline.  Guarded by mLock.
+    private final Object mLock = new Object();
+    private long[] mHeapDeadlineNsec = new long[32];
+    private Stream[] mHeapStream = new Stream[32];
+    private int[] mHeapBufferIndex = new int[32];
+    private int mHeapSize;
+
+    // Presentation statistics, updated by the timing thread.
+    private volatile long mFramesPresented;
+    private volatile long mLateFrames;
+    private volatile long mTotalLatenessNsec;
+    private volatile long mMaxLatenessNsec;
+
+    /**
+     * Starts the callback and timing threads.
+     */
+    public PlaybackScheduler() {
+        mCallbackThread = new HandlerThread("Playback Callbacks");
+        mCallbackThread.start();
+        mCallbackHandler = new Handler(mCallbackThread.getLooper());
+        mTimingThread = new Thread("Playback Timing") {
+            @Override
+            public void run() {
+                presentFrames();
+            }
+        };
+        mTimingThread.setPriority(Thread.MAX_PRIORITY);
+        mTimingThread.start();
+    }
+
+    /**
+     * Starts playing a movie to a Surface.
+     * <p>
+     * The stream takes ownership of the Surface, and releases it when the stream is removed.
+     *
+     * @param loop If true, play forever.
+     * @return The stream, which can be passed to removeStream().
+     */
+    public Stream addStream(File sourceFile, Surface surface, boolean loop) throws IOException {
+        if (!MediaCodecPlayerCodec.isSupported()) {
+            throw new RuntimeException("Asynchronous decoding requires API 23");
+        }
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(sourceFile.toString());
+            int trackIndex = MoviePlayer.selectTrack(extractor);
+            if (trackIndex < 0) {
+                throw new RuntimeException("No video track found in " + sourceFile);
+            }
+            extractor.selectTrack(trackIndex);
+            MediaFormat format = extractor.getTrackFormat(trackIndex);
+            PlayerCodec codec = new MediaCodecPlayerCodec(format, surface, mCallbackHandler);
+            Stream stream = addStream(codec,
+                    new ExtractorSampleSource(extractor, trackIndex, format), loop);
+            stream.mSurface = surface;
+            return stream;
+        } catch (IOException | RuntimeException e) {
+            extractor.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts playing from the given codec and sample source.  The stream takes ownership of
+     * both.
+     */
+    Stream addStream(PlayerCodec codec, SampleSource source, boolean loop) {
+        Stream stream = new Stream(codec, source, loop);
+        codec.setCallback(stream);
+        codec.start();
+        return stream;
+    }
+
+    /**
+     * Stops a stream and releases its decoder and sample source.  Returns immediately; the
+     * release happens on the callback thread, or right here if that has already quit.
+     */
+    public void removeStream(final Stream stream) {
+        synchronized (mLock) {
+            if (stream.mStopped) {
+                return;
+            }
+            stream.mStopped = true;
+
+            // Drop its queued frames.  Stopping the codec takes care of the buffers.
+            int kept = 0;
+            for (int i = 0; i < mHeapSize; i++) {
+                if (mHeapStream[i] != stream) {
+                    mHeapDeadlineNsec[kept] = mHeapDeadlineNsec[i];
+                    mHeapStream[kept] = mHeapStream[i];
+                    mHeapBufferIndex[kept] = mHeapBufferIndex[i];
+                    kept++;
+                }
+            }
+            Arrays.fill(mHeapStream, kept, mHeapSize, null);
+            mHeapSize = kept;
+            for (int i = kept / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+        boolean posted = mCallbackHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stream.release();
+            }
+        });
+        if (!posted) {
+            // shutdown() got there first.  No more callbacks are coming, so this is safe.
+            stream.release();
+        }
+    }
+
+    /**
+     * Stops the threads.  Remove all streams first.
+     */
+    public void shutdown() {
+        mShutdownRequested = true;
+        LockSupport.unpark(mTimingThread);
+        try {
+            mTimingThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "Timing thread join() was interrupted", ie);
+        }
+        // Let any pending stream releases finish first.
+        mCallbackThread.quitSafely();
+    }
+
+    /**
+     * Returns the number of frames presented so far.
+     */
+    public long getFramesPresented() {
+        return mFramesPresented;
+    }
+
+    /**
+     * Returns the number of frames presented more than a few milliseconds late.
+     */
+    public long getLateFrames() {
+        return mLateFrames;
+    }
+
+    /**
+     * Returns the average difference between when frames should have been presented and when
+     * they were, in nanoseconds.
+     */
+    public long getAverageLatenessNsec() {
+        long frames = mFramesPresented;
+        return (frames == 0) ? 0 : mTotalLatenessNsec / frames;
+    }
+
+    /**
+     * Returns the largest difference between when a frame should have been presented and
+     * when it was, in nanoseconds.
+     */
+    public long getMaxLatenessNsec() {
+        return mMaxLatenessNsec;
+    }
+
+    /**
+     * Timing thread main loop.  Sleeps until the earliest deadline, then presents that
+     * frame.  A frame arriving with an earlier deadline wakes us up.
+     */
+    private void presentFrames() {
+        while (!mShutdownRequested) {
+            long deadlineNsec;
+            synchronized (mLock) {
+                deadlineNsec = (mHeapSize == 0) ? -1 : mHeapDeadlineNsec[0];
+            }
+            if (deadlineNsec == -1) {
+                LockSupport.park(this);
+                continue;
+            }
+            long nowNsec = System.nanoTime();
+            if (nowNsec < deadlineNsec) {
+                LockSupport.parkNanos(this, deadlineNsec - nowNsec);
+                continue;
+            }
+
+            synchronized (mLock) {
+                // The front of the queue may have changed while we weren't holding the lock.
+                if (mHeapSize == 0 || mHeapDeadlineNsec[0] > nowNsec) {
+                    continue;
+                }
+                deadlineNsec = mHeapDeadlineNsec[0];
+                Stream stream = mHeapStream[0];
+                int bufferIndex = mHeapBufferIndex[0];
+                removeTop();
+
+                // Still holding the lock, so removeStream() can't release the codec
+                // underneath us.
+                stream.mCodec.releaseOutputBuffer(bufferIndex, true);
+            }
+
+            long latenessNsec = System.nanoTime() - deadlineNsec;
+            mFramesPresented++;
+            mTotalLatenessNsec += latenessNsec;
+            if (latenessNsec > mMaxLatenessNsec) {
+                mMaxLatenessNsec = latenessNsec;
+            }
+            if (latenessNsec > LATE_THRESHOLD_NSEC) {
+                mLateFrames++;
+            }
+        }
+    }
+
+    /**
+     * Adds a frame to the queue.  Wakes the timing thread if it's now first in line.
+     */
+    private void schedule(Stream stream, int bufferIndex, long deadlineNsec) {
+        boolean first;
+        synchronized (mLock) {
+            if (stream.mStopped) {
+                return;
+            }
+            if (mHeapSize == mHeapDeadlineNsec.length) {
+                int newSize = mHeapSize * 2;
+                mHeapDeadlineNsec = Arrays.copyOf(mHeapDeadlineNsec, newSize);
+                mHeapStream = Arrays.copyOf(mHeapStream, newSize);
+                mHeapBufferIndex = Arrays.copyOf(mHeapBufferIndex, newSize);
+            }
+            int pos = mHeapSize++;
+            mHeapDeadlineNsec[pos] = deadlineNsec;
+            mHeapStream[pos] = stream;
+            mHeapBufferIndex[pos] = bufferIndex;
+            while (pos > 0 && mHeapDeadlineNsec[(pos - 1) / 2] > mHeapDeadlineNsec[pos]) {
+                swap(pos, (pos - 1) / 2);
+                pos = (pos - 1) / 2;
+            }
+            first = (pos == 0);
+        }
+        if (first) {
+            LockSupport.unpark(mTimingThread);
+        }
+    }
+
+    private void removeTop() {
+        mHeapSize--;
+        swap(0, mHeapSize);
+        mHeapStream[mHeapSize] = null;
+        siftDown(0);
+    }
+
+    private void siftDown(int pos) {
+        while (true) {
+            int smallest = pos;
+            int left = pos * 2 + 1;
+            int right = left + 1;
+            if (left < mHeapSize && mHeapDeadlineNsec[left] < mHeapDeadlineNsec[smallest]) {
+                smallest = left;
+            }
+            if (right < mHeapSize && mHeapDeadlineNsec[right] < mHeapDeadlineNsec[smallest]) {
+                smallest = right;
+            }
+            if (smallest == pos) {
+                return;
+            }
+            swap(pos, smallest);
+            pos = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        long deadline = mHeapDeadlineNsec[a];
+        mHeapDeadlineNsec[a] = mHeapDeadlineNsec[b];
+        mHeapDeadlineNsec[b] = deadline;
+        Stream stream = mHeapStream[a];
+        mHeapStream[a] = mHeapStream[b];
+        mHeapStream[b] = stream;
+        int index = mHeapBufferIndex[a];
+        mHeapBufferIndex[a] = mHeapBufferIndex[b];
+        mHeapBufferIndex[b] = index;
+    }
+
+    /**
+     * One movie being played.  The PlayerCodec.Callback methods run on the shared callback
+     * thread.
+     */
+    public class Stream implements PlayerCodec.Callback {
+        final PlayerCodec mCodec;
+        private final SampleSource mSource;
+        private final boolean mLoop;
+        boolean mStopped;           // guarded by the scheduler's lock
+        Surface mSurface;           // released with the codec, if we own it
+
+        // Time stamps are offset by this much, so they keep increasing when we loop.
+        private long mLoopOffsetUsec;
+        private long mFirstPtsUsec = -1;
+        private long mPrevPtsUsec = -1;
+        private long mMaxPtsUsec;
+        private long mFrameDurationUsec = DEFAULT_FRAME_DURATION_USEC;
+        private boolean mInputDone;
+
+        // Maps time stamps to the clock.  Set by the first frame to come out.
+        private long mBaseNsec = -1;
+        private long mBasePtsUsec;
+
+        private Stream(PlayerCodec codec, SampleSource source, boolean loop) {
+            mCodec = codec;
+            mSource = source;
+            mLoop = loop;
+        }
+
+        @Override
+        public void onInputBufferAvailable(int index) {
+            if (isStopped() || mInputDone) {
+                return;
+            }
+            ByteBuffer inputBuf = mCodec.getInputBuffer(index);
+            int chunkSize = mSource.readSampleData(inputBuf, 0);
+            if (chunkSize < 0 && mLoop && mFirstPtsUsec >= 0) {
+                // Rewind, and pick up the time stamps one frame after where we left off.
+                mLoopOffsetUsec += mMaxPtsUsec + mFrameDurationUsec - mFirstPtsUsec;
+                mMaxPtsUsec = 0;
+                mPrevPtsUsec = -1;
+                mSource.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                chunkSize = mSource.readSampleData(inputBuf, 0);
+                if (VERBOSE) Log.d(TAG, "stream looped, offset now " + mLoopOffsetUsec);
+            }
+            if (chunkSize < 0) {
+                mCodec.queueInputBuffer(index, 0, 0, 0L, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                mInputDone = true;
+                return;
+            }
+
+            long ptsUsec = mSource.getSampleTime();
+            if (mFirstPtsUsec < 0) {
+                mFirstPtsUsec = ptsUsec;
+            }
+            if (mPrevPtsUsec >= 0 && ptsUsec > mPrevPtsUsec) {
+                mFrameDurationUsec = ptsUsec - mPrevPtsUsec;
+            }
+            mPrevPtsUsec = ptsUsec;
+            mMaxPtsUsec = Math.max(mMaxPtsUsec, ptsUsec);
+
+            mCodec.queueInputBuffer(index, 0, chunkSize, ptsUsec + mLoopOffsetUsec, 0);
+            mSource.advance();
+        }
+
+        @Override
+        public void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+            if (isStopped()) {
+                return;
+            }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0 || info.size == 0) {
+                if (VERBOSE) Log.d(TAG, "stream output EOS");
+                mCodec.releaseOutputBuffer(index, false);
+                return;
+            }
+            if (mBaseNsec < 0) {
+                mBaseNsec = System.nanoTime();
+                mBasePtsUsec = info.presentationTimeUs;
+            }
+            schedule(this, index,
+                    mBaseNsec + (info.presentationTimeUs - mBasePtsUsec) * 1000);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            if (VERBOSE) Log.d(TAG, "stream output format changed: " + format);
+        }
+
+        @Override
+        public void onError(RuntimeException e) {
+            Log.e(TAG, "stream decoder failed", e);
+            removeStream(this);
+        }
+
+        private boolean isStopped() {
+            synchronized (mLock) {
+                return mStopped;
+            }
+        }
+
+        /**
+         * Releases the codec, sample source, and Surface.  Callback thread, after the stream is
+         * stopped.
+         */
+        void release() {
+            mCodec.stop();
+            mCodec.release();
+            mSource.release();
+            if (mSurface != null) {
+                mSurface.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+/**
+ * Per-frame playback statistics.
+ * <p>
+ * The decode loop tells us when each frame goes into the decoder and when it comes out, and
+ * whether it was rendered, dropped, or discarded on the way to a seek target.  The
+ * FrameCallback tells us how late each rendered frame was against its ideal presentation
+ * time.  We keep histograms of decode latency and lateness, and count frames rendered,
+ * dropped, discarded for seeks, and late.  Seek discards are kept apart from drops, so a
+ * burst of seeking doesn't look like the player falling behind.
+ * <p>
+ * Recording doesn't allocate.  Results can be polled with the getters or dumped with
+ * toJson() from any thread.
+ * <p>
+ * Give the same object to MoviePlayer.setTelemetry() and
+ * SpeedControlCallback.setTelemetry().
+ */
+public class PlaybackTelemetry {
+    /** Frames presented more than this long after their ideal time count as late. */
+    public static final long LATE_THRESHOLD_NSEC = 4000000L;
+
+    // Frames can come out of the decoder in a different order from how they went in, so we
+    // remember when each of the last few went in, by time stamp.
+    private static final int MAX_IN_FLIGHT = 64;
+
+    private final long[] mInputPtsUsec = new long[MAX_IN_FLIGHT];
+    private final long[] mInputNsec = new long[MAX_IN_FLIGHT];
+    private int mInputPos;
+
+    private final LatencyHistogram mDecodeLatency = new LatencyHistogram();
+    private final LatencyHistogram mLateness = new LatencyHistogram();
+    private long mFramesRendered;
+    private long mFramesDropped;
+    private long mFramesSeekDiscarded;
+    private long mFramesLate;
+
+    public PlaybackTelemetry() {
+        for (int i = 0; i < MAX_IN_FLIGHT; i++) {
+            mInputPtsUsec[i] = -1;
+        }
+    }
+
+    /**
+     * Notes that a frame was submitted to the decoder.  Player thread.
+     */
+    public synchronized void inputQueued(long ptsUsec, long nowNsec) {
+        mInputPtsUsec[mInputPos] = ptsUsec;
+        mInputNsec[mInputPos] = nowNsec;
+        mInputPos = (mInputPos + 1) % MAX_IN_FLIGHT;
+    }
+
+    /**
+     * Notes that a decoded frame came out of the decoder, and records how long it took.
+     * Player thread.
+     */
+    public synchronized void outputDequeued(long ptsUsec, long nowNsec) {
+        // Search backward from the most recent, since it's usually near the end.
+        for (int i = 1; i <= MAX_IN_FLIGHT; i++) {
+            int pos = (mInputPos - i + MAX_IN_FLIGHT) % MAX_IN_FLIGHT;
+            if (mInputPtsUsec[pos] == ptsUsec) {
+                mDecodeLatency.record(nowNsec - mInputNsec[pos]);
+                mInputPtsUsec[pos] = -1;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Notes that a decoded frame was sent to the display.  Player thread.
+     */
+    public synchronized void frameRendered() {
+        mFramesRendered++;
+    }
+
+    /**
+     * Notes that a decoded frame was dropped rather than rendered, e.g. because it was
+     * late.  Player thread.
+     */
+    public synchronized void frameDropped() {
+        mFramesDropped++;
+    }
+
+    /**
+     * Notes that a decoded frame was discarded because it came before a seek target.
+     * Player thread.
+     */
+    public synchronized void frameDiscardedForSeek() {
+        mFramesSeekDiscarded++;
+    }
+
+    /**
+     * Records how long after its ideal presentation time a frame was released.  Called by
+     * the FrameCallback.
+     */
+    public synchronized void framePresented(long latenessNsec) {
+        mLateness.record(latenessNsec);
+        if (latenessNsec > LATE_THRESHOLD_NSEC) {
+            mFramesLate++;
+        }
+    }
+
+    /**
+     * Discards everything recorded so far.
+     */
+    public synchronized void reset() {
+        mDecodeLatency.reset();
+        mLateness.reset();
+        mFramesRendered = 0;
+        mFramesDropped = 0;
+        mFramesSeekDiscarded = 0;
+        mFramesLate = 0;
+    }
+
+    /**
+     * Returns the number of frames sent to the display.
+     */
+    public synchronized long getFramesRendered() {
+        return mFramesRendered;
+    }
+
+    /**
+     * Returns the number of decoded frames that were dropped.  Doesn't include frames
+     * discarded for seeks.
+     */
+    public synchronized long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    /**
+     * Returns the number of decoded frames discarded on the way to a seek target.
+     */
+    public synchronized long getFramesSeekDiscarded() {
+        return mFramesSeekDiscarded;
+    }
+
+    /**
+     * Returns the number of frames presented more than LATE_THRESHOLD_NSEC late.
+     */
+    public synchronized long getFramesLate() {
+        return mFramesLate;
+    }
+
+    /**
+     * Returns the given percentile of the time frames spent in the decoder.
+     */
+    public synchronized long getDecodeLatencyNsec(double percentile) {
+        return mDecodeLatency.getValueAtPercentile(percentile);
+    }
+
+    /**
+     * Returns the given percentile of how late frames were presented.
+     */
+    public synchronized long getLatenessNsec(double percentile) {
+        return mLateness.getValueAtPercentile(percentile);
+    }
+
+    /**
+     * Returns everything as a JSON object.  Times are in microseconds.
+     */
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("{\"framesRendered\":").append(mFramesRendered);
+        sb.append(",\"framesDropped\":").append(mFramesDropped);
+        sb.append(",\"framesSeekDiscarded\":").append(mFramesSeekDiscarded);
+        sb.append(",\"framesLate\":").append(mFramesLate);
+        sb.append(",\"decodeLatency\":");
+        mDecodeLatency.appendJson(sb);
+        sb.append(",\"lateness\":");
+        mLateness.appendJson(sb);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The parts of an asynchronous-mode decoder that AsyncDecodeEngine uses.
+ * <p>
+ * This is a thin layer over MediaCodec (see MediaCodecPlayerCodec), so the engine can be
+ * driven by something else, e.g. a fake codec that runs without a device.
+ */
+public interface PlayerCodec {
+    /**
+     * Buffer-available events.  These arrive on a thread owned by the codec, and should
+     * return quickly.
+     */
+    interface Callback {
+        void onInputBufferAvailable(int index);
+
+        /**
+         * @param info Only valid for the duration of the call.
+         */
+        void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info);
+
+        void onOutputFormatChanged(MediaFormat format);
+
+        void onError(RuntimeException e);
+    }
+
+    /**
+     * Sets the callback.  Must be called before start().
+     */
+    void setCallback(Callback callback);
+
+    /**
+     * Starts the codec.  Input buffers will begin to be offered through the callback.
+     */
+    void start();
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    void releaseOutputBuffer(int index, boolean render);
+
+    /**
+     * Discards all queued input and pending output, invalidating all buffer indices.  The
+     * codec is paused until start() is called again.
+     */
+    void flush();
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Feeds a sequence of movies to one decoder as if they were a single movie.
+ * <p>
+ * While one clip plays, the next is prepared on a background thread: its extractor is
+ * opened, and its first GOP is read into memory.  When the current clip runs out, we carry
+ * straight on with the next one's samples, so the decoder never sees an end of stream and
+ * there's nothing to flush.  (The first sample of a clip is a sync frame, and we send the new
+ * clip's codec-specific data just ahead of it.)  Time stamps are offset so they keep
+ * increasing across clips, which means the FrameCallback paces straight through the join.
+ * <p>
+ * If the next clip has a different MIME type or resolution, the decoder can't simply carry
+ * on.  We report end of stream instead, and the player reconfigures the decoder with
+ * getFormat() before continuing.
+ * <p>
+ * The gap between the last frame of one clip and the first of the next is measured on the
+ * output side, in frameRendered().
+ * <p>
+ * Player thread only, apart from the preparation threads.
+ */
+class Playlist {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final long DEFAULT_FRAME_DURATION_USEC = 1000000L / 30;
+
+    private final List<File> mFiles;
+    private final boolean mLoop;
+    private int mNextIndex;
+
+    private Clip mCurrent;
+    private Clip mNext;
+
+    // Codec-specific data to send before the current clip's first frame.
+    private final ArrayList<ByteBuffer> mPendingConfig = new ArrayList<ByteBuffer>();
+    private ByteBuffer mConfigSample;
+    private boolean mReconfigurePending;
+
+    // Time stamp bookkeeping, in the clip's own time.
+    private long mOffsetUsec;
+    private long mFirstPtsUsec = -1;
+    private long mPrevPtsUsec = -1;
+    private long mMaxPtsUsec;
+    private long mFrameDurationUsec = DEFAULT_FRAME_DURATION_USEC;
+
+    // Gap measurement, on the output side.
+    private long mBoundaryPtsUsec = -1;
+    private long mLastRenderNsec;
+
+    /**
+     * @param files Every file in the playlist, in order.  The first is already open.
+     * @param extractor Extractor for the first file, with the video track selected.
+     * @param trackIndex Index of the selected track.
+     * @param loop If true, go back to the first file after the last.
+     */
+    public Playlist(List<File> files, MediaExtractor extractor, int trackIndex, boolean loop) {
+        mFiles = files;
+        mLoop = loop;
+        mCurrent = new Clip(extractor, trackIndex);
+        mNextIndex = 1;
+        prepareNext();
+    }
+
+    /**
+     * Returns the format of the clip being fed to the decoder.
+     */
+    public MediaFormat getFormat() {
+        return mCurrent.mFormat;
+    }
+
+    /**
+     * Returns true if the current clip can't be played without reconfiguring the decoder.
+     * The decoder has been sent end of stream; once it's drained, configure it with
+     * getFormat() and call reconfigured().
+     */
+    public boolean isReconfigurePending() {
+        return mReconfigurePending;
+    }
+
+    /**
+     * Tells us the decoder has been reconfigured for the current clip.
+     */
+    public void reconfigured() {
+        mReconfigurePending = false;
+        mPendingConfig.clear();     // configure() took care of it
+    }
+
+    /**
+     * Reads the next sample into buf, moving on to the next clip if this one is finished.
+     * Like MediaExtractor.readSampleData(), this neither respects nor updates buf's position.
+     *
+     * @return The sample size, or -1 if the playlist is done, or the decoder needs to be
+     *     reconfigured.
+     */
+    public int readSample(ByteBuffer buf) {
+        if (mReconfigurePending) {
+            return -1;
+        }
+        if (!mPendingConfig.isEmpty()) {
+            mConfigSample = mPendingConfig.get(0);
+            return copy(mConfigSample, buf);
+        }
+        mConfigSample = null;
+
+        int size = mCurrent.readSample(buf);
+        if (size >= 0) {
+            return size;
+        }
+        if (mNext == null) {
+            return -1;
+        }
+
+        // On to the next clip.  It picks up one frame after the last one we sent.
+        Clip next = mNext;
+        mNext = null;
+        try {
+            next.await();
+        } catch (RuntimeException re) {
+            next.release();
+            throw re;
+        }
+        boolean compatible = isCompatible(mCurrent.mFormat, next.mFormat);
+        mCurrent.release();     // no-op for the first file
+        mCurrent = next;
+        if (mFirstPtsUsec >= 0) {
+            mOffsetUsec += mMaxPtsUsec + mFrameDurationUsec - mFirstPtsUsec;
+        }
+        mFirstPtsUsec = -1;
+        mPrevPtsUsec = -1;
+        mMaxPtsUsec = 0;
+        prepareNext();
+
+        if (!compatible) {
+            Log.d(TAG, "next clip needs a new decoder configuration");
+            mReconfigurePending = true;
+            return -1;
+        }
+        for (String key : new String[] { "csd-0", "csd-1" }) {
+            if (mCurrent.mFormat.containsKey(key)) {
+                mPendingConfig.add(mCurrent.mFormat.getByteBuffer(key));
+            }
+        }
+        return readSample(buf);
+    }
+
+    /**
+     * Returns the presentation time of the sample just read, on the playlist's timeline.
+     */
+    public long getSampleTime() {
+        if (mConfigSample != null) {
+            return 0;
+        }
+        return mCurrent.getSampleTime() + mOffsetUsec;
+    }
+
+    /**
+     * Returns the MediaCodec flags for the sample just read.
+     */
+    public int getSampleFlags() {
+        return (mConfigSample != null) ? MediaCodec.BUFFER_FLAG_CODEC_CONFIG : 0;
+    }
+
+    /**
+     * Advances to the next sample.
+     */
+    public void advance() {
+        if (mConfigSample != null) {
+            mPendingConfig.remove(0);
+            mConfigSample = null;
+            return;
+        }
+
+        long ptsUsec = mCurrent.getSampleTime();
+        if (mFirstPtsUsec < 0) {
+            mFirstPtsUsec = ptsUsec;
+            // This is the first frame of a new clip.  Watch for it on the output side.
+            if (ptsUsec + mOffsetUsec > 0) {
+                mBoundaryPtsUsec = ptsUsec + mOffsetUsec;
+            }
+        }
+        if (mPrevPtsUsec >= 0 && ptsUsec > mPrevPtsUsec) {
+            mFrameDurationUsec = ptsUsec - mPrevPtsUsec;
+        }
+        mPrevPtsUsec = ptsUsec;
+        mMaxPtsUsec = Math.max(mMaxPtsUsec, ptsUsec);
+        mCurrent.advance();
+    }
+
+    /**
+     * Notes that a frame was rendered.
+     *
+     * @return If this was the first frame of a clip, the time since the previous frame was
+     *     rendered, in nanoseconds.  Otherwise -1.
+     */
+    public long frameRendered(long ptsUsec) {
+        long nowNsec = System.nanoTime();
+        long gapNsec = -1;
+        if (mBoundaryPtsUsec >= 0 && ptsUsec >= mBoundaryPtsUsec && mLastRenderNsec != 0) {
+            gapNsec = nowNsec - mLastRenderNsec;
+            mBoundaryPtsUsec = -1;
+            Log.d(TAG, "inter-clip gap " + (gapNsec / 1000000.0) + " ms (frame interval " +
+                    (mFrameDurationUsec / 1000.0) + " ms)");
+        }
+        mLastRenderNsec = nowNsec;
+        return gapNsec;
+    }
+
+    /**
+     * Releases the extractors.  The first file's extractor belongs to the caller.  Doesn't
+     * throw if the next clip failed to prepare; we're often called while some other
+     * exception is on its way out, and that's the one that matters.
+     */
+    public void release() {
+        mCurrent.release();
+        if (mNext != null) {
+            try {
+                mNext.await();
+            } catch (RuntimeException re) {
+                Log.w(TAG, "Preparing " + mNext.mFile + " failed", re);
+            }
+            mNext.release();
+            mNext = null;
+        }
+    }
+
+    private void prepareNext() {
+        if (mNextIndex == mFiles.size()) {
+            if (!mLoop) {
+                return;
+            }
+            mNextIndex = 0;
+        }
+        mNext = new Clip(mFiles.get(mNextIndex++));
+    }
+
+    private static boolean isCompatible(MediaFormat a, MediaFormat b) {
+        return a.getString(MediaFormat.KEY_MIME).equals(b.getString(MediaFormat.KEY_MIME)) &&
+                a.getInteger(MediaFormat.KEY_WIDTH) == b.getInteger(MediaFormat.KEY_WIDTH) &&
+                a.getInteger(MediaFormat.KEY_HEIGHT) == b.getInteger(MediaFormat.KEY_HEIGHT);
+    }
+
+    /**
+     * Copies src into dst, without touching either's position.
+     */
+    private static int copy(ByteBuffer src, ByteBuffer dst) {
+        ByteBuffer from = src.duplicate();
+        from.clear();
+        ByteBuffer to = dst.duplicate();
+        to.clear();
+        to.put(from);
+        return from.limit();
+    }
+
+    /**
+     * One movie in the playlist.  Samples come from the preloaded first GOP, then from the
+     * extractor.
+     */
+    private static class Clip {
+        // Don't preload more than this, however long the first GOP is.
+        private static final int MAX_PRELOAD_SAMPLES = 300;
+        private static final int MAX_PRELOAD_BYTES = 8 * 1024 * 1024;
+
+        private final File mFile;
+        private final boolean mOwnsExtractor;
+        private final Thread mThread;
+        private MediaExtractor mExtractor;
+        private MediaFormat mFormat;
+        private RuntimeException mFailure;
+
+        // Preloaded samples, and how far we've got through them.
+        private final ArrayList<ByteBuffer> mPreloaded = new ArrayList<ByteBuffer>();
+        private long[] mPreloadedPtsUsec = new long[0];
+        private int mPreloadPos;
+
+        /**
+         * Wraps an extractor that's already open.  Nothing is preloaded.
+         */
+        Clip(MediaExtractor extractor, int trackIndex) {
+            mFile = null;
+            mOwnsExtractor = false;
+            mThread = null;
+            mExtractor = extractor;
+            mFormat = extractor.getTrackFormat(trackIndex);
+        }
+
+        /**
+         * Starts preparing a clip on a background thread.
+         */
+        Clip(File file) {
+            mFile = file;
+            mOwnsExtractor = true;
+            mThread = new Thread("Clip Prepare") {
+                @Override
+                public void run() {
+                    try {
+                        prepare();
+                    } catch (IOException ioe) {
+                        mFailure = new RuntimeException("Unable to open " + mFile, ioe);
+                    } catch (RuntimeException re) {
+                        mFailure = re;
+                    }
+                }
+            };
+            mThread.start();
+        }
+
+        /**
+         * Opens the extractor and reads the first GOP.  Preparation thread.
+         */
+        private void prepare() throws IOException {
+            long startNsec = System.nanoTime();
+            mExtractor = new MediaExtractor();
+            mExtractor.setDataSource(mFile.toString());
+            int trackIndex = MoviePlayer.selectTrack(mExtractor);
+            if (trackIndex < 0) {
+                throw new RuntimeException("No video track found in " + mFile);
+            }
+            mExtractor.selectTrack(trackIndex);
+            mFormat = mExtractor.getTrackFormat(trackIndex);
+
+            // Use the real largest sample if we've seen this file before.  Otherwise guess;
+            // the guess can be short, so we grow the buffer if a sample doesn't fit.
+            MovieMetadata metadata = MovieMetadata.getCached(mFile);
+            int scratchSize;
+            if (metadata != null && metadata.getMaxSampleSize() > 0) {
+                scratchSize = metadata.getMaxSampleSize();
+            } else if (mFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                scratchSize = mFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
+            } else {
+                scratchSize = mFormat.getInteger(MediaFormat.KEY_WIDTH) *
+                        mFormat.getInteger(MediaFormat.KEY_HEIGHT) * 3 / 2;
+            }
+            ByteBuffer scratch = ByteBuffer.allocate(Math.max(scratchSize, 1024));
+            long[] ptsUsec = new long[32];
+            int count = 0;
+            int bytes = 0;
+            while (count < MAX_PRELOAD_SAMPLES && bytes < MAX_PRELOAD_BYTES) {
+                if (count > 0 &&
+                        (mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                    break;      // start of the second GOP
+                }
+                int size;
+                try {
+                    size = mExtractor.readSampleData(scratch, 0);
+                } catch (IllegalArgumentException iae) {
+                    // Sample didn't fit, most likely.  Try again with more room, up to a
+                    // point; if the problem is something else, more room won't help.
+                    if (scratch.capacity() >= SampleSource.MAX_SAMPLE_SIZE) {
+                        throw iae;
+                    }
+                    scratch = ByteBuffer.allocate(
+                            Math.min(scratch.capacity() * 2, SampleSource.MAX_SAMPLE_SIZE));
+                    continue;
+                }
+                if (size < 0) {
+                    break;
+                }
+                ByteBuffer sample = ByteBuffer.allocate(size);
+                scratch.limit(size);
+                scratch.position(0);
+                sample.put(scratch);
+                sample.flip();
+                scratch.clear();
+                mPreloaded.add(sample);
+                if (count == ptsUsec.length) {
+                    ptsUsec = Arrays.copyOf(ptsUsec, count * 2);
+                }
+                ptsUsec[count++] = mExtractor.getSampleTime();
+                bytes += size;
+                mExtractor.advance();
+            }
+            mPreloadedPtsUsec = ptsUsec;
+            if (VERBOSE) {
+                Log.d(TAG, "prepared " + mFile + ": " + count + " samples, " + bytes +
+                        " bytes in " + ((System.nanoTime() - startNsec) / 1000000) + " ms");
+            }
+        }
+
+        /**
+         * Waits for preparation to finish.  Player thread.
+         */
+        void await() {
+            if (mThread == null) {
+                return;
+            }
+            try {
+                mThread.join();
+            } catch (InterruptedException ie) {
+                throw new RuntimeException(ie);
+            }
+            if (mFailure != null) {
+                throw mFailure;
+            }
+        }
+
+        int readSample(ByteBuffer buf) {
+            if (mPreloadPos < mPreloaded.size()) {
+                return copy(mPreloaded.get(mPreloadPos), buf);
+            }
+            return mExtractor.readSampleData(buf, 0);
+        }
+
+        long getSampleTime() {
+            if (mPreloadPos < mPreloaded.size()) {
+                return mPreloadedPtsUsec[mPreloadPos];
+            }
+            return mExtractor.getSampleTime();
+        }
+
+        void advance() {
+            if (mPreloadPos < mPreloaded.size()) {
+                mPreloaded.set(mPreloadPos++, null);    // let it go
+            } else {
+                mExtractor.advance();
+            }
+        }
+
+        /**
+         * Releases the extractor, if we opened it.
+         */
+        void release() {
+            if (mOwnsExtractor && mExtractor != null) {
+                mExtractor.release();
+                mExtractor = null;
+            }
+        }
+    }
+}
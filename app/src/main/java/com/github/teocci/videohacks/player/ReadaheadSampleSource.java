@@ -0,0 +1,389 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.nio.ByteBuffer;
+
+/**
+ * SampleSource that reads ahead of the decode loop on a separate thread.
+ * <p>
+ * A reader thread pulls samples from the upstream source into a queue, so a slow read from
+ * storage holds up the reader rather than the decoder.  The decode loop only copies from
+ * memory, and only waits if the reader has fallen behind entirely.
+ * <p>
+ * The queue is bounded three ways: by sample count, by bytes, and by how far ahead (in
+ * presentation time) of the decode loop it reaches.  Each queue slot keeps its direct
+ * ByteBuffer for reuse, growing it only when a sample doesn't fit, so once things settle
+ * down nothing is allocated.
+ * <p>
+ * The upstream source is only touched by the reader thread.  seekTo() empties the queue and
+ * passes the seek to the reader; anything it was in the middle of reading is thrown away.
+ */
+class ReadaheadSampleSource implements SampleSource {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private static final int MAX_SLOTS = 128;
+    private static final int MIN_SLOT_CAPACITY = 16 * 1024;
+
+    private final SampleSource mSource;
+    private final MediaFormat mFormat;
+    private final int mMaxBytes;
+    private final long mMaxDurationUsec;
+    private final Thread mThread;
+
+    // Queued samples, guarded by mLock.  Slot buffers are kept when their sample is consumed.
+    private final Object mLock = new Object();
+    private final ByteBuffer[] mSlotBuffer = new ByteBuffer[MAX_SLOTS];
+    private final int[] mSlotSize = new int[MAX_SLOTS];
+    private final long[] mSlotPtsUsec = new long[MAX_SLOTS];
+    private final int[] mSlotFlags = new int[MAX_SLOTS];
+    private int mHead;
+    private int mCount;
+    private int mQueuedBytes;
+    private boolean mEndOfStream;
+    private boolean mStopRequested;
+    private RuntimeException mReaderFailure;
+
+    // Seek handoff, guarded by mLock.  The generation changes with every seek, so the
+    // reader can tell that the sample it just read is stale.
+    private int mGeneration;
+    private boolean mSeekPending;
+    private long mSeekTimeUsec;
+    private int mSeekMode;
+
+    // Counters, guarded by mLock.
+    private long mConsumerStalls;
+    private long mConsumerStallNsec;
+    private long mProducerStalls;
+
+    /**
+     * Starts reading ahead.
+     *
+     * @param source Where samples come from.  We take ownership; release() releases it.
+     * @param maxBytes Most sample data to hold.
+     * @param maxDurationUsec How far ahead of the decode loop to read.
+     */
+    public ReadaheadSampleSource(SampleSource source, int maxBytes, long maxDurationUsec) {
+        mSource = source;
+        mFormat = source.getFormat();
+        mMaxBytes = maxBytes;
+        mMaxDurationUsec = maxDurationUsec;
+        mThread = new Thread("Readahead") {
+            @Override
+            public void run() {
+                try {
+                    readLoop();
+                } catch (RuntimeException re) {
+                    Log.e(TAG, "readahead failed", re);
+                    synchronized (mLock) {
+                        mReaderFailure = re;
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        };
+        mThread.start();
+    }
+
+    @Override
+    public MediaFormat getFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buf, int offset) {
+        synchronized (mLock) {
+            if (!awaitHead()) {
+                return -1;
+            }
+
+            if (offset + mSlotSize[mHead] > buf.capacity()) {
+                // Same as MediaExtractor, so callers can grow their buffer and try again.
+                throw new IllegalArgumentException("sample is " + mSlotSize[mHead] +
+                        " bytes, buffer has room for " + (buf.capacity() - offset));
+            }
+            ByteBuffer src = mSlotBuffer[mHead].duplicate();
+            src.position(0);
+            src.limit(mSlotSize[mHead]);
+            ByteBuffer dst = buf.duplicate();
+            dst.clear();
+            dst.position(offset);
+            dst.put(src);
+            return mSlotSize[mHead];
+        }
+    }
+
+    @Override
+    public long getSampleTime() {
+        synchronized (mLock) {
+            return awaitHead() ? mSlotPtsUsec[mHead] : -1;
+        }
+    }
+
+    @Override
+    public int getSampleFlags() {
+        synchronized (mLock) {
+            return awaitHead() ? mSlotFlags[mHead] : 0;
+        }
+    }
+
+    @Override
+    public boolean advance() {
+        synchronized (mLock) {
+            if (awaitHead()) {
+                mQueuedBytes -= mSlotSize[mHead];
+                mHead = (mHead + 1) % MAX_SLOTS;
+                mCount--;
+                mLock.notifyAll();
+            }
+            return mCount > 0 || !mEndOfStream;
+        }
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        synchronized (mLock) {
+            mGeneration++;
+            mCount = 0;
+            mQueuedBytes = 0;
+            mEndOfStream = false;
+            mSeekPending = true;
+            mSeekTimeUsec = timeUs;
+            mSeekMode = mode;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void release() {
+        synchronized (mLock) {
+            mStopRequested = true;
+            mLock.notifyAll();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "Readahead thread join() was interrupted", ie);
+        }
+        mSource.release();
+        if (VERBOSE) Log.d(TAG, "readahead released: " + this);
+    }
+
+    /**
+     * Returns the number of samples waiting to be consumed.
+     */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mCount;
+        }
+    }
+
+    /**
+     * Returns the number of bytes waiting to be consumed.
+     */
+    public int getQueuedBytes() {
+        synchronized (mLock) {
+            return mQueuedBytes;
+        }
+    }
+
+    /**
+     * Returns the number of times the decode loop had to wait for the reader.
+     */
+    public long getConsumerStalls() {
+        synchronized (mLock) {
+            return mConsumerStalls;
+        }
+    }
+
+    /**
+     * Returns the total time the decode loop spent waiting for the reader, in nanoseconds.
+     */
+    public long getConsumerStallNsec() {
+        synchronized (mLock) {
+            return mConsumerStallNsec;
+        }
+    }
+
+    /**
+     * Returns the number of times the reader had to wait for space in the queue.
+     */
+    public long getProducerStalls() {
+        synchronized (mLock) {
+            return mProducerStalls;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "ReadaheadSampleSource[depth=" + mCount + " bytes=" + mQueuedBytes +
+                    " consumerStalls=" + mConsumerStalls + " (" +
+                    (mConsumerStallNsec / 1000000) + "ms) producerStalls=" +
+                    mProducerStalls + "]";
+        }
+    }
+
+    /**
+     * Reader thread main loop.
+     */
+    private void readLoop() {
+        // MediaExtractor can't tell us a sample's size without reading it, so we read into
+        // a scratch buffer, then copy into a slot once there's room.  The format's idea of
+        // the largest sample is only a guess, so the scratch buffer grows if it's wrong.
+        int scratchSize = mFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE) ?
+                mFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE) :
+                mFormat.getInteger(MediaFormat.KEY_WIDTH) *
+                        mFormat.getInteger(MediaFormat.KEY_HEIGHT) * 3 / 2;
+        ByteBuffer scratch = ByteBuffer.allocateDirect(Math.max(scratchSize, MIN_SLOT_CAPACITY));
+
+        while (true) {
+            int generation;
+            boolean seek = false;
+            long seekTimeUsec = 0;
+            int seekMode = 0;
+            synchronized (mLock) {
+                // Nothing to do at end of stream until someone seeks.
+                while (!mStopRequested && !mSeekPending && mEndOfStream) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) {
+                        // discard
+                    }
+                }
+                if (mStopRequested) {
+                    return;
+                }
+                if (mSeekPending) {
+                    seek = true;
+                    seekTimeUsec = mSeekTimeUsec;
+                    seekMode = mSeekMode;
+                    mSeekPending = false;
+                }
+                generation = mGeneration;
+            }
+
+            if (seek) {
+                mSource.seekTo(seekTimeUsec, seekMode);
+            }
+            int size;
+            while (true) {
+                try {
+                    size = mSource.readSampleData(scratch, 0);
+                    break;
+                } catch (IllegalArgumentException iae) {
+                    // Sample didn't fit, most likely.  Try again with more room, up to a
+                    // point; if the problem is something else, more room won't help.
+                    if (scratch.capacity() >= MAX_SAMPLE_SIZE) {
+                        throw iae;
+                    }
+                    scratch = ByteBuffer.allocateDirect(
+                            Math.min(scratch.capacity() * 2, MAX_SAMPLE_SIZE));
+                    if (VERBOSE) Log.d(TAG, "readahead scratch now " + scratch.capacity());
+                }
+            }
+            long ptsUsec = (size >= 0) ? mSource.getSampleTime() : 0;
+            int flags = (size >= 0) ? mSource.getSampleFlags() : 0;
+
+            synchronized (mLock) {
+                if (size < 0) {
+                    if (generation == mGeneration) {
+                        mEndOfStream = true;
+                        mLock.notifyAll();
+                    }
+                    continue;
+                }
+                while (!mStopRequested && generation == mGeneration && isFull(size, ptsUsec)) {
+                    mProducerStalls++;
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) {
+                        // discard
+                    }
+                }
+                if (mStopRequested) {
+                    return;
+                }
+                if (generation != mGeneration) {
+                    continue;       // there was a seek; this sample is stale
+                }
+
+                int slot = (mHead + mCount) % MAX_SLOTS;
+                if (mSlotBuffer[slot] == null || mSlotBuffer[slot].capacity() < size) {
+                    mSlotBuffer[slot] = ByteBuffer.allocateDirect(
+                            Math.max(MIN_SLOT_CAPACITY, Integer.highestOneBit(size) * 2));
+                }
+                ByteBuffer src = scratch.duplicate();
+                src.position(0);
+                src.limit(size);
+                ByteBuffer dst = mSlotBuffer[slot];
+                dst.clear();
+                dst.put(src);
+                mSlotSize[slot] = size;
+                mSlotPtsUsec[slot] = ptsUsec;
+                mSlotFlags[slot] = flags;
+                mCount++;
+                mQueuedBytes += size;
+                mLock.notifyAll();
+            }
+            mSource.advance();
+        }
+    }
+
+    /**
+     * Waits until there's a sample at the head of the queue, or there won't be one.  Like
+     * MediaExtractor, we answer for the sample after a seek, not for "nothing read yet".
+     * Returns false at end of stream or after release().  Caller must hold mLock.
+     */
+    private boolean awaitHead() {
+        if (mCount == 0 && !mEndOfStream && mReaderFailure == null && !mStopRequested) {
+            // The reader has fallen behind.  Wait for it.
+            long startNsec = System.nanoTime();
+            while (mCount == 0 && !mEndOfStream && mReaderFailure == null && !mStopRequested) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException ie) {
+                    // discard
+                }
+            }
+            mConsumerStalls++;
+            mConsumerStallNsec += System.nanoTime() - startNsec;
+        }
+        if (mReaderFailure != null) {
+            throw new RuntimeException("readahead failed", mReaderFailure);
+        }
+        return mCount > 0;
+    }
+
+    /**
+     * Returns true if there's no room for another sample.  We always have room for one, so
+     * a sample bigger than the byte limit doesn't wedge us.  Caller must hold mLock.
+     */
+    private boolean isFull(int size, long ptsUsec) {
+        if (mCount == 0) {
+            return false;
+        }
+        return mCount == MAX_SLOTS || mQueuedBytes + size > mMaxBytes ||
+                ptsUsec - mSlotPtsUsec[mHead] > mMaxDurationUsec;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of encoded samples for one track, with the MediaExtractor calls the decode loops
+ * use.
+ * <p>
+ * ExtractorSampleSource reads straight from a MediaExtractor.  ReadaheadSampleSource reads
+ * from another source on its own thread, so the decode loop doesn't wait on storage.  Tests
+ * can supply samples without a MediaExtractor at all.
+ */
+interface SampleSource {
+    /**
+     * Largest buffer a reader should grow to when a sample doesn't fit.  MediaExtractor
+     * reports a sample too big for the buffer with IllegalArgumentException, but it reports
+     * other trouble the same way, so the growing has to stop somewhere.  This is bigger than
+     * a raw 4K frame, which no compressed sample should be.
+     */
+    int MAX_SAMPLE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Returns the track's format.
+     */
+    MediaFormat getFormat();
+
+    /**
+     * Copies the current sample into buf, starting at offset.  Neither respects nor updates
+     * buf's position or limit.
+     *
+     * @return The sample size, or -1 at end of stream.
+     */
+    int readSampleData(ByteBuffer buf, int offset);
+
+    /**
+     * Returns the current sample's presentation time, in microseconds.
+     */
+    long getSampleTime();
+
+    /**
+     * Returns the current sample's MediaExtractor.SAMPLE_FLAG_* flags.
+     */
+    int getSampleFlags();
+
+    /**
+     * Moves on to the next sample.
+     *
+     * @return false if there are no more.
+     */
+    boolean advance();
+
+    /**
+     * Moves to a sync sample, as MediaExtractor.seekTo() does.
+     */
+    void seekTo(long timeUs, int mode);
+
+    /**
+     * Releases resources.
+     */
+    void release();
+}
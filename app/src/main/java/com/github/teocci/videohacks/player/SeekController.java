@@ -0,0 +1,222 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import android.media.MediaExtractor;
+import android.util.Log;
+
+import com.github.teocci.videohacks.ui.MainActivity;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Carries seek requests from arbitrary threads to the player thread, and tracks a seek
+ * while the decoder works its way to the target.
+ * <p>
+ * A seek moves the extractor to a sync frame picked from the movie's SyncSampleIndex.  For an
+ * EXACT seek, frames between that sync frame and the target are decoded but not rendered.
+ * Building the index means reading the whole movie, so that's done on a background thread;
+ * until it's ready, we let the extractor find the sync frame.
+ * The decode loop asks {@link #shouldRender(long)} about each frame, and when the first
+ * frame is rendered we report how long the seek took.
+ */
+class SeekController {
+    private static final String TAG = MainActivity.TAG;
+    private static final boolean VERBOSE = false;
+
+    private final File mSourceFile;
+
+    // Pending request, from any thread.
+    private final Object mRequestLock = new Object();
+    private volatile boolean mIsSeekRequested;
+    private long mRequestedPtsUsec;
+    private MoviePlayer.SeekMode mRequestedMode;
+
+    // Set before playback, or by the index loader thread.
+    private volatile SyncSampleIndex mIndex;
+    private MoviePlayer.SeekCallback mCallback;
+
+    // Player thread only.
+    private boolean mIndexLoadStarted;
+    private boolean mSeeking;
+    private long mTargetPtsUsec;
+    private long mDiscardUntilUsec;
+    private long mStartNsec;
+    private int mDiscardedFrames;
+
+    public SeekController(File sourceFile) {
+        mSourceFile = sourceFile;
+    }
+
+    /**
+     * Records a seek request, replacing any that hasn't been started yet.
+     * <p>
+     * Called from arbitrary thread.
+     */
+    public void request(long ptsUsec, MoviePlayer.SeekMode mode) {
+        synchronized (mRequestLock) {
+            mRequestedPtsUsec = ptsUsec;
+            mRequestedMode = mode;
+            mIsSeekRequested = true;
+        }
+    }
+
+    /**
+     * Returns true if a seek has been requested and not yet started.
+     */
+    public boolean isSeekRequested() {
+        return mIsSeekRequested;
+    }
+
+    /**
+     * Supplies the sync frame index, if the player already has it.  Call before playback
+     * starts.
+     */
+    public void setIndex(SyncSampleIndex index) {
+        mIndex = index;
+    }
+
+    /**
+     * Sets the callback for seek completion.  Call before playback starts; the callback is
+     * invoked on the player thread.
+     */
+    public void setCallback(MoviePlayer.SeekCallback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Gets the sync frame index from MovieMetadata on a low-priority background thread,
+     * unless we already have it.  That also caches the movie's metadata for next time.
+     * Returns immediately.
+     * <p>
+     * Player thread.
+     */
+    public void loadIndexInBackground() {
+        if (mIndex != null || mIndexLoadStarted) {
+            return;
+        }
+        mIndexLoadStarted = true;
+        Thread thread = new Thread("Seek Index Loader") {
+            @Override
+            public void run() {
+                try {
+                    mIndex = MovieMetadata.get(mSourceFile).getSyncIndex();
+                    if (VERBOSE) Log.d(TAG, "sync index ready for " + mSourceFile);
+                } catch (IOException ioe) {
+                    Log.w(TAG, "Unable to scan " + mSourceFile + ": " + ioe.getMessage());
+                } catch (RuntimeException re) {
+                    // e.g. no video track.  Seeks will keep using the extractor.
+                    Log.w(TAG, "Unable to scan " + mSourceFile, re);
+                }
+            }
+        };
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Starts the pending seek by moving the sample source.  The caller must flush the decoder
+     * afterward, so that nothing from before the seek is rendered.
+     */
+    public void start(SampleSource source) {
+        long requestedUsec;
+        MoviePlayer.SeekMode mode;
+        synchronized (mRequestLock) {
+            requestedUsec = mRequestedPtsUsec;
+            mode = mRequestedMode;
+            mIsSeekRequested = false;
+        }
+        mStartNsec = System.nanoTime();
+
+        SyncSampleIndex index = mIndex;
+        long syncUsec;
+        if (index == null) {
+            // Don't hold up the seek while the whole movie is read.  Let the extractor find
+            // the sync frame this time, and see where it put us.
+            loadIndexInBackground();
+            int extractorMode;
+            if (mode == MoviePlayer.SeekMode.NEXT_SYNC) {
+                extractorMode = MediaExtractor.SEEK_TO_NEXT_SYNC;
+            } else if (mode == MoviePlayer.SeekMode.CLOSEST_SYNC) {
+                extractorMode = MediaExtractor.SEEK_TO_CLOSEST_SYNC;
+            } else {
+                extractorMode = MediaExtractor.SEEK_TO_PREVIOUS_SYNC;
+            }
+            source.seekTo(requestedUsec, extractorMode);
+            syncUsec = source.getSampleTime();
+        } else {
+            if (index.getCount() == 0) {
+                syncUsec = requestedUsec;
+            } else if (mode == MoviePlayer.SeekMode.NEXT_SYNC) {
+                syncUsec = index.getSyncAtOrAfter(requestedUsec);
+            } else if (mode == MoviePlayer.SeekMode.CLOSEST_SYNC) {
+                long before = index.getSyncAtOrBefore(requestedUsec);
+                long after = index.getSyncAtOrAfter(requestedUsec);
+                syncUsec = (requestedUsec - before <= after - requestedUsec) ? before : after;
+            } else {
+                syncUsec = index.getSyncAtOrBefore(requestedUsec);
+            }
+            source.seekTo(syncUsec, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+
+        mSeeking = true;
+        mTargetPtsUsec = requestedUsec;
+        mDiscardUntilUsec = (mode == MoviePlayer.SeekMode.EXACT) ? requestedUsec : syncUsec;
+        mDiscardedFrames = 0;
+        if (VERBOSE) {
+            Log.d(TAG, "seek to " + requestedUsec + " (" + mode + "), sync frame at " +
+                    syncUsec);
+        }
+    }
+
+    /**
+     * Decides whether a decoded frame should be rendered.  Frames ahead of the seek target
+     * are not.  The first one that is completes the seek.
+     */
+    public boolean shouldRender(long ptsUsec) {
+        if (!mSeeking) {
+            return true;
+        }
+        if (ptsUsec < mDiscardUntilUsec) {
+            mDiscardedFrames++;
+            return false;
+        }
+        finish(ptsUsec);
+        return true;
+    }
+
+    /**
+     * Tells us the decoder reached the end of the stream.  If we were still looking for
+     * the target, it was past the last frame, so we give up.
+     */
+    public void endOfStream() {
+        if (mSeeking) {
+            finish(-1);
+        }
+    }
+
+    private void finish(long actualUsec) {
+        mSeeking = false;
+        long latencyNsec = System.nanoTime() - mStartNsec;
+        Log.d(TAG, "seek to " + mTargetPtsUsec + " landed at " + actualUsec + " in " +
+                (latencyNsec / 1000000.0) + " ms, discarded " + mDiscardedFrames);
+        if (mCallback != null) {
+            mCallback.seekComplete(mTargetPtsUsec, actualUsec, latencyNsec, mDiscardedFrames);
+        }
+    }
+}
@@ -30,6 +30,10 @@ import com.github.teocci.videohacks.ui.MainActivity;
  * the source material has time stamps that specify when each frame should be presented,
  * we will have to drop or repeat frames occasionally.
  * <p>
+ * Playback can be sped up or slowed down with setPlaybackRate().  When it's sped up, frames
+ * that would be shown during the same display refresh as the previous one are dropped rather
+ * than waited for, since only the last of them would ever be seen.
+ * <p>
  * Thread restrictions are noted in the method descriptions.  The FrameCallback overrides should
  * only be called from the MoviePlayer.
  */
@@ -39,10 +43,24 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
 
     private static final long ONE_MILLION = 1000000L;
 
+    /** Slowest supported playback rate. */
+    public static final float MIN_PLAYBACK_RATE = 0.25f;
+    /** Fastest supported playback rate. */
+    public static final float MAX_PLAYBACK_RATE = 16.0f;
+
     private long mPrevPresentUsec;
     private long mPrevMonoUsec;
     private long mFixedFrameDurationUsec;
     private boolean mLoopReset;
+    private final FramePacer mPacer = new FramePacer();
+    private PlaybackTelemetry mTelemetry;
+
+    // Rate may be changed by the UI thread during playback.
+    private volatile float mPlaybackRate = 1.0f;
+    private long mRefreshPeriodUsec = ONE_MILLION / 60;
+    private long mFirstMonoUsec;
+    private long mLastRefreshSlot = -1;
+    private long mDroppedFrames;
 
     /**
      * Sets a fixed playback rate.  If set, this will ignore the presentation time stamp
@@ -52,21 +70,76 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
         mFixedFrameDurationUsec = ONE_MILLION / fps;
     }
 
+    /**
+     * Sets the playback rate, as a multiple of normal speed (or of the fixed playback rate,
+     * if one was set).  Values are clamped to the range MIN_PLAYBACK_RATE to
+     * MAX_PLAYBACK_RATE.
+     * <p>
+     * May be called from any thread.  Takes effect at the next frame.
+     */
+    public void setPlaybackRate(float rate) {
+        mPlaybackRate = Math.max(MIN_PLAYBACK_RATE, Math.min(rate, MAX_PLAYBACK_RATE));
+    }
+
+    /**
+     * Returns the playback rate.
+     */
+    public float getPlaybackRate() {
+        return mPlaybackRate;
+    }
+
+    /**
+     * Sets the refresh rate of the display we're playing to, from Display.getRefreshRate().
+     * Used to decide which frames to drop at high playback rates.  Defaults to 60Hz.  Must
+     * be called before playback thread starts.
+     */
+    public void setDisplayRefreshRate(float refreshHz) {
+        mRefreshPeriodUsec = (long) (ONE_MILLION / refreshHz);
+    }
+
+    /**
+     * Returns the number of frames dropped because playback was sped up.  Decode thread,
+     * or after playback has stopped.
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Sets where the lateness of each frame is recorded.  Must be called before playback
+     * thread starts.
+     */
+    public void setTelemetry(PlaybackTelemetry telemetry) {
+        mTelemetry = telemetry;
+    }
+
+    /**
+     * Returns the pacer, for its jitter histogram.  Only touch it from the decode thread, or
+     * after playback has stopped.
+     */
+    public FramePacer getPacer() {
+        return mPacer;
+    }
+
     // runs on decode thread
     @Override
-    public void preRender(long presentationTimeUsec) {
+    public boolean preRender(long presentationTimeUsec) {
         // For the first frame, we grab the presentation time from the video
         // and the current monotonic clock time.  For subsequent frames, we
         // sleep for a bit to try to ensure that we're rendering frames at the
         // pace dictated by the video stream.
         //
         // If the frame rate is faster than vsync we should be dropping frames.  On
-        // Android 4.4 this may not be happening.
+        // Android 4.4 this may not be happening, so when playback is sped up we drop
+        // them ourselves.
 
         if (mPrevMonoUsec == 0) {
             // Latch current values, then return immediately.
             mPrevMonoUsec = System.nanoTime() / 1000;
             mPrevPresentUsec = presentationTimeUsec;
+            mFirstMonoUsec = mPrevMonoUsec;
+            mLastRefreshSlot = 0;
+            return true;
         } else {
             // Compute the desired time delta between the previous frame and this frame.
             long frameDelta;
@@ -99,41 +172,42 @@ public class SpeedControlCallback implements MoviePlayer.FrameCallback {
                 frameDelta = 5 * ONE_MILLION;
             }
 
-            long desiredUsec = mPrevMonoUsec + frameDelta;  // when we want to wake up
-            long nowUsec = System.nanoTime() / 1000;
-            while (nowUsec < (desiredUsec - 100) /*&& mState == RUNNING*/) {
-                // Sleep until it's time to wake up.  To be responsive to "stop" commands
-                // we're going to wake up every half a second even if the sleep is supposed
-                // to be longer (which should be rare).  The alternative would be
-                // to interrupt the thread, but that requires more work.
-                //
-                // The precision of the sleep call varies widely from one device to another;
-                // we may wake early or late.  Different devices will have a minimum possible
-                // sleep time. If we're within 100us of the target time, we'll probably
-                // overshoot if we try to sleep, so just go ahead and continue on.
-                long sleepTimeUsec = desiredUsec - nowUsec;
-                if (sleepTimeUsec > 500000) {
-                    sleepTimeUsec = 500000;
-                }
-                try {
-                    if (CHECK_SLEEP_TIME) {
-                        long startNsec = System.nanoTime();
-                        Thread.sleep(sleepTimeUsec / 1000, (int) (sleepTimeUsec % 1000) * 1000);
-                        long actualSleepNsec = System.nanoTime() - startNsec;
-                        Log.d(TAG, "sleep=" + sleepTimeUsec + " actual=" + (actualSleepNsec/1000) +
-                                " diff=" + (Math.abs(actualSleepNsec / 1000 - sleepTimeUsec)) +
-                                " (usec)");
-                    } else {
-                        Thread.sleep(sleepTimeUsec / 1000, (int) (sleepTimeUsec % 1000) * 1000);
-                    }
-                } catch (InterruptedException ie) {}
-                nowUsec = System.nanoTime() / 1000;
-            }
+            // Scale the delay by the playback rate.
+            float rate = mPlaybackRate;
+            long monoDelta = (rate == 1.0f) ? frameDelta : (long) (frameDelta / rate);
+            long desiredUsec = mPrevMonoUsec + monoDelta;  // when we want to wake up
 
             // Advance times using calculated time values, not the post-sleep monotonic
             // clock time, to avoid drifting.
-            mPrevMonoUsec += frameDelta;
+            mPrevMonoUsec += monoDelta;
             mPrevPresentUsec += frameDelta;
+
+            if (rate > 1.0f) {
+                // If this frame would be shown during the same display refresh as the
+                // last one we rendered, it would never be seen.  Drop it, without waiting.
+                // We round to the nearest refresh, so frames that are exactly one refresh
+                // apart don't get dropped due to rounding.
+                long slot = (desiredUsec - mFirstMonoUsec + mRefreshPeriodUsec / 2) /
+                        mRefreshPeriodUsec;
+                if (slot == mLastRefreshSlot) {
+                    mDroppedFrames++;
+                    return false;
+                }
+                mLastRefreshSlot = slot;
+            }
+
+            // Wait until it's time to render.  The pacer parks until just before the
+            // deadline and spins the rest of the way, which is far more precise than
+            // Thread.sleep() on most devices.
+            long latenessNsec = mPacer.waitUntil(desiredUsec * 1000);
+            if (mTelemetry != null) {
+                mTelemetry.framePresented(latenessNsec);
+            }
+            if (CHECK_SLEEP_TIME) {
+                Log.d(TAG, "frame delta=" + frameDelta + " late=" + (latenessNsec / 1000) +
+                        " margin=" + (mPacer.getMarginNsec() / 1000) + " (usec)");
+            }
+            return true;
         }
     }
 
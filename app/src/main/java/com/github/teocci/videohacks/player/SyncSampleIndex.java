@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import java.util.Arrays;
+
+/**
+ * Presentation times of the sync frames in a movie's video track, in increasing order.
+ * <p>
+ * Built by MovieMetadata, which caches it along with the rest of the movie's metadata.
+ * <p>
+ * Object is immutable, so it can be passed between threads without synchronization.
+ */
+public class SyncSampleIndex {
+    private final long[] mSyncPtsUsec;
+
+    /**
+     * @param syncPtsUsec Times of the sync frames, in increasing order.
+     */
+    SyncSampleIndex(long[] syncPtsUsec) {
+        mSyncPtsUsec = syncPtsUsec;
+    }
+
+    /**
+     * Returns the number of sync frames.
+     */
+    public int getCount() {
+        return mSyncPtsUsec.length;
+    }
+
+    /**
+     * Returns the time of the n'th sync frame.
+     */
+    public long getSyncPtsUsec(int n) {
+        return mSyncPtsUsec[n];
+    }
+
+    /**
+     * Returns the time of the last sync frame at or before ptsUsec, or of the first sync
+     * frame if there isn't one.
+     */
+    public long getSyncAtOrBefore(long ptsUsec) {
+        int pos = Arrays.binarySearch(mSyncPtsUsec, ptsUsec);
+        if (pos < 0) {
+            pos = -pos - 2;     // entry before the insertion point
+        }
+        return mSyncPtsUsec[Math.max(pos, 0)];
+    }
+
+    /**
+     * Returns the time of the first sync frame at or after ptsUsec, or of the last sync
+     * frame if there isn't one.
+     */
+    public long getSyncAtOrAfter(long ptsUsec) {
+        int pos = Arrays.binarySearch(mSyncPtsUsec, ptsUsec);
+        if (pos < 0) {
+            pos = -pos - 1;     // insertion point
+        }
+        return mSyncPtsUsec[Math.min(pos, mSyncPtsUsec.length - 1)];
+    }
+}
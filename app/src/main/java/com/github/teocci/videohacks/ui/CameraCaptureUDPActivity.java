@@ -25,9 +25,19 @@ import com.github.teocci.videohacks.CameraHandler;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 
 /**
- * Shows the camera preview on screen while simultaneously recording it to a .mp4 file.
+ * Shows the camera preview on screen while simultaneously recording it to a .mp4 file and,
+ * if the intent names a destination, streaming it as RTP over UDP.  See RtpStreamer for an
+ * SDP file that will let a player on that host pick it up.  For example:
+ * <pre>
+ * adb shell am start \
+ *     -n com.github.teocci.videohacks/.ui.CameraCaptureUDPActivity \
+ *     --es streamHost 192.168.0.2 --ei streamPort 5004
+ * </pre>
+ * Add {@code --ez fragmentedMp4 true} to record a fragmented .mp4, which can be played
+ * while it's being written.
  * <p>
  * Every time we receive a frame from the camera, we need to:
  * <ul>
@@ -114,6 +124,14 @@ public class CameraCaptureUDPActivity extends Activity
     public static final int FILTER_EDGE_DETECT = 4;
     public static final int FILTER_EMBOSS = 5;
 
+    /** Intent extra: host to stream to.  Without it, we only record. */
+    public static final String EXTRA_STREAM_HOST = "streamHost";
+    /** Intent extra: UDP port to stream to.  Optional. */
+    public static final String EXTRA_STREAM_PORT = "streamPort";
+    private static final int DEFAULT_STREAM_PORT = 5004;
+    /** Intent extra: if true, record a fragmented .mp4 instead of using MediaMuxer. */
+    public static final String EXTRA_FRAGMENTED_MP4 = "fragmentedMp4";
+
     private GLSurfaceView glView;
     private CameraSurfaceRenderer cameraRenderer;
     private Camera camera;
@@ -156,7 +174,17 @@ public class CameraCaptureUDPActivity extends Activity
         // appropriate EGL context.
         glView = (GLSurfaceView) findViewById(R.id.cameraPreview_surfaceView);
         glView.setEGLContextClientVersion(2);     // select GLES 2.0
-        cameraRenderer = new CameraSurfaceRenderer(cameraHandler, sVideoEncoder, outputFile);
+        // Left unresolved, so any DNS lookup happens on the encoder thread, not here.
+        InetSocketAddress streamDestination = null;
+        String streamHost = getIntent().getStringExtra(EXTRA_STREAM_HOST);
+        if (streamHost != null && !streamHost.isEmpty()) {
+            int streamPort = getIntent().getIntExtra(EXTRA_STREAM_PORT, DEFAULT_STREAM_PORT);
+            streamDestination = InetSocketAddress.createUnresolved(streamHost, streamPort);
+            Log.d(TAG, "streaming to " + streamDestination);
+        }
+        boolean fragmented = getIntent().getBooleanExtra(EXTRA_FRAGMENTED_MP4, false);
+        cameraRenderer = new CameraSurfaceRenderer(cameraHandler, sVideoEncoder, outputFile,
+                streamDestination, fragmented);
         glView.setRenderer(cameraRenderer);
         glView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
 
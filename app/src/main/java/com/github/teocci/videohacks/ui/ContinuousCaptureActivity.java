@@ -109,9 +109,17 @@ public class ContinuousCaptureActivity extends Activity implements SurfaceHolder
 
         // CircularEncoder.Callback, called on encoder thread
         @Override
-        public void bufferStatus(long totalTimeMsec) {
+        public void clipSaveComplete(CircularEncoder.Clip clip, int status) {
+            // We only save one clip at a time, so fileSaveComplete() covers it.
+        }
+
+        // CircularEncoder.Callback, called on encoder thread
+        @Override
+        public void bufferStatus(CircularEncoder.BufferStats stats) {
+            // The UI only shows the buffered time span.
+            long durationUsec = stats.getRetainedUsec();
             sendMessage(obtainMessage(MSG_BUFFER_STATUS,
-                    (int) (totalTimeMsec >> 32), (int) totalTimeMsec));
+                    (int) (durationUsec >> 32), (int) durationUsec));
         }
 
 
@@ -24,8 +24,10 @@ import android.view.Surface;
 import android.view.TextureView;
 
 import com.github.teocci.videohacks.content.ContentManager;
+import com.github.teocci.videohacks.player.MediaCodecPlayerCodec;
 import com.github.teocci.videohacks.player.MoviePlayer;
 import com.android.videohacks.R;
+import com.github.teocci.videohacks.player.PlaybackScheduler;
 import com.github.teocci.videohacks.player.SpeedControlCallback;
 
 import java.io.File;
@@ -39,6 +41,9 @@ import java.io.IOException;
  * the Activity is pausing because it's "finished" (indicating that we're leaving the Activity
  * for a nontrivial amount of time), the video decoders are shut down.
  * <p>
+ * Where asynchronous decoding is available, both videos share one PlaybackScheduler, which
+ * presents frames from both against a single clock.  Otherwise each gets its own thread.
+ * <p>
  * TODO: consider shutting down when the screen is turned off, to preserve battery.
  */
 public class DoubleDecodeActivity extends Activity {
@@ -49,6 +54,7 @@ public class DoubleDecodeActivity extends Activity {
     // Must be static storage so they'll survive Activity restart.
     private static boolean sVideoRunning = false;
     private static VideoBlob[] sBlob = new VideoBlob[VIDEO_COUNT];
+    private static PlaybackScheduler sScheduler;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -56,6 +62,9 @@ public class DoubleDecodeActivity extends Activity {
         setContentView(R.layout.activity_double_decode);
 
         if (!sVideoRunning) {
+            if (MediaCodecPlayerCodec.isSupported()) {
+                sScheduler = new PlaybackScheduler();
+            }
             sBlob[0] = new VideoBlob((TextureView) findViewById(R.id.double1_texture_view),
                     ContentManager.MOVIE_SLIDERS, 0);
             sBlob[1] = new VideoBlob((TextureView) findViewById(R.id.double2_texture_view),
@@ -79,6 +88,10 @@ public class DoubleDecodeActivity extends Activity {
                 sBlob[i] = null;
             }
         }
+        if (finishing && sScheduler != null) {
+            sScheduler.shutdown();
+            sScheduler = null;
+        }
         sVideoRunning = !finishing;
         Log.d(TAG, "onPause complete");
     }
@@ -105,6 +118,7 @@ public class DoubleDecodeActivity extends Activity {
 
         private SurfaceTexture mSavedSurfaceTexture;
         private PlayMovieThread mPlayThread;
+        private PlaybackScheduler.Stream mStream;
         private SpeedControlCallback mCallback;
 
         /**
@@ -143,7 +157,11 @@ public class DoubleDecodeActivity extends Activity {
          */
         public void stopPlayback() {
             Log.d(LTAG, "stopPlayback");
-            mPlayThread.requestStop();
+            if (mStream != null) {
+                sScheduler.removeStream(mStream);
+            } else if (mPlayThread != null) {
+                mPlayThread.requestStop();
+            }
             // TODO: wait for the playback thread to stop so we don't kill the Surface
             //       before the video stops
 
@@ -165,7 +183,17 @@ public class DoubleDecodeActivity extends Activity {
                 mSavedSurfaceTexture = st;
 
                 File sliders = ContentManager.getInstance().getPath(mMovieTag);
-                mPlayThread = new PlayMovieThread(sliders, new Surface(st), mCallback);
+                if (sScheduler != null) {
+                    Surface surface = new Surface(st);
+                    try {
+                        mStream = sScheduler.addStream(sliders, surface, true);
+                    } catch (IOException ioe) {
+                        Log.e(LTAG, "movie playback failed", ioe);
+                        surface.release();
+                    }
+                } else {
+                    mPlayThread = new PlayMovieThread(sliders, new Surface(st), mCallback);
+                }
             } else {
                 // Can't do it here in Android <= 4.4.  The TextureView doesn't add a
                 // listener on the new SurfaceTexture, so it never sees any updates.
@@ -32,8 +32,11 @@ import android.widget.Spinner;
 import android.widget.AdapterView.OnItemSelectedListener;
 
 import com.github.teocci.videohacks.utils.MiscUtils;
+import com.github.teocci.videohacks.player.DecoderPool;
+import com.github.teocci.videohacks.player.MovieMetadata;
 import com.github.teocci.videohacks.player.MoviePlayer;
 import com.android.videohacks.R;
+import com.github.teocci.videohacks.player.PlaybackTelemetry;
 import com.github.teocci.videohacks.player.SpeedControlCallback;
 
 import java.io.File;
@@ -56,11 +59,15 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
 {
     private static final String TAG = MainActivity.TAG;
 
+    // Keep the last couple of decoders for half a minute, so switching movies is quick.
+    private static DecoderPool sDecoderPool;
+
     private TextureView mTextureView;
     private String[] mMovieFiles;
     private int mSelectedMovie;
     private boolean mShowStopLabel;
     private MoviePlayer.PlayTask mPlayTask;
+    private PlaybackTelemetry mTelemetry;
     private boolean mSurfaceTextureReady = false;
 
     private final Object mStopper = new Object();   // used to signal stop
@@ -70,6 +77,12 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_play_movie);
 
+        // Keep the movie metadata cache out of the directory we list movies from.
+        MovieMetadata.setCacheDir(getCacheDir());
+        if (sDecoderPool == null) {
+            sDecoderPool = new DecoderPool(2, 30000);
+        }
+
         mTextureView = (TextureView) findViewById(R.id.movie_texture_view);
         mTextureView.setSurfaceTextureListener(this);
 
@@ -169,6 +182,8 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
             }
             Log.d(TAG, "starting movie");
             SpeedControlCallback callback = new SpeedControlCallback();
+            mTelemetry = new PlaybackTelemetry();
+            callback.setTelemetry(mTelemetry);
             if (((CheckBox) findViewById(R.id.locked60fps_checkbox)).isChecked()) {
                 // TODO: consider changing this to be "free running" mode
                 callback.setFixedPlaybackRate(60);
@@ -184,6 +199,8 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
                 surface.release();
                 return;
             }
+            player.setDecoderPool(sDecoderPool);
+            player.setTelemetry(mTelemetry);
             adjustAspectRatio(player.getVideoWidth(), player.getVideoHeight());
 
             mPlayTask = new MoviePlayer.PlayTask(player, this);
@@ -208,7 +225,10 @@ public class PlayMovieActivity extends Activity implements OnItemSelectedListene
 
     @Override   // MoviePlayer.PlayerFeedback
     public void playbackStopped() {
-        Log.d(TAG, "playback stopped");
+        Log.d(TAG, "playback stopped, " + sDecoderPool);
+        if (mTelemetry != null) {
+            Log.d(TAG, "playback telemetry: " + mTelemetry.toJson());
+        }
         mShowStopLabel = false;
         mPlayTask = null;
         updateControls();
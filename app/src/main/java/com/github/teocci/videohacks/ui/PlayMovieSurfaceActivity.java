@@ -32,6 +32,7 @@ import android.app.Activity;
 
 import com.github.teocci.videohacks.utils.AspectFrameLayout;
 import com.github.teocci.videohacks.utils.MiscUtils;
+import com.github.teocci.videohacks.player.MovieMetadata;
 import com.github.teocci.videohacks.player.MoviePlayer;
 import com.android.videohacks.R;
 import com.github.teocci.videohacks.player.SpeedControlCallback;
@@ -90,6 +91,9 @@ public class PlayMovieSurfaceActivity extends Activity implements OnItemSelected
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_play_movie_surface);
 
+        // Keep the movie metadata cache out of the directory we list movies from.
+        MovieMetadata.setCacheDir(getCacheDir());
+
         mSurfaceView = (SurfaceView) findViewById(R.id.playMovie_surface);
         mSurfaceView.getHolder().addCallback(this);
 
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays link-capacity traces into AdaptiveBitrateController, with a fake encoder and a
+ * model of RtpStreamer in between: a fixed packet pool drained at the link rate, that drops
+ * whole access units until the next sync frame when it runs out.  The controller sees the
+ * pool only through CongestionReporter-style numbers, as it does on a device.
+ */
+public class AdaptiveBitrateControllerTest {
+    private static final int MAX_BIT_RATE = 4000000;
+    private static final int MIN_BIT_RATE = 1000000;
+    private static final int CAMERA_FPS = 30;
+    private static final int MIN_FRAME_RATE = 10;
+    private static final long FRAME_USEC = 1000000 / CAMERA_FPS;
+    private static final long STEP_USEC = 1000;
+    private static final long GOP_USEC = 5000000;
+    private static final long POOL_BYTES = 512L * (RtpStreamer.MAX_PACKET_SIZE - 12);
+
+    /** Encoder that does what it's told at once, and notes sync frame requests. */
+    private static class FakeEncoder implements EncoderControl {
+        int mBitRate = MAX_BIT_RATE;
+        int mFrameRate = CAMERA_FPS;
+        boolean mSyncRequested;
+
+        @Override
+        public void setBitRate(int bitRate) {
+            mBitRate = bitRate;
+        }
+
+        @Override
+        public void requestSyncFrame() {
+            mSyncRequested = true;
+        }
+
+        @Override
+        public void setFrameRateHint(int frameRate) {
+            mFrameRate = frameRate;
+        }
+
+        @Override
+        public int getBitRate() {
+            return mBitRate;
+        }
+
+        @Override
+        public int getFrameRateHint() {
+            return mFrameRate;
+        }
+    }
+
+    /** Link capacity over time. */
+    private interface LinkTrace {
+        double bitsPerSec(long nowUsec);
+    }
+
+    /** What the replay looked like at one moment. */
+    private static class Sample {
+        int bitRate;
+        int frameRate;
+        long queuedBytes;
+        long droppedPackets;
+    }
+
+    private FakeEncoder mEncoder;
+    private AdaptiveBitrateController mController;
+    private long mDroppedPackets;
+
+    /**
+     * Replays "trace" for durationUsec, and returns snapshots taken at each of "atUsec".
+     *
+     * @param staticFromUsec From then until staticUntilUsec, the scene is static, and the
+     *     encoder only uses 30% of its bit rate.
+     */
+    private Sample[] replay(LinkTrace trace, long durationUsec, long staticFromUsec,
+            long staticUntilUsec, long... atUsec) {
+        mEncoder = new FakeEncoder();
+        mController = new AdaptiveBitrateController(mEncoder, MIN_BIT_RATE, MIN_FRAME_RATE);
+        Sample[] samples = new Sample[atUsec.length];
+        long queuedBytes = 0;
+        long dropped = 0;
+        boolean dropUntilSync = false;
+        long nextFrameUsec = 0;
+        long lastSyncUsec = -GOP_USEC;
+        int frame = 0;
+        int nextSample = 0;
+
+        for (long nowUsec = 0; nowUsec < durationUsec; nowUsec += STEP_USEC) {
+            queuedBytes = Math.max(0,
+                    queuedBytes - (long) (trace.bitsPerSec(nowUsec) / 8 * STEP_USEC / 1e6));
+            if (nowUsec >= nextFrameUsec) {
+                nextFrameUsec += FRAME_USEC;
+                frame++;
+                // The camera keeps going at 30fps; frames are skipped to meet the hint.
+                if (mEncoder.mFrameRate >= CAMERA_FPS ||
+                        (frame % CAMERA_FPS) < mEncoder.mFrameRate) {
+                    boolean sync = mEncoder.mSyncRequested ||
+                            nowUsec - lastSyncUsec >= GOP_USEC;
+                    if (sync) {
+                        lastSyncUsec = nowUsec;
+                        mEncoder.mSyncRequested = false;
+                    }
+                    double perFrame = mEncoder.mBitRate / 8.0 / mEncoder.mFrameRate *
+                            (nowUsec >= staticFromUsec && nowUsec < staticUntilUsec ?
+                                    0.3 : 1.0);
+                    int size = (int) (sync ? perFrame * 5 : perFrame * 0.87);
+
+                    if (dropUntilSync && !sync) {
+                        dropped++;
+                    } else if (queuedBytes + size > POOL_BYTES) {
+                        dropUntilSync = true;
+                        dropped++;
+                    } else {
+                        dropUntilSync = false;
+                        queuedBytes += size;
+                    }
+                    mController.onPacket(size, sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0,
+                            nowUsec);
+                    mController.update(nowUsec, (int) queuedBytes, dropped);
+                }
+            }
+            while (nextSample < atUsec.length && nowUsec + STEP_USEC > atUsec[nextSample]) {
+                Sample sample = new Sample();
+                sample.bitRate = mEncoder.mBitRate;
+                sample.frameRate = mEncoder.mFrameRate;
+                sample.queuedBytes = queuedBytes;
+                sample.droppedPackets = dropped;
+                samples[nextSample++] = sample;
+            }
+        }
+        mDroppedPackets = dropped;
+        return samples;
+    }
+
+    private static long sec(double seconds) {
+        return (long) (seconds * 1000000);
+    }
+
+    @Test
+    public void followsTheLinkDownAndBackUp() {
+        // Plenty, then a squeeze below the floor, then plenty again.
+        LinkTrace trace = new LinkTrace() {
+            @Override
+            public double bitsPerSec(long nowUsec) {
+                if (nowUsec < sec(10)) {
+                    return 5e6;
+                } else if (nowUsec < sec(30)) {
+                    return 1.2e6;
+                } else if (nowUsec < sec(35)) {
+                    return 0.3e6;
+                }
+                return 5e6;
+            }
+        };
+        Sample[] s = replay(trace, sec(60), 0, 0, sec(9.9), sec(29.9), sec(34.9), sec(59.9));
+        System.out.println("AdaptiveBitrateController, squeeze: " + mController +
+                ", dropped " + mDroppedPackets);
+
+        assertEquals(MAX_BIT_RATE, s[0].bitRate);
+        assertEquals(0, s[0].droppedPackets);
+        // Settled under the link, with the queue drained.
+        assertTrue("bit rate " + s[1].bitRate, s[1].bitRate <= 1200000);
+        assertTrue("queued " + s[1].queuedBytes, s[1].queuedBytes < POOL_BYTES / 4);
+        // Below the bit rate floor, the frame rate gives instead.
+        assertEquals(MIN_BIT_RATE, s[2].bitRate);
+        assertTrue("frame rate " + s[2].frameRate, s[2].frameRate < CAMERA_FPS);
+        // All the way back.
+        assertEquals(MAX_BIT_RATE, s[3].bitRate);
+        assertEquals(CAMERA_FPS, s[3].frameRate);
+        assertTrue(mController.getDecreaseCount() > 0);
+    }
+
+    @Test
+    public void outageDropsThenRecovers() {
+        LinkTrace trace = new LinkTrace() {
+            @Override
+            public double bitsPerSec(long nowUsec) {
+                return (nowUsec >= sec(10) && nowUsec < sec(20)) ? 0 : 5e6;
+            }
+        };
+        Sample[] s = replay(trace, sec(50), 0, 0, sec(9.9), sec(49.9));
+        System.out.println("AdaptiveBitrateController, outage: " + mController +
+                ", dropped " + mDroppedPackets);
+
+        assertEquals(0, s[0].droppedPackets);
+        assertTrue(s[1].droppedPackets > 0);
+        // A sync frame was asked for, so the sink could pick up before the GOP ran out.
+        assertTrue(mController.getSyncRequestCount() > 0);
+        assertEquals(MAX_BIT_RATE, s[1].bitRate);
+    }
+
+    @Test
+    public void staticSceneDoesNotClimb() {
+        // After a squeeze, the link comes back while the scene is static.  The encoder isn't
+        // using what it has, so raising the target would only set up a burst later.
+        LinkTrace trace = new LinkTrace() {
+            @Override
+            public double bitsPerSec(long nowUsec) {
+                return (nowUsec >= sec(5) && nowUsec < sec(15)) ? 1.2e6 : 5e6;
+            }
+        };
+        Sample[] s = replay(trace, sec(45), sec(15), sec(30), sec(14.9), sec(29.9),
+                sec(44.9));
+        System.out.println("AdaptiveBitrateController, static scene: " + mController);
+
+        assertTrue("bit rate " + s[0].bitRate, s[0].bitRate <= 1200000);
+        assertEquals(s[0].bitRate, s[1].bitRate);
+        // Once there's motion again, it climbs.
+        assertEquals(MAX_BIT_RATE, s[2].bitRate);
+    }
+}
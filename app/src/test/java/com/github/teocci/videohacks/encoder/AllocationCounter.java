@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Counts bytes allocated on the heap by the current thread, using the HotSpot extension to
+ * ThreadMXBean.  Direct buffers are allocated off-heap, but each one comes with a small
+ * heap object, so allocating them still shows up here.
+ */
+class AllocationCounter {
+    private static final com.sun.management.ThreadMXBean sBean = getBean();
+
+    private static com.sun.management.ThreadMXBean getBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported()) {
+                sunBean.setThreadAllocatedMemoryEnabled(true);
+                return sunBean;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if this VM can count allocations.
+     */
+    static boolean isSupported() {
+        return sBean != null;
+    }
+
+    /**
+     * Returns the total bytes allocated so far by the current thread.
+     */
+    static long allocatedBytes() {
+        return sBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
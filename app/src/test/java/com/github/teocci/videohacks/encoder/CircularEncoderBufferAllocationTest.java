@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that saving from a CircularEncoderBuffer allocates nothing per packet, including
+ * packets that would have straddled the end of the ring.
+ */
+public class CircularEncoderBufferAllocationTest {
+    private static final int BIT_RATE = 4000000;
+    private static final int FRAME_RATE = 30;
+    private static final int SPAN_SEC = 10;
+    private static final int GOP_FRAMES = 30;
+
+    // What measuring itself can cost, and then some.  Far less than a byte per packet.
+    private static final long SLACK_BYTES = 256;
+
+    private CircularEncoderBuffer mBuffer;
+    private ByteBuffer mPacket;
+    private MediaCodec.BufferInfo mInfo;
+    private int mPacketNum;
+
+    @Before
+    public void setUp() {
+        assumeTrue(AllocationCounter.isSupported());
+        mBuffer = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE, SPAN_SEC);
+        mPacket = ByteBuffer.allocateDirect(100000);
+        mInfo = new MediaCodec.BufferInfo();
+    }
+
+    /**
+     * Adds "count" packets of varying sizes, with a sync frame every GOP_FRAMES.
+     */
+    private void addPackets(int count) {
+        for (int i = 0; i < count; i++) {
+            boolean sync = (mPacketNum % GOP_FRAMES) == 0;
+            int size = sync ? 60000 + (mPacketNum % 13) * 1000 : 12000 + (mPacketNum % 11) * 500;
+            mPacket.clear();
+            mPacket.put(0, (byte) mPacketNum);
+            mPacket.limit(size);
+            mBuffer.add(mPacket, sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0,
+                    mPacketNum * 33333L);
+            mPacketNum++;
+        }
+    }
+
+    /**
+     * Walks the buffer the way the save thread does, touching each packet's data.  Returns
+     * the number of packets.
+     */
+    private int walk() {
+        int count = 0;
+        int index = mBuffer.getFirstIndex();
+        while (index >= 0) {
+            ByteBuffer buf = mBuffer.getChunk(index, mInfo);
+            buf.limit(mInfo.offset + mInfo.size);
+            buf.position(mInfo.offset);
+            assertEquals((byte) (mInfo.presentationTimeUs / 33333L), buf.get(mInfo.offset));
+            count++;
+            index = mBuffer.getNextIndex(index);
+        }
+        return count;
+    }
+
+    /**
+     * Same, through a pinned snapshot.
+     */
+    private int walk(CircularEncoderBuffer.Snapshot snapshot) {
+        int count = 0;
+        int index = snapshot.getFirstIndex();
+        while (index >= 0) {
+            ByteBuffer buf = snapshot.getChunk(index, mInfo);
+            buf.limit(mInfo.offset + mInfo.size);
+            buf.position(mInfo.offset);
+            assertEquals((byte) (mInfo.presentationTimeUs / 33333L), buf.get(mInfo.offset));
+            count++;
+            index = snapshot.getNextIndex(index);
+        }
+        return count;
+    }
+
+    @Test
+    public void saveAllocatesNothingPerPacket() {
+        // Go around the ring several times, so there's padding at the end and packets that
+        // would have been split.
+        addPackets(3000);
+        for (int i = 0; i < 20; i++) {
+            walk();         // warm up
+        }
+
+        long before = AllocationCounter.allocatedBytes();
+        int packets = walk();
+        long allocated = AllocationCounter.allocatedBytes() - before;
+
+        assertTrue("only " + packets + " packets", packets > 200);
+        assertTrue("save allocated " + allocated + " bytes for " + packets + " packets",
+                allocated <= SLACK_BYTES);
+    }
+
+    @Test
+    public void snapshotSaveAllocatesNothingPerPacket() {
+        addPackets(3000);
+        int index = mBuffer.getFirstIndex();
+        for (int i = 0; i < 20; i++) {
+            walk(mBuffer.pin(index));   // warm up
+            mBuffer.unpin();
+        }
+
+        CircularEncoderBuffer.Snapshot snapshot = mBuffer.pin(index);
+        long before = AllocationCounter.allocatedBytes();
+        int packets = walk(snapshot);
+        long allocated = AllocationCounter.allocatedBytes() - before;
+        mBuffer.unpin();
+
+        assertTrue("only " + packets + " packets", packets > 200);
+        assertTrue("snapshot save allocated " + allocated + " bytes for " + packets +
+                " packets", allocated <= SLACK_BYTES);
+    }
+
+    @Test
+    public void addAllocatesNothing() {
+        addPackets(3000);   // warm up, and fill the buffer so add() has to evict
+
+        long before = AllocationCounter.allocatedBytes();
+        addPackets(3000);
+        long allocated = AllocationCounter.allocatedBytes() - before;
+
+        assertTrue("add allocated " + allocated + " bytes for 3000 packets",
+                allocated <= SLACK_BYTES);
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares add/drain throughput of CircularEncoderBuffer against the heap-backed,
+ * modulus-indexed ring it replaced.  Both are fed the same synthetic stream (a large sync
+ * frame followed by smaller frames), and drained the way a save does: walk from the first
+ * sync frame, and copy each chunk out.
+ * <p>
+ * The numbers are printed, not asserted on; they depend too much on the machine.  What is
+ * asserted is that both buffers hand back exactly what went in.
+ */
+public class CircularEncoderBufferBenchmarkTest {
+    private static final int BIT_RATE = 20000000;       // 20Mbps
+    private static final int FRAME_RATE = 30;
+    private static final int SPAN_SEC = 10;
+    private static final int GOP_FRAMES = 30;
+    private static final int SYNC_SIZE = 200000;
+    private static final int FRAME_SIZE = 60000;
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int TIMED_ROUNDS = 5;
+    private static final int PACKETS_PER_ROUND = 6000;
+    private static final int DRAIN_INTERVAL = GOP_FRAMES * 10;      // about a buffer's worth
+
+    /** The two implementations, behind one face. */
+    private interface Ring {
+        void add(ByteBuffer buf, int flags, long ptsUsec);
+        int getFirstIndex();
+        int getNextIndex(int index);
+        ByteBuffer getChunk(int index, MediaCodec.BufferInfo info);
+    }
+
+    @Test
+    public void compareThroughput() {
+        final CircularEncoderBuffer direct = new CircularEncoderBuffer(BIT_RATE, FRAME_RATE,
+                SPAN_SEC);
+        Ring directRing = new Ring() {
+            public void add(ByteBuffer buf, int flags, long ptsUsec) {
+                direct.add(buf, flags, ptsUsec);
+            }
+            public int getFirstIndex() {
+                return direct.getFirstIndex();
+            }
+            public int getNextIndex(int index) {
+                return direct.getNextIndex(index);
+            }
+            public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
+                return direct.getChunk(index, info);
+            }
+        };
+        Ring heapRing = new HeapRing(BIT_RATE, FRAME_RATE, SPAN_SEC);
+
+        double heapMbps = 0;
+        double directMbps = 0;
+        for (int i = 0; i < WARMUP_ROUNDS + TIMED_ROUNDS; i++) {
+            double heap = runRound(heapRing);
+            double dir = runRound(directRing);
+            if (i >= WARMUP_ROUNDS) {
+                heapMbps += heap / TIMED_ROUNDS;
+                directMbps += dir / TIMED_ROUNDS;
+            }
+        }
+        System.out.printf("CircularEncoderBuffer add+drain: heap/modulus %.0f MB/s, " +
+                "direct/mask %.0f MB/s%n", heapMbps, directMbps);
+    }
+
+    /**
+     * Adds PACKETS_PER_ROUND packets, draining the whole buffer every DRAIN_INTERVAL, and
+     * returns the throughput in MB/s (bytes added plus bytes drained).
+     */
+    private static double runRound(Ring ring) {
+        ByteBuffer src = ByteBuffer.allocateDirect(SYNC_SIZE);
+        ByteBuffer dst = ByteBuffer.allocateDirect(SYNC_SIZE);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long bytes = 0;
+        long startNsec = System.nanoTime();
+        for (int i = 0; i < PACKETS_PER_ROUND; i++) {
+            boolean sync = (i % GOP_FRAMES) == 0;
+            int size = sync ? SYNC_SIZE : FRAME_SIZE - (i % 7) * 1000;
+            src.clear();
+            src.put(0, (byte) i);
+            src.put(size - 1, (byte) ~i);
+            src.limit(size);
+            ring.add(src, sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0, i * 33333L);
+            bytes += size;
+
+            if (i % DRAIN_INTERVAL == DRAIN_INTERVAL - 1) {
+                bytes += drain(ring, info, dst, i);
+            }
+        }
+        long elapsedNsec = System.nanoTime() - startNsec;
+        return bytes * 1000.0 / elapsedNsec;
+    }
+
+    /**
+     * Copies every packet out of the ring, checking the first and last byte of each, and
+     * returns the number of bytes copied.
+     */
+    private static long drain(Ring ring, MediaCodec.BufferInfo info, ByteBuffer dst,
+            int newest) {
+        long bytes = 0;
+        int lastPacket = -1;
+        int index = ring.getFirstIndex();
+        assertTrue(index >= 0);
+        while (index >= 0) {
+            ByteBuffer buf = ring.getChunk(index, info);
+            buf.limit(info.offset + info.size);
+            buf.position(info.offset);
+            int packet = (int) (info.presentationTimeUs / 33333L);
+            assertEquals((byte) packet, buf.get(info.offset));
+            assertEquals((byte) ~packet, buf.get(info.offset + info.size - 1));
+            dst.clear();
+            dst.put(buf);
+            bytes += info.size;
+            lastPacket = packet;
+            index = ring.getNextIndex(index);
+        }
+        assertEquals(newest, lastPacket);
+        return bytes;
+    }
+
+    /**
+     * The original CircularEncoderBuffer: a heap byte[], indices wrapped with %, packets
+     * split across the end of the buffer and reassembled in a new buffer by getChunk().
+     */
+    private static class HeapRing implements Ring {
+        private final ByteBuffer mDataBufferWrapper;
+        private final byte[] mDataBuffer;
+        private final int[] mPacketFlags;
+        private final long[] mPacketPtsUsec;
+        private final int[] mPacketStart;
+        private final int[] mPacketLength;
+        private int mMetaHead;
+        private int mMetaTail;
+
+        HeapRing(int bitRate, int frameRate, int desiredSpanSec) {
+            mDataBuffer = new byte[bitRate * desiredSpanSec / 8];
+            mDataBufferWrapper = ByteBuffer.wrap(mDataBuffer);
+            int metaBufferCount = frameRate * desiredSpanSec * 2;
+            mPacketFlags = new int[metaBufferCount];
+            mPacketPtsUsec = new long[metaBufferCount];
+            mPacketStart = new int[metaBufferCount];
+            mPacketLength = new int[metaBufferCount];
+        }
+
+        @Override
+        public void add(ByteBuffer buf, int flags, long ptsUsec) {
+            int size = buf.limit() - buf.position();
+            while (!canAdd(size)) {
+                mMetaTail = (mMetaTail + 1) % mPacketStart.length;
+            }
+            final int dataLen = mDataBuffer.length;
+            int packetStart = getHeadStart();
+            mPacketFlags[mMetaHead] = flags;
+            mPacketPtsUsec[mMetaHead] = ptsUsec;
+            mPacketStart[mMetaHead] = packetStart;
+            mPacketLength[mMetaHead] = size;
+            if (packetStart + size < dataLen) {
+                buf.get(mDataBuffer, packetStart, size);
+            } else {
+                int firstSize = dataLen - packetStart;
+                buf.get(mDataBuffer, packetStart, firstSize);
+                buf.get(mDataBuffer, 0, size - firstSize);
+            }
+            mMetaHead = (mMetaHead + 1) % mPacketStart.length;
+        }
+
+        @Override
+        public int getFirstIndex() {
+            int index = mMetaTail;
+            while (index != mMetaHead) {
+                if ((mPacketFlags[index] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                    return index;
+                }
+                index = (index + 1) % mPacketStart.length;
+            }
+            return -1;
+        }
+
+        @Override
+        public int getNextIndex(int index) {
+            int next = (index + 1) % mPacketStart.length;
+            return (next == mMetaHead) ? -1 : next;
+        }
+
+        @Override
+        public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
+            final int dataLen = mDataBuffer.length;
+            int packetStart = mPacketStart[index];
+            int length = mPacketLength[index];
+            info.flags = mPacketFlags[index];
+            info.offset = packetStart;
+            info.presentationTimeUs = mPacketPtsUsec[index];
+            info.size = length;
+            if (packetStart + length <= dataLen) {
+                return mDataBufferWrapper;
+            }
+            ByteBuffer tempBuf = ByteBuffer.allocateDirect(length);
+            int firstSize = dataLen - packetStart;
+            tempBuf.put(mDataBuffer, packetStart, firstSize);
+            tempBuf.put(mDataBuffer, 0, length - firstSize);
+            info.offset = 0;
+            return tempBuf;
+        }
+
+        private int getHeadStart() {
+            if (mMetaHead == mMetaTail) {
+                return 0;
+            }
+            final int metaLen = mPacketStart.length;
+            int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
+            return (mPacketStart[beforeHead] + mPacketLength[beforeHead] + 1) %
+                    mDataBuffer.length;
+        }
+
+        private boolean canAdd(int size) {
+            if (mMetaHead == mMetaTail) {
+                return true;
+            }
+            final int dataLen = mDataBuffer.length;
+            final int metaLen = mPacketStart.length;
+            if ((mMetaHead + 1) % metaLen == mMetaTail) {
+                return false;
+            }
+            int headStart = getHeadStart();
+            int tailStart = mPacketStart[mMetaTail];
+            // Strictly less than: the original allowed size == freeSpace, which let the
+            // next packet land on the tail's first byte.
+            int freeSpace = (tailStart + dataLen - headStart) % dataLen;
+            return size < freeSpace;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaCodec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the sync-frame index in CircularEncoderBuffer against a brute-force scan of the
+ * buffered packets, on synthetic streams.
+ */
+public class CircularEncoderBufferSyncIndexTest {
+    private static final long FRAME_USEC = 33333;
+
+    private CircularEncoderBuffer mBuffer;
+    private ByteBuffer mPacket;
+    private MediaCodec.BufferInfo mInfo;
+    private long mNextPtsUsec;
+
+    @Before
+    public void setUp() {
+        // 1Mbps for 4 seconds is 500KB of data, and 240 meta-data slots (rounded to 256).
+        mBuffer = new CircularEncoderBuffer(1000000, 30, 4);
+        mPacket = ByteBuffer.allocateDirect(65536);
+        mInfo = new MediaCodec.BufferInfo();
+        mNextPtsUsec = 0;
+    }
+
+    private void add(int size, boolean sync) {
+        mPacket.clear();
+        mPacket.limit(size);
+        mBuffer.add(mPacket, sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0, mNextPtsUsec);
+        mNextPtsUsec += FRAME_USEC;
+    }
+
+    /**
+     * Returns the time stamp of the packet at the index, or -1 for index -1.
+     */
+    private long ptsAt(int index) {
+        if (index < 0) {
+            return -1;
+        }
+        mBuffer.getChunk(index, mInfo);
+        return mInfo.presentationTimeUs;
+    }
+
+    /**
+     * Finds the answers by walking every buffered packet, and compares them with the index.
+     */
+    private void checkAgainstScan() {
+        // Collect the time stamps of the buffered sync frames.  Nothing before the first
+        // one can be a sync frame, so walking forward from it sees them all.
+        int first = mBuffer.getFirstIndex();
+        long[] syncPts = new long[1024];
+        int syncCount = 0;
+        for (int index = first; index >= 0; index = mBuffer.getNextIndex(index)) {
+            mBuffer.getChunk(index, mInfo);
+            if ((mInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+                syncPts[syncCount++] = mInfo.presentationTimeUs;
+            }
+        }
+        assertEquals(syncCount, mBuffer.getSyncCount());
+        if (syncCount == 0) {
+            assertEquals(-1, first);
+            return;
+        }
+        assertEquals(syncPts[0], ptsAt(first));
+
+        // Probe just before, at, and just after every sync frame, and past both ends.
+        long lo = syncPts[0] - 5 * FRAME_USEC;
+        long hi = syncPts[syncCount - 1] + 5 * FRAME_USEC;
+        for (long pts = lo; pts <= hi; pts += FRAME_USEC / 2) {
+            long before = -1;
+            long after = -1;
+            for (int i = 0; i < syncCount; i++) {
+                if (syncPts[i] <= pts) {
+                    before = syncPts[i];
+                }
+                if (syncPts[i] >= pts && after < 0) {
+                    after = syncPts[i];
+                }
+            }
+            assertEquals("at or before " + pts, before,
+                    ptsAt(mBuffer.getSyncIndexAtOrBefore(pts)));
+            assertEquals("at or after " + pts, after,
+                    ptsAt(mBuffer.getSyncIndexAtOrAfter(pts)));
+        }
+    }
+
+    @Test
+    public void emptyBuffer() {
+        assertEquals(0, mBuffer.getSyncCount());
+        assertEquals(-1, mBuffer.getFirstIndex());
+        assertEquals(-1, mBuffer.getSyncIndexAtOrBefore(0));
+        assertEquals(-1, mBuffer.getSyncIndexAtOrAfter(0));
+    }
+
+    @Test
+    public void noSyncFrames() {
+        for (int i = 0; i < 10; i++) {
+            add(1000, false);
+        }
+        checkAgainstScan();
+    }
+
+    @Test
+    public void regularGops() {
+        for (int i = 0; i < 100; i++) {
+            add((i % 30) == 0 ? 20000 : 3000, (i % 30) == 0);
+        }
+        checkAgainstScan();
+        assertEquals(4, mBuffer.getSyncCount());
+    }
+
+    @Test
+    public void exactTimeStamps() {
+        for (int i = 0; i < 60; i++) {
+            add(2000, (i % 10) == 0);
+        }
+        // A sync frame at exactly the requested time counts for both queries.
+        assertEquals(20 * FRAME_USEC, ptsAt(mBuffer.getSyncIndexAtOrBefore(20 * FRAME_USEC)));
+        assertEquals(20 * FRAME_USEC, ptsAt(mBuffer.getSyncIndexAtOrAfter(20 * FRAME_USEC)));
+        assertEquals(10 * FRAME_USEC, ptsAt(mBuffer.getSyncIndexAtOrBefore(20 * FRAME_USEC - 1)));
+        assertEquals(30 * FRAME_USEC, ptsAt(mBuffer.getSyncIndexAtOrAfter(20 * FRAME_USEC + 1)));
+    }
+
+    @Test
+    public void indexFollowsEviction() {
+        // Run long enough to wrap both the data and the meta-data rings many times, with
+        // irregular GOPs and sizes.  Check as we go.
+        Random rnd = new Random(1234);
+        for (int i = 0; i < 5000; i++) {
+            boolean sync = rnd.nextInt(20) == 0;
+            add(sync ? 10000 + rnd.nextInt(40000) : 500 + rnd.nextInt(5000), sync);
+            if (i % 97 == 0) {
+                checkAgainstScan();
+            }
+        }
+        checkAgainstScan();
+    }
+
+    @Test
+    public void allSyncFrames() {
+        // Every packet is a sync frame, so the index is as full as the meta-data ring.
+        for (int i = 0; i < 1000; i++) {
+            add(100, true);
+        }
+        checkAgainstScan();
+    }
+}
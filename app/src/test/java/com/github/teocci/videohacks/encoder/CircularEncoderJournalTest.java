@@ -0,0 +1,235 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes journals, damages them the ways a crash or a bad disk would, and checks that what
+ * comes back is a run of intact, consecutive packets starting at a sync frame.
+ */
+public class CircularEncoderJournalTest {
+    private static final int DATA_SIZE = 100000;
+    private static final int RECORD_COUNT = 64;
+    private static final int GOP_FRAMES = 10;
+    private static final long FRAME_USEC = 33333;
+
+    // Where the packet data starts: the 4KB header, then the records.
+    private static final int DATA_OFFSET = 4096 + RECORD_COUNT * 32;
+
+    private static final byte[] CSD0 = { 0, 0, 0, 1, 0x67, 0x42 };
+    private static final byte[] CSD1 = { 0, 0, 0, 1, 0x68 };
+
+    private File mJournalFile;
+    private File mCopyFile;
+    private int mPacketNum;
+
+    @Before
+    public void setUp() throws IOException {
+        mJournalFile = File.createTempFile("journal", ".cej");
+        mCopyFile = File.createTempFile("journal-copy", ".cej");
+        mPacketNum = 0;
+    }
+
+    @After
+    public void tearDown() {
+        mJournalFile.delete();
+        mCopyFile.delete();
+    }
+
+    private static int packetSize(int packetNum) {
+        return (packetNum % GOP_FRAMES) == 0 ? 8000 + (packetNum % 7) * 500 :
+                1000 + (packetNum % 5) * 400;
+    }
+
+    private static byte packetByte(int packetNum, int offset) {
+        return (byte) (packetNum * 31 + offset);
+    }
+
+    /**
+     * Writes "count" more packets to a fresh journal, and closes it.
+     */
+    private void writeJournal(int count) throws IOException {
+        CircularEncoderJournal journal = new CircularEncoderJournal(mJournalFile, DATA_SIZE,
+                RECORD_COUNT);
+        journal.setFormat("video/avc", 640, 480, ByteBuffer.wrap(CSD0), ByteBuffer.wrap(CSD1));
+        ByteBuffer buf = ByteBuffer.allocate(16384);
+        for (int i = 0; i < count; i++) {
+            int size = packetSize(mPacketNum);
+            buf.clear();
+            for (int j = 0; j < size; j++) {
+                buf.put(packetByte(mPacketNum, j));
+            }
+            buf.flip();
+            boolean sync = (mPacketNum % GOP_FRAMES) == 0;
+            journal.add(buf, sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0,
+                    mPacketNum * FRAME_USEC);
+            mPacketNum++;
+        }
+        journal.release();
+    }
+
+    /**
+     * Copies the first "length" bytes of the journal, as if the rest never made it to disk.
+     */
+    private File truncatedCopy(long length) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(mJournalFile, "r");
+        FileOutputStream out = new FileOutputStream(mCopyFile);
+        try {
+            byte[] buf = new byte[(int) length];
+            in.readFully(buf);
+            out.write(buf);
+        } finally {
+            in.close();
+            out.close();
+        }
+        return mCopyFile;
+    }
+
+    private void corrupt(File file, long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(offset);
+            int b = raf.read();
+            raf.seek(offset);
+            raf.write(b ^ 0x55);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Checks everything a recovery promises, and returns the packet number of the newest
+     * packet recovered.
+     */
+    private int checkRecovered(CircularEncoderJournal.Recovered recovered) {
+        assertNotNull(recovered);
+        assertEquals("video/avc", recovered.mime);
+        assertEquals(640, recovered.width);
+        assertEquals(480, recovered.height);
+        assertArrayEquals(CSD0, recovered.csd0);
+        assertArrayEquals(CSD1, recovered.csd1);
+
+        int count = recovered.getCount();
+        assertTrue(count > 0);
+        assertTrue((recovered.flags[0] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+        int first = (int) (recovered.ptsUsec[0] / FRAME_USEC);
+        for (int i = 0; i < count; i++) {
+            int packetNum = first + i;
+            assertEquals(packetNum * FRAME_USEC, recovered.ptsUsec[i]);
+            assertEquals(packetSize(packetNum), recovered.length[i]);
+            assertEquals((packetNum % GOP_FRAMES) == 0,
+                    (recovered.flags[i] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+            for (int j = 0; j < recovered.length[i]; j++) {
+                assertEquals(packetByte(packetNum, j),
+                        recovered.data.get(recovered.start[i] + j));
+            }
+        }
+        return first + count - 1;
+    }
+
+    @Test
+    public void intactJournal() throws IOException {
+        writeJournal(25);
+        CircularEncoderJournal.Recovered recovered = CircularEncoderJournal.read(mJournalFile);
+        assertEquals(24, checkRecovered(recovered));
+        assertEquals(25, recovered.getCount());
+    }
+
+    @Test
+    public void wrappedJournal() throws IOException {
+        // Enough to go around both the records and the data several times.
+        writeJournal(500);
+        assertEquals(499, checkRecovered(CircularEncoderJournal.read(mJournalFile)));
+    }
+
+    @Test
+    public void truncatedJournal() throws IOException {
+        writeJournal(500);
+        long fullLength = mJournalFile.length();
+        assertEquals(DATA_OFFSET + DATA_SIZE, fullLength);
+
+        // Cut it off everywhere from the middle of the records to the end of the data.  We
+        // may lose everything, but never get back something that doesn't check out.
+        int recoveredCount = 0;
+        for (long length = 4096 + 16 * 32; length <= fullLength; length += 1237) {
+            CircularEncoderJournal.Recovered recovered =
+                    CircularEncoderJournal.read(truncatedCopy(length));
+            if (recovered != null) {
+                checkRecovered(recovered);
+                for (int i = 0; i < recovered.getCount(); i++) {
+                    assertTrue(DATA_OFFSET + recovered.start[i] + recovered.length[i] <=
+                            length);
+                }
+                recoveredCount++;
+            }
+        }
+        assertTrue("recovered from only " + recoveredCount + " truncations",
+                recoveredCount > 10);
+
+        // Losing just the header leaves nothing to go on.
+        assertNull(CircularEncoderJournal.read(truncatedCopy(100)));
+    }
+
+    @Test
+    public void tornNewestPacket() throws IOException {
+        writeJournal(30);
+        // The newest packet (29) lands right after the others, since nothing has wrapped.
+        long offset = DATA_OFFSET;
+        for (int i = 0; i < 29; i++) {
+            offset += packetSize(i);
+        }
+        corrupt(mJournalFile, offset + 10);
+        assertEquals(28, checkRecovered(CircularEncoderJournal.read(mJournalFile)));
+    }
+
+    @Test
+    public void corruptHeader() throws IOException {
+        writeJournal(500);
+        corrupt(mJournalFile, 16);      // head index; the records are still good
+        assertEquals(499, checkRecovered(CircularEncoderJournal.read(mJournalFile)));
+    }
+
+    @Test
+    public void recoverReportsFailures() throws IOException {
+        // Garbage: nothing to recover.
+        FileOutputStream out = new FileOutputStream(mCopyFile);
+        out.write(new byte[8192]);
+        out.close();
+        assertEquals(1, CircularEncoderJournal.recover(mCopyFile, new File(mCopyFile + ".mp4")));
+
+        // Missing: I/O failure.
+        File missing = new File(mCopyFile.getPath() + ".missing");
+        assertEquals(2, CircularEncoderJournal.recover(missing, new File(missing + ".mp4")));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a producer and a consumer thread flat out against a CircularEncoderQueue, and checks
+ * that every packet the consumer sees is intact and in order, under both slow-consumer
+ * policies.  The throughput is printed, not asserted on.
+ */
+public class CircularEncoderQueueStressTest {
+    private static final int DATA_SIZE = 1 << 20;
+    private static final int PACKET_COUNT = 256;
+    private static final int GOP_FRAMES = 30;
+    private static final int MAX_PACKET_SIZE = 64 * 1024;
+    private static final long POLL_TIMEOUT_NSEC = 10000000L;
+
+    private static int packetSize(long seq) {
+        return (seq % GOP_FRAMES) == 0 ? MAX_PACKET_SIZE - (int) (seq % 17) * 1000 :
+                16 + (int) ((seq * 7919) % 12000);
+    }
+
+    /**
+     * Offers "count" packets, each stamped with its sequence number at the start, middle,
+     * and end.  Runs on its own thread.
+     */
+    private static class Producer extends Thread {
+        private final CircularEncoderQueue mQueue;
+        private final int mCount;
+        volatile long mRejected;
+        volatile long mElapsedNsec;
+        volatile long mBytes;
+
+        Producer(CircularEncoderQueue queue, int count) {
+            mQueue = queue;
+            mCount = count;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer src = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+            long rejected = 0;
+            long bytes = 0;
+            long startNsec = System.nanoTime();
+            for (long seq = 0; seq < mCount; seq++) {
+                int size = packetSize(seq);
+                src.clear();
+                src.putLong(0, seq);
+                src.put(size / 2, (byte) seq);
+                src.put(size - 1, (byte) ~seq);
+                src.limit(size);
+                boolean sync = (seq % GOP_FRAMES) == 0;
+                if (mQueue.offer(src, sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0,
+                        seq * 1000)) {
+                    bytes += size;
+                } else {
+                    rejected++;
+                }
+            }
+            mElapsedNsec = System.nanoTime() - startNsec;
+            mRejected = rejected;
+            mBytes = bytes;
+            mQueue.close();
+        }
+    }
+
+    /**
+     * Drains the queue on the calling thread until the producer is done, checking each
+     * packet.  "stallEvery" makes the consumer sleep now and then, so it falls behind.
+     *
+     * @return The number of packets received.
+     */
+    private static long consume(CircularEncoderQueue queue, Producer producer,
+            boolean expectGapless, int stallEvery) throws InterruptedException {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long expected = 0;
+        long received = 0;
+        while (true) {
+            ByteBuffer buf = queue.poll(info, POLL_TIMEOUT_NSEC);
+            if (buf == null) {
+                if (!producer.isAlive() && queue.getLagPackets() == 0) {
+                    break;
+                }
+                continue;
+            }
+            long seq = buf.getLong(info.offset);
+            boolean sync = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+            if (expectGapless || !sync) {
+                assertEquals(expected, seq);
+            } else {
+                // A gap is only allowed in front of a sync frame.
+                assertTrue("went backward to " + seq, seq >= expected);
+            }
+            assertEquals(seq * 1000, info.presentationTimeUs);
+            assertEquals(packetSize(seq), info.size);
+            assertEquals((byte) seq, buf.get(info.offset + info.size / 2));
+            assertEquals((byte) ~seq, buf.get(info.offset + info.size - 1));
+
+            int lag = queue.getLagPackets();
+            assertTrue("lag " + lag, lag >= 1 && lag <= PACKET_COUNT);
+            assertTrue(queue.getLagUsec() >= 0);
+
+            queue.release();
+            expected = seq + 1;
+            received++;
+            if (stallEvery > 0 && received % stallEvery == 0) {
+                Thread.sleep(1);
+            }
+        }
+        return received;
+    }
+
+    @Test(timeout = 60000)
+    public void blockDeliversEverything() throws InterruptedException {
+        final int count = 200000;
+        CircularEncoderQueue queue = new CircularEncoderQueue(DATA_SIZE, PACKET_COUNT,
+                CircularEncoderQueue.SlowConsumerPolicy.BLOCK);
+        Producer producer = new Producer(queue, count);
+        producer.start();
+        long received = consume(queue, producer, true, 0);
+        producer.join();
+
+        assertEquals(0, producer.mRejected);
+        assertEquals(0, queue.getDroppedPackets());
+        assertEquals(count, received);
+        System.out.printf("CircularEncoderQueue BLOCK: %.0f packets/s, %.0f MB/s%n",
+                count * 1e9 / producer.mElapsedNsec,
+                producer.mBytes * 1000.0 / producer.mElapsedNsec);
+    }
+
+    @Test(timeout = 60000)
+    public void blockWaitsForSlowConsumer() throws InterruptedException {
+        final int count = 5000;
+        CircularEncoderQueue queue = new CircularEncoderQueue(DATA_SIZE, PACKET_COUNT,
+                CircularEncoderQueue.SlowConsumerPolicy.BLOCK);
+        Producer producer = new Producer(queue, count);
+        producer.start();
+        long received = consume(queue, producer, true, 100);
+        producer.join();
+
+        assertEquals(0, producer.mRejected);
+        assertEquals(count, received);
+    }
+
+    @Test(timeout = 60000)
+    public void dropSkipsToSyncFrame() throws InterruptedException {
+        final int count = 100000;
+        CircularEncoderQueue queue = new CircularEncoderQueue(DATA_SIZE, PACKET_COUNT,
+                CircularEncoderQueue.SlowConsumerPolicy.DROP_TO_KEYFRAME);
+        Producer producer = new Producer(queue, count);
+        producer.start();
+        long received = consume(queue, producer, false, 50);
+        producer.join();
+
+        // The consumer sleeps often enough that the producer must have overrun it.
+        assertTrue(producer.mRejected > 0);
+        assertEquals(producer.mRejected, queue.getDroppedPackets());
+        assertEquals(count, received + producer.mRejected);
+    }
+}
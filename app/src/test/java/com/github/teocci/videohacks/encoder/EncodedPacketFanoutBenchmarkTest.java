@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures what EncodedPacketFanout costs the drain thread with one to eight sinks, with and
+ * without an extra sink that can't keep up.
+ * <p>
+ * The numbers are printed, not asserted on; they depend too much on the machine.  What is
+ * asserted is that every BLOCK sink sees exactly what went in, and that the slow sink drops
+ * packets rather than holding everyone else up.
+ */
+public class EncodedPacketFanoutBenchmarkTest {
+    private static final int PACKETS = 5000;
+    private static final int GOP_FRAMES = 30;
+    private static final int DISTINCT_PACKETS = 64;
+    private static final int SINK_MAX_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_SINKS = 8;
+
+    /**
+     * A sink stuck behind a slow network or a busy card.
+     */
+    private static class SlowSink implements EncodedPacketSink {
+        @Override
+        public void onFormatChanged(MediaFormat format) {}
+
+        @Override
+        public void onPacket(ByteBuffer buf, int flags, long ptsUsec) {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException ie) {
+                // discard
+            }
+        }
+
+        @Override
+        public void onStopped() {}
+    }
+
+    @Test(timeout = 120000)
+    public void oneToEightSinks() {
+        // A big sync frame, then smaller frames, as from the encoder.
+        Random random = new Random(3);
+        ByteBuffer[] packets = new ByteBuffer[DISTINCT_PACKETS];
+        for (int i = 0; i < DISTINCT_PACKETS; i++) {
+            int size = (i % GOP_FRAMES) == 0 ? 100000 : 2000 + random.nextInt(20000);
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+            packets[i] = ByteBuffer.allocateDirect(size);
+            packets[i].put(data);
+            packets[i].flip();
+        }
+        CRC32 expectedCrc = new CRC32();
+        for (int i = 0; i < PACKETS; i++) {
+            ByteBuffer buf = packets[i % DISTINCT_PACKETS].duplicate();
+            byte[] data = new byte[buf.remaining()];
+            buf.get(data);
+            expectedCrc.update(data);
+        }
+
+        for (int pass = 0; pass < 2; pass++) {      // the first pass is warm-up
+            for (int sinks = 1; sinks <= MAX_SINKS; sinks++) {
+                for (int slow = 0; slow < 2; slow++) {
+                    run(packets, sinks, slow != 0, expectedCrc.getValue(), pass == 1);
+                }
+            }
+        }
+    }
+
+    private static void run(ByteBuffer[] packets, int sinkCount, boolean withSlowSink,
+            long expectedCrc, boolean print) {
+        EncodedPacketFanout fanout = new EncodedPacketFanout();
+        PacketHashSink[] sinks = new PacketHashSink[sinkCount];
+        for (int i = 0; i < sinkCount; i++) {
+            sinks[i] = new PacketHashSink();
+            fanout.addSink(sinks[i], EncodedPacketFanout.Policy.BLOCK, SINK_MAX_BYTES);
+        }
+        SlowSink slowSink = new SlowSink();
+        if (withSlowSink) {
+            fanout.addSink(slowSink, EncodedPacketFanout.Policy.DROP_UNTIL_SYNC,
+                    1024 * 1024);
+        }
+        fanout.formatChanged(new MediaFormat());
+
+        long worstNsec = 0;
+        long startNsec = System.nanoTime();
+        for (int i = 0; i < PACKETS; i++) {
+            long packetStartNsec = System.nanoTime();
+            fanout.packet(packets[i % DISTINCT_PACKETS],
+                    (i % GOP_FRAMES) == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0, i * 33333L);
+            worstNsec = Math.max(worstNsec, System.nanoTime() - packetStartNsec);
+        }
+        long drainNsec = System.nanoTime() - startNsec;
+        long droppedBySlowSink = withSlowSink ? fanout.getDroppedPackets(slowSink) : 0;
+        fanout.stop();
+
+        for (PacketHashSink sink : sinks) {
+            assertEquals(PACKETS, sink.getPacketCount());
+            assertEquals(expectedCrc, sink.getCrc());
+        }
+        if (withSlowSink) {
+            assertTrue(droppedBySlowSink > 0);
+        }
+        if (print) {
+            System.out.printf("EncodedPacketFanout, %d sinks%s: %.1f us/packet on the " +
+                    "drain thread, worst %.2f ms%s%n", sinkCount,
+                    withSlowSink ? " + slow" : "", drainNsec / 1000.0 / PACKETS,
+                    worstNsec / 1e6,
+                    withSlowSink ? ", slow sink dropped " + droppedBySlowSink : "");
+        }
+    }
+}
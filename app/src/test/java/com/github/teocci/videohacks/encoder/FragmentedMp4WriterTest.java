@@ -0,0 +1,327 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes synthetic H.264 access units with FragmentedMp4Writer, then parses the file box by
+ * box: the boxes must nest properly, the avcC box must hold the SPS and PPS, and the
+ * fragments must hold every sample, length-prefixed, with continuous decode times.  Also
+ * checks that a file whose writer never stopped is still readable up to its last fragment.
+ */
+public class FragmentedMp4WriterTest {
+    private static final int GOP_FRAMES = 30;
+    private static final long FIRST_PTS_USEC = 1000000;
+    private static final long FRAME_USEC = 33333;
+    private static final byte[] SPS = { 0x67, 0x42, (byte) 0xc0, 0x1e, 9, 9 };
+    private static final byte[] PPS = { 0x68, (byte) 0xce, 0x3c, (byte) 0x80 };
+
+    // Boxes whose contents are more boxes, and where those start.
+    private static final List<String> CONTAINERS = Arrays.asList("moov", "trak", "mdia",
+            "minf", "dinf", "stbl", "mvex", "moof", "traf");
+
+    private File mFile;
+    private FragmentedMp4Writer mWriter;
+    private final List<List<byte[]>> mSamples = new ArrayList<>();
+    private final Random mRandom = new Random(5);
+
+    /** A box found in the file.  "path" is the types from the top down, e.g. moov/trak. */
+    private static class Box {
+        final String path;
+        final int start;
+        final int size;
+
+        Box(String path, int start, int size) {
+            this.path = path;
+            this.start = start;
+            this.size = size;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("fragmented", ".mp4");
+        mWriter = new FragmentedMp4Writer(mFile);
+        mWriter.onFormatChanged(new MediaFormat());
+
+        // The SPS and PPS arrive as a codec config packet.
+        ByteArrayOutputStream config = new ByteArrayOutputStream();
+        config.write(new byte[] { 0, 0, 0, 1 });
+        config.write(SPS);
+        config.write(new byte[] { 0, 0, 0, 1 });
+        config.write(PPS);
+        mWriter.onPacket(ByteBuffer.wrap(config.toByteArray()),
+                MediaCodec.BUFFER_FLAG_CODEC_CONFIG, 0);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    /**
+     * Writes "count" access units of one or two NAL units each, with the SPS and PPS in
+     * front of every sync frame as some encoders do.  Remembers the NAL units that should
+     * end up in each sample.
+     */
+    private void writeFrames(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            int frame = mSamples.size();
+            boolean sync = (frame % GOP_FRAMES) == 0;
+            ByteArrayOutputStream accessUnit = new ByteArrayOutputStream();
+            if (sync) {
+                accessUnit.write(new byte[] { 0, 0, 0, 1 });
+                accessUnit.write(SPS);
+                accessUnit.write(new byte[] { 0, 0, 0, 1 });
+                accessUnit.write(PPS);
+            }
+            List<byte[]> nals = new ArrayList<>();
+            int nalCount = 1 + mRandom.nextInt(2);
+            for (int j = 0; j < nalCount; j++) {
+                byte[] nal = new byte[sync ? 50000 : 100 + mRandom.nextInt(5000)];
+                mRandom.nextBytes(nal);
+                for (int k = 0; k < nal.length; k++) {
+                    if (nal[k] == 0) {
+                        nal[k] = 3;     // no accidental start codes
+                    }
+                }
+                nal[0] = (byte) (sync ? 0x65 : 0x41);
+                accessUnit.write(new byte[] { 0, 0, 1 });
+                accessUnit.write(nal);
+                nals.add(nal);
+            }
+            mSamples.add(nals);
+
+            byte[] bytes = accessUnit.toByteArray();
+            ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+            buf.put(bytes);
+            buf.flip();
+            mWriter.onPacket(buf, sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0,
+                    FIRST_PTS_USEC + frame * FRAME_USEC);
+            assertEquals(0, buf.position());
+            assertEquals(bytes.length, buf.limit());
+        }
+    }
+
+    private ByteBuffer readFile() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mFile, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return ByteBuffer.wrap(data);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Lists every box between start and end, depth first, failing if any box overruns its
+     * parent.
+     */
+    private static void walk(ByteBuffer file, int start, int end, String parent,
+            List<Box> boxes) {
+        int pos = start;
+        while (pos < end) {
+            assertTrue("truncated box header at " + pos, pos + 8 <= end);
+            int size = file.getInt(pos);
+            String type = typeAt(file, pos + 4);
+            String path = parent.isEmpty() ? type : parent + "/" + type;
+            if (size < 8 || pos + size > end) {
+                fail("bad box " + path + " at " + pos + ", size " + size);
+            }
+            boxes.add(new Box(path, pos, size));
+
+            int headerSize = -1;
+            if (CONTAINERS.contains(type)) {
+                headerSize = 8;
+            } else if (type.equals("stsd") || type.equals("dref")) {
+                headerSize = 16;                // full box header and entry count
+            } else if (type.equals("avc1")) {
+                headerSize = 86;                // visual sample entry
+            }
+            if (headerSize > 0) {
+                walk(file, pos + headerSize, pos + size, path, boxes);
+            }
+            pos += size;
+        }
+        assertEquals(end, pos);
+    }
+
+    private static String typeAt(ByteBuffer file, int pos) {
+        char[] type = new char[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = (char) file.get(pos + i);
+        }
+        return new String(type);
+    }
+
+    private static Box find(List<Box> boxes, String path, int from) {
+        for (Box box : boxes) {
+            if (box.start >= from && box.path.equals(path)) {
+                return box;
+            }
+        }
+        return null;
+    }
+
+    private static List<String> topLevel(List<Box> boxes) {
+        List<String> types = new ArrayList<>();
+        for (Box box : boxes) {
+            if (!box.path.contains("/")) {
+                types.add(box.path);
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Checks each fragment's samples against what was written, and returns the number of
+     * samples found.
+     */
+    private int checkFragments(ByteBuffer file, List<Box> boxes) {
+        int sample = 0;
+        long expectedBaseTicks = 0;
+        for (Box moof : boxes) {
+            if (!moof.path.equals("moof")) {
+                continue;
+            }
+            Box tfdt = find(boxes, "moof/traf/tfdt", moof.start);
+            Box trun = find(boxes, "moof/traf/trun", moof.start);
+            assertEquals(1, file.get(tfdt.start + 8));                // version 1
+            assertEquals(expectedBaseTicks, file.getLong(tfdt.start + 12));
+
+            int mdat = moof.start + moof.size;
+            assertEquals("mdat", typeAt(file, mdat + 4));
+            int count = file.getInt(trun.start + 12);
+            int dataPos = moof.start + file.getInt(trun.start + 16);
+            assertEquals(mdat + 8, dataPos);
+            for (int i = 0; i < count; i++, sample++) {
+                int entry = trun.start + 20 + 12 * i;
+                int duration = file.getInt(entry);
+                int size = file.getInt(entry + 4);
+                int flags = file.getInt(entry + 8);
+                assertEquals((sample % GOP_FRAMES) == 0, flags == 0x02000000);
+                // 33333us at 90kHz, give or take rounding.
+                assertTrue("duration " + duration, duration == 2999 || duration == 3000);
+                expectedBaseTicks += duration;
+
+                // Length-prefixed NAL units, without the SPS and PPS.
+                List<byte[]> nals = mSamples.get(sample);
+                int pos = dataPos;
+                for (byte[] expected : nals) {
+                    byte[] nal = new byte[file.getInt(pos)];
+                    ByteBuffer src = file.duplicate();
+                    src.position(pos + 4);
+                    src.get(nal);
+                    assertArrayEquals(expected, nal);
+                    pos += 4 + nal.length;
+                }
+                assertEquals(dataPos + size, pos);
+                dataPos = pos;
+            }
+            assertEquals(mdat + file.getInt(mdat), dataPos);
+        }
+        return sample;
+    }
+
+    @Test
+    public void layout() throws IOException {
+        writeFrames(95);
+        mWriter.onStopped();
+
+        ByteBuffer file = readFile();
+        List<Box> boxes = new ArrayList<>();
+        walk(file, 0, file.limit(), "", boxes);
+        // One fragment per GOP.
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof",
+                "mdat", "moof", "mdat"), topLevel(boxes));
+        assertTrue(find(boxes, "moov/mvhd", 0) != null);
+        assertTrue(find(boxes, "moov/mvex/trex", 0) != null);
+        assertEquals(4, mWriter.getFragmentCount());
+
+        // avcC: version, profile and level from the SPS, 4-byte lengths, one SPS, one PPS.
+        Box avcC = find(boxes, "moov/trak/mdia/minf/stbl/stsd/avc1/avcC", 0);
+        int pos = avcC.start + 8;
+        assertEquals(1, file.get(pos));
+        assertEquals(SPS[1], file.get(pos + 1));
+        assertEquals(SPS[3], file.get(pos + 3));
+        assertEquals((byte) 0xff, file.get(pos + 4));
+        assertEquals((byte) 0xe1, file.get(pos + 5));
+        assertEquals(SPS.length, file.getShort(pos + 6));
+        byte[] sps = new byte[SPS.length];
+        ByteBuffer src = file.duplicate();
+        src.position(pos + 8);
+        src.get(sps);
+        assertArrayEquals(SPS, sps);
+        pos += 8 + SPS.length;
+        assertEquals(1, file.get(pos));
+        assertEquals(PPS.length, file.getShort(pos + 1));
+        byte[] pps = new byte[PPS.length];
+        src.position(pos + 3);
+        src.get(pps);
+        assertArrayEquals(PPS, pps);
+        assertEquals(avcC.start + avcC.size, pos + 3 + PPS.length);
+    }
+
+    @Test
+    public void fragmentsHoldEverySample() throws IOException {
+        writeFrames(95);
+        mWriter.onStopped();
+
+        ByteBuffer file = readFile();
+        List<Box> boxes = new ArrayList<>();
+        walk(file, 0, file.limit(), "", boxes);
+        assertEquals(95, checkFragments(file, boxes));
+    }
+
+    @Test
+    public void unstoppedFileIsReadable() throws IOException {
+        // As if the app died partway through the third GOP.
+        writeFrames(75);
+        try {
+            ByteBuffer file = readFile();
+            List<Box> boxes = new ArrayList<>();
+            walk(file, 0, file.limit(), "", boxes);
+            assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat"),
+                    topLevel(boxes));
+            assertEquals(60, checkFragments(file, boxes));
+        } finally {
+            mWriter.onStopped();
+        }
+    }
+}
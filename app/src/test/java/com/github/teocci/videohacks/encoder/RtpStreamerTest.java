@@ -0,0 +1,227 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams synthetic access units to a socket on the loopback interface and takes the RTP
+ * packets apart again, checking the headers and that every NAL unit arrives intact, with
+ * SPS and PPS in front of each sync frame.  Also checks that what piles up in the packet
+ * pool, and what's dropped when it's full, is reported to the rate controller.
+ */
+public class RtpStreamerTest {
+    private static final int FRAMES = 120;
+    private static final int GOP_FRAMES = 30;
+    private static final byte[] SPS = { 0x67, 1, 2, 3 };
+    private static final byte[] PPS = { 0x68, 4, 5 };
+
+    private DatagramChannel mReceiver;
+    private RtpStreamer mStreamer;
+
+    @Before
+    public void setUp() throws IOException {
+        mReceiver = DatagramChannel.open();
+        mReceiver.socket().setReceiveBufferSize(8 * 1024 * 1024);
+        mReceiver.bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mStreamer != null) {
+            mStreamer.release();
+        }
+        mReceiver.close();
+    }
+
+    /**
+     * Sends FRAMES access units of one to three NAL units each, big ones for sync frames
+     * (so they're fragmented) and small ones otherwise.  Returns the NAL units in the order
+     * they should arrive.
+     */
+    private List<byte[]> sendAccessUnits() throws Exception {
+        ByteBuffer config = ByteBuffer.allocateDirect(32);
+        config.put(new byte[] { 0, 0, 0, 1 }).put(SPS).put(new byte[] { 0, 0, 0, 1 }).put(PPS);
+        config.flip();
+        mStreamer.setCodecConfig(config);
+
+        Random random = new Random(7);
+        List<byte[]> expected = new ArrayList<>();
+        for (int frame = 0; frame < FRAMES; frame++) {
+            boolean sync = (frame % GOP_FRAMES) == 0;
+            if (sync) {
+                expected.add(SPS);
+                expected.add(PPS);
+            }
+            ByteArrayOutputStream accessUnit = new ByteArrayOutputStream();
+            int nalCount = 1 + random.nextInt(3);
+            for (int i = 0; i < nalCount; i++) {
+                int size = sync ? 20000 + random.nextInt(20000) : 1 + random.nextInt(3000);
+                byte[] nal = new byte[size];
+                random.nextBytes(nal);
+                for (int j = 1; j < size; j++) {
+                    if (nal[j] == 0) {
+                        nal[j] = 7;         // no accidental start codes
+                    }
+                }
+                nal[0] = (byte) (sync && i == 0 ? 0x65 : 0x41);
+                accessUnit.write(i == 0 ? new byte[] { 0, 0, 0, 1 } : new byte[] { 0, 0, 1 });
+                accessUnit.write(nal);
+                expected.add(nal);
+            }
+
+            // Put the data somewhere other than the start of the buffer.
+            byte[] bytes = accessUnit.toByteArray();
+            ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length + 10);
+            buf.position(5);
+            buf.put(bytes);
+            buf.limit(buf.position());
+            buf.position(5);
+            mStreamer.sendAccessUnit(buf, frame * 33333L, sync);
+            assertEquals(5, buf.position());
+            assertEquals(5 + bytes.length, buf.limit());
+            Thread.sleep(2);    // let the sender keep up, so nothing is dropped
+        }
+        return expected;
+    }
+
+    @Test(timeout = 30000)
+    public void loopback() throws Exception {
+        mStreamer = new RtpStreamer((InetSocketAddress) mReceiver.getLocalAddress(), 0);
+        List<byte[]> expected = sendAccessUnits();
+
+        List<byte[]> received = new ArrayList<>();
+        ByteArrayOutputStream fragments = null;
+        ByteBuffer packet = ByteBuffer.allocate(2048);
+        int lastSequence = -1;
+        long lastTimestamp = -1;
+        int ssrc = 0;
+        int markers = 0;
+        mReceiver.configureBlocking(false);
+        long deadlineMsec = System.currentTimeMillis() + 3000;
+        while (received.size() < expected.size() && System.currentTimeMillis() < deadlineMsec) {
+            packet.clear();
+            if (mReceiver.receive(packet) == null) {
+                Thread.sleep(5);
+                continue;
+            }
+            packet.flip();
+            assertTrue(packet.limit() <= RtpStreamer.MAX_PACKET_SIZE);
+            assertEquals(0x80, packet.get(0) & 0xff);               // V=2
+            assertEquals(96, packet.get(1) & 0x7f);
+            int sequence = packet.getShort(2) & 0xffff;
+            if (lastSequence >= 0) {
+                assertEquals((lastSequence + 1) & 0xffff, sequence);
+                assertEquals(ssrc, packet.getInt(8));
+            }
+            lastSequence = sequence;
+            ssrc = packet.getInt(8);
+            long timestamp = packet.getInt(4) & 0xffffffffL;
+            assertTrue(timestamp >= lastTimestamp);
+            lastTimestamp = timestamp;
+            if ((packet.get(1) & 0x80) != 0) {
+                markers++;
+            }
+
+            int header = packet.get(12) & 0xff;
+            if ((header & 0x1f) == 28) {                            // FU-A
+                int fuHeader = packet.get(13) & 0xff;
+                if ((fuHeader & 0x80) != 0) {
+                    assertNull(fragments);
+                    fragments = new ByteArrayOutputStream();
+                    fragments.write((header & 0xe0) | (fuHeader & 0x1f));
+                }
+                fragments.write(packet.array(), 14, packet.limit() - 14);
+                if ((fuHeader & 0x40) != 0) {
+                    received.add(fragments.toByteArray());
+                    fragments = null;
+                }
+            } else {
+                received.add(Arrays.copyOfRange(packet.array(), 12, packet.limit()));
+            }
+        }
+
+        assertEquals(0, mStreamer.getDroppedAccessUnits());
+        assertEquals(expected.size(), received.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), received.get(i));
+        }
+        assertEquals(FRAMES, markers);
+        assertEquals(lastSequence + 1, mStreamer.getPacketsSent() & 0xffff);
+    }
+
+    @Test(timeout = 30000)
+    public void reportsItsOwnCongestion() throws IOException {
+        // Paced far below what we feed it, so packets pile up in the pool.
+        mStreamer = new RtpStreamer((InetSocketAddress) mReceiver.getLocalAddress(), 20000);
+        CongestionReporter reporter = mStreamer;
+        byte[] nal = new byte[300000];
+        Arrays.fill(nal, (byte) 7);
+        nal[0] = 0x65;
+        ByteBuffer buf = ByteBuffer.allocateDirect(4 + nal.length);
+        buf.put(new byte[] { 0, 0, 0, 1 }).put(nal);
+        buf.flip();
+
+        mStreamer.sendAccessUnit(buf, 0, true);
+        assertTrue("queued " + reporter.getQueuedBytes(), reporter.getQueuedBytes() > 250000);
+        mStreamer.sendAccessUnit(buf, 33333, true);
+        assertEquals(0, reporter.getDroppedPackets());
+
+        // No room for a third; it's dropped, and so is everything until the next sync frame.
+        mStreamer.sendAccessUnit(buf, 66666, true);
+        assertEquals(1, reporter.getDroppedPackets());
+        buf.limit(4 + 1000);
+        mStreamer.sendAccessUnit(buf, 99999, false);
+        assertEquals(2, reporter.getDroppedPackets());
+        assertTrue(reporter.getQueuedBytes() > 500000);
+    }
+
+    @Test
+    public void findNalUnits() {
+        ByteBuffer buf = ByteBuffer.wrap(new byte[] {
+                0, 0, 0, 1, 0x67, 1, 0,     // 4-byte start code; trailing zero isn't data
+                0, 0, 1, 0x68, 2,           // 3-byte start code
+                0, 0, 1,                    // empty
+                0, 0, 1, 0x65, 3, 4 });
+        int[] starts = new int[4];
+        int[] ends = new int[4];
+        assertEquals(3, RtpStreamer.findNalUnits(buf, 0, buf.limit(), starts, ends));
+        assertEquals(4, starts[0]);
+        assertEquals(6, ends[0]);
+        assertEquals(10, starts[1]);
+        assertEquals(12, ends[1]);
+        assertEquals(18, starts[2]);
+        assertEquals(21, ends[2]);
+    }
+}
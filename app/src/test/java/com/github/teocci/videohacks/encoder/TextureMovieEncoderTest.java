@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.encoder;
+
+import android.graphics.SurfaceTexture;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks the frameAvailable() path that runs for every camera frame: it fills a descriptor
+ * slot without allocating, and drops frames rather than queueing without bound when the
+ * encoder thread falls behind.
+ * <p>
+ * There's no encoder thread here; the test hands slots back itself, as the encoder thread
+ * would after drawing each frame.  The Handler's messages go nowhere.
+ */
+public class TextureMovieEncoderTest {
+    // What measuring itself can cost, and then some.  Far less than a byte per frame.
+    private static final long SLACK_BYTES = 256;
+
+    private TextureMovieEncoder mEncoder;
+    private FakeSurfaceTexture mSurfaceTexture;
+
+    /**
+     * SurfaceTexture with a clock that advances by one frame per call.
+     */
+    private static class FakeSurfaceTexture extends SurfaceTexture {
+        private long mTimestamp;
+
+        FakeSurfaceTexture() {
+            super(0);
+        }
+
+        @Override
+        public long getTimestamp() {
+            mTimestamp += 33333333L;
+            return mTimestamp;
+        }
+
+        @Override
+        public void getTransformMatrix(float[] mtx) {
+            mtx[0] = mtx[5] = mtx[10] = mtx[15] = 1.0f;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mEncoder = new TextureMovieEncoder();
+        mEncoder.startHandler();
+        mSurfaceTexture = new FakeSurfaceTexture();
+    }
+
+    private void passFrames(int count) {
+        for (int i = 0; i < count; i++) {
+            mEncoder.setTextureId(i & 0xff);
+            mEncoder.frameAvailable(mSurfaceTexture);
+            mEncoder.releaseFrameSlot();
+        }
+    }
+
+    @Test
+    public void frameAvailableDoesNotAllocate() {
+        assumeTrue(AllocationCounter.isSupported());
+        final int frames = 100000;
+        passFrames(frames);     // warm up
+
+        long beforeBytes = AllocationCounter.allocatedBytes();
+        passFrames(frames);
+        long allocatedBytes = AllocationCounter.allocatedBytes() - beforeBytes;
+
+        System.out.printf("TextureMovieEncoder.frameAvailable: %.3f bytes/frame%n",
+                (double) allocatedBytes / frames);
+        assertTrue("allocated " + allocatedBytes + " bytes", allocatedBytes < SLACK_BYTES);
+        assertEquals(0, mEncoder.getDroppedFrames());
+    }
+
+    @Test
+    public void dropsWhenEncoderFallsBehind() {
+        for (int i = 0; i < TextureMovieEncoder.FRAME_SLOTS + 3; i++) {
+            mEncoder.frameAvailable(mSurfaceTexture);
+        }
+        assertEquals(3, mEncoder.getDroppedFrames());
+
+        // Once the encoder thread catches up, frames get through again.
+        mEncoder.releaseFrameSlot();
+        mEncoder.frameAvailable(mSurfaceTexture);
+        assertEquals(3, mEncoder.getDroppedFrames());
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives AsyncDecodeEngine with a fake codec and sample source, checking the FrameCallback
+ * contract (every frame once, in order; loopReset() between passes; stop and errors end
+ * run()), and printing frames/s and CPU time per frame on the player thread.
+ */
+public class AsyncDecodeEngineTest {
+    private FakePlayerCodec mCodec;
+    private SeekController mSeekController;
+
+    @Before
+    public void setUp() {
+        mCodec = new FakePlayerCodec(1024);
+        mSeekController = new SeekController(new File("unused.mp4"));
+    }
+
+    @After
+    public void tearDown() {
+        mCodec.release();
+    }
+
+    /**
+     * Checks that frames arrive in order, one pass at a time, and stops after "passes"
+     * passes (or never, if zero).
+     */
+    private static class OrderCheckingCallback implements MoviePlayer.FrameCallback {
+        private final int mPasses;
+        AsyncDecodeEngine mEngine;
+        long mExpectedUsec;
+        int mFrames;
+        int mLoopResets;
+        int mPostRenders;
+
+        OrderCheckingCallback(int passes) {
+            mPasses = passes;
+        }
+
+        @Override
+        public boolean preRender(long presentationTimeUsec) {
+            assertEquals(mExpectedUsec, presentationTimeUsec);
+            mExpectedUsec += FakeSampleSource.FRAME_USEC;
+            mFrames++;
+            return true;
+        }
+
+        @Override
+        public void postRender() {
+            mPostRenders++;
+        }
+
+        @Override
+        public void loopReset() {
+            mLoopResets++;
+            mExpectedUsec = 0;
+            if (mLoopResets == mPasses) {
+                mEngine.requestStop();
+            }
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void playsEveryFrameInOrder() {
+        AsyncDecodeEngine engine = new AsyncDecodeEngine(mCodec, new FakeSampleSource(500),
+                mSeekController);
+        OrderCheckingCallback callback = new OrderCheckingCallback(0);
+        callback.mEngine = engine;
+        engine.run(callback, false, System.nanoTime());
+
+        assertEquals(500, callback.mFrames);
+        assertEquals(500, callback.mPostRenders);
+        assertEquals(500, mCodec.getRenderedCount());
+        assertEquals(0, callback.mLoopResets);
+        assertTrue(engine.getTimeToFirstFrameNsec() >= 0);
+    }
+
+    @Test(timeout = 30000)
+    public void loopsUntilStopped() {
+        AsyncDecodeEngine engine = new AsyncDecodeEngine(mCodec, new FakeSampleSource(200),
+                mSeekController);
+        OrderCheckingCallback callback = new OrderCheckingCallback(3);
+        callback.mEngine = engine;
+        engine.run(callback, true, System.nanoTime());
+
+        assertEquals(3, callback.mLoopResets);
+        assertEquals(600, callback.mFrames);
+        // Once at the start, and once after each loop's flush.
+        assertEquals(4, mCodec.getStartCount());
+    }
+
+    @Test(timeout = 30000)
+    public void droppedFramesAreNotRendered() {
+        AsyncDecodeEngine engine = new AsyncDecodeEngine(mCodec, new FakeSampleSource(100),
+                mSeekController);
+        final int[] calls = new int[1];
+        engine.run(new MoviePlayer.FrameCallback() {
+            @Override
+            public boolean preRender(long presentationTimeUsec) {
+                return (calls[0]++ % 2) == 0;
+            }
+
+            @Override
+            public void postRender() {
+            }
+
+            @Override
+            public void loopReset() {
+            }
+        }, false, System.nanoTime());
+
+        assertEquals(100, calls[0]);
+        assertEquals(50, mCodec.getRenderedCount());
+    }
+
+    @Test(timeout = 30000)
+    public void seekSkipsAhead() {
+        mSeekController.setIndex(new SyncSampleIndex(new long[] {
+                0, 30 * FakeSampleSource.FRAME_USEC, 60 * FakeSampleSource.FRAME_USEC }));
+        final long targetUsec = 45 * FakeSampleSource.FRAME_USEC;
+        final long[] landedUsec = { -2 };
+        mSeekController.setCallback(new MoviePlayer.SeekCallback() {
+            @Override
+            public void seekComplete(long target, long actual, long latencyNsec,
+                    int discardedFrames) {
+                assertEquals(targetUsec, target);
+                landedUsec[0] = actual;
+                assertEquals(15, discardedFrames);
+            }
+        });
+        final AsyncDecodeEngine engine = new AsyncDecodeEngine(mCodec,
+                new FakeSampleSource(90), mSeekController);
+        PlaybackTelemetry telemetry = new PlaybackTelemetry();
+        engine.setTelemetry(telemetry);
+        OrderCheckingCallback callback = new OrderCheckingCallback(0) {
+            @Override
+            public boolean preRender(long presentationTimeUsec) {
+                super.preRender(presentationTimeUsec);
+                if (mFrames == 10) {
+                    mSeekController.request(targetUsec, MoviePlayer.SeekMode.EXACT);
+                    engine.wake();
+                }
+                return true;
+            }
+
+            @Override
+            public void loopReset() {
+                // The seek restarts the codec; pick up at the target.
+                mExpectedUsec = targetUsec;
+            }
+        };
+        callback.mEngine = engine;
+        engine.run(callback, false, System.nanoTime());
+
+        assertEquals(targetUsec, landedUsec[0]);
+        assertEquals(10 + 45, callback.mFrames);
+        // Frames decoded on the way to the target aren't drops.
+        assertEquals(15, telemetry.getFramesSeekDiscarded());
+        assertEquals(0, telemetry.getFramesDropped());
+    }
+
+    @Test(timeout = 30000, expected = RuntimeException.class)
+    public void codecErrorEndsPlayback() {
+        AsyncDecodeEngine engine = new AsyncDecodeEngine(mCodec, new FakeSampleSource(1000),
+                mSeekController);
+        engine.run(new OrderCheckingCallback(0) {
+            @Override
+            public boolean preRender(long presentationTimeUsec) {
+                if (mFrames == 5) {
+                    mCodec.fail(new IllegalStateException("fake codec failure"));
+                }
+                return super.preRender(presentationTimeUsec);
+            }
+        }, true, System.nanoTime());
+    }
+
+    @Test(timeout = 60000)
+    public void benchmark() {
+        final int frames = 50000;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        for (int pass = 0; pass < 2; pass++) {
+            FakePlayerCodec codec = new FakePlayerCodec(1024);
+            AsyncDecodeEngine engine = new AsyncDecodeEngine(codec,
+                    new FakeSampleSource(frames), mSeekController);
+            OrderCheckingCallback callback = new OrderCheckingCallback(0);
+            callback.mEngine = engine;
+
+            long cpuStartNsec = threads.getCurrentThreadCpuTime();
+            long startNsec = System.nanoTime();
+            engine.run(callback, false, startNsec);
+            long elapsedNsec = System.nanoTime() - startNsec;
+            long cpuNsec = threads.getCurrentThreadCpuTime() - cpuStartNsec;
+            codec.release();
+
+            assertEquals(frames, callback.mFrames);
+            if (pass == 1) {    // the first pass is warm-up
+                System.out.printf("AsyncDecodeEngine: %.0f frames/s, %.2f us CPU/frame " +
+                        "on the player thread%n", frames * 1e9 / elapsedNsec,
+                        cpuNsec / 1000.0 / frames);
+            }
+        }
+    }
+}
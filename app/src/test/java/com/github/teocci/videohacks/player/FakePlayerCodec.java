@@ -0,0 +1,235 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A decoder that "decodes" each input buffer into an output buffer with the same index,
+ * delivering the callbacks on its own thread the way MediaCodec does in asynchronous mode.
+ * Output comes out in input order, with no reordering.
+ */
+class FakePlayerCodec implements PlayerCodec {
+    static final int BUFFER_COUNT = 4;
+
+    private final ExecutorService mExecutor;
+    private final boolean mOwnsExecutor;
+    private final ByteBuffer[] mInputBuffers = new ByteBuffer[BUFFER_COUNT];
+    private final long[] mOutputPtsUsec = new long[BUFFER_COUNT];
+
+    // Bumped by flush(), so callbacks queued before it are dropped.  Callbacks run holding
+    // mFlushLock, so none is still being delivered when flush() returns.
+    private final Object mFlushLock = new Object();
+    private volatile int mGeneration;
+    private Callback mCallback;
+    private volatile int mStartCount;
+    private volatile int mRenderedCount;
+    private volatile boolean mReleased;
+
+    // When each rendered frame was released, and its time stamp.  Guarded by mRenderLock,
+    // which is never held while calling out, since releaseOutputBuffer() may be called
+    // with the caller's own locks held.
+    private final Object mRenderLock = new Object();
+    private long[] mRenderNsec = new long[64];
+    private long[] mRenderPtsUsec = new long[64];
+
+    /**
+     * Creates a codec with its own callback thread.
+     */
+    FakePlayerCodec(int inputBufferSize) {
+        this(inputBufferSize, newCallbackExecutor(), true);
+    }
+
+    /**
+     * Creates a codec that delivers its callbacks on a shared executor, the way several
+     * MediaCodecs can share a callback Handler.
+     */
+    FakePlayerCodec(int inputBufferSize, ExecutorService callbackExecutor) {
+        this(inputBufferSize, callbackExecutor, false);
+    }
+
+    private FakePlayerCodec(int inputBufferSize, ExecutorService callbackExecutor,
+            boolean ownsExecutor) {
+        mExecutor = callbackExecutor;
+        mOwnsExecutor = ownsExecutor;
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            mInputBuffers[i] = ByteBuffer.allocate(inputBufferSize);
+        }
+    }
+
+    /**
+     * Returns a single daemon thread to deliver codec callbacks on.
+     */
+    static ExecutorService newCallbackExecutor() {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FakePlayerCodec");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    int getStartCount() {
+        return mStartCount;
+    }
+
+    int getRenderedCount() {
+        return mRenderedCount;
+    }
+
+    boolean isReleased() {
+        return mReleased;
+    }
+
+    /**
+     * Returns the System.nanoTime() at which each rendered frame was released.
+     */
+    long[] getRenderNsec() {
+        synchronized (mRenderLock) {
+            return Arrays.copyOf(mRenderNsec, mRenderedCount);
+        }
+    }
+
+    /**
+     * Returns the presentation time stamp of each rendered frame.
+     */
+    long[] getRenderPtsUsec() {
+        synchronized (mRenderLock) {
+            return Arrays.copyOf(mRenderPtsUsec, mRenderedCount);
+        }
+    }
+
+    /**
+     * Runs "task" on the codec thread, unless the codec is flushed first.
+     */
+    private void post(final Runnable task) {
+        final int generation = mGeneration;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mFlushLock) {
+                    if (generation == mGeneration) {
+                        task.run();
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public void start() {
+        mStartCount++;
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            final int index = i;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onInputBufferAvailable(index);
+                }
+            });
+        }
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public void queueInputBuffer(final int index, int offset, final int size,
+            final long presentationTimeUs, final int flags) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mOutputPtsUsec[index] = presentationTimeUs;
+                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                info.offset = 0;
+                info.size = size;
+                info.presentationTimeUs = presentationTimeUs;
+                info.flags = flags;
+                mCallback.onOutputBufferAvailable(index, info);
+            }
+        });
+    }
+
+    @Override
+    public void releaseOutputBuffer(final int index, boolean render) {
+        if (render) {
+            long nowNsec = System.nanoTime();
+            synchronized (mRenderLock) {
+                int count = mRenderedCount;
+                if (count == mRenderNsec.length) {
+                    mRenderNsec = Arrays.copyOf(mRenderNsec, count * 2);
+                    mRenderPtsUsec = Arrays.copyOf(mRenderPtsUsec, count * 2);
+                }
+                mRenderNsec[count] = nowNsec;
+                mRenderPtsUsec[count] = mOutputPtsUsec[index];
+                mRenderedCount = count + 1;
+            }
+        }
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onInputBufferAvailable(index);
+            }
+        });
+    }
+
+    /**
+     * Reports an error through the callback, as a codec would.
+     */
+    void fail(final RuntimeException e) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mCallback.onError(e);
+            }
+        });
+    }
+
+    @Override
+    public void flush() {
+        synchronized (mFlushLock) {
+            mGeneration++;
+        }
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+        if (mOwnsExecutor) {
+            mExecutor.shutdown();
+        }
+    }
+}
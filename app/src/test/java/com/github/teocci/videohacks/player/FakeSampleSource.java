@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A movie of "frameCount" synthetic samples, FRAME_USEC apart, with a sync sample every
+ * GOP_FRAMES.  Each sample starts with its frame number, so readers can check what they got.
+ */
+class FakeSampleSource implements SampleSource {
+    static final long FRAME_USEC = 33333;
+    static final int GOP_FRAMES = 30;
+
+    private final int mFrameCount;
+    private int mFrame;
+    private volatile int mReadCount;
+    private volatile boolean mReleased;
+
+    FakeSampleSource(int frameCount) {
+        mFrameCount = frameCount;
+    }
+
+    /**
+     * Returns the size of a frame's sample.  Override to vary it.
+     */
+    int sampleSize(int frame) {
+        return 100;
+    }
+
+    /**
+     * Returns the number of readSampleData() calls that returned a sample.
+     */
+    int getReadCount() {
+        return mReadCount;
+    }
+
+    boolean isReleased() {
+        return mReleased;
+    }
+
+    @Override
+    public MediaFormat getFormat() {
+        return new MediaFormat();
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buf, int offset) {
+        if (mFrame >= mFrameCount) {
+            return -1;
+        }
+        int size = sampleSize(mFrame);
+        if (offset + size > buf.capacity()) {
+            throw new IllegalArgumentException("sample " + mFrame + " is " + size + " bytes");
+        }
+        buf.putInt(offset, mFrame);
+        mReadCount++;
+        return size;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return (mFrame < mFrameCount) ? mFrame * FRAME_USEC : -1;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        if (mFrame >= mFrameCount) {
+            return 0;
+        }
+        return (mFrame % GOP_FRAMES) == 0 ? MediaExtractor.SAMPLE_FLAG_SYNC : 0;
+    }
+
+    @Override
+    public boolean advance() {
+        if (mFrame < mFrameCount) {
+            mFrame++;
+        }
+        return mFrame < mFrameCount;
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        int frame = (int) Math.min(Math.max(timeUs, 0) / FRAME_USEC, mFrameCount - 1);
+        mFrame = frame - frame % GOP_FRAMES;
+    }
+
+    @Override
+    public void release() {
+        mReleased = true;
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the metadata cache: what goes in comes back out, anything wrong with the cache file
+ * is a miss rather than a crash, and concurrent writers don't leave a torn file.  Also
+ * prints how long a cold start (scanning every sample) takes compared to a warm one
+ * (reading the cache).
+ */
+public class MovieMetadataTest {
+    private static final byte[] CSD0 = { 0, 0, 0, 1, 0x67 };
+    private static final byte[] CSD1 = { 0, 0, 0, 1, 0x68 };
+
+    private File mCacheDir;
+    private File mSourceFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mCacheDir = File.createTempFile("metadata", "");
+        mCacheDir.delete();
+        assertTrue(mCacheDir.mkdir());
+        MovieMetadata.setCacheDir(mCacheDir);
+        mSourceFile = new File(mCacheDir, "movie.mp4");
+        writeSource(1000);
+    }
+
+    @After
+    public void tearDown() {
+        MovieMetadata.setCacheDir(null);
+        File[] files = mCacheDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mCacheDir.delete();
+    }
+
+    private void writeSource(int size) throws IOException {
+        FileOutputStream out = new FileOutputStream(mSourceFile);
+        out.write(new byte[size]);
+        out.close();
+    }
+
+    private static MovieMetadata scan(int frameCount) {
+        return MovieMetadata.scan(new FakeSampleSource(frameCount), 1, "video/avc", 1280, 720,
+                -1, CSD0, CSD1, 4096);
+    }
+
+    private File cacheFile() {
+        return MovieMetadata.getCacheFile(mSourceFile);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        MovieMetadata scanned = scan(300);
+        assertEquals(300, scanned.getSampleCount());
+        assertEquals(100, scanned.getMaxSampleSize());
+        assertEquals(299 * FakeSampleSource.FRAME_USEC, scanned.getDurationUsec());
+        assertEquals(10, scanned.getSyncIndex().getCount());
+
+        assertNull(MovieMetadata.getCached(mSourceFile));
+        scanned.writeCache(mSourceFile, cacheFile());
+        MovieMetadata cached = MovieMetadata.getCached(mSourceFile);
+        assertNotNull(cached);
+        assertEquals(1, cached.getTrackIndex());
+        assertEquals("video/avc", cached.getMime());
+        assertEquals(1280, cached.getWidth());
+        assertEquals(720, cached.getHeight());
+        assertEquals(scanned.getDurationUsec(), cached.getDurationUsec());
+        assertEquals(300, cached.getSampleCount());
+        assertEquals(100, cached.getMaxSampleSize());
+        SyncSampleIndex index = cached.getSyncIndex();
+        assertEquals(10, index.getCount());
+        for (int i = 0; i < index.getCount(); i++) {
+            assertEquals(i * 30 * FakeSampleSource.FRAME_USEC, index.getSyncPtsUsec(i));
+        }
+
+        // Only the cache file should be left; no temporaries.
+        assertArrayEquals(new String[] { cacheFile().getName() },
+                mCacheDir.list(new FilenameFilter() {
+                    @Override
+                    public boolean accept(File dir, String name) {
+                        return !name.equals(mSourceFile.getName());
+                    }
+                }));
+    }
+
+    @Test
+    public void scanGrowsScratchBuffer() {
+        MovieMetadata scanned = MovieMetadata.scan(new FakeSampleSource(100) {
+            @Override
+            int sampleSize(int frame) {
+                return (frame == 50) ? 300000 : 100;
+            }
+        }, 0, "video/avc", 320, 240, -1, CSD0, CSD1, 1024);
+        assertEquals(100, scanned.getSampleCount());
+        assertEquals(300000, scanned.getMaxSampleSize());
+    }
+
+    @Test
+    public void changedSourceIsAMiss() throws IOException {
+        scan(300).writeCache(mSourceFile, cacheFile());
+        assertNotNull(MovieMetadata.getCached(mSourceFile));
+        writeSource(2000);
+        assertNull(MovieMetadata.getCached(mSourceFile));
+    }
+
+    @Test
+    public void truncatedCacheIsAMiss() throws IOException {
+        scan(300).writeCache(mSourceFile, cacheFile());
+        long length = cacheFile().length();
+        for (long cut = length - 1; cut >= 0; cut -= 7) {
+            RandomAccessFile raf = new RandomAccessFile(cacheFile(), "rw");
+            raf.setLength(cut);
+            raf.close();
+            assertNull(MovieMetadata.getCached(mSourceFile));
+        }
+    }
+
+    @Test
+    public void corruptLengthsAreAMiss() throws IOException {
+        MovieMetadata scanned = scan(300);
+        scanned.writeCache(mSourceFile, cacheFile());
+        long length = cacheFile().length();
+
+        // Smash each 4-byte word in turn with values that make bad lengths.  None of them
+        // may escape as an exception or an enormous allocation.
+        int[] bad = { -1, Integer.MAX_VALUE, 0x10000000 };
+        for (long offset = 0; offset + 4 <= length; offset += 4) {
+            for (int value : bad) {
+                scanned.writeCache(mSourceFile, cacheFile());
+                RandomAccessFile raf = new RandomAccessFile(cacheFile(), "rw");
+                raf.seek(offset);
+                raf.writeInt(value);
+                raf.close();
+                MovieMetadata cached = MovieMetadata.getCached(mSourceFile);
+                if (cached != null) {
+                    // It landed somewhere the reader can't check, e.g. the duration.  The
+                    // arrays still have to have come from the file.
+                    assertTrue(cached.getSyncIndex().getCount() * 8L <= length);
+                }
+            }
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void concurrentWritersNeverTearTheFile() throws Exception {
+        final MovieMetadata scanned = scan(3000);
+        scanned.writeCache(mSourceFile, cacheFile());
+        final Exception[] failure = new Exception[1];
+        Thread[] writers = new Thread[2];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 200; j++) {
+                            scanned.writeCache(mSourceFile, cacheFile());
+                        }
+                    } catch (IOException ioe) {
+                        failure[0] = ioe;
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        while (writers[0].isAlive() || writers[1].isAlive()) {
+            MovieMetadata cached = MovieMetadata.getCached(mSourceFile);
+            assertNotNull(cached);
+            assertEquals(100, cached.getSyncIndex().getCount());
+        }
+        assertNull(failure[0]);
+    }
+
+    @Test
+    public void coldVersusWarmStart() throws IOException {
+        // Half an hour at 30fps.
+        final int frames = 30 * 60 * 30;
+        long coldNsec = 0;
+        long warmNsec = 0;
+        for (int pass = 0; pass < 3; pass++) {
+            long startNsec = System.nanoTime();
+            MovieMetadata scanned = scan(frames);
+            scanned.writeCache(mSourceFile, cacheFile());
+            coldNsec = System.nanoTime() - startNsec;
+
+            startNsec = System.nanoTime();
+            MovieMetadata cached = MovieMetadata.getCached(mSourceFile);
+            warmNsec = System.nanoTime() - startNsec;
+            assertEquals(frames, cached.getSampleCount());
+        }
+        System.out.printf("MovieMetadata for %d samples: cold (scan) %.2f ms, " +
+                "warm (cache) %.2f ms%n", frames, coldNsec / 1e6, warmNsec / 1e6);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Simulates a wall of movies: N fake decoders sharing one callback thread, as they share
+ * the scheduler's callback Handler on a device.  Checks that every stream's frames come out
+ * in order, measures how far each frame's release strays from the shared clock (jitter),
+ * checks that the scheduler's threads are the only ones started, however many streams
+ * there are, and that removing a stream releases its codec and source.
+ */
+public class PlaybackSchedulerTest {
+    private static final long FRAME_USEC = FakeSampleSource.FRAME_USEC;
+
+    // Generous, since the test machine may be busy.  Typical numbers are printed.
+    private static final long MAX_JITTER_NSEC = 50000000L;
+
+    private ExecutorService mCallbackExecutor;
+    private PlaybackScheduler mScheduler;
+    private Set<Thread> mBaseThreads;
+
+    @Before
+    public void setUp() {
+        mCallbackExecutor = FakePlayerCodec.newCallbackExecutor();
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Start the thread now, so it's part of the baseline.
+            }
+        });
+        mBaseThreads = liveThreads();
+        mScheduler = new PlaybackScheduler();
+    }
+
+    @After
+    public void tearDown() {
+        mScheduler.shutdown();
+        mCallbackExecutor.shutdown();
+    }
+
+    /**
+     * Returns the live threads started by this test's code, rather than the JVM's own, which
+     * live in other thread groups.
+     */
+    private static Set<Thread> liveThreads() {
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        Set<Thread> threads = new HashSet<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getThreadGroup() == group) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    /**
+     * Plays "streamCount" streams of "frames" frames each to the end, and checks them.
+     */
+    private void playStreams(int streamCount, int frames) throws InterruptedException {
+        FakePlayerCodec[] codecs = new FakePlayerCodec[streamCount];
+        FakeSampleSource[] sources = new FakeSampleSource[streamCount];
+        PlaybackScheduler.Stream[] streams = new PlaybackScheduler.Stream[streamCount];
+        for (int i = 0; i < streamCount; i++) {
+            codecs[i] = new FakePlayerCodec(1024, mCallbackExecutor);
+            sources[i] = new FakeSampleSource(frames);
+            streams[i] = mScheduler.addStream(codecs[i], sources[i], false);
+        }
+
+        // Anything started since setUp() must be one of the scheduler's two threads.  (The
+        // stub HandlerThread has nothing to run, so the callback thread may be gone already.)
+        Set<Thread> started = liveThreads();
+        started.removeAll(mBaseThreads);
+        for (Thread thread : started) {
+            assertTrue("unexpected thread " + thread.getName(),
+                    thread.getName().equals("Playback Timing") ||
+                            thread.getName().equals("Playback Callbacks"));
+        }
+        int threads = started.size();
+        assertTrue("no timing thread", threads >= 1);
+
+        long deadlineMsec = System.currentTimeMillis() + frames * FRAME_USEC / 1000 + 5000;
+        for (FakePlayerCodec codec : codecs) {
+            while (codec.getRenderedCount() < frames) {
+                assertTrue("timed out", System.currentTimeMillis() < deadlineMsec);
+                Thread.sleep(10);
+            }
+        }
+        for (PlaybackScheduler.Stream stream : streams) {
+            mScheduler.removeStream(stream);
+        }
+        // The stub Handler can't post, so the release happens right away, as it does on a
+        // device once the callback thread has quit.
+        for (int i = 0; i < streamCount; i++) {
+            assertTrue("codec " + i + " not released", codecs[i].isReleased());
+            assertTrue("source " + i + " not released", sources[i].isReleased());
+        }
+
+        // Every frame once, in order.  Jitter is measured against the first frame of each
+        // stream, since that's where its clock mapping starts.
+        long maxJitterNsec = 0;
+        long totalJitterNsec = 0;
+        for (FakePlayerCodec codec : codecs) {
+            long[] ptsUsec = codec.getRenderPtsUsec();
+            long[] renderNsec = codec.getRenderNsec();
+            assertEquals(frames, ptsUsec.length);
+            for (int i = 0; i < frames; i++) {
+                assertEquals(i * FRAME_USEC, ptsUsec[i]);
+                long expectedNsec = renderNsec[0] + (ptsUsec[i] - ptsUsec[0]) * 1000;
+                long jitterNsec = Math.abs(renderNsec[i] - expectedNsec);
+                maxJitterNsec = Math.max(maxJitterNsec, jitterNsec);
+                totalJitterNsec += jitterNsec;
+            }
+        }
+        System.out.printf("PlaybackScheduler, %d streams: %d threads, jitter avg %.2f ms " +
+                "max %.2f ms, %d late of %d%n", streamCount, threads,
+                totalJitterNsec / 1e6 / (streamCount * frames), maxJitterNsec / 1e6,
+                mScheduler.getLateFrames(), mScheduler.getFramesPresented());
+
+        assertTrue("max jitter " + maxJitterNsec + " ns", maxJitterNsec < MAX_JITTER_NSEC);
+    }
+
+    @Test(timeout = 30000)
+    public void oneStream() throws InterruptedException {
+        playStreams(1, 30);
+    }
+
+    @Test(timeout = 30000)
+    public void wallOfSixteen() throws InterruptedException {
+        playStreams(16, 30);
+    }
+
+    @Test(timeout = 30000)
+    public void loopingKeepsTimeStampsIncreasing() throws InterruptedException {
+        FakePlayerCodec codec = new FakePlayerCodec(1024, mCallbackExecutor);
+        PlaybackScheduler.Stream stream = mScheduler.addStream(codec, new FakeSampleSource(10),
+                true);
+        while (codec.getRenderedCount() < 35) {
+            Thread.sleep(10);
+        }
+        mScheduler.removeStream(stream);
+
+        // Three and a half passes, one frame apart throughout.
+        long[] ptsUsec = codec.getRenderPtsUsec();
+        for (int i = 0; i < ptsUsec.length; i++) {
+            assertEquals(i * FRAME_USEC, ptsUsec[i]);
+        }
+    }
+}
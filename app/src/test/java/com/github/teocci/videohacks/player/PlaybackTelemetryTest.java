@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds PlaybackTelemetry two hours of 240fps playback with known latencies, checks the
+ * percentiles and counters it reports, and prints what recording a frame costs.
+ */
+public class PlaybackTelemetryTest {
+    private static final long FRAME_NSEC = 1000000000L / 240;
+
+    private static void assertNear(long expected, long actual, double tolerance) {
+        assertTrue("expected " + expected + ", got " + actual,
+                Math.abs(actual - expected) <= expected * tolerance);
+    }
+
+    @Test(timeout = 60000)
+    public void twoHoursAt240fps() {
+        final long frames = 240L * 3600 * 2;
+        final long decodeNsec = 2000000;
+        final long decodeSigmaNsec = 300000;
+        PlaybackTelemetry telemetry = new PlaybackTelemetry();
+        Random random = new Random(1);
+
+        long nowNsec = 0;
+        long startNsec = System.nanoTime();
+        for (long i = 0; i < frames; i++) {
+            long ptsUsec = i * FRAME_NSEC / 1000;
+            telemetry.inputQueued(ptsUsec, nowNsec);
+            long latencyNsec = decodeNsec + (long) (random.nextGaussian() * decodeSigmaNsec);
+            telemetry.outputDequeued(ptsUsec, nowNsec + latencyNsec);
+            telemetry.frameRendered();
+            // One frame in a thousand is late; the rest are well under the threshold.
+            telemetry.framePresented((i % 1000) == 0 ? 6000000 :
+                    (long) (Math.abs(random.nextGaussian()) * 100000));
+            nowNsec += FRAME_NSEC;
+        }
+        long elapsedNsec = System.nanoTime() - startNsec;
+
+        assertEquals(frames, telemetry.getFramesRendered());
+        assertEquals(0, telemetry.getFramesDropped());
+        assertEquals(frames / 1000, telemetry.getFramesLate());
+        // Median and 99th percentile (2.326 sigma) of the decode latency.
+        assertNear(decodeNsec, telemetry.getDecodeLatencyNsec(50), 0.02);
+        assertNear(decodeNsec + 698000, telemetry.getDecodeLatencyNsec(99), 0.02);
+        assertNear(6000000, telemetry.getLatenessNsec(99.95), 0.02);
+        System.out.printf("PlaybackTelemetry: %d frames at 240fps, %.0f ns/frame%n%s%n",
+                frames, (double) elapsedNsec / frames, telemetry.toJson());
+    }
+
+    @Test
+    public void seekDiscardsAreNotDrops() {
+        PlaybackTelemetry telemetry = new PlaybackTelemetry();
+        telemetry.frameRendered();
+        telemetry.frameDropped();
+        telemetry.frameDiscardedForSeek();
+        telemetry.frameDiscardedForSeek();
+        assertEquals(1, telemetry.getFramesRendered());
+        assertEquals(1, telemetry.getFramesDropped());
+        assertEquals(2, telemetry.getFramesSeekDiscarded());
+        assertTrue(telemetry.toJson().contains("\"framesDropped\":1,"));
+        assertTrue(telemetry.toJson().contains("\"framesSeekDiscarded\":2,"));
+
+        telemetry.reset();
+        assertEquals(0, telemetry.getFramesDropped());
+        assertEquals(0, telemetry.getFramesSeekDiscarded());
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import android.media.MediaExtractor;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads a fake movie through ReadaheadSampleSource, checking that every sample comes out
+ * once and in order, that a seek throws away what was read ahead, that the sample time and
+ * flags right after a seek are the new position's, and that a sample bigger than anything
+ * the format promised doesn't end playback, while an unrelated read failure does.
+ */
+public class ReadaheadSampleSourceTest {
+    private static final long FRAME_USEC = FakeSampleSource.FRAME_USEC;
+
+    private ReadaheadSampleSource mReadahead;
+
+    @After
+    public void tearDown() {
+        if (mReadahead != null) {
+            mReadahead.release();
+        }
+    }
+
+    /**
+     * Fake source with samples of assorted sizes that now and then takes a while to read,
+     * like storage does.
+     */
+    private static class SlowSampleSource extends FakeSampleSource {
+        SlowSampleSource(int frameCount) {
+            super(frameCount);
+        }
+
+        @Override
+        int sampleSize(int frame) {
+            return 1000 + (frame % 7) * 5000;
+        }
+
+        @Override
+        public int readSampleData(ByteBuffer buf, int offset) {
+            if (getSampleTime() % (50 * FRAME_USEC) == 0) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ie) {
+                    // discard
+                }
+            }
+            return super.readSampleData(buf, offset);
+        }
+    }
+
+    /**
+     * Reads the current sample, growing "buf" until it fits.  Returns the buffer used.
+     */
+    private ByteBuffer read(ByteBuffer buf, int[] size) {
+        while (true) {
+            try {
+                size[0] = mReadahead.readSampleData(buf, 0);
+                return buf;
+            } catch (IllegalArgumentException iae) {
+                buf = ByteBuffer.allocateDirect(buf.capacity() * 2);
+            }
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void readsInOrderAcrossSeek() throws InterruptedException {
+        mReadahead = new ReadaheadSampleSource(new SlowSampleSource(600), 64 * 1024,
+                500000);
+        ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+        int[] size = new int[1];
+        int expected = 0;
+        int count = 0;
+        while (true) {
+            buf = read(buf, size);
+            if (size[0] < 0) {
+                break;
+            }
+            assertEquals(expected, buf.getInt(0));
+            assertEquals(expected * FRAME_USEC, mReadahead.getSampleTime());
+            expected++;
+            count++;
+            mReadahead.advance();
+            if (count == 100) {
+                // Lands on the sync frame before the target.
+                mReadahead.seekTo(400 * FRAME_USEC, 0);
+                expected = 390;
+            }
+            if (count % 7 == 0) {
+                Thread.sleep(1);
+            }
+        }
+        assertEquals(600, expected);
+        assertEquals(100 + 210, count);
+        System.out.println(mReadahead);
+    }
+
+    @Test(timeout = 30000)
+    public void sampleTimeWaitsForSeek() {
+        // Seeking takes the reader a while, so a caller asking right away gets ahead of it.
+        mReadahead = new ReadaheadSampleSource(new FakeSampleSource(600) {
+            @Override
+            public void seekTo(long timeUs, int mode) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ie) {
+                    // discard
+                }
+                super.seekTo(timeUs, mode);
+            }
+        }, 64 * 1024, 500000);
+        assertEquals(0, mReadahead.getSampleTime());
+
+        mReadahead.seekTo(400 * FRAME_USEC, 0);
+        assertEquals(390 * FRAME_USEC, mReadahead.getSampleTime());
+        assertEquals(MediaExtractor.SAMPLE_FLAG_SYNC, mReadahead.getSampleFlags());
+        mReadahead.seekTo(200 * FRAME_USEC, 0);
+        assertEquals(MediaExtractor.SAMPLE_FLAG_SYNC, mReadahead.getSampleFlags());
+        assertEquals(180 * FRAME_USEC, mReadahead.getSampleTime());
+
+        // Past the end, there's no sample to wait for.
+        mReadahead.seekTo(599 * FRAME_USEC, 0);
+        for (int i = 570; i < 599; i++) {
+            mReadahead.advance();
+        }
+        assertEquals(599 * FRAME_USEC, mReadahead.getSampleTime());
+        mReadahead.advance();
+        assertEquals(-1, mReadahead.getSampleTime());
+        assertEquals(0, mReadahead.getSampleFlags());
+    }
+
+    @Test(timeout = 30000)
+    public void oversizedSampleIsNotFatal() {
+        final int bigFrame = 50;
+        final int bigSize = 3 * 1024 * 1024;
+        mReadahead = new ReadaheadSampleSource(new FakeSampleSource(100) {
+            @Override
+            int sampleSize(int frame) {
+                return (frame == bigFrame) ? bigSize : 100;
+            }
+        }, 64 * 1024, 500000);
+        ByteBuffer buf = ByteBuffer.allocateDirect(1024);
+        int[] size = new int[1];
+        for (int i = 0; i < 100; i++) {
+            buf = read(buf, size);
+            assertEquals(i, buf.getInt(0));
+            assertEquals((i == bigFrame) ? bigSize : 100, size[0]);
+            mReadahead.advance();
+        }
+        buf = read(buf, size);
+        assertEquals(-1, size[0]);
+        assertTrue(buf.capacity() >= bigSize);
+    }
+
+    @Test(timeout = 30000)
+    public void unrelatedReadFailureIsFatal() {
+        // Says "illegal argument" however much room there is, as MediaExtractor does for
+        // some things that aren't about room.  Growing the buffer mustn't go on forever.
+        mReadahead = new ReadaheadSampleSource(new FakeSampleSource(100) {
+            @Override
+            public int readSampleData(ByteBuffer buf, int offset) {
+                throw new IllegalArgumentException("bad track");
+            }
+        }, 64 * 1024, 500000);
+        try {
+            mReadahead.readSampleData(ByteBuffer.allocateDirect(1024), 0);
+            fail("read succeeded");
+        } catch (IllegalArgumentException iae) {
+            fail("reader's failure passed off as a small buffer");
+        } catch (RuntimeException re) {
+            assertEquals("bad track", re.getCause().getMessage());
+        }
+    }
+}
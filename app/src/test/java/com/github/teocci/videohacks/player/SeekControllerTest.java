@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.teocci.videohacks.player;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks where seeks land, with and without a sync frame index.
+ */
+public class SeekControllerTest {
+    private static final long FRAME_USEC = FakeSampleSource.FRAME_USEC;
+
+    private SeekController mController;
+    private FakeSampleSource mSource;
+    private long mLandedUsec;
+    private int mDiscarded;
+
+    @Before
+    public void setUp() {
+        // The file doesn't exist, so the background index loader gives up.
+        mController = new SeekController(new File("no-such-movie.mp4"));
+        mController.setCallback(new MoviePlayer.SeekCallback() {
+            @Override
+            public void seekComplete(long targetUsec, long actualUsec, long latencyNsec,
+                    int discardedFrames) {
+                mLandedUsec = actualUsec;
+                mDiscarded = discardedFrames;
+            }
+        });
+        mSource = new FakeSampleSource(300);
+        mLandedUsec = -2;
+    }
+
+    /**
+     * Feeds frames from wherever the source is to shouldRender(), until one is rendered.
+     */
+    private void decodeUntilRendered() {
+        while (!mController.shouldRender(mSource.getSampleTime())) {
+            assertTrue(mSource.advance());
+        }
+    }
+
+    @Test
+    public void exactWithoutIndex() {
+        mController.request(45 * FRAME_USEC, MoviePlayer.SeekMode.EXACT);
+        assertTrue(mController.isSeekRequested());
+        mController.start(mSource);
+        assertFalse(mController.isSeekRequested());
+
+        // The extractor put us on the sync frame before the target.
+        assertEquals(30 * FRAME_USEC, mSource.getSampleTime());
+        decodeUntilRendered();
+        assertEquals(45 * FRAME_USEC, mLandedUsec);
+        assertEquals(15, mDiscarded);
+    }
+
+    @Test
+    public void syncWithoutIndex() {
+        mController.request(100 * FRAME_USEC, MoviePlayer.SeekMode.PREVIOUS_SYNC);
+        mController.start(mSource);
+        decodeUntilRendered();
+        assertEquals(90 * FRAME_USEC, mLandedUsec);
+        assertEquals(0, mDiscarded);
+    }
+
+    @Test
+    public void closestWithIndex() {
+        mController.setIndex(new SyncSampleIndex(new long[] {
+                0, 30 * FRAME_USEC, 60 * FRAME_USEC, 90 * FRAME_USEC }));
+        mController.request(80 * FRAME_USEC, MoviePlayer.SeekMode.CLOSEST_SYNC);
+        mController.start(mSource);
+        decodeUntilRendered();
+        assertEquals(90 * FRAME_USEC, mLandedUsec);
+    }
+
+    @Test
+    public void pastTheEnd() {
+        mController.request(1000 * FRAME_USEC, MoviePlayer.SeekMode.EXACT);
+        mController.start(mSource);
+        while (mSource.getSampleTime() >= 0) {
+            assertFalse(mController.shouldRender(mSource.getSampleTime()));
+            mSource.advance();
+        }
+        mController.endOfStream();
+        assertEquals(-1, mLandedUsec);
+    }
+}